@@ -0,0 +1,105 @@
+package com.tab.demo.nearby;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.DocumentsContract;
+import android.provider.OpenableColumns;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Turns documents picked through the storage access framework into {@link BatchFile}s.
+ */
+class DocumentBatch {
+    private static final String[] DOCUMENT_COLUMNS = {
+            DocumentsContract.Document.COLUMN_DOCUMENT_ID,
+            DocumentsContract.Document.COLUMN_DISPLAY_NAME,
+            DocumentsContract.Document.COLUMN_MIME_TYPE,
+            DocumentsContract.Document.COLUMN_SIZE
+    };
+
+    private DocumentBatch() {
+    }
+
+    /**
+     * Lists the documents, each under its display name.
+     */
+    static List<BatchFile> fromDocuments(ContentResolver resolver, List<Uri> uris) {
+        List<BatchFile> files = new ArrayList<>();
+        for (Uri uri : uris) {
+            String name = uri.getLastPathSegment();
+            long size = -1;
+            try (Cursor cursor = resolver.query(uri,
+                    new String[]{OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE}, null, null, null)) {
+                if (cursor != null && cursor.moveToFirst()) {
+                    if (!cursor.isNull(0)) {
+                        name = cursor.getString(0);
+                    }
+                    if (!cursor.isNull(1)) {
+                        size = cursor.getLong(1);
+                    }
+                }
+            }
+            if (size >= 0) {
+                files.add(file(resolver, uri, name, size));
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Lists every file below a tree picked with {@code ACTION_OPEN_DOCUMENT_TREE}, with paths
+     * starting at the name of the tree itself.
+     */
+    static List<BatchFile> fromTree(ContentResolver resolver, Uri treeUri) {
+        List<BatchFile> files = new ArrayList<>();
+        String rootId = DocumentsContract.getTreeDocumentId(treeUri);
+        String rootName = rootId;
+        try (Cursor cursor = resolver.query(DocumentsContract.buildDocumentUriUsingTree(treeUri, rootId),
+                new String[]{DocumentsContract.Document.COLUMN_DISPLAY_NAME}, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst() && !cursor.isNull(0)) {
+                rootName = cursor.getString(0);
+            }
+        }
+        Deque<String[]> directories = new ArrayDeque<>();
+        directories.push(new String[]{rootId, rootName});
+        while (!directories.isEmpty()) {
+            String[] directory = directories.pop();
+            Uri children = DocumentsContract.buildChildDocumentsUriUsingTree(treeUri, directory[0]);
+            try (Cursor cursor = resolver.query(children, DOCUMENT_COLUMNS, null, null, null)) {
+                while (cursor != null && cursor.moveToNext()) {
+                    String id = cursor.getString(0);
+                    String path = directory[1] + "/" + cursor.getString(1);
+                    if (DocumentsContract.Document.MIME_TYPE_DIR.equals(cursor.getString(2))) {
+                        directories.push(new String[]{id, path});
+                    } else if (!cursor.isNull(3)) {
+                        files.add(file(resolver, DocumentsContract.buildDocumentUriUsingTree(treeUri, id),
+                                path, cursor.getLong(3)));
+                    }
+                }
+            }
+        }
+        return files;
+    }
+
+    private static BatchFile file(final ContentResolver resolver, final Uri uri, String path, long size) {
+        return new BatchFile(path, size) {
+            @Override
+            FileChannel open() throws IOException {
+                ParcelFileDescriptor pfd = resolver.openFileDescriptor(uri, "r");
+                if (pfd == null) {
+                    throw new FileNotFoundException(uri.toString());
+                }
+                return new ParcelFileDescriptor.AutoCloseInputStream(pfd).getChannel();
+            }
+        };
+    }
+}
@@ -1,22 +0,0 @@
-package com.tab.demo.nearby;
-
-class EndpointStatus {
-    private String name;
-    private String status;
-
-    public String getName() {
-        return name;
-    }
-
-    public void setName(String name) {
-        this.name = name;
-    }
-
-    public String getStatus() {
-        return status;
-    }
-
-    public void setStatus(String status) {
-        this.status = status;
-    }
-}
@@ -0,0 +1,40 @@
+package com.tab.demo.nearby;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+class FileUtils {
+
+    private FileUtils() {
+    }
+
+    /**
+     * Moves {@code from} to {@code to}, by rename when both are on the same file system and
+     * otherwise with a channel-to-channel copy that never passes the data through the Java heap.
+     */
+    static void move(File from, File to) throws IOException {
+        if (from.renameTo(to)) {
+            return;
+        }
+        try (FileInputStream in = new FileInputStream(from);
+             FileOutputStream out = new FileOutputStream(to)) {
+            FileChannel source = in.getChannel();
+            FileChannel target = out.getChannel();
+            long size = source.size();
+            long position = 0;
+            while (position < size) {
+                position += source.transferTo(position, size - position, target);
+            }
+            target.force(false);
+        } catch (IOException e) {
+            to.delete();
+            throw e;
+        }
+        if (!from.delete()) {
+            throw new IOException("Copied but could not delete " + from);
+        }
+    }
+}
@@ -2,18 +2,19 @@ package com.tab.demo.nearby;
 
 import android.Manifest;
 import android.app.Activity;
-import android.content.BroadcastReceiver;
+import android.content.ClipData;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
+import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
 import android.util.Log;
 import android.view.View;
 import android.widget.TextView;
@@ -21,22 +22,20 @@ import android.widget.Toast;
 
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.content.ContextCompat;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
-import com.google.android.gms.nearby.connection.Payload;
-
 import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 
-import static com.tab.demo.nearby.NearbyService.BROADCAST_ACTION;
-
 
 public class MainActivity extends AppCompatActivity {
 
     private static final String TAG = "MainActivity";
     private static final int REQUEST_OPEN_DOCUMENT = 20;
+    private static final int REQUEST_OPEN_DOCUMENT_TREE = 21;
 
     private static final String[] REQUIRED_PERMISSIONS =
             new String[]{
@@ -57,6 +56,7 @@ public class MainActivity extends AppCompatActivity {
     private NearbyService mService;
     private boolean mBound = false;
     private MyAdapter mAdapter;
+    private boolean mResumed;
 
 
     @Override
@@ -79,9 +79,9 @@ public class MainActivity extends AppCompatActivity {
         recyclerView.setAdapter(mAdapter);
         mAdapter.setOnItemClickListener(new MyAdapter.ItemClickListener() {
             @Override
-            public void onItemClick(int position) {
-                connect(position);
-                Toast.makeText(MainActivity.this, "item " + position + "clicked", Toast.LENGTH_SHORT).show();
+            public void onItemClick(EndpointStatus endpoint) {
+                connect(endpoint.getId());
+                Toast.makeText(MainActivity.this, "item " + endpoint.getName() + "clicked", Toast.LENGTH_SHORT).show();
             }
         });
 
@@ -103,7 +103,9 @@ public class MainActivity extends AppCompatActivity {
             NearbyService.LocalBinder binder = (NearbyService.LocalBinder) service;
             mService = binder.getService();
             mBound = true;
-            mAdapter.setmDataset(mService.getStatus());
+            if (mResumed) {
+                mService.addEndpointObserver(endpointObserver);
+            }
         }
 
         @Override
@@ -115,23 +117,22 @@ public class MainActivity extends AppCompatActivity {
     @Override
     protected void onResume() {
         super.onResume();
-        if (mBound) mService.reportConnectStatus();
-        IntentFilter intentFilter = new IntentFilter(BROADCAST_ACTION);
-        LocalBroadcastManager.getInstance(this).registerReceiver(mReceiver, intentFilter);
-
+        mResumed = true;
+        if (mBound) mService.addEndpointObserver(endpointObserver);
     }
 
-    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+    private final NearbyService.EndpointObserver endpointObserver = new NearbyService.EndpointObserver() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            mAdapter.setmDataset(mService.getStatus());
+        public void onEndpointsChanged(EndpointDiff diff) {
+            mAdapter.update(diff);
         }
     };
 
     @Override
     protected void onPause() {
         super.onPause();
-        LocalBroadcastManager.getInstance(this).unregisterReceiver(mReceiver);
+        mResumed = false;
+        if (mBound) mService.removeEndpointObserver(endpointObserver);
     }
 
     public void onSendBytesButtonClicked(View view) {
@@ -143,26 +144,52 @@ public class MainActivity extends AppCompatActivity {
         Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
         intent.addCategory(Intent.CATEGORY_OPENABLE);
         intent.setType("image/*");
+        intent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
         startActivityForResult(intent, REQUEST_OPEN_DOCUMENT);
     }
 
+    public void onSendFolderButtonClicked(View view) {
+        startActivityForResult(new Intent(Intent.ACTION_OPEN_DOCUMENT_TREE), REQUEST_OPEN_DOCUMENT_TREE);
+    }
+
     @Override
     public void onActivityResult(int requestCode, int resultCode, Intent resultData) {
-        if (requestCode == REQUEST_OPEN_DOCUMENT
-                && resultCode == Activity.RESULT_OK
-                && resultData != null) {
-            Uri uri = resultData.getData();
+        if (resultCode != Activity.RESULT_OK || resultData == null) {
+            return;
+        }
+        if (requestCode == REQUEST_OPEN_DOCUMENT_TREE) {
+            Log.d(TAG, "tree uri = " + resultData.getData());
+            mService.sendFolder(resultData.getData());
+            return;
+        }
+        ClipData clipData = resultData.getClipData();
+        if (requestCode == REQUEST_OPEN_DOCUMENT && clipData != null && clipData.getItemCount() > 1) {
+            List<Uri> uris = new ArrayList<>();
+            for (int i = 0; i < clipData.getItemCount(); i++) {
+                uris.add(clipData.getItemAt(i).getUri());
+            }
+            mService.sendDocuments(uris);
+        } else if (requestCode == REQUEST_OPEN_DOCUMENT) {
+            Uri uri = clipData != null ? clipData.getItemAt(0).getUri() : resultData.getData();
             Log.d(TAG, "uri = " + uri);
-            Payload filePayload;
+            ParcelFileDescriptor pfd;
             try {
-                ParcelFileDescriptor pfd = getContentResolver().openFileDescriptor(uri, "r");
-                filePayload = Payload.fromFile(pfd);
+                pfd = getContentResolver().openFileDescriptor(uri, "r");
             } catch (FileNotFoundException e) {
                 Log.e(TAG, "File not found", e);
                 return;
             }
-            mService.sendFilePayload(filePayload);
+            mService.sendFile(pfd, getDisplayName(uri));
+        }
+    }
+
+    private String getDisplayName(Uri uri) {
+        try (Cursor cursor = getContentResolver().query(uri, new String[]{OpenableColumns.DISPLAY_NAME}, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst() && !cursor.isNull(0)) {
+                return cursor.getString(0);
+            }
         }
+        return uri.getLastPathSegment();
     }
 
     @Override
@@ -206,12 +233,12 @@ public class MainActivity extends AppCompatActivity {
         recreate();
     }
 
-    public void connect(int position) {
-        mService.connect(position);
+    public void connect(String endpointId) {
+        mService.connect(endpointId);
     }
 
-    public void disconnect(int position) {
-        mService.disconnect(position);
+    public void disconnect(String endpointId) {
+        mService.disconnect(endpointId);
     }
 
 
@@ -7,18 +7,17 @@ import android.view.ViewGroup;
 import android.widget.TextView;
 
 import androidx.annotation.NonNull;
-import androidx.collection.SimpleArrayMap;
 import androidx.recyclerview.widget.RecyclerView;
 
 class MyAdapter extends RecyclerView.Adapter<MyAdapter.MyViewHolder> {
     private static final String TAG = "MyAdapter";
     private Context mContext;
-    private SimpleArrayMap<String, EndpointStatus> mDataset;
+    private EndpointRegistry.Snapshot mDataset;
 
     private ItemClickListener mItemClickListener;
 
     public interface ItemClickListener {
-        public void onItemClick(int position);
+        public void onItemClick(EndpointStatus endpoint);
     }
 
     public void setOnItemClickListener(ItemClickListener itemClickListener) {
@@ -28,7 +27,8 @@ class MyAdapter extends RecyclerView.Adapter<MyAdapter.MyViewHolder> {
 
     public MyAdapter(Context context) {
         this.mContext = context;
-        this.mDataset = new SimpleArrayMap<>();
+        this.mDataset = EndpointRegistry.EMPTY;
+        setHasStableIds(true);
     }
 
     @NonNull
@@ -38,22 +38,27 @@ class MyAdapter extends RecyclerView.Adapter<MyAdapter.MyViewHolder> {
     }
 
     @Override
-    public void onBindViewHolder(@NonNull MyViewHolder holder, final int position) {
-
-        holder.mTv1.setText("ID: " + mDataset.keyAt(position));
-        holder.mTv2.setText("NAME: " + mDataset.valueAt(position).getName());
-        holder.mTv3.setText("STATUS: " + mDataset.valueAt(position).getStatus());
+    public void onBindViewHolder(@NonNull MyViewHolder holder, int position) {
+        final EndpointStatus endpoint = mDataset.get(position);
+        holder.mTv1.setText("ID: " + endpoint.getId());
+        holder.mTv2.setText("NAME: " + endpoint.getName());
+        holder.mTv3.setText("STATUS: " + endpoint.getStatus());
 
         if (mItemClickListener != null) {
             holder.itemView.setOnClickListener(new View.OnClickListener() {
                 @Override
                 public void onClick(View v) {
-                    mItemClickListener.onItemClick(position);
+                    mItemClickListener.onItemClick(endpoint);
                 }
             });
         }
     }
 
+    @Override
+    public long getItemId(int position) {
+        return mDataset.get(position).key;
+    }
+
     @Override
     public int getItemCount() {
         return mDataset.size();
@@ -70,9 +75,36 @@ class MyAdapter extends RecyclerView.Adapter<MyAdapter.MyViewHolder> {
         }
     }
 
-    public void setmDataset(SimpleArrayMap<String, EndpointStatus> mDataset) {
-        this.mDataset = mDataset;
-        notifyDataSetChanged();
+    /**
+     * Moves to {@code diff.after}, notifying only the rows that changed.
+     */
+    public void update(EndpointDiff diff) {
+        if (diff.before != mDataset) {
+            // Missed some updates while not observing.
+            diff = EndpointDiff.between(mDataset, diff.after);
+        }
+        mDataset = diff.after;
+        diff.dispatch(new EndpointDiff.Callback() {
+            @Override
+            public void onRemoved(int position) {
+                notifyItemRemoved(position);
+            }
+
+            @Override
+            public void onChanged(int position) {
+                notifyItemChanged(position);
+            }
+
+            @Override
+            public void onInserted(int position, int count) {
+                notifyItemRangeInserted(position, count);
+            }
+
+            @Override
+            public void onReset() {
+                notifyDataSetChanged();
+            }
+        });
     }
 
 }
@@ -3,59 +3,147 @@ package com.tab.demo.nearby;
 import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
+import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Build;
+import android.os.Environment;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
 import android.util.Log;
 
-import androidx.collection.SimpleArrayMap;
 import androidx.core.app.NotificationCompat;
 import androidx.core.content.FileProvider;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import com.google.android.gms.nearby.Nearby;
-import com.google.android.gms.nearby.connection.AdvertisingOptions;
-import com.google.android.gms.nearby.connection.ConnectionInfo;
-import com.google.android.gms.nearby.connection.ConnectionLifecycleCallback;
-import com.google.android.gms.nearby.connection.ConnectionResolution;
-import com.google.android.gms.nearby.connection.ConnectionsClient;
-import com.google.android.gms.nearby.connection.DiscoveredEndpointInfo;
-import com.google.android.gms.nearby.connection.DiscoveryOptions;
-import com.google.android.gms.nearby.connection.EndpointDiscoveryCallback;
 import com.google.android.gms.nearby.connection.Payload;
-import com.google.android.gms.nearby.connection.PayloadCallback;
 import com.google.android.gms.nearby.connection.PayloadTransferUpdate;
 import com.google.android.gms.nearby.connection.Strategy;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 public class NearbyService extends Service {
     private static final String TAG = "NearbyService";
-    private static final Strategy STRATEGY = Strategy.P2P_POINT_TO_POINT;
+    private static final Strategy STRATEGY = Strategy.P2P_CLUSTER;
     private static final String SERVICE_ID = "com.tab.demo.nearby";
     private static final String LOCAL_ENDPOINT_NAME = Build.DEVICE;
     private static final String CHANNEL_ID = "channel";
+    private static final long CHUNK_STORE_CAPACITY = 256L * 1024 * 1024;
+    private static final long METRICS_DUMP_INTERVAL_S = 60;
     private static final int NOTIFICATION_ID = 101;
-    public static final String BROADCAST_ACTION = "com.tab.demo.nearby.reports";
+    // Endpoint changes within one frame are delivered to observers together.
+    private static final long ENDPOINT_UPDATE_INTERVAL_MS = 16;
+    // Message channel type of the text typed into the activity.
+    private static final int MESSAGE_TEXT = 0;
+    // Announced to peers, see TransferNode#setCapabilities.
+    static final int CAPABILITY_FILES = 1;
+    static final int CAPABILITY_STREAMS = 2;
+    static final int CAPABILITY_MESSAGES = 4;
+    // File payloads from older versions still arriving; one idle this long is given up.
+    private static final int MAX_INCOMING_PAYLOADS = 64;
+    private static final long PAYLOAD_IDLE_TIMEOUT_S = 60;
+    private static final int RECEIVED_NOTIFICATION_ID = 102;
+    // Files processed within this long are announced by one notification update.
+    private static final long RECEIVED_UPDATE_INTERVAL_MS = 1000;
+    private static final int THUMBNAIL_SIZE = 256;
+    private static final long PIPELINE_SHUTDOWN_S = 5;
+    // Received files waiting to be processed; a batch of this many fits at once.
+    private static final int PIPELINE_MAX_QUEUED = 1024;
     private final IBinder binder = new LocalBinder();
-    private ConnectionsClient connectionsClient;
-    private final SimpleArrayMap<String, EndpointStatus> endpoints = new SimpleArrayMap<>();
+    private NearbyTransport nearby;
+    private PeerTransport transport;
+    private TransferNode node;
+    private MeshRelay relay;
+    private PeerCache peerCache;
+    private final Metrics metrics = new Metrics();
+    private MetricsReporter metricsReporter;
+    private ReceivePipeline pipeline;
+    private final AtomicInteger receivedFiles = new AtomicInteger();
+    private final AtomicBoolean receivedUpdatePending = new AtomicBoolean();
+    private volatile ReceivePipeline.Item lastReceived;
+    private final ScheduledExecutorService timers = Executors.newSingleThreadScheduledExecutor();
+    // Lists picked documents, which can take a while for large folders.
+    private final ExecutorService documents = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private EndpointPublisher endpointPublisher;
 
     @Override
     public void onCreate() {
         super.onCreate();
-        connectionsClient = Nearby.getConnectionsClient(this);
+        nearby = new NearbyTransport(Nearby.getConnectionsClient(this),
+                LOCAL_ENDPOINT_NAME, SERVICE_ID, STRATEGY);
+        nearby.setMetrics(metrics);
+        incomingFilePayloads = new TransferTable<>(MAX_INCOMING_PAYLOADS, PAYLOAD_IDLE_TIMEOUT_S,
+                TimeUnit.SECONDS, timers, payloadReclaimer);
+        incomingFilePayloads.setMetrics(metrics);
+        nearby.setFallbackPayloadCallback(payloadCallback);
+        transport = nearby;
+        File receiveDir = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS), "Nearby");
+        node = new TransferNode(transport, receiveDir, timers, nodeListener);
+        node.setMetrics(metrics);
+        endpointPublisher = new EndpointPublisher(node.getEndpointRegistry(), new EndpointPublisher.Poster() {
+            @Override
+            public void postDelayed(Runnable task, long delayMillis) {
+                mainHandler.postDelayed(task, delayMillis);
+            }
+        }, ENDPOINT_UPDATE_INTERVAL_MS);
+        node.setLocalId(installId(new File(getFilesDir(), "install_id")));
+        peerCache = PeerCache.load(new File(getFilesDir(), "peers"));
+        node.setPeerCache(peerCache);
+        node.setAutoConnect(true);
+        node.setCapabilities(CAPABILITY_FILES | CAPABILITY_STREAMS | CAPABILITY_MESSAGES);
+        TransferEngine transferEngine = node.getEngine();
+        transferEngine.setFileAllocator(fallocate);
+        transferEngine.setCompressionEnabled(true);
+        transferEngine.setDeduplicationEnabled(true);
+        transferEngine.setChunkStore(new ChunkStore(new File(getCacheDir(), "chunks"), CHUNK_STORE_CAPACITY));
+        relay = new MeshRelay(node, MeshRelay.DEFAULT_MAX_HOPS);
+        node.getMessages().subscribe(MESSAGE_TEXT, MessageChannel.TEXT, textSubscriber);
+        File ingestDir = new File(getExternalFilesDir(null), "ingest");
+        pipeline = new ReceivePipeline(ReceivePipeline.DEFAULT_THREADS, PIPELINE_MAX_QUEUED, pipelineListener);
+        pipeline.setMetrics(metrics);
+        pipeline.addStage("sniff", new ContentSniffer());
+        pipeline.addStage("ingest", ReceiveStages.ingest(ingestDir));
+        pipeline.addStage("thumbnail", ReceiveStages.thumbnail(new File(getCacheDir(), "thumbnails"), THUMBNAIL_SIZE));
+        pipeline.addStage("index", ReceiveStages.index(new File(ingestDir, "index.tsv")));
+        // App specific external storage, so the dumps can be pulled from devices in the field.
+        metricsReporter = new MetricsReporter(metrics, new File(getExternalFilesDir(null), "metrics"));
+        timers.scheduleAtFixedRate(metricsReporter, METRICS_DUMP_INTERVAL_S, METRICS_DUMP_INTERVAL_S, TimeUnit.SECONDS);
         startForeground(NOTIFICATION_ID, getNotification());
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         startAdvertising();
+        // Peers from earlier runs are looked for and connected to without waiting for the user.
+        if (!peerCache.trustedIds().isEmpty()) {
+            node.startDiscovery();
+        }
         //return super.onStartCommand(intent, flags, startId);
         return START_NOT_STICKY;
     }
@@ -65,8 +153,32 @@ public class NearbyService extends Service {
         return binder;
     }
 
-    public SimpleArrayMap<String, EndpointStatus> getStatus() {
-        return endpoints;
+    /**
+     * Throughput, latency and stall figures per endpoint and transfer.
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public EndpointRegistry.Snapshot getEndpoints() {
+        return node.getEndpoints();
+    }
+
+    /**
+     * Receives coalesced endpoint changes on the main thread.
+     */
+    interface EndpointObserver extends EndpointPublisher.Observer {
+    }
+
+    /**
+     * Registers {@code observer} and brings it up to date right away. Main thread only.
+     */
+    public void addEndpointObserver(EndpointObserver observer) {
+        endpointPublisher.addObserver(observer);
+    }
+
+    public void removeEndpointObserver(EndpointObserver observer) {
+        endpointPublisher.removeObserver(observer);
     }
 
     class LocalBinder extends Binder {
@@ -75,163 +187,396 @@ public class NearbyService extends Service {
         }
     }
 
+    /**
+     * The id peers remember this install by, made up on first use. Without storage a new one is
+     * used each time, so peers merely do not recognize this device.
+     */
+    private static String installId(File file) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return in.readUTF();
+        } catch (IOException e) {
+            // Not made up yet.
+        }
+        String id = UUID.randomUUID().toString();
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.writeUTF(id);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot store the install id", e);
+        }
+        return id;
+    }
+
     private void startAdvertising() {
         Log.d(TAG, "startAdvertising()");
-        connectionsClient.startAdvertising(
-                LOCAL_ENDPOINT_NAME, SERVICE_ID, connectionLifecycleCallback,
-                new AdvertisingOptions.Builder().setStrategy(STRATEGY).build());
+        transport.startAdvertising();
     }
 
     public void startDiscovery() {
         Log.d(TAG, "startDiscovery()");
-        connectionsClient.startDiscovery(
-                SERVICE_ID, endpointDiscoveryCallback,
-                new DiscoveryOptions.Builder().setStrategy(STRATEGY).build());
-    }
-
-    private final EndpointDiscoveryCallback endpointDiscoveryCallback =
-            new EndpointDiscoveryCallback() {
-                @Override
-                public void onEndpointFound(String endpointId, DiscoveredEndpointInfo info) {
-                    Log.i(TAG, "onEndpointFound: endpointId =" + endpointId);
-                    Log.i(TAG, "onEndpointFound: info.getEndpointName() =" + info.getEndpointName());
-//                    connectionsClient.stopDiscovery();
-//                    connectionsClient.requestConnection(LOCAL_ENDPOINT_NAME, endpointId, connectionLifecycleCallback);
-                    EndpointStatus status = new EndpointStatus();
-                    status.setName(info.getEndpointName());
-                    status.setStatus("found");
-                    endpoints.put(endpointId, status);
-                    reportConnectStatus();
-                }
-
-                @Override
-                public void onEndpointLost(String endpointId) {
-                    Log.i(TAG, "onEndpointLost: endpointId =" + endpointId);
-                    endpoints.remove(endpointId);
-                    reportConnectStatus();
-                }
-            };
-
-    private final ConnectionLifecycleCallback connectionLifecycleCallback =
-            new ConnectionLifecycleCallback() {
-                @Override
-                public void onConnectionInitiated(String endpointId, ConnectionInfo connectionInfo) {
-                    Log.i(TAG, "onConnectionInitiated: endpointId =" + endpointId);
-                    Log.i(TAG, "onConnectionInitiated: connectionInfo.getEndpointName() =" + connectionInfo.getEndpointName());
-                    Log.i(TAG, "onConnectionInitiated:connectionInfo.isIncomingConnection() =" + connectionInfo.isIncomingConnection());
-                    Log.i(TAG, " acceptConnection");
-                    connectionsClient.acceptConnection(endpointId, payloadCallback);
-                    EndpointStatus status = new EndpointStatus();
-                    status.setName(connectionInfo.getEndpointName());
-                    status.setStatus("ConnectionInitiated");
-                    endpoints.put(endpointId, status);
-                    reportConnectStatus();
-                }
-
-                @Override
-                public void onConnectionResult(String endpointId, ConnectionResolution result) {
-                    if (result.getStatus().isSuccess()) {
-                        Log.i(TAG, "onConnectionResult: connection successful");
-                        Log.i(TAG, "onConnectionResult: endpointId =" + endpointId);
-                        endpoints.get(endpointId).setStatus("Connected");
-                        connectionsClient.stopDiscovery();
-                        reportConnectStatus();
-                    } else {
-                        Log.i(TAG, "onConnectionResult: connection failed");
-                        endpoints.get(endpointId).setStatus("connection failed");
-                        reportConnectStatus();
-                    }
-                }
+        node.scanNow();
+    }
 
-                @Override
-                public void onDisconnected(String endpointId) {
-                    Log.i(TAG, "onDisconnected: endpointId =" + endpointId);
-                    endpoints.get(endpointId).setStatus("Disconnected");
-                    reportConnectStatus();
-                }
-            };
+    /**
+     * Peers seen before, the most recently seen first.
+     */
+    public List<PeerCache.Peer> getKnownPeers() {
+        return peerCache.peers();
+    }
 
+    /**
+     * Stops reconnecting to the peer {@code id}, see {@link PeerCache.Peer#id}, on its own, and
+     * disconnects from it.
+     */
+    public void forgetPeer(String id) {
+        node.forgetPeer(id);
+    }
 
+    /**
+     * Schedules delivery of the endpoint changes to observers. Any number of calls within
+     * {@link #ENDPOINT_UPDATE_INTERVAL_MS} result in a single update; may be called from any
+     * thread.
+     */
     public void reportConnectStatus() {
-        Intent localIntent = new Intent(BROADCAST_ACTION);
-        LocalBroadcastManager.getInstance(NearbyService.this).sendBroadcast(localIntent);
+        endpointPublisher.onChanged();
+    }
+
+    public List<String> getConnectedEndpoints() {
+        return node.getConnectedEndpoints();
     }
 
     public void sendStringPayload(String str) {
-        connectionsClient.sendPayload(endpoints.keyAt(0), Payload.fromBytes(str.getBytes(UTF_8)));
+        MessageChannel messages = node.getMessages();
+        for (String endpointId : getConnectedEndpoints()) {
+            messages.send(endpointId, MESSAGE_TEXT, MessageChannel.TEXT, str);
+        }
+    }
+
+    /**
+     * For telemetry and commands: typed messages, many to a payload.
+     */
+    public MessageChannel getMessages() {
+        return node.getMessages();
+    }
+
+    /**
+     * Sends the file to every connected endpoint.
+     */
+    public List<TransferProgress> sendFile(ParcelFileDescriptor pfd, String name) {
+        return sendFile(getConnectedEndpoints(), pfd, name);
+    }
+
+    public List<TransferProgress> sendFile(List<String> endpointIds, ParcelFileDescriptor pfd, String name) {
+        FileInputStream in = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
+        if (endpointIds.isEmpty()) {
+            Log.d(TAG, "sendFile: no connected endpoint");
+            try {
+                in.close();
+            } catch (IOException ignored) {
+            }
+            return new ArrayList<>();
+        }
+        return node.sendFile(endpointIds, in.getChannel(), pfd.getStatSize(), name);
+    }
+
+    /**
+     * Sends everything {@code in} yields, for data whose length is not known up front such as a
+     * recording in progress. The receiver can read it as it arrives. Closes {@code in} at the end.
+     */
+    public TransferProgress sendStream(String endpointId, InputStream in, String name) {
+        return node.sendStream(endpointId, in, name);
+    }
+
+    public TransferProgress sendStream(String endpointId, ParcelFileDescriptor pfd, String name) {
+        return sendStream(endpointId, new ParcelFileDescriptor.AutoCloseInputStream(pfd), name);
+    }
+
+    /**
+     * Hands incoming files to {@code streamListener} as soon as they start to arrive, so they can
+     * be consumed before they are complete.
+     */
+    public void setStreamListener(TransferEngine.StreamListener streamListener) {
+        relay.setStreamListener(streamListener);
+    }
+
+    /**
+     * Sends the file to every connected endpoint, which pass it on to their own peers, so it also
+     * reaches devices out of range of this one. See {@link MeshRelay}.
+     */
+    public List<TransferProgress> relayFile(ParcelFileDescriptor pfd, String name) {
+        FileInputStream in = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
+        return relay.send(in.getChannel(), pfd.getStatSize(), name);
+    }
+
+    /**
+     * Whether this device passes on files relayed by others. On by default.
+     */
+    public void setRelayEnabled(boolean enabled) {
+        relay.setForwarding(enabled);
+    }
+
+    /**
+     * Sends the documents to every connected endpoint as one batch.
+     */
+    public void sendDocuments(final List<Uri> uris) {
+        documents.execute(new Runnable() {
+            @Override
+            public void run() {
+                sendBatch(DocumentBatch.fromDocuments(getContentResolver(), uris));
+            }
+        });
+    }
+
+    /**
+     * Sends every file below a document tree to every connected endpoint, keeping the folder
+     * structure.
+     */
+    public void sendFolder(final Uri treeUri) {
+        documents.execute(new Runnable() {
+            @Override
+            public void run() {
+                sendBatch(DocumentBatch.fromTree(getContentResolver(), treeUri));
+            }
+        });
+    }
+
+    private void sendBatch(List<BatchFile> files) {
+        Log.d(TAG, "sendBatch: " + files.size() + " files");
+        for (String endpointId : getConnectedEndpoints()) {
+            node.sendBatch(endpointId, files);
+        }
+    }
+
+    /**
+     * Connects to the given endpoints through the pool, reusing live connections, and sends the
+     * file to all that could be reached.
+     */
+    public void sendFileTo(List<String> endpointIds, final ParcelFileDescriptor pfd, final String name) {
+        final List<String> reached = Collections.synchronizedList(new ArrayList<String>());
+        final AtomicInteger pending = new AtomicInteger(endpointIds.size());
+        ConnectionManager.Callback callback = new ConnectionManager.Callback() {
+            @Override
+            public void onConnected(String endpointId) {
+                reached.add(endpointId);
+                settle();
+            }
+
+            @Override
+            public void onConnectionFailed(String endpointId) {
+                Log.d(TAG, "sendFileTo: could not reach " + endpointId);
+                settle();
+            }
+
+            private void settle() {
+                if (pending.decrementAndGet() == 0) {
+                    sendFile(new ArrayList<>(reached), pfd, name);
+                }
+            }
+        };
+        for (String endpointId : endpointIds) {
+            node.connect(endpointId, callback);
+        }
+    }
+
+    public void setTransferWindow(int window) {
+        node.getEngine().setWindow(window);
     }
 
-    public void sendFilePayload(Payload filePayload) {
-        connectionsClient.sendPayload(endpoints.keyAt(0), filePayload);
+    public void setEndpointWeight(String endpointId, int weight) {
+        node.getScheduler().setWeight(endpointId, weight);
     }
 
-    public void disconnect(int position) {
-        connectionsClient.disconnectFromEndpoint(endpoints.keyAt(position));
+    public void disconnect(String endpointId) {
+        node.disconnect(endpointId);
     }
 
-    public void connect(int position) {
-        connectionsClient.requestConnection(LOCAL_ENDPOINT_NAME, endpoints.keyAt(position), connectionLifecycleCallback);
+    public void connect(String endpointId) {
+        node.connect(endpointId, null);
     }
 
-    private final SimpleArrayMap<Long, Payload> incomingFilePayloads = new SimpleArrayMap<>();
-    private final SimpleArrayMap<Long, Payload> completedFilePayloads = new SimpleArrayMap<>();
-    private final PayloadCallback payloadCallback = new PayloadCallback() {
+    // File payloads by payload id, from the first update until they complete.
+    private TransferTable<Payload> incomingFilePayloads;
+    private final NearbyTransport.FallbackCallback payloadCallback = new NearbyTransport.FallbackCallback() {
         @Override
         public void onPayloadReceived(String endpointId, Payload payload) {
             Log.d(TAG, "onPayloadReceived, payload.getType() = " + payload.getType());
-            if (payload.getType() == Payload.Type.BYTES) {
-                String str = new String(payload.asBytes(), UTF_8);
-            } else if (payload.getType() == Payload.Type.FILE) {
-                incomingFilePayloads.put(payload.getId(), payload);
+            if (payload.getType() == Payload.Type.FILE) {
+                incomingFilePayloads.put(payload.getId(), endpointId, payload, 0);
             }
         }
 
         @Override
         public void onPayloadTransferUpdate(String endpointId, PayloadTransferUpdate update) {
-            if (update.getStatus() == PayloadTransferUpdate.Status.SUCCESS) {
-                Log.d(TAG, "PayloadTransferUpdate.Status.SUCCESS");
-                long payloadId = update.getPayloadId();
-                Payload payload = incomingFilePayloads.remove(payloadId);
-                if (payload != null) {
-                    Log.d(TAG, "payload.getType() " + payload.getType());
-                    completedFilePayloads.put(payloadId, payload);
-                    if (payload.getType() == Payload.Type.FILE) {
-                        processFilePayload(payloadId);
+            long payloadId = update.getPayloadId();
+            switch (update.getStatus()) {
+                case PayloadTransferUpdate.Status.IN_PROGRESS:
+                    incomingFilePayloads.touch(payloadId, update.getBytesTransferred());
+                    break;
+                case PayloadTransferUpdate.Status.SUCCESS:
+                    Payload payload = incomingFilePayloads.complete(payloadId);
+                    if (payload != null) {
+                        Log.d(TAG, "PayloadTransferUpdate.Status.SUCCESS");
+                        processFilePayload(endpointId, payload);
                     }
-                }
+                    break;
+                case PayloadTransferUpdate.Status.FAILURE:
+                    incomingFilePayloads.fail(payloadId, TransferTable.Reason.FAILED);
+                    break;
+                case PayloadTransferUpdate.Status.CANCELED:
+                    incomingFilePayloads.fail(payloadId, TransferTable.Reason.CANCELED);
+                    break;
             }
         }
+
+        @Override
+        void onDisconnected(String endpointId) {
+            incomingFilePayloads.removeEndpoint(endpointId);
+        }
     };
 
-    private void processFilePayload(long payloadId) {
-        Log.d(TAG, "processFilePayload ");
-        Payload filePayload = completedFilePayloads.get(payloadId);
-        if (filePayload != null) {
-            completedFilePayloads.remove(payloadId);
-            File file = getFile(filePayload);
-            showFile(file);
+    /**
+     * Deletes the partial file of a payload that will not complete, stopping Nearby first if it
+     * may still be writing to it.
+     */
+    private final TransferTable.Reclaimer<Payload> payloadReclaimer = new TransferTable.Reclaimer<Payload>() {
+        @Override
+        public void reclaim(long id, String endpointId, Payload payload, TransferTable.Reason reason) {
+            Log.d(TAG, "dropping payload " + id + " from " + endpointId + ": " + reason);
+            if (reason == TransferTable.Reason.EXPIRED || reason == TransferTable.Reason.EVICTED
+                    || reason == TransferTable.Reason.CLOSED) {
+                nearby.cancelPayload(id);
+            }
+            File file = payload.asFile().asJavaFile();
+            if (file != null) {
+                file.delete();
+            }
         }
-    }
+    };
 
-    private File getFile(Payload filePayload) {
-        File payloadFile = filePayload.asFile().asJavaFile();
-        String randomName = "nearby_shared-" + System.currentTimeMillis() + ".jpg";
-        File targetFileName = new File(payloadFile.getParentFile(), randomName);
-        boolean result = payloadFile.renameTo(targetFileName);
-        if (!result) Log.d(TAG, "renameTo failed  ");
-        Log.d(TAG, "targetFileName =  " + targetFileName.toString());
-        return targetFileName;
+    private final TransferNode.Listener nodeListener = new TransferNode.Listener() {
+        @Override
+        public void onEndpointsChanged() {
+            reportConnectStatus();
+        }
+
+        @Override
+        public void onTransferProgress(String endpointId, long transferId, long bytesTransferred, long totalBytes) {
+        }
+
+        @Override
+        public void onFileReceived(String endpointId, long transferId, File file) {
+            Log.d(TAG, "onFileReceived: " + file);
+            process(endpointId, transferId, Collections.singletonList(file));
+        }
+
+        @Override
+        public void onBatchReceived(String endpointId, long transferId, List<File> files) {
+            Log.d(TAG, "onBatchReceived: " + files.size() + " files");
+            process(endpointId, transferId, files);
+        }
+
+        @Override
+        public void onFileSent(String endpointId, long transferId) {
+            Log.d(TAG, "onFileSent: transferId = " + transferId);
+        }
+
+        @Override
+        public void onTransferFailed(String endpointId, long transferId, Exception e) {
+            Log.e(TAG, "onTransferFailed: transferId = " + transferId, e);
+        }
+
+        @Override
+        public void onMessageReceived(String endpointId, byte[] message) {
+            String str = new String(message, UTF_8);
+            Log.d(TAG, "onMessageReceived: " + str);
+        }
+    };
+
+    private final MessageChannel.Subscriber<String> textSubscriber = new MessageChannel.Subscriber<String>() {
+        @Override
+        public void onMessage(String endpointId, String message) {
+            Log.d(TAG, "onMessage: " + message);
+        }
+    };
+
+    private final FileAllocator fallocate = new FileAllocator() {
+        @Override
+        public void allocate(RandomAccessFile file, long size) throws IOException {
+            try {
+                Os.posix_fallocate(file.getFD(), 0, size);
+            } catch (ErrnoException e) {
+                Log.d(TAG, "posix_fallocate failed, using setLength: " + e.getMessage());
+                file.setLength(size);
+            }
+        }
+    };
+
+    /**
+     * Called on the receive thread of the engine, which must not wait; a file that does not fit
+     * into the pipeline stays where it was received.
+     */
+    private void process(String endpointId, long transferId, List<File> files) {
+        for (File file : files) {
+            if (!pipeline.offer(endpointId, transferId, file)) {
+                Log.w(TAG, "process: pipeline full, leaving " + file);
+            }
+        }
     }
 
-    private void showFile(File targetFileName) {
-        Uri uri = FileProvider.getUriForFile(this, "com.tab.demo.nearby", targetFileName);
-        Intent intent = new Intent(Intent.ACTION_VIEW);
-        intent.setDataAndType(uri, "image/*");
-        intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
-        intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-        this.startActivity(intent);
+    /**
+     * Called on the Nearby callback thread, which must not wait; a file that does not fit into
+     * the pipeline stays where Nearby put it.
+     */
+    private void processFilePayload(String endpointId, Payload filePayload) {
+        File file = filePayload.asFile().asJavaFile();
+        if (file != null && !pipeline.offer(endpointId, filePayload.getId(), file)) {
+            Log.w(TAG, "processFilePayload: pipeline full, leaving " + file);
+        }
     }
 
+    private final ReceivePipeline.Listener pipelineListener = new ReceivePipeline.Listener() {
+        @Override
+        public void onProcessed(ReceivePipeline.Item item) {
+            Log.d(TAG, "processed " + item.file + " (" + item.mimeType + ")");
+            receivedFiles.incrementAndGet();
+            lastReceived = item;
+            if (receivedUpdatePending.compareAndSet(false, true)) {
+                mainHandler.postDelayed(publishReceived, RECEIVED_UPDATE_INTERVAL_MS);
+            }
+        }
+
+        @Override
+        public void onFailed(ReceivePipeline.Item item, String stage, Exception e) {
+            Log.e(TAG, "stage " + stage + " failed for " + item.file, e);
+        }
+    };
+
+    /**
+     * Updates the one notification about received files, which opens the latest.
+     */
+    private final Runnable publishReceived = new Runnable() {
+        @Override
+        public void run() {
+            receivedUpdatePending.set(false);
+            ReceivePipeline.Item item = lastReceived;
+            int count = receivedFiles.get();
+            Uri uri = FileProvider.getUriForFile(NearbyService.this, "com.tab.demo.nearby", item.file);
+            Intent intent = new Intent(Intent.ACTION_VIEW);
+            intent.setDataAndType(uri, item.mimeType);
+            intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+            PendingIntent open = PendingIntent.getActivity(NearbyService.this, 0, intent,
+                    PendingIntent.FLAG_UPDATE_CURRENT);
+            Notification notification = new NotificationCompat.Builder(NearbyService.this, CHANNEL_ID)
+                    .setContentTitle(count == 1 ? "1 file received" : count + " files received")
+                    .setContentText(item.file.getName())
+                    .setSmallIcon(R.drawable.icon)
+                    .setContentIntent(open)
+                    .setAutoCancel(true)
+                    .setNumber(count)
+                    .build();
+            getSystemService(NotificationManager.class).notify(RECEIVED_NOTIFICATION_ID, notification);
+        }
+    };
+
     private Notification getNotification() {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             NotificationChannel serviceChannel = new NotificationChannel(
@@ -249,19 +594,29 @@ public class NearbyService extends Service {
     }
 
     public void stopDiscovery() {
-        connectionsClient.stopDiscovery();
+        node.stopDiscovery();
     }
 
     public void stopAdvertising() {
-        connectionsClient.stopAdvertising();
+        transport.stopAdvertising();
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
-        stopAdvertising();
-        stopDiscovery();
-        connectionsClient.stopAllEndpoints();
+        endpointPublisher.stop();
+        mainHandler.removeCallbacks(publishReceived);
+        relay.shutdown();
+        node.shutdown();
+        incomingFilePayloads.clear();
+        try {
+            pipeline.shutdown(PIPELINE_SHUTDOWN_S, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        timers.shutdownNow();
+        metricsReporter.run();
+        documents.shutdownNow();
     }
 
 }
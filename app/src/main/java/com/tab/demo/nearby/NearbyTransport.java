@@ -0,0 +1,331 @@
+package com.tab.demo.nearby;
+
+import com.google.android.gms.nearby.connection.AdvertisingOptions;
+import com.google.android.gms.nearby.connection.ConnectionInfo;
+import com.google.android.gms.nearby.connection.ConnectionLifecycleCallback;
+import com.google.android.gms.nearby.connection.ConnectionResolution;
+import com.google.android.gms.nearby.connection.ConnectionsClient;
+import com.google.android.gms.nearby.connection.DiscoveredEndpointInfo;
+import com.google.android.gms.nearby.connection.DiscoveryOptions;
+import com.google.android.gms.nearby.connection.EndpointDiscoveryCallback;
+import com.google.android.gms.nearby.connection.Payload;
+import com.google.android.gms.nearby.connection.PayloadCallback;
+import com.google.android.gms.nearby.connection.PayloadTransferUpdate;
+import com.google.android.gms.nearby.connection.Strategy;
+import com.google.android.gms.tasks.OnFailureListener;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Carries transfer frames as Nearby BYTES payloads and owns the {@link ConnectionsClient}.
+ * At most {@link #MAX_OUTSTANDING_PAYLOADS} payloads to an endpoint are on their way at once, so
+ * queued work stays in the {@link TransferScheduler} where it can be reordered. The scheduler
+ * checks {@link #canSend} and is woken when a payload completes; other callers of {@link #send}
+ * block while the window is full.
+ */
+class NearbyTransport implements PeerTransport, Transport.Windowed {
+    private static final int MAX_OUTSTANDING_PAYLOADS = 4;
+    // Guards against updates that never arrive, for example after a silent disconnect.
+    private static final long MAX_BLOCK_MS = 5000;
+
+    private final ConnectionsClient connectionsClient;
+    private final String localName;
+    private final String serviceId;
+    private final Strategy strategy;
+    private final Map<String, Integer> outstanding = new HashMap<>();
+    private final Map<Long, String> payloadEndpoints = new HashMap<>();
+    // Payload id -> when it was handed to Nearby, for outgoing payloads still on their way.
+    private final Map<Long, Long> payloadSent = new HashMap<>();
+    // Payload id -> bytes reported so far, for payloads in either direction.
+    private final Map<Long, Long> payloadBytes = new HashMap<>();
+    private volatile Receiver receiver;
+    private volatile Listener listener;
+    private volatile FallbackCallback fallback;
+    private volatile WindowListener windowListener;
+    private volatile Metrics metrics = new Metrics();
+
+    NearbyTransport(ConnectionsClient connectionsClient, String localName, String serviceId,
+                    Strategy strategy) {
+        this.connectionsClient = connectionsClient;
+        this.localName = localName;
+        this.serviceId = serviceId;
+        this.strategy = strategy;
+    }
+
+    void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Receives the payloads that are not transfer frames, for example files from older versions.
+     */
+    abstract static class FallbackCallback extends PayloadCallback {
+        /**
+         * Payloads from {@code endpointId} that are still arriving will not complete.
+         */
+        abstract void onDisconnected(String endpointId);
+    }
+
+    void setFallbackPayloadCallback(FallbackCallback fallback) {
+        this.fallback = fallback;
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public int maxFrameSize() {
+        return ConnectionsClient.MAX_BYTES_DATA_SIZE;
+    }
+
+    @Override
+    public void startAdvertising() {
+        connectionsClient.startAdvertising(localName, serviceId, connectionLifecycleCallback,
+                new AdvertisingOptions.Builder().setStrategy(strategy).build());
+    }
+
+    @Override
+    public void stopAdvertising() {
+        connectionsClient.stopAdvertising();
+    }
+
+    @Override
+    public void startDiscovery() {
+        connectionsClient.startDiscovery(serviceId, endpointDiscoveryCallback,
+                new DiscoveryOptions.Builder().setStrategy(strategy).build());
+    }
+
+    @Override
+    public void stopDiscovery() {
+        connectionsClient.stopDiscovery();
+    }
+
+    @Override
+    public void connect(final String endpointId) {
+        connectionsClient.requestConnection(localName, endpointId, connectionLifecycleCallback)
+                .addOnFailureListener(new OnFailureListener() {
+                    @Override
+                    public void onFailure(Exception e) {
+                        Listener l = listener;
+                        if (l != null) {
+                            l.onConnectionFailed(endpointId);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Nearby does not report our own disconnects, so this does.
+     */
+    @Override
+    public void disconnect(String endpointId) {
+        connectionsClient.disconnectFromEndpoint(endpointId);
+        connectionLifecycleCallback.onDisconnected(endpointId);
+    }
+
+    /**
+     * Stops a payload in either direction, for example one that stopped making progress.
+     */
+    void cancelPayload(long payloadId) {
+        connectionsClient.cancelPayload(payloadId);
+    }
+
+    @Override
+    public void stopAll() {
+        connectionsClient.stopAllEndpoints();
+    }
+
+    @Override
+    public synchronized boolean canSend(String endpointId) {
+        return outstanding(endpointId) < MAX_OUTSTANDING_PAYLOADS;
+    }
+
+    @Override
+    public void setWindowListener(WindowListener listener) {
+        this.windowListener = listener;
+    }
+
+    /**
+     * Copies the frame into the array the payload is made of, which Nearby holds on to until the
+     * payload is delivered.
+     */
+    @Override
+    public void send(String endpointId, ByteBuffer frame) {
+        byte[] bytes = new byte[frame.remaining()];
+        frame.get(bytes);
+        Payload payload = Payload.fromBytes(bytes);
+        synchronized (this) {
+            long deadline = System.currentTimeMillis() + MAX_BLOCK_MS;
+            long remaining;
+            while (outstanding(endpointId) >= MAX_OUTSTANDING_PAYLOADS
+                    && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            outstanding.put(endpointId, outstanding(endpointId) + 1);
+            payloadEndpoints.put(payload.getId(), endpointId);
+            payloadSent.put(payload.getId(), System.nanoTime());
+        }
+        connectionsClient.sendPayload(endpointId, payload);
+    }
+
+    @Override
+    public void setReceiver(Receiver receiver) {
+        this.receiver = receiver;
+    }
+
+    /**
+     * Frees the slots of finished outgoing payloads. Updates in either direction also count the
+     * bytes moved over the radio.
+     *
+     * @return the endpoint whose window opened, or null
+     */
+    private synchronized String onPayloadTransferUpdate(String endpointId, PayloadTransferUpdate update) {
+        long payloadId = update.getPayloadId();
+        Long reported = payloadBytes.get(payloadId);
+        long delta = update.getBytesTransferred() - (reported == null ? 0 : reported);
+        Metrics.EndpointMetrics endpoint = metrics.endpoint(endpointId);
+        if (delta > 0) {
+            endpoint.radioBytes.addAndGet(delta);
+        }
+        if (update.getStatus() == PayloadTransferUpdate.Status.IN_PROGRESS) {
+            payloadBytes.put(payloadId, update.getBytesTransferred());
+            return null;
+        }
+        payloadBytes.remove(payloadId);
+        Long sent = payloadSent.remove(payloadId);
+        if (sent != null) {
+            endpoint.payloadMillis.record((System.nanoTime() - sent) / 1000000);
+        }
+        String target = payloadEndpoints.remove(payloadId);
+        if (target != null) {
+            int count = outstanding(target) - 1;
+            if (count > 0) {
+                outstanding.put(target, count);
+            } else {
+                outstanding.remove(target);
+            }
+            notifyAll();
+        }
+        return target;
+    }
+
+    private void onWindowOpen(String endpointId) {
+        WindowListener l = windowListener;
+        if (endpointId != null && l != null) {
+            l.onWindowOpen(endpointId);
+        }
+    }
+
+    private synchronized void forget(String endpointId) {
+        outstanding.remove(endpointId);
+        Iterator<Map.Entry<Long, String>> it = payloadEndpoints.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, String> entry = it.next();
+            if (entry.getValue().equals(endpointId)) {
+                payloadSent.remove(entry.getKey());
+                payloadBytes.remove(entry.getKey());
+                it.remove();
+            }
+        }
+        notifyAll();
+    }
+
+    private int outstanding(String endpointId) {
+        Integer count = outstanding.get(endpointId);
+        return count == null ? 0 : count;
+    }
+
+    private final EndpointDiscoveryCallback endpointDiscoveryCallback = new EndpointDiscoveryCallback() {
+        @Override
+        public void onEndpointFound(String endpointId, DiscoveredEndpointInfo info) {
+            Listener l = listener;
+            if (l != null) {
+                l.onEndpointFound(endpointId, info.getEndpointName());
+            }
+        }
+
+        @Override
+        public void onEndpointLost(String endpointId) {
+            Listener l = listener;
+            if (l != null) {
+                l.onEndpointLost(endpointId);
+            }
+        }
+    };
+
+    private final ConnectionLifecycleCallback connectionLifecycleCallback = new ConnectionLifecycleCallback() {
+        @Override
+        public void onConnectionInitiated(String endpointId, ConnectionInfo connectionInfo) {
+            connectionsClient.acceptConnection(endpointId, payloadCallback);
+            Listener l = listener;
+            if (l != null) {
+                l.onConnectionInitiated(endpointId, connectionInfo.getEndpointName(),
+                        connectionInfo.isIncomingConnection());
+            }
+        }
+
+        @Override
+        public void onConnectionResult(String endpointId, ConnectionResolution result) {
+            Listener l = listener;
+            if (l == null) {
+                return;
+            }
+            if (result.getStatus().isSuccess()) {
+                l.onConnected(endpointId);
+            } else {
+                l.onConnectionFailed(endpointId);
+            }
+        }
+
+        @Override
+        public void onDisconnected(String endpointId) {
+            forget(endpointId);
+            onWindowOpen(endpointId);
+            FallbackCallback f = fallback;
+            if (f != null) {
+                f.onDisconnected(endpointId);
+            }
+            Listener l = listener;
+            if (l != null) {
+                l.onDisconnected(endpointId);
+            }
+        }
+    };
+
+    private final PayloadCallback payloadCallback = new PayloadCallback() {
+        @Override
+        public void onPayloadReceived(String endpointId, Payload payload) {
+            if (payload.getType() == Payload.Type.BYTES) {
+                byte[] bytes = payload.asBytes();
+                Receiver r = receiver;
+                if (bytes != null && Frame.isFrame(bytes) && r != null) {
+                    r.onFrameReceived(endpointId, ByteBuffer.wrap(bytes));
+                    return;
+                }
+            }
+            FallbackCallback f = fallback;
+            if (f != null) {
+                f.onPayloadReceived(endpointId, payload);
+            }
+        }
+
+        @Override
+        public void onPayloadTransferUpdate(String endpointId, PayloadTransferUpdate update) {
+            onWindowOpen(NearbyTransport.this.onPayloadTransferUpdate(endpointId, update));
+            FallbackCallback f = fallback;
+            if (f != null) {
+                f.onPayloadTransferUpdate(endpointId, update);
+            }
+        }
+    };
+}
@@ -0,0 +1,114 @@
+package com.tab.demo.nearby;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.ThumbnailUtils;
+import android.provider.MediaStore;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * The stages of the {@link ReceivePipeline} of the service that need Android or the app's
+ * directories. They expect {@link ContentSniffer} to have run first.
+ */
+final class ReceiveStages {
+
+    private ReceiveStages() {
+    }
+
+    /**
+     * Moves each file into {@code dir}, named for its content type, where the rest of the app
+     * picks it up.
+     */
+    static ReceivePipeline.Stage ingest(final File dir) {
+        return new ReceivePipeline.Stage() {
+            @Override
+            public void process(ReceivePipeline.Item item) throws IOException {
+                if (!dir.isDirectory() && !dir.mkdirs()) {
+                    throw new IOException("Cannot create " + dir);
+                }
+                String name = ContentSniffer.withExtension(item.file.getName(), item.mimeType);
+                int dot = name.lastIndexOf('.');
+                String base = dot > 0 ? name.substring(0, dot) : name;
+                String extension = dot > 0 ? name.substring(dot) : "";
+                File target = new File(dir, name);
+                for (int i = 1; !target.createNewFile(); i++) {
+                    target = new File(dir, base + "-" + i + extension);
+                }
+                FileUtils.move(item.file, target);
+                item.file = target;
+            }
+        };
+    }
+
+    /**
+     * Writes a JPEG thumbnail of at most {@code size} pixels a side into {@code dir} for images
+     * and videos. Images are decoded subsampled, so a large photo never sits in memory whole.
+     */
+    static ReceivePipeline.Stage thumbnail(final File dir, final int size) {
+        return new ReceivePipeline.Stage() {
+            @Override
+            public void process(ReceivePipeline.Item item) throws IOException {
+                Bitmap bitmap;
+                String path = item.file.getPath();
+                if (item.mimeType.startsWith("image/")) {
+                    BitmapFactory.Options options = new BitmapFactory.Options();
+                    options.inJustDecodeBounds = true;
+                    BitmapFactory.decodeFile(path, options);
+                    options.inJustDecodeBounds = false;
+                    options.inSampleSize = 1;
+                    while (Math.min(options.outWidth, options.outHeight) / (options.inSampleSize * 2) >= size) {
+                        options.inSampleSize *= 2;
+                    }
+                    bitmap = BitmapFactory.decodeFile(path, options);
+                } else if (item.mimeType.startsWith("video/")) {
+                    bitmap = ThumbnailUtils.createVideoThumbnail(path, MediaStore.Video.Thumbnails.MINI_KIND);
+                } else {
+                    return;
+                }
+                if (bitmap == null) {
+                    return;
+                }
+                Bitmap thumbnail = ThumbnailUtils.extractThumbnail(bitmap, size, size);
+                bitmap.recycle();
+                if (!dir.isDirectory() && !dir.mkdirs()) {
+                    throw new IOException("Cannot create " + dir);
+                }
+                File file = new File(dir, item.transferId + "-" + item.file.getName() + ".jpg");
+                try (OutputStream out = new FileOutputStream(file)) {
+                    thumbnail.compress(Bitmap.CompressFormat.JPEG, 80, out);
+                } finally {
+                    thumbnail.recycle();
+                }
+                item.thumbnail = file;
+            }
+        };
+    }
+
+    /**
+     * Appends a line per file to {@code index}: time, endpoint, transfer id, type, size and path,
+     * separated by tabs.
+     */
+    static ReceivePipeline.Stage index(final File index) {
+        return new ReceivePipeline.Stage() {
+            @Override
+            public void process(ReceivePipeline.Item item) throws IOException {
+                String line = System.currentTimeMillis() + "\t" + item.endpointId + "\t" + item.transferId
+                        + "\t" + item.mimeType + "\t" + item.file.length() + "\t" + item.file.getPath() + "\n";
+                // Workers append at the same time.
+                synchronized (this) {
+                    try (Writer out = new OutputStreamWriter(new FileOutputStream(index, true), UTF_8)) {
+                        out.write(line);
+                    }
+                }
+            }
+        };
+    }
+}
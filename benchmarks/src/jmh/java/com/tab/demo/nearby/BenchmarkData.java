@@ -0,0 +1,109 @@
+package com.tab.demo.nearby;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Reproducible inputs for the benchmarks. Every corpus comes from a fixed seed, so runs on
+ * different machines and commits measure the same bytes.
+ */
+final class BenchmarkData {
+    private static final String[] WORDS = {
+            "transfer", "endpoint", "chunk", "payload", "connected", "received", "error", "INFO",
+            "WARN", "timeout", "retry", "window", "bytes", "status", "device", "service"
+    };
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * Returns {@code size} bytes of the named corpus: {@code text} (log lines), {@code json}
+     * or {@code random} (incompressible, like JPEG or MP4).
+     */
+    static byte[] corpus(String kind, int size) {
+        Random random = new Random(size);
+        byte[] data = new byte[size];
+        if ("random".equals(kind)) {
+            random.nextBytes(data);
+            return data;
+        }
+        StringBuilder sb = new StringBuilder(size + 256);
+        long time = 1565000000000L;
+        while (sb.length() < size) {
+            time += random.nextInt(1000);
+            if ("json".equals(kind)) {
+                sb.append("{\"time\":").append(time)
+                        .append(",\"endpoint\":\"").append(Integer.toHexString(random.nextInt(64)))
+                        .append("\",\"event\":\"").append(WORDS[random.nextInt(WORDS.length)])
+                        .append("\",\"bytes\":").append(random.nextInt(1 << 20)).append("}\n");
+            } else if ("text".equals(kind)) {
+                sb.append(time).append(' ').append(WORDS[random.nextInt(4) + 7]);
+                for (int i = 0; i < 8; i++) {
+                    sb.append(' ').append(WORDS[random.nextInt(WORDS.length)]);
+                }
+                sb.append(" id=").append(random.nextInt(100000)).append('\n');
+            } else {
+                throw new IllegalArgumentException("Unknown corpus " + kind);
+            }
+        }
+        byte[] text = sb.toString().getBytes(UTF_8);
+        System.arraycopy(text, 0, data, 0, size);
+        return data;
+    }
+
+    /**
+     * Writes {@code size} random bytes to a new temporary file that is deleted on exit.
+     */
+    static File randomFile(long size) throws IOException {
+        File file = File.createTempFile("bench", ".bin");
+        file.deleteOnExit();
+        Random random = new Random(size);
+        byte[] buf = new byte[1024 * 1024];
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            for (long written = 0; written < size; written += buf.length) {
+                random.nextBytes(buf);
+                out.write(buf, 0, (int) Math.min(buf.length, size - written));
+            }
+        }
+        return file;
+    }
+
+    static File tempDir(String prefix) throws IOException {
+        File dir = File.createTempFile(prefix, "");
+        if (!dir.delete() || !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        return dir;
+    }
+
+    static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * A chunk source over an array, so the chunker is measured without disk reads.
+     */
+    static ChunkSource source(final byte[] data) {
+        return new ChunkSource() {
+            @Override
+            public void read(ByteBuffer dst, long position) {
+                dst.put(data, (int) position, dst.remaining());
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+}
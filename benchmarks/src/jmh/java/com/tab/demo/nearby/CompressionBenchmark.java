@@ -0,0 +1,68 @@
+package com.tab.demo.nearby;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+
+/**
+ * Per-chunk deflate over the kinds of data we send: log text and JSON, which compress well, and
+ * random bytes standing in for media, which do not. {@code sample} is the cost paid to find out.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CompressionBenchmark {
+    @Param({"text", "json", "random"})
+    public String corpus;
+
+    @Param({"32768"})
+    public int chunkSize;
+
+    private Compressor compressor;
+    private byte[] chunk;
+    private byte[] sample;
+    private byte[] out;
+    private ByteBuffer compressed;
+
+    @Setup
+    public void setUp() {
+        compressor = new Compressor();
+        chunk = BenchmarkData.corpus(corpus, chunkSize);
+        sample = BenchmarkData.corpus(corpus, Compressor.SAMPLE_SIZE);
+        out = new byte[chunkSize + 1];
+        byte[] deflated = new byte[chunkSize * 2];
+        int n = compressor.compress(chunk, 0, chunk.length, deflated, 0, deflated.length);
+        compressed = ByteBuffer.wrap(deflated, 0, n);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        compressor.end();
+    }
+
+    @Benchmark
+    public boolean sample() {
+        return compressor.isWorthCompressing(sample, 0, sample.length);
+    }
+
+    @Benchmark
+    public int compress() {
+        return compressor.compress(chunk, 0, chunk.length, out, 0, chunk.length);
+    }
+
+    @Benchmark
+    public int decompress() throws DataFormatException {
+        return compressor.decompress(compressed.duplicate(), out);
+    }
+}
@@ -0,0 +1,132 @@
+package com.tab.demo.nearby;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A transfer over a {@link SimulatedLinkTransport} of {@code bytesPerSecond} with
+ * {@code latencyMillis} each way and {@code lossRate}. The best possible time is about
+ * {@code fileSize / bytesPerSecond} plus three round trips, for the offer, the data and the
+ * verification of the root hash; compare the adaptive window
+ * ({@code window} 0) with a fixed one. Later iterations start from what the earlier ones
+ * measured on the link, as a second transfer to the same device would.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CongestionBenchmark {
+    private static final long TIMEOUT_S = 300;
+    // Enough to keep a fast link busy, the way a socket buffer does.
+    private static final long QUEUE_BYTES = 256 * 1024;
+
+    @Param({"1000000", "10000000"})
+    public long bytesPerSecond;
+
+    @Param({"5", "50"})
+    public long latencyMillis;
+
+    @Param({"0", "0.01"})
+    public double lossRate;
+
+    @Param({"0", "8"})
+    public int window;
+
+    @Param({"4194304"})
+    public long fileSize;
+
+    private File file;
+    private File receiveDir;
+    private SimulatedLinkTransport a;
+    private SimulatedLinkTransport b;
+    private TransferEngine sender;
+    private TransferEngine receiver;
+    private final Listener listener = new Listener();
+
+    private static class Listener implements TransferEngine.Listener {
+        volatile CountDownLatch done = new CountDownLatch(0);
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+
+        @Override
+        public void onTransferProgress(String endpointId, long transferId, long bytesTransferred, long totalBytes) {
+        }
+
+        @Override
+        public void onFileReceived(String endpointId, long transferId, File file) {
+            file.delete();
+        }
+
+        @Override
+        public void onBatchReceived(String endpointId, long transferId, List<File> files) {
+        }
+
+        @Override
+        public void onFileSent(String endpointId, long transferId) {
+            done.countDown();
+        }
+
+        @Override
+        public void onTransferFailed(String endpointId, long transferId, Exception e) {
+            failure.compareAndSet(null, e);
+            done.countDown();
+        }
+
+        @Override
+        public void onMessageReceived(String endpointId, byte[] message) {
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        file = BenchmarkData.randomFile(fileSize);
+        receiveDir = BenchmarkData.tempDir("congestion");
+        int maxFrameSize = LoopbackTransport.DEFAULT_MAX_FRAME_SIZE;
+        a = new SimulatedLinkTransport("sender", maxFrameSize, bytesPerSecond, latencyMillis, lossRate,
+                QUEUE_BYTES, 1);
+        b = new SimulatedLinkTransport("receiver", maxFrameSize, bytesPerSecond, latencyMillis, lossRate,
+                QUEUE_BYTES, 2);
+        SimulatedLinkTransport.link(a, b);
+        sender = new TransferEngine(a, receiveDir, listener);
+        receiver = new TransferEngine(b, receiveDir, listener);
+        sender.setWindow(window);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        sender.shutdown();
+        receiver.shutdown();
+        a.close();
+        b.close();
+        BenchmarkData.deleteRecursively(receiveDir);
+        file.delete();
+    }
+
+    @Benchmark
+    public void sendFile() throws Exception {
+        listener.done = new CountDownLatch(1);
+        sender.sendFile("receiver", new FileChunkSource(new FileInputStream(file).getChannel()), fileSize,
+                file.getName());
+        if (!listener.done.await(TIMEOUT_S, TimeUnit.SECONDS)) {
+            throw new IOException("Transfer did not finish in " + TIMEOUT_S + " s");
+        }
+        Exception failure = listener.failure.getAndSet(null);
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
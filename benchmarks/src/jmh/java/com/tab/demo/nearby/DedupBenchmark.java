@@ -0,0 +1,224 @@
+package com.tab.demo.nearby;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A file sent to a receiver with an empty {@link ChunkStore}, then an edited copy of it: a few
+ * bytes inserted near the start, a range overwritten in the middle, or data appended. The
+ * counters report the bytes the sender put on the link for each, so {@code editedBytes} against
+ * {@code originalBytes} is what deduplication saves; with {@code deduplication} off both are the
+ * whole file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DedupBenchmark {
+    private static final long TIMEOUT_S = 120;
+    private static final long STORE_CAPACITY = 256L * 1024 * 1024;
+    private static final byte[] EDIT = "edited by the benchmark".getBytes(UTF_8);
+
+    @Param({"true", "false"})
+    public boolean deduplication;
+
+    @Param({"insert", "overwrite", "append"})
+    public String edit;
+
+    @Param({"16777216"})
+    public long fileSize;
+
+    private File original;
+    private File edited;
+    private File receiveDir;
+    private File storeDir;
+    private CountingLink link;
+    private TransferEngine sender;
+    private TransferEngine receiver;
+    private final Listener listener = new Listener();
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Traffic {
+        public long originalBytes;
+        public long editedBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            originalBytes = 0;
+            editedBytes = 0;
+        }
+    }
+
+    /**
+     * Counts the bytes of every frame sent.
+     */
+    private static class CountingLink implements Transport {
+        private final Transport transport;
+        final AtomicLong bytes = new AtomicLong();
+
+        CountingLink(Transport transport) {
+            this.transport = transport;
+        }
+
+        @Override
+        public int maxFrameSize() {
+            return transport.maxFrameSize();
+        }
+
+        @Override
+        public void send(String endpointId, ByteBuffer frame) {
+            bytes.addAndGet(frame.remaining());
+            transport.send(endpointId, frame);
+        }
+
+        @Override
+        public void setReceiver(Receiver receiver) {
+            transport.setReceiver(receiver);
+        }
+    }
+
+    private static class Listener implements TransferEngine.Listener {
+        volatile CountDownLatch done = new CountDownLatch(0);
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+
+        @Override
+        public void onTransferProgress(String endpointId, long transferId, long bytesTransferred, long totalBytes) {
+        }
+
+        @Override
+        public void onFileReceived(String endpointId, long transferId, File file) {
+            file.delete();
+        }
+
+        @Override
+        public void onBatchReceived(String endpointId, long transferId, List<File> files) {
+        }
+
+        @Override
+        public void onFileSent(String endpointId, long transferId) {
+            done.countDown();
+        }
+
+        @Override
+        public void onTransferFailed(String endpointId, long transferId, Exception e) {
+            failure.compareAndSet(null, e);
+            done.countDown();
+        }
+
+        @Override
+        public void onMessageReceived(String endpointId, byte[] message) {
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        original = BenchmarkData.randomFile(fileSize);
+        edited = edit(original);
+        receiveDir = BenchmarkData.tempDir("dedup");
+        LoopbackTransport a = new LoopbackTransport("sender");
+        LoopbackTransport b = new LoopbackTransport("receiver");
+        LoopbackTransport.link(a, b);
+        link = new CountingLink(a);
+        sender = new TransferEngine(link, receiveDir, listener);
+        receiver = new TransferEngine(b, receiveDir, listener);
+        sender.setDeduplicationEnabled(deduplication);
+    }
+
+    /**
+     * Starts every invocation with nothing stored, so the original is sent in full.
+     */
+    @Setup(Level.Invocation)
+    public void emptyStore() throws IOException {
+        storeDir = BenchmarkData.tempDir("chunks");
+        receiver.setChunkStore(new ChunkStore(storeDir, STORE_CAPACITY));
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteStore() {
+        BenchmarkData.deleteRecursively(storeDir);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        sender.shutdown();
+        receiver.shutdown();
+        BenchmarkData.deleteRecursively(receiveDir);
+        original.delete();
+        edited.delete();
+    }
+
+    @Benchmark
+    public void sendEditedCopy(Traffic traffic) throws Exception {
+        traffic.originalBytes = send(original);
+        traffic.editedBytes = send(edited);
+    }
+
+    /**
+     * @return the bytes sent for the file
+     */
+    private long send(File file) throws Exception {
+        long before = link.bytes.get();
+        listener.done = new CountDownLatch(1);
+        sender.sendFile("receiver", new FileChunkSource(new RandomAccessFile(file, "r").getChannel()),
+                file.length(), file.getName());
+        if (!listener.done.await(TIMEOUT_S, TimeUnit.SECONDS)) {
+            throw new IOException("Transfer did not finish in " + TIMEOUT_S + " s");
+        }
+        Exception failure = listener.failure.getAndSet(null);
+        if (failure != null) {
+            throw failure;
+        }
+        return link.bytes.get() - before;
+    }
+
+    /**
+     * Writes a copy of {@code file} with {@link #edit} applied.
+     */
+    private File edit(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            in.readFully(data);
+        }
+        File copy = File.createTempFile("bench", ".edited");
+        copy.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(copy)) {
+            if ("insert".equals(edit)) {
+                out.write(data, 0, 1000);
+                out.write(EDIT);
+                out.write(data, 1000, data.length - 1000);
+            } else if ("overwrite".equals(edit)) {
+                int at = data.length / 2;
+                System.arraycopy(EDIT, 0, data, at, EDIT.length);
+                out.write(data);
+            } else if ("append".equals(edit)) {
+                out.write(data);
+                out.write(EDIT);
+            } else {
+                throw new IllegalArgumentException("Unknown edit " + edit);
+            }
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,57 @@
+package com.tab.demo.nearby;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of putting a chunk into a frame and taking it out again, per chunk.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FrameBenchmark {
+    @Param({"8192", "32768", "131072"})
+    public int chunkSize;
+
+    private byte[] data;
+    private byte[] hash;
+    private ByteBuffer out;
+    private ByteBuffer encoded;
+
+    @Setup
+    public void setUp() {
+        data = BenchmarkData.corpus("random", chunkSize);
+        hash = new byte[ChunkHashes.SIZE];
+        out = ByteBuffer.allocate(Frame.CHUNK_HEADER_SIZE + chunkSize);
+        encoded = encodeChunk().duplicate();
+    }
+
+    @Benchmark
+    public ByteBuffer encodeChunk() {
+        out.clear();
+        Frame.putChunkHeader(out, 1, 7, (byte) 0, hash);
+        out.put(data);
+        out.flip();
+        return out;
+    }
+
+    @Benchmark
+    public Frame decodeChunk() throws ProtocolException {
+        return Frame.decode(encoded.duplicate());
+    }
+
+    @Benchmark
+    public Object classify() {
+        return TransferScheduler.classify(encoded);
+    }
+}
@@ -0,0 +1,62 @@
+package com.tab.demo.nearby;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashing done for integrity checks and deduplication: the SHA-256 of one chunk, the root over
+ * a 1 GB file's worth of chunk hashes, and content-defined chunking of 16 MB.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class HashBenchmark {
+    private static final int CHUNKED_SIZE = 16 * 1024 * 1024;
+
+    @Param({"8192", "32768", "131072"})
+    public int chunkSize;
+
+    private MessageDigest digest;
+    private byte[] chunk;
+    private byte[][] hashes;
+    private byte[] file;
+    private ContentChunker chunker;
+
+    @Setup
+    public void setUp() {
+        digest = ChunkHashes.newDigest();
+        chunk = BenchmarkData.corpus("random", chunkSize);
+        hashes = new byte[(int) ((1L << 30) / chunkSize)][];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = ChunkHashes.hash(digest, chunk, 0, Math.min(chunk.length, i + 1));
+        }
+        file = BenchmarkData.corpus("random", CHUNKED_SIZE);
+        chunker = new ContentChunker(chunkSize);
+    }
+
+    @Benchmark
+    public byte[] chunkHash() {
+        return ChunkHashes.hash(digest, chunk, 0, chunk.length);
+    }
+
+    @Benchmark
+    public byte[] rootHash() {
+        return ChunkHashes.root(hashes);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public ContentManifest contentChunking() throws IOException {
+        return chunker.chunk(BenchmarkData.source(file), file.length);
+    }
+}
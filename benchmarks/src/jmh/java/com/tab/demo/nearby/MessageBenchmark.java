@@ -0,0 +1,168 @@
+package com.tab.demo.nearby;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Small messages through the scheduler and engine over a loopback link, one frame per message
+ * ({@code frame}, what {@link TransferEngine#sendMessage} does) against batched by a
+ * {@link MessageChannel} ({@code channel}).
+ *
+ * <p>{@link #burst} gives messages per second when sending as fast as possible. {@link #single}
+ * gives the latency of a lone message, with percentiles in the sample mode output. Messages
+ * following each other closely wait up to the flush delay of the channel instead, which
+ * {@link #paced} shows.
+ */
+@State(Scope.Benchmark)
+public class MessageBenchmark {
+    private static final int BURST = 10000;
+    private static final int TYPE = 1;
+    private static final long TIMEOUT_S = 60;
+    // Longer than the flush delay of the channel, so every message in single() is a lone one.
+    private static final long PAUSE_MS = 5;
+
+    @Param({"frame", "channel"})
+    public String path;
+
+    @Param({"64"})
+    public int messageSize;
+
+    private File receiveDir;
+    private ScheduledExecutorService timers;
+    private TransferScheduler scheduler;
+    private TransferEngine sender;
+    private TransferEngine receiver;
+    private MessageChannel senderChannel;
+    private byte[] message;
+    private ByteBuffer messageBuffer;
+    private final Semaphore arrivals = new Semaphore(0);
+
+    private final TransferEngine.Listener listener = new TransferEngine.Listener() {
+        @Override
+        public void onTransferProgress(String endpointId, long transferId, long bytesTransferred, long totalBytes) {
+        }
+
+        @Override
+        public void onFileReceived(String endpointId, long transferId, File file) {
+        }
+
+        @Override
+        public void onBatchReceived(String endpointId, long transferId, List<File> files) {
+        }
+
+        @Override
+        public void onFileSent(String endpointId, long transferId) {
+        }
+
+        @Override
+        public void onTransferFailed(String endpointId, long transferId, Exception e) {
+        }
+
+        @Override
+        public void onMessageReceived(String endpointId, byte[] message) {
+            arrivals.release();
+        }
+    };
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        receiveDir = BenchmarkData.tempDir("messages");
+        timers = Executors.newSingleThreadScheduledExecutor();
+        LoopbackTransport a = new LoopbackTransport("sender");
+        LoopbackTransport b = new LoopbackTransport("receiver");
+        LoopbackTransport.link(a, b);
+        scheduler = new TransferScheduler(a, TransferScheduler.DEFAULT_DISPATCHERS);
+        sender = new TransferEngine(scheduler, receiveDir, listener);
+        receiver = new TransferEngine(b, receiveDir, listener);
+        senderChannel = new MessageChannel(scheduler, timers);
+        MessageChannel receiverChannel = new MessageChannel(b, timers);
+        receiverChannel.subscribe(TYPE, MessageChannel.BYTES, new MessageChannel.Subscriber<ByteBuffer>() {
+            @Override
+            public void onMessage(String endpointId, ByteBuffer message) {
+                arrivals.release();
+            }
+        });
+        receiver.setMessageChannel(receiverChannel);
+        message = new byte[messageSize];
+        messageBuffer = ByteBuffer.wrap(message);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        sender.shutdown();
+        receiver.shutdown();
+        scheduler.shutdown();
+        timers.shutdownNow();
+        BenchmarkData.deleteRecursively(receiveDir);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(BURST)
+    public void burst() throws Exception {
+        for (int i = 0; i < BURST; i++) {
+            send();
+        }
+        await(BURST);
+    }
+
+    /**
+     * Waits before every call of {@link #single}, outside of its time.
+     */
+    @State(Scope.Thread)
+    public static class Pause {
+        @Setup(Level.Invocation)
+        public void pause() throws InterruptedException {
+            Thread.sleep(PAUSE_MS);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void single(Pause pause) throws Exception {
+        send();
+        await(1);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void paced() throws Exception {
+        send();
+        await(1);
+    }
+
+    private void send() {
+        if (path.equals("channel")) {
+            senderChannel.send("receiver", TYPE, MessageChannel.BYTES, messageBuffer);
+        } else {
+            sender.sendMessage("receiver", message);
+        }
+    }
+
+    private void await(int messages) throws Exception {
+        if (!arrivals.tryAcquire(messages, TIMEOUT_S, TimeUnit.SECONDS)) {
+            throw new IOException("Messages did not arrive in " + TIMEOUT_S + " s");
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.tab.demo.nearby;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing a whole file on the receiver the way chunks arrive: positional writes at each chunk's
+ * offset into a preallocated file, in order or shuffled as with several chunks in flight, and
+ * forced to disk at the end.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ReassemblyBenchmark {
+    @Param({"32768", "131072"})
+    public int chunkSize;
+
+    @Param({"67108864"})
+    public long fileSize;
+
+    @Param({"sequential", "shuffled"})
+    public String order;
+
+    private File dir;
+    private File file;
+    private ChunkLayout layout;
+    private int[] indexes;
+    private ByteBuffer chunk;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = BenchmarkData.tempDir("reassembly");
+        file = new File(dir, "file.bin");
+        layout = ChunkLayout.fixed(fileSize, chunkSize);
+        indexes = new int[layout.count()];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = i;
+        }
+        if ("shuffled".equals(order)) {
+            Random random = new Random(1);
+            for (int i = indexes.length - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                int t = indexes[i];
+                indexes[i] = indexes[j];
+                indexes[j] = t;
+            }
+        }
+        chunk = ByteBuffer.wrap(BenchmarkData.corpus("random", chunkSize));
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteFile() {
+        file.delete();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkData.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public void writeFile() throws IOException {
+        FileChunkSink sink = new FileChunkSink(file, fileSize, FileAllocator.SET_LENGTH);
+        try {
+            for (int index : indexes) {
+                chunk.clear();
+                chunk.limit(layout.length(index));
+                sink.write(chunk, layout.offset(index));
+            }
+            sink.force();
+        } finally {
+            sink.close();
+        }
+    }
+}
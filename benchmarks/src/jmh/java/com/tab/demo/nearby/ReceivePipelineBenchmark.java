@@ -0,0 +1,105 @@
+package com.tab.demo.nearby;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A burst of {@link #FILES} received files through a {@link ReceivePipeline} of {@code threads}
+ * workers: sniffing, then hashing the whole file as a stand-in for the CPU and disk work of a
+ * thumbnail. The files are submitted from one thread, the way the engine hands them over, so
+ * with few workers the submitter waits for room in the queue instead of piling work up.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ReceivePipelineBenchmark {
+    private static final int FILES = 64;
+    private static final long TIMEOUT_S = 60;
+
+    @Param({"1", "2", "4"})
+    public int threads;
+
+    @Param({"262144"})
+    public int fileSize;
+
+    private final List<File> files = new ArrayList<>();
+    private final Semaphore done = new Semaphore(0);
+    private final AtomicReference<Exception> failure = new AtomicReference<>();
+    private ReceivePipeline pipeline;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        for (int i = 0; i < FILES; i++) {
+            files.add(BenchmarkData.randomFile(fileSize + i));
+        }
+        pipeline = new ReceivePipeline(threads, ReceivePipeline.DEFAULT_MAX_QUEUED, new ReceivePipeline.Listener() {
+            @Override
+            public void onProcessed(ReceivePipeline.Item item) {
+                done.release();
+            }
+
+            @Override
+            public void onFailed(ReceivePipeline.Item item, String stage, Exception e) {
+                failure.compareAndSet(null, e);
+                done.release();
+            }
+        });
+        pipeline.addStage("sniff", new ContentSniffer());
+        pipeline.addStage("hash", new ReceivePipeline.Stage() {
+            @Override
+            public void process(ReceivePipeline.Item item) throws Exception {
+                MessageDigest digest = ChunkHashes.newDigest();
+                byte[] buf = new byte[64 * 1024];
+                try (InputStream in = new FileInputStream(item.file)) {
+                    for (int n; (n = in.read(buf)) > 0; ) {
+                        digest.update(buf, 0, n);
+                    }
+                }
+                digest.digest();
+            }
+        });
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        pipeline.shutdown(TIMEOUT_S, TimeUnit.SECONDS);
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FILES)
+    public void burst() throws Exception {
+        for (int i = 0; i < FILES; i++) {
+            pipeline.submit("sender", i, files.get(i));
+        }
+        if (!done.tryAcquire(FILES, TIMEOUT_S, TimeUnit.SECONDS)) {
+            throw new IOException("Files not processed in " + TIMEOUT_S + " s");
+        }
+        Exception e = failure.getAndSet(null);
+        if (e != null) {
+            throw e;
+        }
+    }
+}
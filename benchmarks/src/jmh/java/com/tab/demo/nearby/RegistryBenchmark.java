@@ -0,0 +1,65 @@
+package com.tab.demo.nearby;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Endpoint churn as seen during discovery: several callback threads updating the registry while
+ * the UI takes snapshots and diffs them against the last one it showed.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RegistryBenchmark {
+    private static final EndpointState[] STATES = EndpointState.values();
+
+    @Param({"16", "256"})
+    public int endpointCount;
+
+    private EndpointRegistry registry;
+    private String[] ids;
+
+    @Setup
+    public void setUp() {
+        registry = new EndpointRegistry();
+        ids = new String[endpointCount];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = "endpoint-" + i;
+            registry.update(ids[i], "device " + i, EndpointState.FOUND);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Reader {
+        EndpointRegistry.Snapshot shown = EndpointRegistry.EMPTY;
+    }
+
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(3)
+    public EndpointStatus update() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String id = ids[random.nextInt(ids.length)];
+        return registry.update(id, id, STATES[random.nextInt(STATES.length)]);
+    }
+
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(1)
+    public EndpointDiff diff(Reader reader) {
+        EndpointDiff diff = EndpointDiff.between(reader.shown, registry.snapshot());
+        reader.shown = diff.after;
+        return diff;
+    }
+}
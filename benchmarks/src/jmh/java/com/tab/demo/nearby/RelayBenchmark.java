@@ -0,0 +1,174 @@
+package com.tab.demo.nearby;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One file relayed by {@link MeshRelay}s from the first of {@code hops} + 1 nodes to all the
+ * others, over loopback transports limited to {@code bandwidth} each, so every hop costs radio
+ * time. In a {@code chain} each node only reaches its neighbours and the file has to travel
+ * every hop; in a {@code mesh} nodes also reach the node after next, so copies of the file meet
+ * and all but the first are refused.
+ *
+ * <p>Since relays pass chunks on as they arrive, the time stays close to that of one hop however
+ * long the chain, where storing and forwarding would take {@code hops} times as long. In the mesh
+ * every node sends to two next hops over the same radio, which about doubles it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RelayBenchmark {
+    private static final long TIMEOUT_S = 120;
+    private static final int FRAME_SIZE = 64 * 1024;
+
+    @Param({"chain", "mesh"})
+    public String topology;
+
+    @Param({"1", "2", "4"})
+    public int hops;
+
+    @Param({"4194304"})
+    public long fileSize;
+
+    @Param({"8388608"})
+    public long bandwidth;
+
+    private File file;
+    private File receiveDir;
+    private ScheduledExecutorService timers;
+    private final List<TransferNode> nodes = new ArrayList<>();
+    private final List<MeshRelay> relays = new ArrayList<>();
+    private final List<Listener> listeners = new ArrayList<>();
+    private volatile CountDownLatch received = new CountDownLatch(0);
+
+    private class Listener implements TransferNode.Listener {
+        final AtomicInteger files = new AtomicInteger();
+
+        @Override
+        public void onEndpointsChanged() {
+        }
+
+        @Override
+        public void onTransferProgress(String endpointId, long transferId, long bytesTransferred, long totalBytes) {
+        }
+
+        @Override
+        public void onFileReceived(String endpointId, long transferId, File file) {
+            file.delete();
+            files.incrementAndGet();
+            received.countDown();
+        }
+
+        @Override
+        public void onBatchReceived(String endpointId, long transferId, List<File> files) {
+        }
+
+        @Override
+        public void onFileSent(String endpointId, long transferId) {
+        }
+
+        @Override
+        public void onTransferFailed(String endpointId, long transferId, Exception e) {
+            // Copies refused by nodes that already have the file end up here too.
+        }
+
+        @Override
+        public void onMessageReceived(String endpointId, byte[] message) {
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        if (!"chain".equals(topology) && !"mesh".equals(topology)) {
+            throw new IllegalArgumentException("Unknown topology " + topology);
+        }
+        file = BenchmarkData.randomFile(fileSize);
+        receiveDir = BenchmarkData.tempDir("relayed");
+        timers = Executors.newSingleThreadScheduledExecutor();
+        LoopbackTransport.Hub hub = new LoopbackTransport.Hub();
+        for (int i = 0; i <= hops; i++) {
+            LoopbackTransport transport = new LoopbackTransport(hub, "node-" + i, FRAME_SIZE);
+            transport.setBandwidth(bandwidth);
+            Listener listener = new Listener();
+            File dir = new File(receiveDir, "node-" + i);
+            if (!dir.mkdir()) {
+                throw new IOException("Cannot create " + dir);
+            }
+            TransferNode node = new TransferNode(transport, dir, timers, listener);
+            transport.startAdvertising();
+            listeners.add(listener);
+            nodes.add(node);
+            relays.add(new MeshRelay(node, hops));
+        }
+        for (int i = 0; i < hops; i++) {
+            connect(i, i + 1);
+            if ("mesh".equals(topology) && i + 2 <= hops) {
+                connect(i, i + 2);
+            }
+        }
+    }
+
+    private void connect(int from, int to) throws Exception {
+        final CountDownLatch connected = new CountDownLatch(1);
+        nodes.get(from).connect("node-" + to, new ConnectionManager.Callback() {
+            @Override
+            public void onConnected(String endpointId) {
+                connected.countDown();
+            }
+
+            @Override
+            public void onConnectionFailed(String endpointId) {
+            }
+        });
+        if (!connected.await(TIMEOUT_S, TimeUnit.SECONDS)) {
+            throw new IOException("Could not connect node-" + from + " to node-" + to);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (int i = 0; i < nodes.size(); i++) {
+            relays.get(i).shutdown();
+            nodes.get(i).shutdown();
+        }
+        timers.shutdownNow();
+        BenchmarkData.deleteRecursively(receiveDir);
+        file.delete();
+    }
+
+    @Benchmark
+    public void relayFile() throws Exception {
+        for (Listener listener : listeners) {
+            listener.files.set(0);
+        }
+        received = new CountDownLatch(hops);
+        relays.get(0).send(new FileInputStream(file).getChannel(), fileSize, file.getName());
+        if (!received.await(TIMEOUT_S, TimeUnit.SECONDS)) {
+            throw new IOException(received.getCount() + " of " + hops + " nodes missed the file");
+        }
+        for (int i = 1; i < listeners.size(); i++) {
+            if (listeners.get(i).files.get() != 1) {
+                throw new IllegalStateException("node-" + i + " received " + listeners.get(i).files.get() + " copies");
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.tab.demo.nearby;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A transfer from storage that takes {@code diskMicros} per chunk read over a link that takes
+ * {@code linkMicros} per frame, like an SD card feeding a radio. Without read-ahead every chunk
+ * costs both; with it the two overlap and the slower one sets the pace.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SlowDiskBenchmark {
+    private static final long TIMEOUT_S = 120;
+
+    @Param({"0", "2000"})
+    public int diskMicros;
+
+    @Param({"2000"})
+    public int linkMicros;
+
+    @Param({"0", "4"})
+    public int readAhead;
+
+    @Param({"4194304"})
+    public long fileSize;
+
+    private File file;
+    private File receiveDir;
+    private TransferEngine sender;
+    private TransferEngine receiver;
+    private final Listener listener = new Listener();
+
+    /**
+     * Takes {@code micros} for every read, on top of the read itself.
+     */
+    private static class SlowSource implements ChunkSource {
+        private final ChunkSource source;
+        private final long nanos;
+
+        SlowSource(ChunkSource source, int micros) {
+            this.source = source;
+            this.nanos = micros * 1000L;
+        }
+
+        @Override
+        public void read(ByteBuffer dst, long position) throws IOException {
+            LockSupport.parkNanos(nanos);
+            source.read(dst, position);
+        }
+
+        @Override
+        public void close() throws IOException {
+            source.close();
+        }
+    }
+
+    /**
+     * Takes {@code micros} for every frame sent, like a link of limited bandwidth.
+     */
+    private static class SlowLink implements Transport {
+        private final Transport transport;
+        private final long nanos;
+
+        SlowLink(Transport transport, int micros) {
+            this.transport = transport;
+            this.nanos = micros * 1000L;
+        }
+
+        @Override
+        public int maxFrameSize() {
+            return transport.maxFrameSize();
+        }
+
+        @Override
+        public void send(String endpointId, ByteBuffer frame) {
+            LockSupport.parkNanos(nanos);
+            transport.send(endpointId, frame);
+        }
+
+        @Override
+        public void setReceiver(Receiver receiver) {
+            transport.setReceiver(receiver);
+        }
+    }
+
+    private static class Listener implements TransferEngine.Listener {
+        volatile CountDownLatch done = new CountDownLatch(0);
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+
+        @Override
+        public void onTransferProgress(String endpointId, long transferId, long bytesTransferred, long totalBytes) {
+        }
+
+        @Override
+        public void onFileReceived(String endpointId, long transferId, File file) {
+            file.delete();
+        }
+
+        @Override
+        public void onBatchReceived(String endpointId, long transferId, List<File> files) {
+        }
+
+        @Override
+        public void onFileSent(String endpointId, long transferId) {
+            done.countDown();
+        }
+
+        @Override
+        public void onTransferFailed(String endpointId, long transferId, Exception e) {
+            failure.compareAndSet(null, e);
+            done.countDown();
+        }
+
+        @Override
+        public void onMessageReceived(String endpointId, byte[] message) {
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        file = BenchmarkData.randomFile(fileSize);
+        receiveDir = BenchmarkData.tempDir("slowdisk");
+        LoopbackTransport a = new LoopbackTransport("sender");
+        LoopbackTransport b = new LoopbackTransport("receiver");
+        LoopbackTransport.link(a, b);
+        sender = new TransferEngine(new SlowLink(a, linkMicros), receiveDir, listener);
+        receiver = new TransferEngine(b, receiveDir, listener);
+        sender.setReadAhead(readAhead);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        sender.shutdown();
+        receiver.shutdown();
+        BenchmarkData.deleteRecursively(receiveDir);
+        file.delete();
+    }
+
+    @Benchmark
+    public void sendFile() throws Exception {
+        listener.done = new CountDownLatch(1);
+        ChunkSource source = new SlowSource(new FileChunkSource(new FileInputStream(file).getChannel()), diskMicros);
+        sender.sendFile("receiver", source, fileSize, file.getName());
+        if (!listener.done.await(TIMEOUT_S, TimeUnit.SECONDS)) {
+            throw new IOException("Transfer did not finish in " + TIMEOUT_S + " s");
+        }
+        Exception failure = listener.failure.getAndSet(null);
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.tab.demo.nearby;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * One file sent end to end between two {@link TransferNode}s: framing, hashing, scheduling,
+ * the transport, verification and the write on the receiver. {@code loopback} shows the cost
+ * of the pipeline itself, {@code nio} adds a real TCP connection on localhost.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TransferBenchmark {
+    private static final long TIMEOUT_S = 120;
+
+    @Param({"loopback", "nio"})
+    public String transport;
+
+    @Param({"16384", "65536"})
+    public int frameSize;
+
+    @Param({"2", "8", "32"})
+    public int window;
+
+    @Param({"16777216"})
+    public long fileSize;
+
+    private File file;
+    private File receiveDir;
+    private ScheduledExecutorService timers;
+    private TransferNode sender;
+    private TransferNode receiver;
+    private String receiverId;
+    private final Listener listener = new Listener();
+
+    private static class Listener implements TransferNode.Listener {
+        volatile CountDownLatch done = new CountDownLatch(0);
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+
+        @Override
+        public void onEndpointsChanged() {
+        }
+
+        @Override
+        public void onTransferProgress(String endpointId, long transferId, long bytesTransferred, long totalBytes) {
+        }
+
+        @Override
+        public void onFileReceived(String endpointId, long transferId, File file) {
+            file.delete();
+            done.countDown();
+        }
+
+        @Override
+        public void onBatchReceived(String endpointId, long transferId, List<File> files) {
+        }
+
+        @Override
+        public void onFileSent(String endpointId, long transferId) {
+            done.countDown();
+        }
+
+        @Override
+        public void onTransferFailed(String endpointId, long transferId, Exception e) {
+            failure.compareAndSet(null, e);
+            done.countDown();
+            done.countDown();
+        }
+
+        @Override
+        public void onMessageReceived(String endpointId, byte[] message) {
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        file = BenchmarkData.randomFile(fileSize);
+        receiveDir = BenchmarkData.tempDir("received");
+        timers = Executors.newSingleThreadScheduledExecutor();
+        PeerTransport senderTransport;
+        PeerTransport receiverTransport;
+        if ("loopback".equals(transport)) {
+            LoopbackTransport.Hub hub = new LoopbackTransport.Hub();
+            senderTransport = new LoopbackTransport(hub, "sender", frameSize);
+            receiverTransport = new LoopbackTransport(hub, "receiver", frameSize);
+            receiverId = "receiver";
+        } else if ("nio".equals(transport)) {
+            senderTransport = NioTransport.open("sender", 0, 0, frameSize);
+            NioTransport nio = NioTransport.open("receiver", 0, 0, frameSize);
+            receiverTransport = nio;
+            receiverId = "127.0.0.1:" + nio.getLocalPort();
+        } else {
+            throw new IllegalArgumentException("Unknown transport " + transport);
+        }
+        sender = new TransferNode(senderTransport, receiveDir, timers, listener);
+        receiver = new TransferNode(receiverTransport, receiveDir, timers, listener);
+        sender.getEngine().setWindow(window);
+        receiverTransport.startAdvertising();
+        connect();
+    }
+
+    private void connect() throws Exception {
+        final CountDownLatch connected = new CountDownLatch(1);
+        sender.connect(receiverId, new ConnectionManager.Callback() {
+            @Override
+            public void onConnected(String endpointId) {
+                connected.countDown();
+            }
+
+            @Override
+            public void onConnectionFailed(String endpointId) {
+            }
+        });
+        if (!connected.await(TIMEOUT_S, TimeUnit.SECONDS)) {
+            throw new IOException("Could not connect to " + receiverId);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        sender.shutdown();
+        receiver.shutdown();
+        for (TransferNode node : new TransferNode[]{sender, receiver}) {
+            if (node.getTransport() instanceof NioTransport) {
+                ((NioTransport) node.getTransport()).close();
+            }
+        }
+        timers.shutdownNow();
+        BenchmarkData.deleteRecursively(receiveDir);
+        file.delete();
+    }
+
+    @Benchmark
+    public void sendFile() throws Exception {
+        listener.done = new CountDownLatch(2);
+        sender.sendFile(Collections.singletonList(receiverId),
+                new FileInputStream(file).getChannel(), fileSize, file.getName());
+        if (!listener.done.await(TIMEOUT_S, TimeUnit.SECONDS)) {
+            throw new IOException("Transfer did not finish in " + TIMEOUT_S + " s");
+        }
+        Exception failure = listener.failure.getAndSet(null);
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.tab.demo.nearby;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A soak of {@link TransferTable}: {@link #TRANSFERS} simulated incoming transfers from
+ * {@link #ENDPOINTS} endpoints, with about {@link #IN_FLIGHT} running at a time. Transfers make
+ * progress, complete, fail, are canceled or stall, and now and then an endpoint disconnects with
+ * all of its transfers. Time is simulated by ticking the table every {@link #TRANSFERS_PER_TICK}
+ * transfers, so stalled ones expire within the run.
+ *
+ * <p>With {@code partialBytes} above 0 every transfer has a partial file of that size, which the
+ * reclaimer deletes. The run fails if anything is left in the table or on disk at the end; the
+ * footprint counters report the peak number of entries and partial bytes held, which stay under
+ * the capacity however long the run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TransferTableBenchmark {
+    private static final int TRANSFERS = 100000;
+    private static final int ENDPOINTS = 16;
+    private static final int IN_FLIGHT = 200;
+    private static final int TRANSFERS_PER_TICK = 50;
+    private static final int TRANSFERS_PER_DISCONNECT = 10000;
+    private static final long TIMEOUT_S = 60;
+
+    @Param({"256"})
+    public int capacity;
+
+    @Param({"0", "4096"})
+    public int partialBytes;
+
+    private File dir;
+    private byte[] partial;
+
+    /**
+     * Peaks and totals of one run, reported next to the time.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Footprint {
+        public long peakTransfers;
+        public long peakBytes;
+        public long reclaimed;
+        public long expired;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            peakTransfers = 0;
+            peakBytes = 0;
+            reclaimed = 0;
+            expired = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = BenchmarkData.tempDir("table");
+        partial = new byte[partialBytes];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkData.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TRANSFERS)
+    public void soak(final Footprint footprint) throws IOException {
+        Metrics metrics = new Metrics();
+        TransferTable<File> table = new TransferTable<>(capacity, TIMEOUT_S, TimeUnit.SECONDS, null,
+                new TransferTable.Reclaimer<File>() {
+                    @Override
+                    public void reclaim(long id, String endpointId, File file, TransferTable.Reason reason) {
+                        if (file != null) {
+                            file.delete();
+                        }
+                        if (reason == TransferTable.Reason.EXPIRED) {
+                            footprint.expired++;
+                        }
+                    }
+                });
+        table.setMetrics(metrics);
+        Random random = new Random(TRANSFERS);
+        List<Long> running = new ArrayList<>();
+        for (long id = 0; id < TRANSFERS; id++) {
+            table.put(id, "endpoint-" + random.nextInt(ENDPOINTS), newPartialFile(id), partialBytes);
+            running.add(id);
+            do {
+                step(table, running, random);
+            } while (running.size() > IN_FLIGHT);
+            if (id % TRANSFERS_PER_TICK == 0) {
+                table.tick();
+            }
+            if (id % TRANSFERS_PER_DISCONNECT == 0) {
+                table.removeEndpoint("endpoint-" + random.nextInt(ENDPOINTS));
+            }
+            footprint.peakTransfers = Math.max(footprint.peakTransfers, table.size());
+            footprint.peakBytes = Math.max(footprint.peakBytes, table.bytes());
+        }
+        // The last transfers stall, and expire within a turn of the wheel after the timeout.
+        for (int i = 0; i < TransferTable.TICKS_PER_TIMEOUT + TransferTable.WHEEL_SLOTS; i++) {
+            table.tick();
+        }
+        footprint.reclaimed = metrics.reclaimedTransfers.get();
+        String[] left = dir.list();
+        if (table.size() != 0 || table.bytes() != 0 || metrics.pendingTransfers.get() != 0
+                || metrics.pendingBytes.get() != 0 || (left != null && left.length != 0)) {
+            throw new IllegalStateException("Leaked " + table.size() + " transfers, "
+                    + metrics.pendingBytes.get() + " bytes and " + (left == null ? 0 : left.length) + " files");
+        }
+    }
+
+    /**
+     * Advances one running transfer: half of the time it makes progress, otherwise it completes,
+     * fails, is canceled or stalls for good.
+     */
+    private void step(TransferTable<File> table, List<Long> running, Random random) {
+        int index = random.nextInt(running.size());
+        long id = running.get(index);
+        int roll = random.nextInt(100);
+        if (roll < 50) {
+            table.touch(id, partialBytes);
+            return;
+        }
+        running.set(index, running.get(running.size() - 1));
+        running.remove(running.size() - 1);
+        if (roll < 80) {
+            File file = table.complete(id);
+            // Received, so it is moved to where it belongs, out of the way here.
+            if (file != null) {
+                file.delete();
+            }
+        } else if (roll < 90) {
+            table.fail(id, TransferTable.Reason.FAILED);
+        } else if (roll < 98) {
+            table.fail(id, TransferTable.Reason.CANCELED);
+        }
+    }
+
+    private File newPartialFile(long id) throws IOException {
+        if (partialBytes == 0) {
+            return null;
+        }
+        File file = new File(dir, id + ".part");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(partial);
+        }
+        return file;
+    }
+}
@@ -0,0 +1,151 @@
+package com.tab.demo.nearby;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Writes the concatenation produced by a {@link BatchChunkSource} straight into the individual
+ * files, so each file is complete as soon as its last byte arrives and no archive is ever
+ * stored. Files are opened on their first write and closed once every byte was written, however
+ * often chunks are rewritten after a NACK. Chunks are written from several verifier threads, so
+ * access to the open files is synchronized.
+ */
+class BatchChunkSink implements ChunkSink {
+    private final List<File> files;
+    private final long[] sizes;
+    private final long[] offsets;
+    // Bytes of each file written at least once, and the ranges they make up, start -> end.
+    private final long[] written;
+    private final List<TreeMap<Long, Long>> ranges = new ArrayList<>();
+    private final RandomAccessFile[] open;
+
+    /**
+     * @param files the targets, already created
+     */
+    BatchChunkSink(List<File> files, long[] sizes) {
+        this.files = files;
+        this.sizes = sizes;
+        this.offsets = new long[sizes.length];
+        long offset = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            offsets[i] = offset;
+            offset += sizes[i];
+        }
+        this.written = new long[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            ranges.add(new TreeMap<Long, Long>());
+        }
+        this.open = new RandomAccessFile[sizes.length];
+    }
+
+    List<File> files() {
+        return files;
+    }
+
+    @Override
+    public synchronized void write(ByteBuffer src, long position) throws IOException {
+        int limit = src.limit();
+        try {
+            while (src.hasRemaining()) {
+                int i = BatchChunkSource.indexOf(offsets, position);
+                long local = i < 0 ? 0 : position - offsets[i];
+                if (i < 0 || local >= sizes[i]) {
+                    throw new IOException("Write past the end of the batch at " + position);
+                }
+                int n = (int) Math.min(src.remaining(), sizes[i] - local);
+                if (open[i] == null) {
+                    open[i] = new RandomAccessFile(files.get(i), "rw");
+                }
+                long start = local;
+                src.limit(src.position() + n);
+                while (src.hasRemaining()) {
+                    local += open[i].getChannel().write(src, local);
+                }
+                src.limit(limit);
+                position += n;
+                written[i] += cover(ranges.get(i), start, start + n);
+                if (written[i] == sizes[i]) {
+                    open[i].close();
+                    open[i] = null;
+                }
+            }
+        } finally {
+            src.limit(limit);
+        }
+    }
+
+    /**
+     * Adds {@code [start, end)} to {@code ranges}, merging it with the ranges it touches.
+     *
+     * @return the bytes not covered before
+     */
+    private static long cover(TreeMap<Long, Long> ranges, long start, long end) {
+        long added = end - start;
+        Map.Entry<Long, Long> before = ranges.floorEntry(start);
+        if (before != null && before.getValue() >= start) {
+            added -= Math.min(before.getValue(), end) - start;
+            start = before.getKey();
+            end = Math.max(end, before.getValue());
+            ranges.remove(before.getKey());
+        }
+        Map.Entry<Long, Long> next;
+        while ((next = ranges.ceilingEntry(start)) != null && next.getKey() <= end) {
+            added -= Math.min(next.getValue(), end) - next.getKey();
+            end = Math.max(end, next.getValue());
+            ranges.remove(next.getKey());
+        }
+        ranges.put(start, end);
+        return added;
+    }
+
+    @Override
+    public synchronized void force() throws IOException {
+        for (RandomAccessFile raf : open) {
+            if (raf != null) {
+                raf.getChannel().force(false);
+            }
+        }
+    }
+
+    /**
+     * Closes the files still being written. A later write simply opens them again.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        IOException failure = null;
+        for (int i = 0; i < open.length; i++) {
+            if (open[i] != null) {
+                try {
+                    open[i].close();
+                } catch (IOException e) {
+                    failure = e;
+                }
+                open[i] = null;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Deletes every file of the batch, the complete ones as well: a batch arrives as a whole or
+     * not at all.
+     */
+    @Override
+    public synchronized void discard() {
+        try {
+            close();
+        } catch (IOException ignored) {
+        }
+        for (File file : files) {
+            file.delete();
+        }
+    }
+}
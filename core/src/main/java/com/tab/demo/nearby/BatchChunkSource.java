@@ -0,0 +1,106 @@
+package com.tab.demo.nearby;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads a list of files as if they were one file with all of them back to back, so a batch of
+ * small files travels as a single transfer and a chunk carries as many files as fit into it.
+ * Only the file currently being read is kept open.
+ */
+class BatchChunkSource implements ChunkSource {
+    private final List<BatchFile> files;
+    private final long[] offsets;
+    private int openIndex = -1;
+    private FileChannel open;
+
+    BatchChunkSource(List<BatchFile> files) {
+        this.files = files;
+        this.offsets = offsets(files);
+    }
+
+    /**
+     * Start of each file within the concatenation.
+     */
+    static long[] offsets(List<BatchFile> files) {
+        long[] offsets = new long[files.size()];
+        long offset = 0;
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = offset;
+            offset += files.get(i).size;
+        }
+        return offsets;
+    }
+
+    /**
+     * Index of the last file starting at or before {@code position}, which for a position
+     * inside the concatenation is the non-empty file containing it.
+     */
+    static int indexOf(long[] offsets, long position) {
+        int i = Arrays.binarySearch(offsets, position);
+        if (i < 0) {
+            return -i - 2;
+        }
+        while (i + 1 < offsets.length && offsets[i + 1] == position) {
+            i++;
+        }
+        return i;
+    }
+
+    @Override
+    public void read(ByteBuffer dst, long position) throws IOException {
+        int limit = dst.limit();
+        try {
+            while (dst.hasRemaining()) {
+                int i = indexOf(offsets, position);
+                if (i < 0) {
+                    throw new IOException("No file at " + position);
+                }
+                BatchFile file = files.get(i);
+                long local = position - offsets[i];
+                if (local >= file.size) {
+                    throw new IOException("Unexpected end of batch at " + position);
+                }
+                dst.limit((int) Math.min(limit, dst.position() + file.size - local));
+                FileChannel channel = channel(i);
+                while (dst.hasRemaining()) {
+                    int n = channel.read(dst, local);
+                    if (n < 0) {
+                        throw new IOException("Unexpected end of " + file.path + " at " + local);
+                    }
+                    local += n;
+                    position += n;
+                }
+                dst.limit(limit);
+            }
+        } finally {
+            dst.limit(limit);
+        }
+    }
+
+    private FileChannel channel(int index) throws IOException {
+        if (openIndex != index) {
+            closeOpen();
+            open = files.get(index).open();
+            openIndex = index;
+        }
+        return open;
+    }
+
+    private void closeOpen() throws IOException {
+        if (open != null) {
+            FileChannel channel = open;
+            open = null;
+            openIndex = -1;
+            channel.close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeOpen();
+    }
+}
@@ -0,0 +1,21 @@
+package com.tab.demo.nearby;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * One file of a batch transfer. Batches can hold thousands of files, so each is only opened
+ * while its bytes are being read.
+ */
+abstract class BatchFile {
+    /** Relative path on the receiver, with {@code /} between directories. */
+    final String path;
+    final long size;
+
+    BatchFile(String path, long size) {
+        this.path = path;
+        this.size = size;
+    }
+
+    abstract FileChannel open() throws IOException;
+}
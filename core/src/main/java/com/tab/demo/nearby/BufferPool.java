@@ -0,0 +1,44 @@
+package com.tab.demo.nearby;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * A bounded set of direct buffers of one size that are handed out again instead of allocated per
+ * use. Direct buffers are expensive to allocate and only freed by the garbage collector.
+ */
+class BufferPool {
+    private final int bufferSize;
+    private final int maxBuffers;
+    private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+    private int allocated;
+
+    BufferPool(int bufferSize, int maxBuffers) {
+        this.bufferSize = bufferSize;
+        this.maxBuffers = maxBuffers;
+    }
+
+    int bufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Returns a cleared buffer, or null if all of them are in use.
+     */
+    synchronized ByteBuffer acquire() {
+        ByteBuffer buf = free.poll();
+        if (buf == null) {
+            if (allocated >= maxBuffers) {
+                return null;
+            }
+            allocated++;
+            buf = ByteBuffer.allocateDirect(bufferSize);
+        }
+        buf.clear();
+        return buf;
+    }
+
+    synchronized void release(ByteBuffer buf) {
+        free.push(buf);
+    }
+}
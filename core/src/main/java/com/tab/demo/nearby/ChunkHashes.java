@@ -0,0 +1,46 @@
+package com.tab.demo.nearby;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 of single chunks, and the root hash of a file: the SHA-256 over all chunk hashes in
+ * chunk order. The root can be computed from chunks that arrived in any order, and only needs
+ * the chunk hashes, never the data, at the end of a transfer.
+ */
+class ChunkHashes {
+    static final int SIZE = 32;
+
+    private ChunkHashes() {
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Hashes the remaining bytes of {@code data} without consuming them.
+     */
+    static byte[] hash(MessageDigest digest, ByteBuffer data) {
+        digest.update(data.duplicate());
+        return digest.digest();
+    }
+
+    static byte[] hash(MessageDigest digest, byte[] data, int offset, int length) {
+        digest.update(data, offset, length);
+        return digest.digest();
+    }
+
+    static byte[] root(byte[][] hashes) {
+        MessageDigest digest = newDigest();
+        for (byte[] hash : hashes) {
+            digest.update(hash);
+        }
+        return digest.digest();
+    }
+}
@@ -0,0 +1,60 @@
+package com.tab.demo.nearby;
+
+/**
+ * How a file is cut into chunks: either fixed-size, or the variable boundaries found by
+ * {@link ContentChunker}.
+ */
+class ChunkLayout {
+    final long size;
+    private final int chunkSize;
+    private final int count;
+    private final long[] offsets;
+    private final int[] lengths;
+
+    private ChunkLayout(long size, int chunkSize, int count, long[] offsets, int[] lengths) {
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.count = count;
+        this.offsets = offsets;
+        this.lengths = lengths;
+    }
+
+    static ChunkLayout fixed(long size, int chunkSize) {
+        return new ChunkLayout(size, chunkSize, (int) ((size + chunkSize - 1) / chunkSize), null, null);
+    }
+
+    static ChunkLayout variable(int[] lengths) {
+        long[] offsets = new long[lengths.length];
+        long size = 0;
+        int maxLength = 0;
+        for (int i = 0; i < lengths.length; i++) {
+            offsets[i] = size;
+            size += lengths[i];
+            maxLength = Math.max(maxLength, lengths[i]);
+        }
+        return new ChunkLayout(size, maxLength, lengths.length, offsets, lengths);
+    }
+
+    boolean isFixed() {
+        return offsets == null;
+    }
+
+    int count() {
+        return count;
+    }
+
+    /**
+     * The size of a fixed-size chunk, or the largest chunk of a variable layout.
+     */
+    int maxLength() {
+        return chunkSize;
+    }
+
+    long offset(int index) {
+        return offsets == null ? (long) index * chunkSize : offsets[index];
+    }
+
+    int length(int index) {
+        return lengths == null ? (int) Math.min(chunkSize, size - offset(index)) : lengths[index];
+    }
+}
@@ -0,0 +1,28 @@
+package com.tab.demo.nearby;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Where an incoming transfer writes its bytes to.
+ */
+interface ChunkSink {
+
+    /**
+     * Writes all remaining bytes of {@code src} starting at {@code position}. Chunks may be
+     * written from several threads at once.
+     */
+    void write(ByteBuffer src, long position) throws IOException;
+
+    /**
+     * Makes everything written so far durable.
+     */
+    void force() throws IOException;
+
+    void close() throws IOException;
+
+    /**
+     * Closes the sink and deletes whatever it did not complete.
+     */
+    void discard();
+}
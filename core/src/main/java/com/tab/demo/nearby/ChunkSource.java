@@ -0,0 +1,17 @@
+package com.tab.demo.nearby;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Where an outgoing transfer reads its bytes from.
+ */
+interface ChunkSource {
+
+    /**
+     * Fills the remaining space of {@code dst} with the bytes starting at {@code position}.
+     */
+    void read(ByteBuffer dst, long position) throws IOException;
+
+    void close() throws IOException;
+}
@@ -0,0 +1,186 @@
+package com.tab.demo.nearby;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Content-addressed store of received chunks, one file per SHA-256 under {@code dir/xx/}. The
+ * least recently used chunks are deleted once the store grows beyond its capacity. The index is
+ * rebuilt from the directory on first use, ordered by modification time.
+ */
+class ChunkStore {
+    private final File dir;
+    private final long capacity;
+    // Hex hash to chunk length, in access order.
+    private final LinkedHashMap<String, Integer> index = new LinkedHashMap<>(16, 0.75f, true);
+    private final MessageDigest digest = ChunkHashes.newDigest();
+    private long bytes;
+    private boolean loaded;
+
+    ChunkStore(File dir, long capacity) {
+        this.dir = dir;
+        this.capacity = capacity;
+    }
+
+    synchronized boolean contains(byte[] hash) {
+        load();
+        return index.containsKey(hex(hash));
+    }
+
+    /**
+     * Reads the chunk into {@code dst}. Returns false if it is not stored, or is stored with
+     * other contents than the hash says, in which case the entry is dropped.
+     */
+    synchronized boolean read(byte[] hash, int length, ByteBuffer dst) throws IOException {
+        load();
+        String key = hex(hash);
+        Integer stored = index.get(key);
+        if (stored == null) {
+            return false;
+        }
+        File file = fileFor(key);
+        if (stored != length || file.length() != length) {
+            remove(key);
+            return false;
+        }
+        int start = dst.position();
+        try (FileInputStream in = new FileInputStream(file)) {
+            FileChannel channel = in.getChannel();
+            while (dst.position() - start < length) {
+                if (channel.read(dst) < 0) {
+                    dst.position(start);
+                    remove(key);
+                    return false;
+                }
+            }
+        }
+        ByteBuffer data = dst.duplicate();
+        data.flip();
+        data.position(start);
+        if (!MessageDigest.isEqual(ChunkHashes.hash(digest, data), hash)) {
+            dst.position(start);
+            remove(key);
+            return false;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        return true;
+    }
+
+    /**
+     * Stores {@code data} under {@code hash}, which the caller has already checked.
+     */
+    synchronized void put(byte[] hash, ByteBuffer data) throws IOException {
+        load();
+        String key = hex(hash);
+        if (index.containsKey(key)) {
+            return;
+        }
+        int length = data.remaining();
+        File file = fileFor(key);
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create " + parent);
+        }
+        File tmp = new File(parent, key + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            FileChannel channel = out.getChannel();
+            ByteBuffer src = data.duplicate();
+            while (src.hasRemaining()) {
+                channel.write(src);
+            }
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Cannot store chunk " + key);
+        }
+        index.put(key, length);
+        bytes += length;
+        evict();
+    }
+
+    synchronized long size() {
+        load();
+        return bytes;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Integer>> it = index.entrySet().iterator();
+        while (bytes > capacity && it.hasNext()) {
+            Map.Entry<String, Integer> entry = it.next();
+            fileFor(entry.getKey()).delete();
+            bytes -= entry.getValue();
+            it.remove();
+        }
+    }
+
+    private void remove(String key) {
+        Integer length = index.remove(key);
+        if (length != null) {
+            bytes -= length;
+        }
+        fileFor(key).delete();
+    }
+
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        List<File> files = new ArrayList<>();
+        File[] buckets = dir.listFiles();
+        if (buckets != null) {
+            for (File bucket : buckets) {
+                File[] chunks = bucket.listFiles();
+                if (chunks != null) {
+                    files.addAll(Arrays.asList(chunks));
+                }
+            }
+        }
+        final Map<File, Long> modified = new LinkedHashMap<>();
+        for (File file : files) {
+            modified.put(file, file.lastModified());
+        }
+        Collections.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(modified.get(a), modified.get(b));
+            }
+        });
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(".tmp")) {
+                file.delete();
+                continue;
+            }
+            int length = (int) file.length();
+            index.put(name, length);
+            bytes += length;
+        }
+        evict();
+    }
+
+    private File fileFor(String key) {
+        return new File(new File(dir, key.substring(0, 2)), key);
+    }
+
+    private static String hex(byte[] hash) {
+        StringBuilder sb = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,92 @@
+package com.tab.demo.nearby;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Per-chunk deflate stage. Every chunk is compressed on its own, so chunks stay independent: they
+ * can be in flight in any order, retransmitted, and written at their offset on arrival. Not
+ * thread-safe; use one instance per sender or receiver thread.
+ */
+class Compressor {
+    static final int SAMPLE_SIZE = 64 * 1024;
+    // Compression has to save at least this share of the sample to be switched on.
+    private static final int MIN_SAVING_PERCENT = 10;
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater inflater = new Inflater();
+    private byte[] scratch = new byte[0];
+
+    /**
+     * Decides from a sample of the payload, normally its first block, whether compressing the
+     * rest is worth the CPU time.
+     */
+    boolean isWorthCompressing(byte[] sample, int offset, int length) {
+        if (length == 0) {
+            return false;
+        }
+        int compressed = compress(sample, offset, length, scratch(length), 0, length);
+        return compressed >= 0 && compressed <= length - length * MIN_SAVING_PERCENT / 100;
+    }
+
+    /**
+     * Compresses {@code length} bytes of {@code in} into {@code out}.
+     *
+     * @return the compressed length, or -1 if the result would not fit into {@code outLength}
+     * bytes, in which case the data should be sent as is
+     */
+    int compress(byte[] in, int offset, int length, byte[] out, int outOffset, int outLength) {
+        deflater.reset();
+        deflater.setInput(in, offset, length);
+        deflater.finish();
+        int n = 0;
+        while (!deflater.finished()) {
+            if (n == outLength) {
+                return -1;
+            }
+            n += deflater.deflate(out, outOffset + n, outLength - n);
+        }
+        return n;
+    }
+
+    /**
+     * Inflates {@code data} into {@code out}.
+     *
+     * @return the uncompressed length
+     */
+    int decompress(ByteBuffer data, byte[] out) throws DataFormatException {
+        inflater.reset();
+        if (data.hasArray()) {
+            inflater.setInput(data.array(), data.arrayOffset() + data.position(), data.remaining());
+        } else {
+            byte[] in = scratch(data.remaining());
+            int length = data.remaining();
+            data.get(in, 0, length);
+            inflater.setInput(in, 0, length);
+        }
+        int n = 0;
+        while (!inflater.finished()) {
+            int inflatedBytes = inflater.inflate(out, n, out.length - n);
+            if (inflatedBytes == 0
+                    && (n == out.length || inflater.needsInput() || inflater.needsDictionary())) {
+                throw new DataFormatException("Compressed chunk is truncated or too large");
+            }
+            n += inflatedBytes;
+        }
+        return n;
+    }
+
+    void end() {
+        deflater.end();
+        inflater.end();
+    }
+
+    private byte[] scratch(int size) {
+        if (scratch.length < size) {
+            scratch = new byte[size];
+        }
+        return scratch;
+    }
+}
@@ -0,0 +1,187 @@
+package com.tab.demo.nearby;
+
+/**
+ * Sizes the window of an outgoing transfer from what the link delivers, the way TCP congestion
+ * control does. The window starts small and grows by a chunk for every chunk acknowledged, which
+ * doubles it every round trip, until a chunk is lost or round trips start to grow, which means a
+ * queue is building up on the way. From there it grows by one chunk per round trip and shrinks by
+ * 30% on every loss, less than the half of TCP Reno, since radio links also lose frames when they
+ * are not full. A retransmission timeout, with nothing coming back at all, drops it to the minimum.
+ *
+ * <p>Round trip times come from acknowledgements of chunks that were sent only once, and give the
+ * retransmission timeout as in RFC 6298. The delivery rate measured along the way sets the chunk
+ * size of the next transfer on the same link, see {@link #chunkSize}.
+ */
+class CongestionController {
+    static final int MIN_WINDOW = 2;
+    static final int INITIAL_WINDOW = 4;
+    static final int MAX_WINDOW = 1024;
+    static final int MIN_CHUNK_SIZE = 4096;
+    private static final long MS = 1000000;
+    private static final long INITIAL_RTO_NANOS = 1000 * MS;
+    private static final long MIN_RTO_NANOS = 200 * MS;
+    private static final long MAX_RTO_NANOS = 10000 * MS;
+    // Round trips longer than the shortest by more than this end slow start.
+    private static final long MIN_DELAY_INCREASE_NANOS = 4 * MS;
+    // How long a chunk should take to go over the link. Longer ones hold up everything behind them
+    // and make losses expensive, shorter ones need a larger window in chunks, which random losses
+    // keep from growing.
+    private static final long CHUNK_NANOS = 50 * MS;
+    // What is left of the window after a loss, as in CUBIC.
+    private static final double BETA = 0.7;
+
+    private final Histogram rttMillis;
+    private double window = INITIAL_WINDOW;
+    private double threshold = MAX_WINDOW;
+    private long srtt;
+    private long rttvar;
+    private long minRtt = Long.MAX_VALUE;
+    private int backoff;
+    // Losses until then belong to the loss that already halved the window.
+    private long recoveryEnd;
+    // The round trip being watched for a growing delay during slow start.
+    private long roundStart;
+    private long roundMinRtt = Long.MAX_VALUE;
+    // Bytes acknowledged since sampleStart, and the delivery rate in bytes per second.
+    private long sampleStart;
+    private long sampleBytes;
+    private long deliveryRate;
+
+    /**
+     * @param rttMillis where to record round trip times, or null
+     */
+    CongestionController(Histogram rttMillis) {
+        this.rttMillis = rttMillis;
+    }
+
+    /**
+     * Starts where the last transfer on the same link left off, at half its window.
+     */
+    CongestionController(CongestionController previous, Histogram rttMillis) {
+        this(rttMillis);
+        synchronized (previous) {
+            window = Math.max(INITIAL_WINDOW, previous.window / 2);
+            threshold = previous.threshold;
+            srtt = previous.srtt;
+            rttvar = previous.rttvar;
+            minRtt = previous.minRtt;
+            deliveryRate = previous.deliveryRate;
+        }
+    }
+
+    synchronized int window() {
+        return (int) window;
+    }
+
+    /**
+     * How long an unacknowledged chunk is given before it counts as lost.
+     */
+    synchronized long rtoNanos() {
+        long rto = srtt == 0 ? INITIAL_RTO_NANOS : Math.max(MIN_RTO_NANOS, srtt + 4 * rttvar);
+        return Math.min(MAX_RTO_NANOS, rto << Math.min(backoff, 6));
+    }
+
+    /**
+     * How far chunks may be acknowledged out of order before the earlier ones count as lost.
+     * Chunks are verified in parallel, so acknowledgements are not strictly in order.
+     */
+    synchronized long reorderNanos() {
+        return Math.max(2 * MS, srtt / 4);
+    }
+
+    /**
+     * Bytes per second the link delivered recently, or 0 before the first measurement.
+     */
+    synchronized long deliveryRate() {
+        return deliveryRate;
+    }
+
+    /**
+     * @param rttNanos the round trip of the chunk, or -1 if it was sent more than once and the
+     * acknowledgement could be for either
+     */
+    synchronized void onAck(long rttNanos, int bytes, long now) {
+        backoff = 0;
+        if (rttNanos >= 0) {
+            onRtt(rttNanos, now);
+        }
+        if (sampleStart == 0) {
+            sampleStart = now;
+        }
+        sampleBytes += bytes;
+        long elapsed = now - sampleStart;
+        if (srtt > 0 && elapsed >= srtt) {
+            long rate = (long) (sampleBytes * 1e9 / elapsed);
+            // Keeps the best recent rate: one slow round trip is no reason to shrink chunks.
+            deliveryRate = Math.max(rate, deliveryRate - deliveryRate / 8);
+            sampleStart = now;
+            sampleBytes = 0;
+        }
+        if (window < threshold) {
+            window += 1;
+        } else {
+            window += 1 / window;
+        }
+        window = Math.min(window, MAX_WINDOW);
+    }
+
+    private void onRtt(long rtt, long now) {
+        if (rttMillis != null) {
+            rttMillis.record(rtt / MS);
+        }
+        if (srtt == 0) {
+            srtt = rtt;
+            rttvar = rtt / 2;
+        } else {
+            rttvar += (Math.abs(srtt - rtt) - rttvar) / 4;
+            srtt += (rtt - srtt) / 8;
+        }
+        minRtt = Math.min(minRtt, rtt);
+        roundMinRtt = Math.min(roundMinRtt, rtt);
+        if (now - roundStart < srtt) {
+            return;
+        }
+        // Compares the best round trip of each round, so jitter alone does not count as delay.
+        if (window < threshold && roundStart != 0
+                && roundMinRtt > minRtt + Math.max(minRtt / 4, MIN_DELAY_INCREASE_NANOS)) {
+            threshold = window;
+        }
+        roundStart = now;
+        roundMinRtt = Long.MAX_VALUE;
+    }
+
+    /**
+     * A chunk was lost or rejected. Shrinks the window once per round trip.
+     */
+    synchronized void onLoss(long now) {
+        if (now < recoveryEnd) {
+            return;
+        }
+        threshold = Math.max(MIN_WINDOW, window * BETA);
+        window = threshold;
+        recoveryEnd = now + Math.max(srtt, MIN_RTO_NANOS);
+    }
+
+    /**
+     * Nothing was acknowledged for a whole retransmission timeout.
+     */
+    synchronized void onTimeout(long now) {
+        threshold = Math.max(MIN_WINDOW, window * BETA);
+        window = MIN_WINDOW;
+        backoff++;
+        recoveryEnd = now + rtoNanos();
+    }
+
+    /**
+     * The chunk size for a new transfer on this link: as large as a chunk that takes about 50 ms
+     * to deliver, so losses cost little and acknowledgements keep flowing on slow links, and as
+     * large as allowed on fast ones.
+     */
+    synchronized int chunkSize(int max) {
+        if (deliveryRate == 0) {
+            return max;
+        }
+        long size = Long.highestOneBit(Math.max(1, deliveryRate * CHUNK_NANOS / 1000000000L));
+        return (int) Math.max(Math.min(MIN_CHUNK_SIZE, max), Math.min(size, max));
+    }
+}
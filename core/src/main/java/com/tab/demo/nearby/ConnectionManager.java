@@ -0,0 +1,347 @@
+package com.tab.demo.nearby;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a bounded pool of live connections. Connect requests are queued and dialled a few at a
+ * time, failed attempts are retried with exponential backoff, and an endpoint that is already
+ * connected is handed out again without a new handshake. When the pool is full, the least
+ * recently used connection without running transfers is closed to make room, for dials as well
+ * as for connections accepted from peers.
+ *
+ * <p>The connector is never called with the lock held, since transports may report back into
+ * this or another manager from within the call.
+ */
+class ConnectionManager {
+    static final int DEFAULT_MAX_CONNECTIONS = 8;
+    private static final int MAX_CONCURRENT_DIALS = 2;
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long BASE_BACKOFF_MS = 500;
+    private static final long MAX_BACKOFF_MS = 16000;
+    private static final long DIAL_TIMEOUT_MS = 30000;
+
+    interface Connector {
+        void requestConnection(String endpointId);
+
+        void disconnect(String endpointId);
+    }
+
+    interface Callback {
+        void onConnected(String endpointId);
+
+        void onConnectionFailed(String endpointId);
+    }
+
+    private enum State {
+        QUEUED, BACKOFF, DIALING, CONNECTED
+    }
+
+    private static class Connection {
+        final String endpointId;
+        State state;
+        int attempts;
+        int users;
+        long lastUsed;
+        long dialStarted;
+        ScheduledFuture<?> timer;
+        final List<Callback> waiters = new ArrayList<>();
+
+        Connection(String endpointId, State state) {
+            this.endpointId = endpointId;
+            this.state = state;
+        }
+    }
+
+    private final Connector connector;
+    private final ScheduledExecutorService scheduler;
+    private final int maxConnections;
+    private final Map<String, Connection> connections = new HashMap<>();
+    private final Deque<Connection> queue = new ArrayDeque<>();
+    private final Random random = new Random();
+    private volatile Metrics metrics = new Metrics();
+    private int dialing;
+
+    ConnectionManager(Connector connector, ScheduledExecutorService scheduler, int maxConnections) {
+        this.connector = connector;
+        this.scheduler = scheduler;
+        this.maxConnections = maxConnections;
+    }
+
+    void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Asks for a connection to {@code endpointId}. {@code callback}, which may be null, is called
+     * once the endpoint is connected, right away if it already is, or once all retries failed.
+     */
+    void connect(String endpointId, Callback callback) {
+        boolean connected;
+        synchronized (this) {
+            Connection connection = connections.get(endpointId);
+            if (connection == null) {
+                connection = new Connection(endpointId, State.QUEUED);
+                connections.put(endpointId, connection);
+                queue.addLast(connection);
+            }
+            connected = connection.state == State.CONNECTED;
+            if (connected) {
+                connection.lastUsed = System.currentTimeMillis();
+            } else if (callback != null) {
+                connection.waiters.add(callback);
+            }
+        }
+        if (connected && callback != null) {
+            callback.onConnected(endpointId);
+        }
+        pump();
+    }
+
+    /**
+     * Reports an established connection, dialled by us or accepted from the peer. A peer that
+     * connects while the pool is full of connections in use is disconnected again.
+     *
+     * @return false if the connection was turned away
+     */
+    boolean onConnected(String endpointId) {
+        List<Callback> waiters;
+        List<String> evicted = new ArrayList<>();
+        synchronized (this) {
+            Connection connection = connections.get(endpointId);
+            if (connection == null) {
+                if (liveConnections() >= maxConnections && !evictIdle(evicted)) {
+                    evicted.add(endpointId);
+                    connection = null;
+                } else {
+                    connection = new Connection(endpointId, State.CONNECTED);
+                    connections.put(endpointId, connection);
+                }
+            }
+            if (connection != null) {
+                if (connection.state == State.DIALING) {
+                    metrics.endpoint(endpointId).connectMillis.record(
+                            (System.nanoTime() - connection.dialStarted) / 1000000);
+                }
+                finishDial(connection);
+                // Still waiting for a dial slot if the peer got in first.
+                queue.remove(connection);
+                connection.state = State.CONNECTED;
+                connection.attempts = 0;
+                connection.lastUsed = System.currentTimeMillis();
+                waiters = drainWaiters(connection);
+            } else {
+                waiters = new ArrayList<>();
+            }
+        }
+        for (String victim : evicted) {
+            connector.disconnect(victim);
+        }
+        for (Callback callback : waiters) {
+            callback.onConnected(endpointId);
+        }
+        pump();
+        return !evicted.contains(endpointId);
+    }
+
+    void onConnectionFailed(final String endpointId) {
+        List<Callback> waiters = new ArrayList<>();
+        synchronized (this) {
+            Connection connection = connections.get(endpointId);
+            if (connection == null || connection.state != State.DIALING) {
+                return;
+            }
+            finishDial(connection);
+            metrics.endpoint(endpointId).connectFailures.incrementAndGet();
+            if (connection.attempts < MAX_ATTEMPTS) {
+                connection.state = State.BACKOFF;
+                long delay = Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << Math.max(0, connection.attempts - 1));
+                delay += random.nextInt((int) (delay / 2) + 1);
+                final Connection retry = connection;
+                connection.timer = scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        requeue(retry);
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            } else {
+                connections.remove(endpointId);
+                waiters = drainWaiters(connection);
+            }
+        }
+        for (Callback callback : waiters) {
+            callback.onConnectionFailed(endpointId);
+        }
+        pump();
+    }
+
+    void onDisconnected(String endpointId) {
+        List<Callback> waiters;
+        synchronized (this) {
+            Connection connection = connections.remove(endpointId);
+            if (connection == null) {
+                return;
+            }
+            finishDial(connection);
+            queue.remove(connection);
+            waiters = drainWaiters(connection);
+        }
+        for (Callback callback : waiters) {
+            callback.onConnectionFailed(endpointId);
+        }
+        pump();
+    }
+
+    synchronized boolean isConnected(String endpointId) {
+        Connection connection = connections.get(endpointId);
+        return connection != null && connection.state == State.CONNECTED;
+    }
+
+    synchronized List<String> getConnectedEndpoints() {
+        List<String> connected = new ArrayList<>();
+        for (Connection connection : connections.values()) {
+            if (connection.state == State.CONNECTED) {
+                connected.add(connection.endpointId);
+            }
+        }
+        return connected;
+    }
+
+    /**
+     * Marks a connection as in use, which protects it from eviction until {@link #release}.
+     */
+    synchronized void retain(String endpointId) {
+        Connection connection = connections.get(endpointId);
+        if (connection != null) {
+            connection.users++;
+            connection.lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    void release(String endpointId) {
+        synchronized (this) {
+            Connection connection = connections.get(endpointId);
+            if (connection != null && connection.users > 0) {
+                connection.users--;
+                connection.lastUsed = System.currentTimeMillis();
+            }
+        }
+        pump();
+    }
+
+    private void requeue(Connection connection) {
+        synchronized (this) {
+            if (connections.get(connection.endpointId) != connection || connection.state != State.BACKOFF) {
+                return;
+            }
+            connection.state = State.QUEUED;
+            queue.addLast(connection);
+        }
+        pump();
+    }
+
+    /**
+     * Starts queued dials while there is room, evicting idle connections to make it.
+     */
+    private void pump() {
+        List<String> dials = new ArrayList<>();
+        List<String> evicted = new ArrayList<>();
+        synchronized (this) {
+            pumpLocked(dials, evicted);
+        }
+        for (String endpointId : evicted) {
+            connector.disconnect(endpointId);
+        }
+        for (String endpointId : dials) {
+            connector.requestConnection(endpointId);
+        }
+    }
+
+    /**
+     * Collects the endpoints to dial and to disconnect, for the caller to act on once it released
+     * the lock.
+     */
+    private void pumpLocked(List<String> dials, List<String> evicted) {
+        while (dialing < MAX_CONCURRENT_DIALS && !queue.isEmpty()) {
+            if (liveConnections() + dialing >= maxConnections && !evictIdle(evicted)) {
+                return;
+            }
+            final Connection connection = queue.pollFirst();
+            connection.state = State.DIALING;
+            connection.attempts++;
+            connection.dialStarted = System.nanoTime();
+            dialing++;
+            Metrics.EndpointMetrics endpoint = metrics.endpoint(connection.endpointId);
+            endpoint.connectAttempts.incrementAndGet();
+            if (connection.attempts > 1) {
+                endpoint.connectRetries.incrementAndGet();
+            }
+            connection.timer = scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    boolean timedOut;
+                    synchronized (ConnectionManager.this) {
+                        timedOut = connection.state == State.DIALING;
+                    }
+                    if (timedOut) {
+                        onConnectionFailed(connection.endpointId);
+                    }
+                }
+            }, DIAL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            dials.add(connection.endpointId);
+        }
+    }
+
+    private int liveConnections() {
+        int live = 0;
+        for (Connection connection : connections.values()) {
+            if (connection.state == State.CONNECTED) {
+                live++;
+            }
+        }
+        return live;
+    }
+
+    /**
+     * Drops the least recently used connection without users and adds it to {@code evicted}.
+     */
+    private boolean evictIdle(List<String> evicted) {
+        Connection victim = null;
+        for (Connection connection : connections.values()) {
+            if (connection.state == State.CONNECTED && connection.users == 0
+                    && (victim == null || connection.lastUsed < victim.lastUsed)) {
+                victim = connection;
+            }
+        }
+        if (victim == null) {
+            return false;
+        }
+        connections.remove(victim.endpointId);
+        evicted.add(victim.endpointId);
+        return true;
+    }
+
+    private void finishDial(Connection connection) {
+        if (connection.state == State.DIALING) {
+            dialing--;
+        }
+        if (connection.timer != null) {
+            connection.timer.cancel(false);
+            connection.timer = null;
+        }
+    }
+
+    private static List<Callback> drainWaiters(Connection connection) {
+        List<Callback> waiters = new ArrayList<>(connection.waiters);
+        connection.waiters.clear();
+        return waiters;
+    }
+}
@@ -0,0 +1,83 @@
+package com.tab.demo.nearby;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Content-defined chunking with a gear rolling hash. A boundary is placed wherever the hash of
+ * the last few bytes matches a mask, so an insertion early in a file only moves the boundaries
+ * around it and the chunks after it keep their content, and their SHA-256, unchanged.
+ */
+class ContentChunker {
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // Fixed seed: both ends of a transfer must find the same boundaries.
+        Random random = new Random(0x4E454152L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final int minSize;
+    private final int maxSize;
+    private final long mask;
+
+    /**
+     * @param maxSize largest chunk; the average is a quarter and the minimum a sixteenth of it
+     */
+    ContentChunker(int maxSize) {
+        this.maxSize = maxSize;
+        this.minSize = Math.max(64, maxSize / 16);
+        int averageBits = 31 - Integer.numberOfLeadingZeros(Math.max(1, maxSize / 4));
+        // Use the high bits, which depend on the most recent bytes of the window.
+        this.mask = ((1L << averageBits) - 1) << (64 - averageBits);
+    }
+
+    /**
+     * Reads {@code size} bytes of {@code source} once, cutting and hashing as it goes.
+     */
+    ContentManifest chunk(ChunkSource source, long size) throws IOException {
+        MessageDigest digest = ChunkHashes.newDigest();
+        List<Integer> lengths = new ArrayList<>();
+        List<byte[]> hashes = new ArrayList<>();
+        byte[] buf = new byte[READ_BUFFER_SIZE];
+        long position = 0;
+        long hash = 0;
+        int length = 0;
+        while (position < size) {
+            int n = (int) Math.min(buf.length, size - position);
+            source.read(ByteBuffer.wrap(buf, 0, n), position);
+            position += n;
+            int start = 0;
+            for (int i = 0; i < n; i++) {
+                hash = (hash << 1) + GEAR[buf[i] & 0xFF];
+                length++;
+                if ((length >= minSize && (hash & mask) == 0) || length == maxSize) {
+                    digest.update(buf, start, i + 1 - start);
+                    lengths.add(length);
+                    hashes.add(digest.digest());
+                    start = i + 1;
+                    length = 0;
+                    hash = 0;
+                }
+            }
+            digest.update(buf, start, n - start);
+        }
+        if (length > 0) {
+            lengths.add(length);
+            hashes.add(digest.digest());
+        }
+        int[] lengthArray = new int[lengths.size()];
+        for (int i = 0; i < lengthArray.length; i++) {
+            lengthArray[i] = lengths.get(i);
+        }
+        return new ContentManifest(ChunkLayout.variable(lengthArray),
+                hashes.toArray(new byte[hashes.size()][]));
+    }
+}
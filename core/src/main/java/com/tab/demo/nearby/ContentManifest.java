@@ -0,0 +1,37 @@
+package com.tab.demo.nearby;
+
+import java.io.IOException;
+
+/**
+ * Chunk boundaries of a file together with the SHA-256 of every chunk.
+ */
+class ContentManifest {
+    static final int HASH_SIZE = ChunkHashes.SIZE;
+
+    final ChunkLayout layout;
+    final byte[][] hashes;
+
+    ContentManifest(ChunkLayout layout, byte[][] hashes) {
+        this.layout = layout;
+        this.hashes = hashes;
+    }
+
+    /**
+     * Computes the manifest of a file once, for however many transfers send it.
+     */
+    static class Shared {
+        private final int maxChunkSize;
+        private ContentManifest manifest;
+
+        Shared(int maxChunkSize) {
+            this.maxChunkSize = maxChunkSize;
+        }
+
+        synchronized ContentManifest get(ChunkSource source, long size) throws IOException {
+            if (manifest == null) {
+                manifest = new ContentChunker(maxChunkSize).chunk(source, size);
+            }
+            return manifest;
+        }
+    }
+}
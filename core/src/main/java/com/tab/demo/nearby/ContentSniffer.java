@@ -0,0 +1,207 @@
+package com.tab.demo.nearby;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+/**
+ * Finds the MIME type of a received file from its first bytes rather than its name, which the
+ * sender picked and may not match the content at all. Knows the common media, document and
+ * archive formats and plain text; anything else is {@link #UNKNOWN}.
+ */
+class ContentSniffer implements ReceivePipeline.Stage {
+    static final String UNKNOWN = "application/octet-stream";
+    private static final int HEAD_SIZE = 512;
+
+    private static final String[][] EXTENSIONS = {
+            {"image/jpeg", ".jpg"}, {"image/png", ".png"}, {"image/gif", ".gif"},
+            {"image/webp", ".webp"}, {"image/heic", ".heic"}, {"image/bmp", ".bmp"},
+            {"video/mp4", ".mp4"}, {"video/quicktime", ".mov"}, {"video/3gpp", ".3gp"},
+            {"video/webm", ".webm"}, {"audio/mpeg", ".mp3"}, {"audio/ogg", ".ogg"},
+            {"audio/wav", ".wav"}, {"application/pdf", ".pdf"}, {"application/zip", ".zip"},
+            {"application/gzip", ".gz"}, {"text/plain", ".txt"}
+    };
+
+    @Override
+    public void process(ReceivePipeline.Item item) throws IOException {
+        item.mimeType = sniff(item.file);
+    }
+
+    static String sniff(File file) throws IOException {
+        byte[] head = new byte[HEAD_SIZE];
+        int length = 0;
+        try (InputStream in = new FileInputStream(file)) {
+            for (int n; length < head.length && (n = in.read(head, length, head.length - length)) > 0; ) {
+                length += n;
+            }
+        }
+        return sniff(head, length);
+    }
+
+    /**
+     * Returns the type of content starting with the first {@code length} bytes of {@code head}.
+     */
+    static String sniff(byte[] head, int length) {
+        if (startsWith(head, length, 0, 0xFF, 0xD8, 0xFF)) {
+            return "image/jpeg";
+        }
+        if (startsWith(head, length, 0, 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A)) {
+            return "image/png";
+        }
+        if (startsWith(head, length, 0, 'G', 'I', 'F', '8')) {
+            return "image/gif";
+        }
+        // The size of the header after the file header tells a bitmap from text starting with BM.
+        if (startsWith(head, length, 0, 'B', 'M') && length >= 18
+                && (head[14] == 12 || head[14] == 40 || head[14] >= 52 && head[14] <= 124)
+                && head[15] == 0 && head[16] == 0 && head[17] == 0) {
+            return "image/bmp";
+        }
+        if (startsWith(head, length, 0, 'R', 'I', 'F', 'F')) {
+            if (startsWith(head, length, 8, 'W', 'E', 'B', 'P')) {
+                return "image/webp";
+            }
+            if (startsWith(head, length, 8, 'W', 'A', 'V', 'E')) {
+                return "audio/wav";
+            }
+        }
+        if (startsWith(head, length, 4, 'f', 't', 'y', 'p') && length >= 12) {
+            String brand = new String(head, 8, 4, US_ASCII);
+            switch (brand) {
+                case "heic":
+                case "heix":
+                case "mif1":
+                case "msf1":
+                    return "image/heic";
+                case "qt  ":
+                    return "video/quicktime";
+                case "3gp4":
+                case "3gp5":
+                case "3gp6":
+                    return "video/3gpp";
+                default:
+                    return "video/mp4";
+            }
+        }
+        if (startsWith(head, length, 0, 0x1A, 0x45, 0xDF, 0xA3)) {
+            return "video/webm";
+        }
+        if (startsWith(head, length, 0, 'I', 'D', '3')
+                || (length >= 2 && (head[0] & 0xFF) == 0xFF && (head[1] & 0xE0) == 0xE0)) {
+            return "audio/mpeg";
+        }
+        if (startsWith(head, length, 0, 'O', 'g', 'g', 'S')) {
+            return "audio/ogg";
+        }
+        if (startsWith(head, length, 0, '%', 'P', 'D', 'F')) {
+            return "application/pdf";
+        }
+        if (startsWith(head, length, 0, 'P', 'K', 3, 4)) {
+            return "application/zip";
+        }
+        if (startsWith(head, length, 0, 0x1F, 0x8B)) {
+            return "application/gzip";
+        }
+        return isText(head, length) ? "text/plain" : UNKNOWN;
+    }
+
+    /**
+     * The usual extension for {@code mimeType}, with the dot, or null if there is none.
+     */
+    static String extension(String mimeType) {
+        for (String[] entry : EXTENSIONS) {
+            if (entry[0].equals(mimeType)) {
+                return entry[1];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gives {@code name} the extension of {@code mimeType} unless it already has a fitting one,
+     * so "IMG_1.JPEG" stays as it is but "photo.jpg" of a PNG becomes "photo.png".
+     */
+    static String withExtension(String name, String mimeType) {
+        String extension = extension(mimeType);
+        if (extension == null) {
+            return name;
+        }
+        int dot = name.lastIndexOf('.');
+        String current = dot > 0 ? name.substring(dot).toLowerCase(Locale.ROOT) : "";
+        if (current.equals(extension) || isAlias(current, mimeType)) {
+            return name;
+        }
+        return (dot > 0 ? name.substring(0, dot) : name) + extension;
+    }
+
+    private static boolean isAlias(String extension, String mimeType) {
+        switch (mimeType) {
+            case "image/jpeg":
+                return extension.equals(".jpeg") || extension.equals(".jpe");
+            case "image/heic":
+                return extension.equals(".heif");
+            case "video/mp4":
+                return extension.equals(".m4v") || extension.equals(".m4a");
+            case "text/plain":
+                // .csv, .json, .log and the like are text as well.
+                return !extension.isEmpty();
+            default:
+                return false;
+        }
+    }
+
+    private static boolean startsWith(byte[] head, int length, int offset, int... magic) {
+        if (length < offset + magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if ((head[offset + i] & 0xFF) != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * True for UTF-8 without control characters other than whitespace. A sequence cut off at the
+     * end of the head is fine.
+     */
+    private static boolean isText(byte[] head, int length) {
+        if (length == 0) {
+            return false;
+        }
+        for (int i = 0; i < length; ) {
+            int b = head[i] & 0xFF;
+            int continuation;
+            if (b < 0x80) {
+                if (b < 0x20 && b != '\n' && b != '\r' && b != '\t' && b != '\f' || b == 0x7F) {
+                    return false;
+                }
+                i++;
+                continue;
+            } else if (b >= 0xC2 && b <= 0xDF) {
+                continuation = 1;
+            } else if (b >= 0xE0 && b <= 0xEF) {
+                continuation = 2;
+            } else if (b >= 0xF0 && b <= 0xF4) {
+                continuation = 3;
+            } else {
+                return false;
+            }
+            for (int j = 1; j <= continuation; j++) {
+                if (i + j >= length) {
+                    return true;
+                }
+                if ((head[i + j] & 0xC0) != 0x80) {
+                    return false;
+                }
+            }
+            i += continuation + 1;
+        }
+        return true;
+    }
+}
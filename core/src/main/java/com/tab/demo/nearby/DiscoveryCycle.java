@@ -0,0 +1,212 @@
+package com.tab.demo.nearby;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs discovery in bursts instead of keeping the radio scanning, which costs battery and gets in
+ * the way of transfers. Each burst scans for {@code scanMs}; the pause after it starts at
+ * {@code minPauseMs} and doubles up to {@code maxPauseMs} while nothing new turns up. Once every
+ * wanted peer is connected, scanning stops altogether until one of them drops.
+ *
+ * <p>Without wanted peers, bursts go on until {@link #stop}, for finding new ones. A burst asked
+ * for with {@link #scanNow} runs to its end either way, since the user is looking for someone new.
+ */
+class DiscoveryCycle {
+    static final long DEFAULT_SCAN_MS = 10000;
+    static final long DEFAULT_MIN_PAUSE_MS = 20000;
+    static final long DEFAULT_MAX_PAUSE_MS = 300000;
+
+    private final PeerTransport transport;
+    private final ScheduledExecutorService timers;
+    private final long scanMs;
+    private final long minPauseMs;
+    private final long maxPauseMs;
+    private final Runnable tick = new Runnable() {
+        @Override
+        public void run() {
+            onTimer();
+        }
+    };
+    // Guarded by this.
+    private Set<String> wanted = Collections.emptySet();
+    private final Set<String> connected = new HashSet<>();
+    private boolean running;
+    private boolean scanning;
+    // The current burst was asked for and is not cut short.
+    private boolean requested;
+    private long scanStarted;
+    private long scannedMillis;
+    private long pauseMs;
+    private ScheduledFuture<?> timer;
+    private volatile Metrics metrics = new Metrics();
+
+    DiscoveryCycle(PeerTransport transport, ScheduledExecutorService timers) {
+        this(transport, timers, DEFAULT_SCAN_MS, DEFAULT_MIN_PAUSE_MS, DEFAULT_MAX_PAUSE_MS);
+    }
+
+    DiscoveryCycle(PeerTransport transport, ScheduledExecutorService timers, long scanMs, long minPauseMs,
+                   long maxPauseMs) {
+        this.transport = transport;
+        this.timers = timers;
+        this.scanMs = scanMs;
+        this.minPauseMs = minPauseMs;
+        this.maxPauseMs = maxPauseMs;
+        this.pauseMs = minPauseMs;
+    }
+
+    void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sets the ids of the peers to keep connected.
+     */
+    synchronized void setWanted(Set<String> peerIds) {
+        wanted = new HashSet<>(peerIds);
+        update();
+    }
+
+    /**
+     * Starts cycling, with a burst right away unless every wanted peer is already connected.
+     */
+    synchronized void start() {
+        running = true;
+        pauseMs = minPauseMs;
+        if (!scanning && !isSatisfied()) {
+            startScan();
+        }
+    }
+
+    /**
+     * Starts cycling with a full burst right away, for a user looking for peers.
+     */
+    synchronized void scanNow() {
+        running = true;
+        pauseMs = minPauseMs;
+        requested = true;
+        if (!scanning) {
+            startScan();
+        }
+    }
+
+    synchronized void stop() {
+        running = false;
+        requested = false;
+        cancelTimer();
+        stopScan();
+    }
+
+    /**
+     * Something turned up, so the next pauses are short again.
+     */
+    synchronized void onEndpointFound() {
+        pauseMs = minPauseMs;
+    }
+
+    synchronized void onConnected(String peerId) {
+        connected.add(peerId);
+        update();
+    }
+
+    /**
+     * A wanted peer that drops is looked for right away, it is likely still close by.
+     */
+    synchronized void onDisconnected(String peerId) {
+        connected.remove(peerId);
+        pauseMs = minPauseMs;
+        if (running && wanted.contains(peerId) && !scanning) {
+            cancelTimer();
+            startScan();
+        }
+    }
+
+    synchronized boolean isScanning() {
+        return scanning;
+    }
+
+    /**
+     * Total time spent scanning, the radio-on time of discovery.
+     */
+    synchronized long scannedMillis() {
+        return scannedMillis + (scanning ? System.currentTimeMillis() - scanStarted : 0);
+    }
+
+    private boolean isSatisfied() {
+        return !wanted.isEmpty() && connected.containsAll(wanted);
+    }
+
+    /**
+     * Stops scanning once every wanted peer is there, and starts again when one is missing.
+     */
+    private void update() {
+        if (!running) {
+            return;
+        }
+        if (isSatisfied()) {
+            if (!requested) {
+                cancelTimer();
+                stopScan();
+            }
+        } else if (!scanning && timer == null) {
+            startScan();
+        }
+    }
+
+    private void onTimer() {
+        synchronized (this) {
+            timer = null;
+            if (!running) {
+                return;
+            }
+            if (scanning) {
+                stopScan();
+                requested = false;
+                if (!isSatisfied()) {
+                    schedule(pauseMs);
+                    pauseMs = Math.min(maxPauseMs, pauseMs * 2);
+                }
+            } else if (!isSatisfied()) {
+                startScan();
+            }
+        }
+    }
+
+    private void startScan() {
+        scanning = true;
+        scanStarted = System.currentTimeMillis();
+        transport.startDiscovery();
+        schedule(scanMs);
+    }
+
+    private void stopScan() {
+        if (scanning) {
+            scanning = false;
+            long scanned = System.currentTimeMillis() - scanStarted;
+            scannedMillis += scanned;
+            metrics.discoveryMillis.addAndGet(scanned);
+            transport.stopDiscovery();
+        }
+    }
+
+    private void schedule(long delayMs) {
+        cancelTimer();
+        try {
+            timer = timers.schedule(tick, delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shutting down.
+        }
+    }
+
+    private void cancelTimer() {
+        if (timer != null) {
+            timer.cancel(false);
+            timer = null;
+        }
+    }
+}
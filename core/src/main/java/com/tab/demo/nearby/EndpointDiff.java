@@ -0,0 +1,95 @@
+package com.tab.demo.nearby;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The row level changes between two {@link EndpointRegistry.Snapshot}s, so a list only rebinds
+ * the rows that changed. Replaying them in the order of {@link #dispatch} turns a list showing
+ * {@link #before} into one showing {@link #after}.
+ */
+class EndpointDiff {
+
+    interface Callback {
+        void onRemoved(int position);
+
+        void onChanged(int position);
+
+        void onInserted(int position, int count);
+
+        /**
+         * The snapshots cannot be related row by row; everything has to be rebound.
+         */
+        void onReset();
+    }
+
+    final EndpointRegistry.Snapshot before;
+    final EndpointRegistry.Snapshot after;
+    // Positions in before, highest first so each removal leaves the rest valid.
+    private final int[] removed;
+    // Positions in after.
+    private final int[] changed;
+    private final int inserted;
+    private final boolean reset;
+
+    private EndpointDiff(EndpointRegistry.Snapshot before, EndpointRegistry.Snapshot after,
+                         int[] removed, int[] changed, int inserted, boolean reset) {
+        this.before = before;
+        this.after = after;
+        this.removed = removed;
+        this.changed = changed;
+        this.inserted = inserted;
+        this.reset = reset;
+    }
+
+    static EndpointDiff between(EndpointRegistry.Snapshot before, EndpointRegistry.Snapshot after) {
+        List<Integer> removed = new ArrayList<>();
+        List<Integer> changed = new ArrayList<>();
+        int kept = 0;
+        for (int i = 0; i < before.size(); i++) {
+            EndpointStatus previous = before.get(i);
+            EndpointStatus current = after.get(previous.id);
+            if (current == null || current.key != previous.key) {
+                removed.add(0, i);
+                continue;
+            }
+            if (kept >= after.size() || after.get(kept).key != previous.key) {
+                // Survivors moved, which the registry never does; rebind everything.
+                return new EndpointDiff(before, after, new int[0], new int[0], 0, true);
+            }
+            if (current != previous) {
+                changed.add(kept);
+            }
+            kept++;
+        }
+        return new EndpointDiff(before, after, toArray(removed), toArray(changed), after.size() - kept, false);
+    }
+
+    boolean isEmpty() {
+        return !reset && removed.length == 0 && changed.length == 0 && inserted == 0;
+    }
+
+    void dispatch(Callback callback) {
+        if (reset) {
+            callback.onReset();
+            return;
+        }
+        for (int position : removed) {
+            callback.onRemoved(position);
+        }
+        for (int position : changed) {
+            callback.onChanged(position);
+        }
+        if (inserted > 0) {
+            callback.onInserted(after.size() - inserted, inserted);
+        }
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+}
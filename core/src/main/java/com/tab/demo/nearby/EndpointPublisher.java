@@ -0,0 +1,89 @@
+package com.tab.demo.nearby;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Hands changes of an {@link EndpointRegistry} to observers as {@link EndpointDiff}s, coalesced
+ * so that any number of changes within {@code intervalMillis} cost a single diff. A list showing
+ * the endpoints then rebinds at most once per interval however busy discovery gets.
+ *
+ * <p>Changes may be reported from any thread. Diffs are delivered, and observers added and
+ * removed, on the thread the {@link Poster} runs tasks on.
+ */
+class EndpointPublisher {
+
+    /**
+     * Runs tasks later on the delivering thread, for example through an Android Handler.
+     */
+    interface Poster {
+        void postDelayed(Runnable task, long delayMillis);
+    }
+
+    interface Observer {
+        void onEndpointsChanged(EndpointDiff diff);
+    }
+
+    private final EndpointRegistry registry;
+    private final Poster poster;
+    private final long intervalMillis;
+    private final AtomicBoolean pending = new AtomicBoolean();
+    private volatile boolean stopped;
+    // Only touched on the delivering thread.
+    private final List<Observer> observers = new ArrayList<>();
+    private EndpointRegistry.Snapshot published = EndpointRegistry.EMPTY;
+
+    EndpointPublisher(EndpointRegistry registry, Poster poster, long intervalMillis) {
+        this.registry = registry;
+        this.poster = poster;
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * Registers {@code observer} and brings it up to date right away.
+     */
+    void addObserver(Observer observer) {
+        observers.add(observer);
+        observer.onEndpointsChanged(EndpointDiff.between(EndpointRegistry.EMPTY, published));
+    }
+
+    void removeObserver(Observer observer) {
+        observers.remove(observer);
+    }
+
+    /**
+     * Schedules delivery of the changes made to the registry so far, unless a delivery is already
+     * scheduled.
+     */
+    void onChanged() {
+        if (!stopped && pending.compareAndSet(false, true)) {
+            poster.postDelayed(publish, intervalMillis);
+        }
+    }
+
+    /**
+     * Drops the delivery still scheduled, if any, and all that would follow.
+     */
+    void stop() {
+        stopped = true;
+    }
+
+    private final Runnable publish = new Runnable() {
+        @Override
+        public void run() {
+            pending.set(false);
+            if (stopped) {
+                return;
+            }
+            EndpointDiff diff = EndpointDiff.between(published, registry.snapshot());
+            published = diff.after;
+            if (diff.isEmpty()) {
+                return;
+            }
+            for (Observer observer : new ArrayList<>(observers)) {
+                observer.onEndpointsChanged(diff);
+            }
+        }
+    };
+}
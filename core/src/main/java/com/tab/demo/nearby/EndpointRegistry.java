@@ -0,0 +1,133 @@
+package com.tab.demo.nearby;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The known endpoints, shared between Nearby callbacks and the UI. Every change swaps in a new
+ * immutable {@link Snapshot} with compare-and-set, so readers never lock and never see a
+ * half-applied change, and a state transition either happens completely or not at all.
+ */
+class EndpointRegistry {
+
+    /**
+     * The endpoints at one point in time. New endpoints are appended and removed ones leave the
+     * others in place, so the order only ever changes at the end; {@link EndpointDiff} relies
+     * on that.
+     */
+    static class Snapshot {
+        final long version;
+        private final List<EndpointStatus> list;
+        private final Map<String, EndpointStatus> byId;
+
+        private Snapshot(long version, List<EndpointStatus> list, Map<String, EndpointStatus> byId) {
+            this.version = version;
+            this.list = list;
+            this.byId = byId;
+        }
+
+        int size() {
+            return list.size();
+        }
+
+        EndpointStatus get(int position) {
+            return list.get(position);
+        }
+
+        EndpointStatus get(String endpointId) {
+            return byId.get(endpointId);
+        }
+
+        List<EndpointStatus> asList() {
+            return list;
+        }
+    }
+
+    static final Snapshot EMPTY = new Snapshot(0, Collections.<EndpointStatus>emptyList(),
+            Collections.<String, EndpointStatus>emptyMap());
+
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<>(EMPTY);
+
+    Snapshot snapshot() {
+        return snapshot.get();
+    }
+
+    EndpointStatus get(String endpointId) {
+        return snapshot.get().get(endpointId);
+    }
+
+    /**
+     * Moves the endpoint to {@code state}, adding it if it is unknown. A null {@code name} keeps
+     * the known one.
+     *
+     * @return the new status, or null if the current state cannot move to {@code state}
+     */
+    EndpointStatus update(String endpointId, String name, EndpointState state) {
+        return apply(endpointId, name, state, true);
+    }
+
+    /**
+     * Moves a known endpoint to {@code state}.
+     *
+     * @return the new status, or null if the endpoint is unknown or cannot move to {@code state}
+     */
+    EndpointStatus moveTo(String endpointId, EndpointState state) {
+        return apply(endpointId, null, state, false);
+    }
+
+    /**
+     * Forgets an endpoint that discovery lost, unless it is connected or connecting.
+     *
+     * @return the removed status, or null if nothing was removed
+     */
+    EndpointStatus remove(String endpointId) {
+        while (true) {
+            Snapshot current = snapshot.get();
+            EndpointStatus status = current.get(endpointId);
+            if (status == null || status.state.isConnected()) {
+                return null;
+            }
+            List<EndpointStatus> list = new ArrayList<>(current.list);
+            list.remove(status);
+            Map<String, EndpointStatus> byId = new HashMap<>(current.byId);
+            byId.remove(endpointId);
+            if (snapshot.compareAndSet(current, freeze(current.version + 1, list, byId))) {
+                return status;
+            }
+        }
+    }
+
+    private EndpointStatus apply(String endpointId, String name, EndpointState state, boolean add) {
+        while (true) {
+            Snapshot current = snapshot.get();
+            EndpointStatus previous = current.get(endpointId);
+            if (previous == null ? !add : !previous.state.canMoveTo(state)) {
+                return null;
+            }
+            if (name == null && previous != null) {
+                name = previous.name;
+            }
+            long key = previous == null ? current.version + 1 : previous.key;
+            EndpointStatus status = new EndpointStatus(endpointId, key, name, state);
+            List<EndpointStatus> list = new ArrayList<>(current.list);
+            if (previous == null) {
+                list.add(status);
+            } else {
+                list.set(list.indexOf(previous), status);
+            }
+            Map<String, EndpointStatus> byId = new HashMap<>(current.byId);
+            byId.put(endpointId, status);
+            if (snapshot.compareAndSet(current, freeze(current.version + 1, list, byId))) {
+                return status;
+            }
+        }
+    }
+
+    private static Snapshot freeze(long version, List<EndpointStatus> list, Map<String, EndpointStatus> byId) {
+        return new Snapshot(version, Collections.unmodifiableList(list), Collections.unmodifiableMap(byId));
+    }
+}
@@ -0,0 +1,39 @@
+package com.tab.demo.nearby;
+
+/**
+ * Where an endpoint is in its connection lifecycle, and which moves between states are allowed.
+ */
+enum EndpointState {
+    FOUND("found"),
+    CONNECTING("ConnectionInitiated"),
+    CONNECTED("Connected"),
+    FAILED("connection failed"),
+    DISCONNECTED("Disconnected");
+
+    final String label;
+
+    EndpointState(String label) {
+        this.label = label;
+    }
+
+    /**
+     * True if a connection exists or is being set up, so losing the endpoint from discovery
+     * must not forget it.
+     */
+    boolean isConnected() {
+        return this == CONNECTING || this == CONNECTED;
+    }
+
+    boolean canMoveTo(EndpointState next) {
+        switch (this) {
+            case FOUND:
+                return next == FOUND || next == CONNECTING;
+            case CONNECTING:
+                return next == CONNECTED || next == FAILED || next == DISCONNECTED;
+            case CONNECTED:
+                return next == DISCONNECTED;
+            default:
+                return next == FOUND || next == CONNECTING;
+        }
+    }
+}
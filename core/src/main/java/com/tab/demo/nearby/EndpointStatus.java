@@ -0,0 +1,36 @@
+package com.tab.demo.nearby;
+
+/**
+ * Immutable view of one endpoint. A change of state produces a new instance with the same
+ * {@link #key}.
+ */
+class EndpointStatus {
+    final String id;
+    // Unique for as long as the endpoint stays in the registry; a stable item id for lists.
+    final long key;
+    final String name;
+    final EndpointState state;
+
+    EndpointStatus(String id, long key, String name, EndpointState state) {
+        this.id = id;
+        this.key = key;
+        this.name = name;
+        this.state = state;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public EndpointState getState() {
+        return state;
+    }
+
+    public String getStatus() {
+        return state.label;
+    }
+}
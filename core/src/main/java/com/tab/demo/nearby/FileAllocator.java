@@ -0,0 +1,23 @@
+package com.tab.demo.nearby;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Reserves storage for an incoming file before the first chunk is written, so a transfer fails
+ * at the offer instead of running the disk full halfway through.
+ */
+interface FileAllocator {
+
+    /**
+     * Extends the file to its length. Portable, but leaves a sparse file on most file systems.
+     */
+    FileAllocator SET_LENGTH = new FileAllocator() {
+        @Override
+        public void allocate(RandomAccessFile file, long size) throws IOException {
+            file.setLength(size);
+        }
+    };
+
+    void allocate(RandomAccessFile file, long size) throws IOException;
+}
@@ -0,0 +1,57 @@
+package com.tab.demo.nearby;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+class FileChunkSink implements ChunkSink {
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+
+    /**
+     * Opens {@code file}, extending it to {@code size} with {@code allocator} if it does not
+     * have that length yet.
+     */
+    FileChunkSink(File file, long size, FileAllocator allocator) throws IOException {
+        this.file = file;
+        this.raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() != size) {
+                allocator.allocate(raf, size);
+            }
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+        this.channel = raf.getChannel();
+    }
+
+    @Override
+    public void write(ByteBuffer src, long position) throws IOException {
+        while (src.hasRemaining()) {
+            position += channel.write(src, position);
+        }
+    }
+
+    @Override
+    public void force() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        raf.close();
+    }
+
+    @Override
+    public void discard() {
+        try {
+            raf.close();
+        } catch (IOException ignored) {
+        }
+        file.delete();
+    }
+}
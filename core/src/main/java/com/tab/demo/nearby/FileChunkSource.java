@@ -0,0 +1,29 @@
+package com.tab.demo.nearby;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+class FileChunkSource implements ChunkSource {
+    private final FileChannel channel;
+
+    FileChunkSource(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public void read(ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            int n = channel.read(dst, position);
+            if (n < 0) {
+                throw new IOException("Unexpected end of file at " + position);
+            }
+            position += n;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
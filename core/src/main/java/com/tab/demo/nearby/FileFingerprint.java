@@ -0,0 +1,41 @@
+package com.tab.demo.nearby;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Cheap identity of a file's content: SHA-256 over its size and three sampled blocks. Good enough
+ * to tell whether a journal on the receiver belongs to the file being re-offered, without reading
+ * gigabytes before the first chunk can go out.
+ */
+class FileFingerprint {
+    static final int SIZE = 32;
+    private static final int SAMPLE_SIZE = 64 * 1024;
+
+    private FileFingerprint() {
+    }
+
+    static byte[] compute(ChunkSource source, long size) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(SAMPLE_SIZE);
+        buf.putLong(size).flip();
+        digest.update(buf);
+        long[] offsets = {0, size / 2 - SAMPLE_SIZE / 2, size - SAMPLE_SIZE};
+        for (long offset : offsets) {
+            offset = Math.max(0, offset);
+            buf.clear();
+            buf.limit((int) Math.min(SAMPLE_SIZE, size - offset));
+            source.read(buf, offset);
+            buf.flip();
+            digest.update(buf);
+        }
+        return digest.digest();
+    }
+}
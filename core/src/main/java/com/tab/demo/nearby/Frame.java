@@ -0,0 +1,437 @@
+package com.tab.demo.nearby;
+
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Wire format of the transfer engine. Every frame starts with {@link #MAGIC}, a type byte and the
+ * 64-bit transfer id. {@code 0xFE} never occurs in UTF-8, so frames can share the BYTES payload
+ * channel with plain text messages.
+ *
+ * <p>Every chunk carries the SHA-256 of its uncompressed data. Once all chunks are acknowledged,
+ * the sender sends the root hash over all chunk hashes (see {@link ChunkHashes}); the receiver
+ * answers with {@link #TYPE_VERIFIED}, or with {@link #TYPE_NACK} for chunks that have to be
+ * sent again.
+ *
+ * <p>A stream is offered with {@link #UNKNOWN_SIZE}. Its chunks are all full but the last, and
+ * the root carries the final size. A receiver whose reader is behind answers a chunk with
+ * {@link #TYPE_HOLD} instead of an ack: the chunk arrived, and its ack follows once the reader
+ * catches up.
+ *
+ * <p>An offer may end with the id of a flow and the hops it may still travel, for files passed on
+ * by a {@link MeshRelay}. Receivers that do not relay ignore them.
+ *
+ * <p>{@link #TYPE_MESSAGES} carries a batch of small typed messages, laid out by
+ * {@link MessageChannel}.
+ */
+class Frame {
+    static final byte MAGIC = (byte) 0xFE;
+
+    static final byte TYPE_OFFER = 1;
+    static final byte TYPE_ACCEPT = 2;
+    static final byte TYPE_CHUNK = 3;
+    static final byte TYPE_ACK = 4;
+    static final byte TYPE_CANCEL = 5;
+    static final byte TYPE_MESSAGE = 6;
+    static final byte TYPE_MANIFEST = 7;
+    static final byte TYPE_BATCH = 8;
+    static final byte TYPE_ROOT = 9;
+    static final byte TYPE_NACK = 10;
+    static final byte TYPE_VERIFIED = 11;
+    static final byte TYPE_MESSAGES = 12;
+    static final byte TYPE_HOLD = 13;
+
+    static final byte FLAG_DEFLATE = 1;
+
+    // Offered size of a stream, whose length is only known at the end.
+    static final long UNKNOWN_SIZE = -1;
+
+    static final int HEADER_SIZE = 1 + 1 + 8;
+    static final int CHUNK_HEADER_SIZE = HEADER_SIZE + 4 + 1 + ChunkHashes.SIZE;
+    static final int MESSAGE_HEADER_SIZE = HEADER_SIZE + 1;
+    private static final int MANIFEST_ENTRY_SIZE = 4 + ContentManifest.HASH_SIZE;
+    private static final int BATCH_HEADER_SIZE = HEADER_SIZE + 8 + 4 + 4 + 4 + 4;
+    private static final int FLOW_SIZE = 8 + 1;
+    static final int MAX_TTL = 0xFF;
+
+    byte type;
+    long transferId;
+    int index;
+    byte flags;
+    long size;
+    int chunkSize;
+    String name;
+    byte[] fingerprint;
+    BitSet chunks;
+    byte[] hash;
+    ByteBuffer data;
+    int chunkCount;
+    int[] lengths;
+    byte[][] hashes;
+    int fileCount;
+    String[] paths;
+    long[] sizes;
+    // Only set on offers of relayed files, 0 otherwise.
+    long flowId;
+    int ttl;
+
+    static boolean isFrame(byte[] bytes) {
+        return bytes.length >= HEADER_SIZE && bytes[0] == MAGIC;
+    }
+
+    static ByteBuffer offer(long transferId, long size, int chunkSize, byte[] fingerprint,
+                            String name) {
+        return offer(transferId, size, chunkSize, fingerprint, name, 0, 0);
+    }
+
+    /**
+     * An offer of a file that belongs to flow {@code flowId} and may be passed on {@code ttl}
+     * more times; a {@code flowId} of 0 is a plain offer.
+     */
+    static ByteBuffer offer(long transferId, long size, int chunkSize, byte[] fingerprint,
+                            String name, long flowId, int ttl) {
+        if (ttl < 0 || ttl > MAX_TTL) {
+            throw new IllegalArgumentException("Bad ttl " + ttl);
+        }
+        byte[] nameBytes = name.getBytes(UTF_8);
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + 8 + 4 + FileFingerprint.SIZE + 2
+                + nameBytes.length + (flowId != 0 ? FLOW_SIZE : 0));
+        putHeader(buf, TYPE_OFFER, transferId);
+        buf.putLong(size);
+        buf.putInt(chunkSize);
+        buf.put(fingerprint);
+        buf.putShort((short) nameBytes.length);
+        buf.put(nameBytes);
+        if (flowId != 0) {
+            buf.putLong(flowId);
+            buf.put((byte) ttl);
+        }
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * One page of a content manifest, used instead of an offer: {@code first} is the first chunk
+     * described, followed by the length and hash of up to {@link #manifestPageEntries} chunks.
+     * The receiver answers the last page with an accept listing the chunks it already has.
+     */
+    static ByteBuffer manifest(long transferId, ContentManifest manifest, int first, String name,
+                               int maxFrameSize) {
+        byte[] nameBytes = name.getBytes(UTF_8);
+        int entries = Math.min(manifestPageEntries(name, maxFrameSize), manifest.layout.count() - first);
+        ByteBuffer buf = ByteBuffer.allocate(
+                HEADER_SIZE + 8 + 4 + 4 + 4 + 2 + nameBytes.length + entries * MANIFEST_ENTRY_SIZE);
+        putHeader(buf, TYPE_MANIFEST, transferId);
+        buf.putLong(manifest.layout.size);
+        buf.putInt(manifest.layout.count());
+        buf.putInt(first);
+        buf.putInt(entries);
+        buf.putShort((short) nameBytes.length);
+        buf.put(nameBytes);
+        for (int i = first; i < first + entries; i++) {
+            buf.putInt(manifest.layout.length(i));
+            buf.put(manifest.hashes[i]);
+        }
+        buf.flip();
+        return buf;
+    }
+
+    static int manifestPageEntries(String name, int maxFrameSize) {
+        int fixed = HEADER_SIZE + 8 + 4 + 4 + 4 + 2 + name.getBytes(UTF_8).length;
+        int entries = (maxFrameSize - fixed) / MANIFEST_ENTRY_SIZE;
+        if (entries <= 0) {
+            throw new IllegalArgumentException("Name too long for a manifest frame: " + name);
+        }
+        return entries;
+    }
+
+    /**
+     * One page of the file table of a batch, used instead of an offer: {@code first} is the
+     * first file described, followed by the size and path of the files up to {@code end}. The
+     * file contents follow as chunks of {@code chunkSize} over all files back to back.
+     */
+    static ByteBuffer batch(long transferId, long size, int chunkSize, List<BatchFile> files,
+                            int first, int end) {
+        int length = BATCH_HEADER_SIZE;
+        for (int i = first; i < end; i++) {
+            length += batchEntrySize(files.get(i));
+        }
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        putHeader(buf, TYPE_BATCH, transferId);
+        buf.putLong(size);
+        buf.putInt(chunkSize);
+        buf.putInt(files.size());
+        buf.putInt(first);
+        buf.putInt(end - first);
+        for (int i = first; i < end; i++) {
+            byte[] pathBytes = files.get(i).path.getBytes(UTF_8);
+            buf.putLong(files.get(i).size);
+            buf.putShort((short) pathBytes.length);
+            buf.put(pathBytes);
+        }
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Returns where the batch page starting at {@code first} has to end to fit into
+     * {@code maxFrameSize}.
+     */
+    static int batchPageEnd(List<BatchFile> files, int first, int maxFrameSize) {
+        int length = BATCH_HEADER_SIZE;
+        int end = first;
+        while (end < files.size() && length + batchEntrySize(files.get(end)) <= maxFrameSize) {
+            length += batchEntrySize(files.get(end));
+            end++;
+        }
+        if (end == first && first < files.size()) {
+            throw new IllegalArgumentException("Path too long for a batch frame: " + files.get(first).path);
+        }
+        return end;
+    }
+
+    private static int batchEntrySize(BatchFile file) {
+        return 8 + 2 + file.path.getBytes(UTF_8).length;
+    }
+
+    /**
+     * Accepts an offer and tells the sender which chunks are already on disk, as a list of
+     * {@code (first, count)} ranges. Ranges that do not fit into {@code maxFrameSize} are left
+     * out; the sender then simply sends those chunks again.
+     */
+    static ByteBuffer accept(long transferId, BitSet committed, int maxFrameSize) {
+        ByteBuffer buf = ByteBuffer.allocate(maxFrameSize);
+        putHeader(buf, TYPE_ACCEPT, transferId);
+        putRanges(buf, committed, 0);
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Asks for {@code chunks} to be sent again, in as many frames as it takes.
+     */
+    static List<ByteBuffer> nack(long transferId, BitSet chunks, int maxFrameSize) {
+        List<ByteBuffer> frames = new ArrayList<>();
+        int from = 0;
+        do {
+            ByteBuffer buf = ByteBuffer.allocate(maxFrameSize);
+            putHeader(buf, TYPE_NACK, transferId);
+            from = putRanges(buf, chunks, from);
+            buf.flip();
+            frames.add(buf);
+        } while (from >= 0);
+        return frames;
+    }
+
+    /**
+     * Writes the ranges of {@code chunks} from {@code from} on, as many as fit.
+     *
+     * @return where the ranges left out start, or -1 if all fit
+     */
+    private static int putRanges(ByteBuffer buf, BitSet chunks, int from) {
+        int countPosition = buf.position();
+        buf.putInt(0);
+        int ranges = 0;
+        int first = chunks.nextSetBit(from);
+        while (first >= 0 && buf.remaining() >= 8) {
+            int end = chunks.nextClearBit(first);
+            buf.putInt(first);
+            buf.putInt(end - first);
+            ranges++;
+            first = chunks.nextSetBit(end);
+        }
+        buf.putInt(countPosition, ranges);
+        return first;
+    }
+
+    static ByteBuffer root(long transferId, long size, byte[] root) {
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + 8 + ChunkHashes.SIZE);
+        putHeader(buf, TYPE_ROOT, transferId);
+        buf.putLong(size);
+        buf.put(root);
+        buf.flip();
+        return buf;
+    }
+
+    static ByteBuffer verified(long transferId) {
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE);
+        putHeader(buf, TYPE_VERIFIED, transferId);
+        buf.flip();
+        return buf;
+    }
+
+    static ByteBuffer ack(long transferId, int index) {
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + 4);
+        putHeader(buf, TYPE_ACK, transferId);
+        buf.putInt(index);
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Chunk {@code index} arrived and verified, but is held: its ack is sent once the reader of
+     * the stream catches up.
+     */
+    static ByteBuffer hold(long transferId, int index) {
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + 4);
+        putHeader(buf, TYPE_HOLD, transferId);
+        buf.putInt(index);
+        buf.flip();
+        return buf;
+    }
+
+    static ByteBuffer cancel(long transferId) {
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE);
+        putHeader(buf, TYPE_CANCEL, transferId);
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Writes a chunk header; the caller appends the chunk data directly behind it.
+     */
+    static void putChunkHeader(ByteBuffer buf, long transferId, int index, byte flags, byte[] hash) {
+        putHeader(buf, TYPE_CHUNK, transferId);
+        buf.putInt(index);
+        buf.put(flags);
+        buf.put(hash);
+    }
+
+    /**
+     * Writes a message header; the caller appends the message bytes directly behind it.
+     */
+    static void putMessageHeader(ByteBuffer buf, byte flags) {
+        putHeader(buf, TYPE_MESSAGE, 0);
+        buf.put(flags);
+    }
+
+    /**
+     * Writes the header of a message batch; the caller appends the records directly behind it.
+     */
+    static void putMessagesHeader(ByteBuffer buf) {
+        putHeader(buf, TYPE_MESSAGES, 0);
+    }
+
+    private static void putHeader(ByteBuffer buf, byte type, long transferId) {
+        buf.put(MAGIC);
+        buf.put(type);
+        buf.putLong(transferId);
+    }
+
+    /**
+     * Parses a frame. Chunk data is returned as a slice of {@code buf}, not a copy.
+     */
+    static Frame decode(ByteBuffer buf) throws ProtocolException {
+        if (buf.remaining() < HEADER_SIZE || buf.get() != MAGIC) {
+            throw new ProtocolException("Not a transfer frame");
+        }
+        Frame frame = new Frame();
+        frame.type = buf.get();
+        frame.transferId = buf.getLong();
+        try {
+            switch (frame.type) {
+                case TYPE_OFFER:
+                    frame.size = buf.getLong();
+                    frame.chunkSize = buf.getInt();
+                    frame.fingerprint = new byte[FileFingerprint.SIZE];
+                    buf.get(frame.fingerprint);
+                    byte[] nameBytes = new byte[buf.getShort() & 0xFFFF];
+                    buf.get(nameBytes);
+                    frame.name = new String(nameBytes, UTF_8);
+                    if (buf.remaining() >= FLOW_SIZE) {
+                        frame.flowId = buf.getLong();
+                        frame.ttl = buf.get() & 0xFF;
+                    }
+                    break;
+                case TYPE_MANIFEST:
+                    frame.size = buf.getLong();
+                    frame.chunkCount = buf.getInt();
+                    frame.index = buf.getInt();
+                    int entries = buf.getInt();
+                    if (frame.chunkCount < 0 || frame.index < 0 || entries < 0
+                            || entries > buf.remaining() / MANIFEST_ENTRY_SIZE
+                            || frame.index > frame.chunkCount - entries) {
+                        throw new ProtocolException("Bad manifest page " + frame.index + "+" + entries);
+                    }
+                    byte[] manifestName = new byte[buf.getShort() & 0xFFFF];
+                    buf.get(manifestName);
+                    frame.name = new String(manifestName, UTF_8);
+                    frame.lengths = new int[entries];
+                    frame.hashes = new byte[entries][ContentManifest.HASH_SIZE];
+                    for (int i = 0; i < entries; i++) {
+                        frame.lengths[i] = buf.getInt();
+                        buf.get(frame.hashes[i]);
+                    }
+                    break;
+                case TYPE_BATCH:
+                    frame.size = buf.getLong();
+                    frame.chunkSize = buf.getInt();
+                    frame.fileCount = buf.getInt();
+                    frame.index = buf.getInt();
+                    int files = buf.getInt();
+                    if (frame.chunkSize <= 0 || frame.fileCount < 0 || frame.index < 0 || files < 0
+                            || files > buf.remaining() / 10 || frame.index > frame.fileCount - files) {
+                        throw new ProtocolException("Bad batch page " + frame.index + "+" + files);
+                    }
+                    frame.paths = new String[files];
+                    frame.sizes = new long[files];
+                    for (int i = 0; i < files; i++) {
+                        frame.sizes[i] = buf.getLong();
+                        byte[] pathBytes = new byte[buf.getShort() & 0xFFFF];
+                        buf.get(pathBytes);
+                        frame.paths[i] = new String(pathBytes, UTF_8);
+                    }
+                    break;
+                case TYPE_CHUNK:
+                    frame.index = buf.getInt();
+                    frame.flags = buf.get();
+                    frame.hash = new byte[ChunkHashes.SIZE];
+                    buf.get(frame.hash);
+                    frame.data = buf.slice();
+                    break;
+                case TYPE_ROOT:
+                    frame.size = buf.getLong();
+                    frame.hash = new byte[ChunkHashes.SIZE];
+                    buf.get(frame.hash);
+                    break;
+                case TYPE_MESSAGE:
+                    frame.flags = buf.get();
+                    frame.data = buf.slice();
+                    break;
+                case TYPE_MESSAGES:
+                    frame.data = buf.slice();
+                    break;
+                case TYPE_ACK:
+                case TYPE_HOLD:
+                    frame.index = buf.getInt();
+                    break;
+                case TYPE_ACCEPT:
+                case TYPE_NACK:
+                    frame.chunks = new BitSet();
+                    for (int ranges = buf.getInt(); ranges > 0; ranges--) {
+                        int first = buf.getInt();
+                        int count = buf.getInt();
+                        if (first < 0 || count < 0 || first + count < 0) {
+                            throw new ProtocolException("Bad chunk range " + first + "+" + count);
+                        }
+                        frame.chunks.set(first, first + count);
+                    }
+                    break;
+                case TYPE_CANCEL:
+                case TYPE_VERIFIED:
+                    break;
+                default:
+                    throw new ProtocolException("Unknown frame type " + frame.type);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("Truncated frame of type " + frame.type);
+        }
+        return frame;
+    }
+}
@@ -0,0 +1,131 @@
+package com.tab.demo.nearby;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Reads an incoming file while it is still arriving. Only the verified data at the start of the
+ * file, up to the first missing chunk, can be read; reads past it block until more arrives. The
+ * stream ends once the whole file is verified and fails if the transfer does.
+ *
+ * <p>While the stream is open the receiver only acknowledges chunks up to a limit ahead of the
+ * reader, which holds the sender to the pace of the reader. A reader that stops for longer than
+ * the sender's stall timeout fails the transfer, so close the stream when done with it.
+ */
+class IncomingStream extends InputStream {
+    private final File file;
+    // Tells the engine the reader moved on, so held back acknowledgements can go out.
+    private final Runnable onConsumed;
+    private volatile long position;
+    private volatile boolean closed;
+    // Only touched by the reader.
+    private RandomAccessFile in;
+    // Guarded by this.
+    private long readable;
+    private boolean finished;
+    private IOException failure;
+
+    IncomingStream(File file, Runnable onConsumed) {
+        this.file = file;
+        this.onConsumed = onConsumed;
+    }
+
+    /**
+     * How far the reader has got.
+     */
+    long position() {
+        return position;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    synchronized void onReadable(long bytes) {
+        if (bytes > readable) {
+            readable = bytes;
+            notifyAll();
+        }
+    }
+
+    synchronized void onFinished(long size) {
+        readable = size;
+        finished = true;
+        notifyAll();
+    }
+
+    synchronized void onFailed(IOException e) {
+        if (!finished && failure == null) {
+            failure = e;
+            notifyAll();
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        long available;
+        synchronized (this) {
+            try {
+                while (!closed && failure == null && !finished && position >= readable) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for " + file);
+            }
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (failure != null) {
+                throw new IOException("Receiving " + file + " failed", failure);
+            }
+            available = readable - position;
+        }
+        if (available <= 0) {
+            return -1;
+        }
+        if (in == null) {
+            in = new RandomAccessFile(file, "r");
+        }
+        in.seek(position);
+        int n = in.read(b, off, (int) Math.min(len, available));
+        if (n < 0) {
+            throw new IOException("Unexpected end of " + file + " at " + position);
+        }
+        position += n;
+        onConsumed.run();
+        return n;
+    }
+
+    @Override
+    public synchronized int available() {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(0, readable - position));
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        onConsumed.run();
+        if (in != null) {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,419 @@
+package com.tab.demo.nearby;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.FileInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Receiver side state of one file transfer. Chunks may arrive in any order and are written at
+ * their offset with positional writes. Progress is checkpointed into a {@link TransferJournal}
+ * in batches: the data is forced to disk first, so the journal never claims a chunk that a crash
+ * could still lose.
+ *
+ * <p>A chunk goes through {@link #begin}, {@link #write} and {@link #commit}. Only the write may
+ * happen on another thread, so chunks can be verified and written in parallel while everything
+ * else stays on the receive thread. The file is only complete once {@link #verifyRoot} agrees
+ * with the root hash of the sender.
+ *
+ * <p>Transfers described by a {@link ContentManifest} have no journal: their chunks also go into
+ * the {@link ChunkStore}, so a suspended one is simply dropped and rebuilt from the store when the
+ * manifest is offered again. Batches have no journal either; a suspended batch keeps its files
+ * and is only resumable while the process lives, see {@link #IncomingTransfer(IncomingTransfer, String)}.
+ *
+ * <p>A stream is offered without a size. Its layout grows with the chunks that arrive until the
+ * root brings the final size to {@link #close}. It has no journal and is dropped when suspended.
+ */
+class IncomingTransfer {
+    private static final int JOURNAL_BATCH_CHUNKS = 64;
+    private static final long JOURNAL_INTERVAL_MS = 1000;
+
+    final String endpointId;
+    final long id;
+    // Frame.UNKNOWN_SIZE for a stream.
+    final long size;
+    // Grows while a stream is open; written on the receive thread only.
+    volatile ChunkLayout layout;
+    final ContentManifest manifest;
+    final BatchChunkSink batch;
+    final File file;
+    // Set by the engine once the transfer is accepted.
+    TransferStats stats;
+    // The reader of a transfer consumed while it arrives, if any.
+    IncomingStream stream;
+    // The flow of a relayed file, see MeshRelay; 0 otherwise.
+    long flowId;
+
+    private final TransferJournal journal;
+    private final BitSet received;
+    private final ChunkSink sink;
+    // Chunks being verified and written, not yet committed.
+    private final BitSet pending = new BitSet();
+    // Hash of every committed chunk; null for chunks recovered from the journal, whose data has
+    // not been hashed in this process yet.
+    private byte[][] hashes;
+    // Root hash announced by the sender, and whether it is being checked right now.
+    byte[] expectedRoot;
+    boolean verifying;
+    private int receivedCount;
+    private long bytesReceived;
+    private int unjournaled;
+    private long lastJournalWrite = System.currentTimeMillis();
+    // Whether the end of a stream is still unknown, and the index of its short last chunk if seen.
+    private boolean open;
+    private int lastIndex = -1;
+    // Acknowledgements held back until the reader of the stream catches up.
+    private final BitSet deferredAcks = new BitSet();
+    private volatile boolean acksDeferred;
+
+    /**
+     * Opens the target of {@code journal}, resuming from the chunks it already records. A file
+     * that does not have its final length yet is extended with {@code allocator}.
+     */
+    IncomingTransfer(String endpointId, TransferJournal journal, FileAllocator allocator)
+            throws IOException {
+        this(endpointId, journal.transferId, journal.size,
+                ChunkLayout.fixed(journal.size, journal.chunkSize), null, null, journal, journal.target,
+                journal.committed, new FileChunkSink(journal.target, journal.size, allocator));
+    }
+
+    /**
+     * Starts receiving the file described by {@code manifest} into {@code file}.
+     */
+    IncomingTransfer(String endpointId, long id, ContentManifest manifest, File file,
+                     FileAllocator allocator) throws IOException {
+        this(endpointId, id, manifest.layout.size, manifest.layout, manifest, null, null, file,
+                new BitSet(), new FileChunkSink(file, manifest.layout.size, allocator));
+    }
+
+    /**
+     * Starts receiving a batch of files, cut into chunks of {@code chunkSize} across file
+     * boundaries. {@code root} is only reported, the files themselves come with {@code batch}.
+     */
+    IncomingTransfer(String endpointId, long id, long size, int chunkSize, BatchChunkSink batch, File root) {
+        this(endpointId, id, size, ChunkLayout.fixed(size, chunkSize), null, batch, null, root,
+                new BitSet(), batch);
+    }
+
+    /**
+     * Starts receiving a stream of unknown size into {@code file}, cut into chunks of
+     * {@code chunkSize}.
+     */
+    IncomingTransfer(String endpointId, long id, int chunkSize, File file, FileAllocator allocator)
+            throws IOException {
+        this(endpointId, id, Frame.UNKNOWN_SIZE, ChunkLayout.fixed(0, chunkSize), null, null, null,
+                file, new BitSet(), new FileChunkSink(file, 0, allocator));
+        this.open = true;
+    }
+
+    /**
+     * Continues a suspended batch on the connection to {@code endpointId}.
+     */
+    IncomingTransfer(IncomingTransfer previous, String endpointId) {
+        this(endpointId, previous.id, previous.size, previous.layout, previous.manifest,
+                previous.batch, previous.journal, previous.file, previous.received, previous.sink);
+        System.arraycopy(previous.hashes, 0, hashes, 0, hashes.length);
+    }
+
+    private IncomingTransfer(String endpointId, long id, long size, ChunkLayout layout,
+                             ContentManifest manifest, BatchChunkSink batch, TransferJournal journal,
+                             File file, BitSet received, ChunkSink sink) {
+        this.endpointId = endpointId;
+        this.id = id;
+        this.size = size;
+        this.layout = layout;
+        this.manifest = manifest;
+        this.batch = batch;
+        this.journal = journal;
+        this.file = file;
+        this.received = received;
+        for (int i = received.nextSetBit(0); i >= 0; i = received.nextSetBit(i + 1)) {
+            receivedCount++;
+            bytesReceived += layout.length(i);
+        }
+        this.sink = sink;
+        this.hashes = new byte[layout.count()][];
+    }
+
+    BitSet committedChunks() {
+        return received;
+    }
+
+    boolean isReceived(int index) {
+        return received.get(index);
+    }
+
+    /**
+     * Claims chunk {@code index} for writing. Returns false if it is already received or on its
+     * way.
+     */
+    boolean begin(int index, int length) throws IOException {
+        if (index < 0 || (!open && index >= layout.count())) {
+            throw new IOException("Chunk " + index + " out of range for transfer " + id);
+        }
+        if (open) {
+            grow(index, length);
+        } else if (length != layout.length(index)) {
+            throw new IOException("Chunk " + index + " has wrong length " + length);
+        }
+        if (received.get(index) || pending.get(index)) {
+            return false;
+        }
+        pending.set(index);
+        return true;
+    }
+
+    /**
+     * Extends the layout of an open stream to cover a chunk. Every chunk is full but the last.
+     */
+    private void grow(int index, int length) throws IOException {
+        int chunkSize = layout.maxLength();
+        if (lastIndex >= 0) {
+            if (index > lastIndex) {
+                throw new IOException("Chunk " + index + " after the end of transfer " + id);
+            }
+            if (length != layout.length(index)) {
+                throw new IOException("Chunk " + index + " has wrong length " + length);
+            }
+            return;
+        }
+        if (length <= 0 || length > chunkSize || (length < chunkSize && index < layout.count() - 1)) {
+            throw new IOException("Chunk " + index + " has wrong length " + length);
+        }
+        if (length < chunkSize) {
+            lastIndex = index;
+        }
+        long end = layout.offset(index) + length;
+        if (end > layout.size) {
+            layout = ChunkLayout.fixed(end, chunkSize);
+            if (hashes.length < layout.count()) {
+                hashes = Arrays.copyOf(hashes, Math.max(layout.count(), hashes.length * 2));
+            }
+        }
+    }
+
+    /**
+     * Fixes the size of a stream once the sender has read all of it.
+     */
+    void close(long size) throws IOException {
+        if (!open) {
+            return;
+        }
+        if (size < layout.size || (lastIndex >= 0 && size != layout.size)) {
+            throw new IOException("Transfer " + id + " ends at " + size + " after " + layout.size
+                    + " bytes were received");
+        }
+        open = false;
+        layout = ChunkLayout.fixed(size, layout.maxLength());
+        hashes = Arrays.copyOf(hashes, layout.count());
+    }
+
+    /**
+     * Writes a claimed chunk at its offset. May be called from any thread.
+     */
+    void write(int index, ByteBuffer data) throws IOException {
+        sink.write(data, layout.offset(index));
+    }
+
+    /**
+     * Records a written chunk whose data hashes to {@code hash}.
+     */
+    void commit(int index, byte[] hash) throws IOException {
+        pending.clear(index);
+        received.set(index);
+        hashes[index] = hash;
+        receivedCount++;
+        bytesReceived += layout.length(index);
+        if (++unjournaled >= JOURNAL_BATCH_CHUNKS
+                || System.currentTimeMillis() - lastJournalWrite >= JOURNAL_INTERVAL_MS) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Releases a claimed chunk that failed verification, so it can be received again.
+     */
+    void abort(int index) {
+        pending.clear(index);
+    }
+
+    /**
+     * Checks the root hash over all chunks against {@link #expectedRoot}, first hashing chunks
+     * recovered from the journal from disk. May be called from any thread once complete.
+     *
+     * @return the chunks to receive again: none if the file verified, else those that were never
+     * checked against the sender's hash, or all of them if there are no such chunks
+     */
+    BitSet verifyRoot() throws IOException {
+        BitSet unchecked = new BitSet();
+        for (int i = 0; i < hashes.length; i++) {
+            if (hashes[i] == null) {
+                unchecked.set(i);
+            }
+        }
+        if (!unchecked.isEmpty()) {
+            hashFromDisk(unchecked);
+        }
+        if (Arrays.equals(ChunkHashes.root(hashes), expectedRoot)) {
+            return new BitSet();
+        }
+        if (unchecked.isEmpty()) {
+            unchecked.set(0, layout.count());
+        }
+        return unchecked;
+    }
+
+    private void hashFromDisk(BitSet chunks) throws IOException {
+        MessageDigest digest = ChunkHashes.newDigest();
+        ByteBuffer buf = ByteBuffer.allocate(layout.maxLength());
+        try (FileInputStream in = new FileInputStream(file)) {
+            FileChannel channel = in.getChannel();
+            for (int i = chunks.nextSetBit(0); i >= 0; i = chunks.nextSetBit(i + 1)) {
+                buf.clear();
+                buf.limit(layout.length(i));
+                long position = layout.offset(i);
+                while (buf.hasRemaining()) {
+                    int n = channel.read(buf, position);
+                    if (n < 0) {
+                        throw new IOException("Unexpected end of " + file + " at " + position);
+                    }
+                    position += n;
+                }
+                buf.flip();
+                hashes[i] = ChunkHashes.hash(digest, buf);
+            }
+        }
+    }
+
+    /**
+     * Forgets chunks that failed root verification, so they are received again.
+     */
+    void reject(BitSet chunks) throws IOException {
+        for (int i = chunks.nextSetBit(0); i >= 0 && i < layout.count(); i = chunks.nextSetBit(i + 1)) {
+            if (received.get(i)) {
+                received.clear(i);
+                hashes[i] = null;
+                receivedCount--;
+                bytesReceived -= layout.length(i);
+            }
+        }
+        expectedRoot = null;
+        unjournaled++;
+        checkpoint();
+    }
+
+    /**
+     * Makes every chunk written so far durable and records it in the journal.
+     */
+    void checkpoint() throws IOException {
+        if (unjournaled == 0 || journal == null) {
+            return;
+        }
+        sink.force();
+        journal.write();
+        unjournaled = 0;
+        lastJournalWrite = System.currentTimeMillis();
+    }
+
+    /**
+     * Bytes at the start of the file that are committed without a gap.
+     */
+    long readableBytes() {
+        int first = received.nextClearBit(0);
+        return first >= layout.count() ? layout.size : layout.offset(first);
+    }
+
+    /**
+     * Holds back the acknowledgement of a committed chunk that is more than {@code readAhead}
+     * bytes ahead of the reader of the stream.
+     *
+     * @return true if deferred, to be sent later from {@link #takeReleasedAcks}
+     */
+    boolean deferAck(int index, long readAhead) {
+        if (stream == null || stream.isClosed() || layout.offset(index) < stream.position() + readAhead) {
+            return false;
+        }
+        deferredAcks.set(index);
+        acksDeferred = true;
+        return true;
+    }
+
+    boolean isAckDeferred(int index) {
+        return deferredAcks.get(index);
+    }
+
+    /**
+     * True while acknowledgements wait for the reader. May be called from any thread.
+     */
+    boolean hasDeferredAcks() {
+        return acksDeferred;
+    }
+
+    /**
+     * Removes and returns the deferred acknowledgements the reader has caught up with, or all of
+     * them once it is closed.
+     */
+    BitSet takeReleasedAcks(long readAhead) {
+        BitSet released = new BitSet();
+        long limit = stream == null || stream.isClosed() ? Long.MAX_VALUE : stream.position() + readAhead;
+        for (int i = deferredAcks.nextSetBit(0); i >= 0 && layout.offset(i) < limit;
+             i = deferredAcks.nextSetBit(i + 1)) {
+            released.set(i);
+        }
+        deferredAcks.andNot(released);
+        acksDeferred = !deferredAcks.isEmpty();
+        return released;
+    }
+
+    long bytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * True once every chunk is received; the root hash may still have to be checked.
+     */
+    boolean isComplete() {
+        return !open && receivedCount == layout.count();
+    }
+
+    /**
+     * Closes the file and drops the journal; called once all chunks are in.
+     */
+    void finish() throws IOException {
+        sink.close();
+        if (journal != null) {
+            journal.delete();
+        }
+    }
+
+    /**
+     * Checkpoints and closes the file so the transfer can be resumed later. Deduplicated
+     * transfers and streams have nothing to resume from, and their partial file is discarded
+     * instead.
+     */
+    void suspend() throws IOException {
+        if (manifest != null || size == Frame.UNKNOWN_SIZE) {
+            discard();
+            return;
+        }
+        try {
+            checkpoint();
+        } finally {
+            sink.close();
+        }
+    }
+
+    /**
+     * Closes and deletes both the partial file and its journal.
+     */
+    void discard() {
+        sink.discard();
+        if (journal != null) {
+            journal.delete();
+        }
+    }
+}
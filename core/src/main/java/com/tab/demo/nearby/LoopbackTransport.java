@@ -0,0 +1,241 @@
+package com.tab.demo.nearby;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory transport for running the transfer engine on a plain JVM. Frames are copied on send,
+ * the same way they would be serialized on a real link, and delivered on the sending thread.
+ *
+ * <p>Transports are either wired together directly with {@link #link}, or share a {@link Hub}
+ * through which they advertise, discover and connect like real peers. The endpoint name of a
+ * loopback transport is its id.
+ *
+ * <p>With a {@link #setBandwidth bandwidth}, sending takes as long as it would over a radio of
+ * that speed, shared by all links of the transport.
+ */
+class LoopbackTransport implements PeerTransport {
+    static final int DEFAULT_MAX_FRAME_SIZE = 64 * 1024;
+
+    /**
+     * The shared medium of a set of loopback transports.
+     */
+    static class Hub {
+        private final ConcurrentMap<String, LoopbackTransport> members = new ConcurrentHashMap<>();
+
+        private void join(LoopbackTransport transport) {
+            if (members.putIfAbsent(transport.localEndpointId, transport) != null) {
+                throw new IllegalArgumentException("Duplicate endpoint " + transport.localEndpointId);
+            }
+        }
+
+        private void advertised(LoopbackTransport transport, boolean visible) {
+            for (LoopbackTransport member : members.values()) {
+                if (member != transport && member.discovering) {
+                    member.reportVisible(transport, visible);
+                }
+            }
+        }
+    }
+
+    private final Hub hub;
+    private final String localEndpointId;
+    private final int maxFrameSize;
+    private final Map<String, LoopbackTransport> peers = new ConcurrentHashMap<>();
+    private volatile Receiver receiver;
+    private volatile Listener listener;
+    private volatile boolean advertising;
+    private volatile boolean discovering;
+    private volatile long bytesPerSecond;
+    // When everything sent so far is through, guarded by this.
+    private long busyUntil;
+
+    LoopbackTransport(String localEndpointId) {
+        this(localEndpointId, DEFAULT_MAX_FRAME_SIZE);
+    }
+
+    LoopbackTransport(String localEndpointId, int maxFrameSize) {
+        this(null, localEndpointId, maxFrameSize);
+    }
+
+    LoopbackTransport(Hub hub, String localEndpointId, int maxFrameSize) {
+        this.hub = hub;
+        this.localEndpointId = localEndpointId;
+        this.maxFrameSize = maxFrameSize;
+        if (hub != null) {
+            hub.join(this);
+        }
+    }
+
+    /**
+     * Connects two transports directly, without a hub and without reporting to the listeners.
+     */
+    static void link(LoopbackTransport a, LoopbackTransport b) {
+        a.peers.put(b.localEndpointId, b);
+        b.peers.put(a.localEndpointId, a);
+    }
+
+    /**
+     * Makes {@link #send} block for the time each frame takes at {@code bytesPerSecond}, 0 for
+     * no limit. Frames arrive when they are through.
+     */
+    void setBandwidth(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    String getLocalEndpointId() {
+        return localEndpointId;
+    }
+
+    @Override
+    public int maxFrameSize() {
+        return maxFrameSize;
+    }
+
+    @Override
+    public void send(String endpointId, ByteBuffer frame) {
+        if (frame.remaining() > maxFrameSize) {
+            throw new IllegalArgumentException("Frame too large: " + frame.remaining());
+        }
+        LoopbackTransport peer = peers.get(endpointId);
+        if (peer == null || peer.receiver == null) {
+            return;
+        }
+        long bytesPerSecond = this.bytesPerSecond;
+        if (bytesPerSecond > 0) {
+            pace(frame.remaining(), bytesPerSecond);
+        }
+        ByteBuffer copy = ByteBuffer.allocate(frame.remaining());
+        copy.put(frame).flip();
+        peer.receiver.onFrameReceived(localEndpointId, copy);
+    }
+
+    private void pace(int bytes, long bytesPerSecond) {
+        long until;
+        synchronized (this) {
+            busyUntil = Math.max(busyUntil, System.nanoTime()) + bytes * 1000000000L / bytesPerSecond;
+            until = busyUntil;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(until - System.nanoTime());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void setReceiver(Receiver receiver) {
+        this.receiver = receiver;
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void startAdvertising() {
+        if (hub != null && !advertising) {
+            advertising = true;
+            hub.advertised(this, true);
+        }
+    }
+
+    @Override
+    public void stopAdvertising() {
+        if (hub != null && advertising) {
+            advertising = false;
+            hub.advertised(this, false);
+        }
+    }
+
+    @Override
+    public void startDiscovery() {
+        if (hub == null || discovering) {
+            return;
+        }
+        discovering = true;
+        for (LoopbackTransport member : hub.members.values()) {
+            if (member != this && member.advertising) {
+                reportVisible(member, true);
+            }
+        }
+    }
+
+    @Override
+    public void stopDiscovery() {
+        discovering = false;
+    }
+
+    private void reportVisible(LoopbackTransport peer, boolean visible) {
+        Listener l = listener;
+        if (l == null) {
+            return;
+        }
+        if (visible) {
+            l.onEndpointFound(peer.localEndpointId, peer.localEndpointId);
+        } else {
+            l.onEndpointLost(peer.localEndpointId);
+        }
+    }
+
+    @Override
+    public void connect(String endpointId) {
+        LoopbackTransport peer = peers.get(endpointId);
+        if (peer == null && hub != null) {
+            peer = hub.members.get(endpointId);
+            if (peer != null && !peer.advertising) {
+                peer = null;
+            }
+        }
+        if (peer == null) {
+            Listener l = listener;
+            if (l != null) {
+                l.onConnectionFailed(endpointId);
+            }
+            return;
+        }
+        link(this, peer);
+        this.reportConnected(peer, false);
+        peer.reportConnected(this, true);
+    }
+
+    private void reportConnected(LoopbackTransport peer, boolean incoming) {
+        Listener l = listener;
+        if (l != null) {
+            l.onConnectionInitiated(peer.localEndpointId, peer.localEndpointId, incoming);
+            l.onConnected(peer.localEndpointId);
+        }
+    }
+
+    @Override
+    public void disconnect(String endpointId) {
+        LoopbackTransport peer = peers.remove(endpointId);
+        if (peer == null) {
+            return;
+        }
+        peer.peers.remove(localEndpointId);
+        reportDisconnected(endpointId);
+        peer.reportDisconnected(localEndpointId);
+    }
+
+    private void reportDisconnected(String endpointId) {
+        Listener l = listener;
+        if (l != null) {
+            l.onDisconnected(endpointId);
+        }
+    }
+
+    @Override
+    public void stopAll() {
+        stopAdvertising();
+        stopDiscovery();
+        for (String endpointId : new ArrayList<>(peers.keySet())) {
+            disconnect(endpointId);
+        }
+    }
+}
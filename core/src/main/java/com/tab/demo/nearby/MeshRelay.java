@@ -0,0 +1,204 @@
+package com.tab.demo.nearby;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Passes files on to peers out of radio range of their sender. A file sent with {@link #send} is
+ * a flow: it goes to every connected endpoint, and every node with a relay passes it on to its
+ * own connected endpoints, except the one it came from, up to {@code maxHops} links from the
+ * sender. Every node on the way receives the file as well.
+ *
+ * <p>Relaying is cut-through: a node starts passing a file on as soon as it starts to arrive,
+ * reading it as an {@link IncomingStream} and sending it as a stream to each next hop, so a file
+ * reaches the far end of a chain in about the time of one transfer plus a few chunks per hop.
+ * The slowest next hop sets the pace, back to the sender.
+ *
+ * <p>Where the mesh has loops a node is offered the same flow more than once; it takes the first
+ * copy and refuses the others. Flows are only remembered for the last {@link #MAX_FLOWS}.
+ *
+ * <p>The relay takes over as the {@link TransferEngine.StreamListener} of the engine; files it
+ * does not pass on go to the listener set with {@link #setStreamListener}.
+ */
+class MeshRelay implements TransferEngine.Router, TransferEngine.StreamListener {
+    static final int DEFAULT_MAX_HOPS = 4;
+    static final int MAX_FLOWS = 1024;
+    // Read from the incoming file at a time, and buffered at most for each next hop.
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long MAX_QUEUED_BYTES = 1024 * 1024;
+
+    private static class Flow {
+        final long id;
+        // Hops the file may still travel from here.
+        final int ttl;
+
+        Flow(long id, int ttl) {
+            this.id = id;
+            this.ttl = ttl;
+        }
+    }
+
+    private final TransferNode node;
+    private final int maxHops;
+    private final Random random = new SecureRandom();
+    private final ExecutorService pumps = Executors.newCachedThreadPool();
+    // Flow id -> id of the transfer that brought it, or 0 for flows sent from here.
+    private final Map<Long, Long> flows = new LinkedHashMap<Long, Long>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+            return size() > MAX_FLOWS;
+        }
+    };
+    // Transfers accepted as part of a flow, until they are opened; only touched from the receive
+    // thread of the engine. Bounded as well, for transfers that fail to open.
+    private final Map<Long, Flow> offered = new LinkedHashMap<Long, Flow>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Flow> eldest) {
+            return size() > MAX_FLOWS;
+        }
+    };
+    private volatile TransferEngine.StreamListener streamListener;
+    private volatile boolean forwarding = true;
+
+    /**
+     * @param maxHops links a file sent from here travels at most, 1 to {@link Frame#MAX_TTL} + 1
+     */
+    MeshRelay(TransferNode node, int maxHops) {
+        if (maxHops < 1 || maxHops > Frame.MAX_TTL + 1) {
+            throw new IllegalArgumentException("Bad hop limit " + maxHops);
+        }
+        this.node = node;
+        this.maxHops = maxHops;
+        node.getEngine().setRouter(this);
+        node.getEngine().setStreamListener(this);
+    }
+
+    /**
+     * Receives the files this relay does not pass on while they arrive, see
+     * {@link TransferEngine#setStreamListener}.
+     */
+    void setStreamListener(TransferEngine.StreamListener streamListener) {
+        this.streamListener = streamListener;
+    }
+
+    /**
+     * Whether to pass files on. Without, flows are still received once each, but end here.
+     */
+    void setForwarding(boolean forwarding) {
+        this.forwarding = forwarding;
+    }
+
+    /**
+     * Sends a file to every connected endpoint, to be relayed from there. The channel is closed
+     * when the last transfer ends.
+     *
+     * @return the progress of the transfer to each connected endpoint, empty if there is none
+     */
+    List<TransferProgress> send(FileChannel source, long size, String name) {
+        long flowId;
+        do {
+            flowId = random.nextLong();
+        } while (flowId == 0);
+        synchronized (flows) {
+            flows.put(flowId, 0L);
+        }
+        List<String> endpointIds = nextHops(null);
+        if (endpointIds.isEmpty()) {
+            try {
+                source.close();
+            } catch (IOException ignored) {
+            }
+            return new ArrayList<>();
+        }
+        return node.sendFile(endpointIds, source, size, name, flowId, maxHops - 1);
+    }
+
+    /**
+     * Shuts down the threads passing files on, failing the streams they send.
+     */
+    void shutdown() {
+        pumps.shutdownNow();
+    }
+
+    @Override
+    public boolean onFlowOffered(String endpointId, long transferId, long flowId, int ttl) {
+        synchronized (flows) {
+            Long first = flows.get(flowId);
+            // The same transfer again is a resume, not a copy.
+            if (first != null && first != transferId) {
+                return false;
+            }
+            flows.put(flowId, transferId);
+        }
+        offered.put(transferId, new Flow(flowId, ttl));
+        return true;
+    }
+
+    @Override
+    public void onFlowFailed(long transferId, long flowId) {
+        offered.remove(transferId);
+        synchronized (flows) {
+            Long first = flows.get(flowId);
+            if (first != null && first == transferId) {
+                flows.remove(flowId);
+            }
+        }
+    }
+
+    @Override
+    public void onStreamOpened(String endpointId, long transferId, String name, long size, IncomingStream stream) {
+        Flow flow = offered.remove(transferId);
+        List<String> nextHops = flow == null || flow.ttl == 0 || !forwarding
+                ? new ArrayList<String>() : nextHops(endpointId);
+        if (nextHops.isEmpty()) {
+            TransferEngine.StreamListener streamListener = this.streamListener;
+            if (streamListener != null) {
+                streamListener.onStreamOpened(endpointId, transferId, name, size, stream);
+            } else {
+                closeQuietly(stream);
+            }
+            return;
+        }
+        StreamFanout fanout = new StreamFanout(stream, BUFFER_SIZE, MAX_QUEUED_BYTES);
+        for (String nextHop : nextHops) {
+            node.sendStream(nextHop, fanout.newBranch(), name, flow.id, flow.ttl - 1);
+        }
+        try {
+            pumps.execute(fanout);
+        } catch (RejectedExecutionException e) {
+            // Shut down. With the stream closed the file still arrives here, and the fanout just
+            // fails the streams to the next hops.
+            closeQuietly(stream);
+            fanout.run();
+        }
+    }
+
+    /**
+     * The connected endpoints other than {@code from}, from the endpoint registry.
+     */
+    private List<String> nextHops(String from) {
+        List<String> endpointIds = new ArrayList<>();
+        for (EndpointStatus status : node.getEndpoints().asList()) {
+            if (status.state == EndpointState.CONNECTED && !status.id.equals(from)) {
+                endpointIds.add(status.id);
+            }
+        }
+        return endpointIds;
+    }
+
+    private static void closeQuietly(IncomingStream stream) {
+        try {
+            stream.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
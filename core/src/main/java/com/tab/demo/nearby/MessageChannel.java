@@ -0,0 +1,386 @@
+package com.tab.demo.nearby;
+
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Small typed messages at a high rate, for telemetry and commands. Messages to an endpoint are
+ * packed into one {@link Frame#TYPE_MESSAGES} frame, which goes out once it is full or
+ * {@link #setMaxDelay the oldest message in it} has waited long enough, so a thousand messages
+ * cost a handful of payloads instead of a thousand. Like Nagle's algorithm, a message to an
+ * endpoint that nothing was sent to for that long goes out at once, so a lone command does not
+ * wait.
+ *
+ * <p>Each endpoint has one frame buffer that messages are encoded straight into and that is
+ * reused after every send, and received messages are decoded from the frame in place, so neither
+ * side allocates per message beyond what a {@link Codec} does itself.
+ *
+ * <p>Every message has a type between 0 and {@link #MAX_TYPE}, and a type has at most one
+ * subscriber. A record in a frame is the type byte, the payload length as a varint and the
+ * payload. Subscribers run on the receive thread of the engine and should return quickly.
+ */
+class MessageChannel {
+    static final int MAX_TYPE = 255;
+    static final long DEFAULT_MAX_DELAY_MICROS = 2000;
+
+    /**
+     * Converts messages of one type to and from bytes.
+     */
+    interface Codec<T> {
+        /**
+         * The number of bytes {@link #encode} writes for {@code message}.
+         */
+        int size(T message);
+
+        void encode(T message, ByteBuffer dst);
+
+        /**
+         * Reads a message from the remaining bytes of {@code src}, which are only valid during
+         * the call.
+         */
+        T decode(ByteBuffer src);
+    }
+
+    interface Subscriber<T> {
+        void onMessage(String endpointId, T message);
+    }
+
+    /**
+     * Passes the bytes through. Received buffers are only valid until the subscriber returns.
+     */
+    static final Codec<ByteBuffer> BYTES = new Codec<ByteBuffer>() {
+        @Override
+        public int size(ByteBuffer message) {
+            return message.remaining();
+        }
+
+        @Override
+        public void encode(ByteBuffer message, ByteBuffer dst) {
+            dst.put(message.duplicate());
+        }
+
+        @Override
+        public ByteBuffer decode(ByteBuffer src) {
+            return src;
+        }
+    };
+
+    /**
+     * UTF-8 text, encoded without an intermediate byte array. Unpaired surrogates become '?', as
+     * with {@link String#getBytes}.
+     */
+    static final Codec<String> TEXT = new Codec<String>() {
+        @Override
+        public int size(String message) {
+            int size = 0;
+            for (int i = 0; i < message.length(); i++) {
+                char c = message.charAt(i);
+                if (c < 0x80) {
+                    size += 1;
+                } else if (c < 0x800) {
+                    size += 2;
+                } else if (isSurrogatePair(message, i)) {
+                    size += 4;
+                    i++;
+                } else if (Character.isSurrogate(c)) {
+                    size += 1;
+                } else {
+                    size += 3;
+                }
+            }
+            return size;
+        }
+
+        @Override
+        public void encode(String message, ByteBuffer dst) {
+            for (int i = 0; i < message.length(); i++) {
+                char c = message.charAt(i);
+                if (c < 0x80) {
+                    dst.put((byte) c);
+                } else if (c < 0x800) {
+                    dst.put((byte) (0xC0 | c >> 6));
+                    dst.put((byte) (0x80 | c & 0x3F));
+                } else if (isSurrogatePair(message, i)) {
+                    int cp = Character.toCodePoint(c, message.charAt(++i));
+                    dst.put((byte) (0xF0 | cp >> 18));
+                    dst.put((byte) (0x80 | cp >> 12 & 0x3F));
+                    dst.put((byte) (0x80 | cp >> 6 & 0x3F));
+                    dst.put((byte) (0x80 | cp & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    dst.put((byte) '?');
+                } else {
+                    dst.put((byte) (0xE0 | c >> 12));
+                    dst.put((byte) (0x80 | c >> 6 & 0x3F));
+                    dst.put((byte) (0x80 | c & 0x3F));
+                }
+            }
+        }
+
+        @Override
+        public String decode(ByteBuffer src) {
+            if (src.hasArray()) {
+                return new String(src.array(), src.arrayOffset() + src.position(), src.remaining(), UTF_8);
+            }
+            byte[] bytes = new byte[src.remaining()];
+            src.get(bytes);
+            return new String(bytes, UTF_8);
+        }
+    };
+
+    private static boolean isSurrogatePair(String s, int i) {
+        return Character.isHighSurrogate(s.charAt(i)) && i + 1 < s.length()
+                && Character.isLowSurrogate(s.charAt(i + 1));
+    }
+
+    private static class Subscription<T> {
+        final Codec<T> codec;
+        final Subscriber<T> subscriber;
+
+        Subscription(Codec<T> codec, Subscriber<T> subscriber) {
+            this.codec = codec;
+            this.subscriber = subscriber;
+        }
+
+        void deliver(String endpointId, ByteBuffer payload) {
+            subscriber.onMessage(endpointId, codec.decode(payload));
+        }
+    }
+
+    /**
+     * The frame being filled for one endpoint, guarded by itself.
+     */
+    private class Batch implements Runnable {
+        final String endpointId;
+        final ByteBuffer buffer = ByteBuffer.allocate(transport.maxFrameSize());
+        boolean empty = true;
+        boolean flushScheduled;
+        long lastFlushNanos;
+
+        Batch(String endpointId) {
+            this.endpointId = endpointId;
+            // Long enough ago that the first message goes out at once.
+            this.lastFlushNanos = System.nanoTime() - TimeUnit.DAYS.toNanos(1);
+        }
+
+        // The flush timer.
+        @Override
+        public void run() {
+            synchronized (this) {
+                flushScheduled = false;
+                flush(this);
+            }
+        }
+    }
+
+    private final Transport transport;
+    private final ScheduledExecutorService timers;
+    private final ConcurrentMap<String, Batch> batches = new ConcurrentHashMap<>();
+    private final AtomicReferenceArray<Subscription<?>> subscriptions =
+            new AtomicReferenceArray<>(MAX_TYPE + 1);
+    private volatile long maxDelayMicros = DEFAULT_MAX_DELAY_MICROS;
+
+    /**
+     * @param transport where frames go, normally the scheduler in front of the engine's transport
+     * @param timers runs the flush timers
+     */
+    MessageChannel(Transport transport, ScheduledExecutorService timers) {
+        this.transport = transport;
+        this.timers = timers;
+    }
+
+    /**
+     * Sets how long a message may wait for more to share its frame. 0 sends every message on its
+     * own.
+     */
+    void setMaxDelay(long delay, TimeUnit unit) {
+        if (delay < 0) {
+            throw new IllegalArgumentException("delay must not be negative: " + delay);
+        }
+        this.maxDelayMicros = unit.toMicros(delay);
+    }
+
+    /**
+     * Delivers messages of {@code type} to {@code subscriber}, replacing the previous one. A null
+     * subscriber unsubscribes; messages without a subscriber are dropped.
+     */
+    <T> void subscribe(int type, Codec<T> codec, Subscriber<T> subscriber) {
+        checkType(type);
+        subscriptions.set(type, subscriber == null ? null : new Subscription<>(codec, subscriber));
+    }
+
+    void send(String endpointId, int type, byte[] message) {
+        send(endpointId, type, BYTES, ByteBuffer.wrap(message));
+    }
+
+    /**
+     * Queues a message for the next frame to {@code endpointId}. Blocks only while a full frame is
+     * handed to the transport.
+     */
+    <T> void send(String endpointId, int type, Codec<T> codec, T message) {
+        checkType(type);
+        int size = codec.size(message);
+        int recordSize = 1 + varintSize(size) + size;
+        if (recordSize > transport.maxFrameSize() - Frame.HEADER_SIZE) {
+            throw new IllegalArgumentException("Message too large: " + size);
+        }
+        Batch batch = batch(endpointId);
+        synchronized (batch) {
+            ByteBuffer buf = batch.buffer;
+            if (buf.remaining() < recordSize) {
+                flush(batch);
+            }
+            if (batch.empty) {
+                Frame.putMessagesHeader(buf);
+                batch.empty = false;
+            }
+            int start = buf.position();
+            buf.put((byte) type);
+            putVarint(buf, size);
+            int payloadStart = buf.position();
+            try {
+                codec.encode(message, buf);
+            } catch (RuntimeException e) {
+                buf.position(start);
+                throw e;
+            }
+            if (buf.position() - payloadStart != size) {
+                int written = buf.position() - payloadStart;
+                buf.position(start);
+                throw new IllegalStateException("Codec wrote " + written + " bytes instead of " + size);
+            }
+            long delay = maxDelayMicros;
+            // Two bytes hold the smallest record, an empty message.
+            if (delay == 0 || buf.remaining() < 2
+                    || System.nanoTime() - batch.lastFlushNanos >= TimeUnit.MICROSECONDS.toNanos(delay)) {
+                flush(batch);
+            } else if (!batch.flushScheduled) {
+                try {
+                    timers.schedule(batch, delay, TimeUnit.MICROSECONDS);
+                    batch.flushScheduled = true;
+                } catch (RejectedExecutionException e) {
+                    flush(batch);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends the messages waiting for {@code endpointId} now, for one that should not wait.
+     */
+    void flush(String endpointId) {
+        Batch batch = batches.get(endpointId);
+        if (batch != null) {
+            synchronized (batch) {
+                flush(batch);
+            }
+        }
+    }
+
+    /**
+     * Drops the messages waiting for an endpoint that disconnected.
+     */
+    void clear(String endpointId) {
+        Batch batch = batches.remove(endpointId);
+        if (batch != null) {
+            synchronized (batch) {
+                batch.buffer.clear();
+                batch.empty = true;
+            }
+        }
+    }
+
+    private Batch batch(String endpointId) {
+        Batch batch = batches.get(endpointId);
+        if (batch == null) {
+            Batch created = new Batch(endpointId);
+            batch = batches.putIfAbsent(endpointId, created);
+            if (batch == null) {
+                batch = created;
+            }
+        }
+        return batch;
+    }
+
+    private void flush(Batch batch) {
+        if (batch.empty) {
+            return;
+        }
+        batch.buffer.flip();
+        batch.lastFlushNanos = System.nanoTime();
+        try {
+            transport.send(batch.endpointId, batch.buffer);
+        } finally {
+            batch.buffer.clear();
+            batch.empty = true;
+        }
+    }
+
+    /**
+     * Hands every message in the body of a {@link Frame#TYPE_MESSAGES} frame to its subscriber.
+     */
+    void onFrame(String endpointId, ByteBuffer data) throws ProtocolException {
+        int end = data.limit();
+        try {
+            while (data.position() < end) {
+                int type = data.get() & 0xFF;
+                int length = getVarint(data);
+                if (length < 0 || length > end - data.position()) {
+                    throw new ProtocolException("Bad message length " + length);
+                }
+                int next = data.position() + length;
+                Subscription<?> subscription = subscriptions.get(type);
+                if (subscription != null) {
+                    data.limit(next);
+                    subscription.deliver(endpointId, data);
+                    data.limit(end);
+                }
+                data.position(next);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("Truncated message");
+        }
+    }
+
+    private static void checkType(int type) {
+        if (type < 0 || type > MAX_TYPE) {
+            throw new IllegalArgumentException("Bad message type " + type);
+        }
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+
+    private static void putVarint(ByteBuffer buf, int value) {
+        while ((value & ~0x7F) != 0) {
+            buf.put((byte) (value & 0x7F | 0x80));
+            value >>>= 7;
+        }
+        buf.put((byte) value);
+    }
+
+    private static int getVarint(ByteBuffer buf) throws ProtocolException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buf.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new ProtocolException("Varint too long");
+    }
+}
@@ -0,0 +1,298 @@
+package com.tab.demo.nearby;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and histograms per endpoint plus the {@link TransferStats} of running and recent
+ * transfers. The layers feed it where the time is spent: the scheduler records queue waits, the
+ * transport the time payloads spend on the radio, the engine disk reads and writes and hashing,
+ * so a slow transfer can be pinned on one of them.
+ *
+ * <p>Hot paths look up their {@link EndpointMetrics} once and then only touch atomics.
+ */
+class Metrics {
+    private static final int RECENT_TRANSFERS = 100;
+
+    static class EndpointMetrics {
+        final String endpointId;
+        final AtomicLong bytesSent = new AtomicLong();
+        final AtomicLong bytesReceived = new AtomicLong();
+        final AtomicLong radioBytes = new AtomicLong();
+        final AtomicLong chunksResent = new AtomicLong();
+        final AtomicLong chunksRejected = new AtomicLong();
+        final AtomicLong connectAttempts = new AtomicLong();
+        final AtomicLong connectRetries = new AtomicLong();
+        final AtomicLong connectFailures = new AtomicLong();
+        final AtomicLong transfersCompleted = new AtomicLong();
+        final AtomicLong transfersFailed = new AtomicLong();
+        final Histogram connectMillis = new Histogram();
+        final Histogram firstByteMillis = new Histogram();
+        final Histogram bytesPerSecond = new Histogram();
+        final Histogram stallMillis = new Histogram();
+        final Histogram queueWaitMicros = new Histogram();
+        final Histogram payloadMillis = new Histogram();
+        final Histogram diskReadMicros = new Histogram();
+        final Histogram diskWriteMicros = new Histogram();
+        final Histogram verifyMicros = new Histogram();
+        final Histogram rttMillis = new Histogram();
+
+        EndpointMetrics(String endpointId) {
+            this.endpointId = endpointId;
+        }
+    }
+
+    private static final String[] COUNTERS = {
+            "bytes_sent", "bytes_received", "radio_bytes", "chunks_resent", "chunks_rejected",
+            "connect_attempts", "connect_retries", "connect_failures", "transfers_completed",
+            "transfers_failed"
+    };
+    private static final String[] HISTOGRAMS = {
+            "connect_ms", "first_byte_ms", "bytes_per_second", "stall_ms", "queue_wait_us",
+            "payload_ms", "disk_read_us", "disk_write_us", "verify_us", "rtt_ms"
+    };
+
+    // Radio-on time of discovery, see DiscoveryCycle.
+    final AtomicLong discoveryMillis = new AtomicLong();
+    // Transfers held in TransferTables and the bytes of partial files they keep on disk, and what
+    // the tables reclaimed because transfers failed, went idle or did not fit.
+    final AtomicLong pendingTransfers = new AtomicLong();
+    final AtomicLong pendingBytes = new AtomicLong();
+    final AtomicLong reclaimedTransfers = new AtomicLong();
+    final AtomicLong reclaimedBytes = new AtomicLong();
+    private final ConcurrentMap<String, EndpointMetrics> endpoints = new ConcurrentHashMap<>();
+    // Microseconds per stage of the ReceivePipeline.
+    private final ConcurrentMap<String, Histogram> stages = new ConcurrentHashMap<>();
+    // Both ends of a transfer share its id, which matters when they share the metrics too.
+    private final ConcurrentMap<Long, TransferStats> sending = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Long, TransferStats> receiving = new ConcurrentHashMap<>();
+    private final ArrayDeque<TransferStats> recent = new ArrayDeque<>();
+
+    EndpointMetrics endpoint(String endpointId) {
+        EndpointMetrics metrics = endpoints.get(endpointId);
+        if (metrics == null) {
+            EndpointMetrics created = new EndpointMetrics(endpointId);
+            metrics = endpoints.putIfAbsent(endpointId, created);
+            if (metrics == null) {
+                metrics = created;
+            }
+        }
+        return metrics;
+    }
+
+    Histogram stage(String name) {
+        Histogram histogram = stages.get(name);
+        if (histogram == null) {
+            Histogram created = new Histogram();
+            histogram = stages.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    Collection<EndpointMetrics> endpoints() {
+        return new ArrayList<>(endpoints.values());
+    }
+
+    /**
+     * Returns the stats of a running transfer with this id, for example one that is resumed,
+     * or starts new ones.
+     */
+    TransferStats startTransfer(long transferId, String endpointId, TransferStats.Direction direction,
+                                long size) {
+        ConcurrentMap<Long, TransferStats> running = running(direction);
+        TransferStats stats = running.get(transferId);
+        if (stats == null) {
+            stats = new TransferStats(transferId, endpointId, direction, size);
+            running.put(transferId, stats);
+        }
+        stats.setOutcome(TransferStats.Outcome.RUNNING);
+        return stats;
+    }
+
+    /**
+     * Records the outcome of a transfer. Suspended ones stay running so they pick up where they
+     * left off.
+     */
+    void finishTransfer(TransferStats stats, TransferStats.Outcome outcome) {
+        stats.setOutcome(outcome);
+        if (outcome == TransferStats.Outcome.SUSPENDED
+                || !running(stats.direction).remove(stats.transferId, stats)) {
+            return;
+        }
+        EndpointMetrics endpoint = endpoint(stats.endpointId);
+        if (outcome == TransferStats.Outcome.COMPLETED) {
+            endpoint.transfersCompleted.incrementAndGet();
+            endpoint.bytesPerSecond.record(stats.getBytesPerSecond());
+            long firstByte = stats.getTimeToFirstByteMillis();
+            if (firstByte >= 0) {
+                endpoint.firstByteMillis.record(firstByte);
+            }
+        } else {
+            endpoint.transfersFailed.incrementAndGet();
+        }
+        synchronized (recent) {
+            if (recent.size() == RECENT_TRANSFERS) {
+                recent.removeFirst();
+            }
+            recent.addLast(stats);
+        }
+    }
+
+    /**
+     * Running transfers followed by the most recently finished ones.
+     */
+    List<TransferStats> transfers() {
+        List<TransferStats> transfers = new ArrayList<>(sending.values());
+        transfers.addAll(receiving.values());
+        synchronized (recent) {
+            transfers.addAll(recent);
+        }
+        return transfers;
+    }
+
+    String toJson() {
+        StringBuilder json = new StringBuilder("{\"time\":").append(System.currentTimeMillis());
+        json.append(",\"discovery_ms\":").append(discoveryMillis.get());
+        json.append(",\"pending_transfers\":").append(pendingTransfers.get())
+                .append(",\"pending_bytes\":").append(pendingBytes.get())
+                .append(",\"reclaimed_transfers\":").append(reclaimedTransfers.get())
+                .append(",\"reclaimed_bytes\":").append(reclaimedBytes.get());
+        json.append(",\"endpoints\":[");
+        boolean first = true;
+        for (EndpointMetrics endpoint : endpoints()) {
+            json.append(first ? "{" : ",{");
+            first = false;
+            json.append("\"id\":");
+            quote(json, endpoint.endpointId);
+            long[] counters = counters(endpoint);
+            for (int i = 0; i < COUNTERS.length; i++) {
+                json.append(",\"").append(COUNTERS[i]).append("\":").append(counters[i]);
+            }
+            Histogram[] histograms = histograms(endpoint);
+            for (int i = 0; i < HISTOGRAMS.length; i++) {
+                json.append(",\"").append(HISTOGRAMS[i]).append("\":");
+                histogram(json, histograms[i]);
+            }
+            json.append('}');
+        }
+        json.append("],\"stages_us\":{");
+        first = true;
+        for (Map.Entry<String, Histogram> stage : stages.entrySet()) {
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            quote(json, stage.getKey());
+            json.append(':');
+            histogram(json, stage.getValue());
+        }
+        json.append("},\"transfers\":[");
+        first = true;
+        for (TransferStats stats : transfers()) {
+            json.append(first ? "{" : ",{");
+            first = false;
+            json.append("\"id\":").append(stats.transferId).append(",\"endpoint\":");
+            quote(json, stats.endpointId);
+            json.append(",\"direction\":\"").append(stats.direction)
+                    .append("\",\"outcome\":\"").append(stats.getOutcome())
+                    .append("\",\"start\":").append(stats.startMillis)
+                    .append(",\"size\":").append(stats.size)
+                    .append(",\"bytes\":").append(stats.getBytes())
+                    .append(",\"elapsed_ms\":").append(stats.getElapsedMillis())
+                    .append(",\"first_byte_ms\":").append(stats.getTimeToFirstByteMillis())
+                    .append(",\"bytes_per_second\":").append(stats.getBytesPerSecond())
+                    .append(",\"stalls\":").append(stats.getStalls())
+                    .append(",\"stall_ms\":").append(stats.getStallMillis())
+                    .append(",\"retries\":").append(stats.getRetries()).append('}');
+        }
+        return json.append("]}").toString();
+    }
+
+    private static void histogram(StringBuilder json, Histogram h) {
+        json.append("{\"count\":").append(h.count())
+                .append(",\"mean\":").append(h.mean())
+                .append(",\"p50\":").append(h.percentile(50))
+                .append(",\"p90\":").append(h.percentile(90))
+                .append(",\"p99\":").append(h.percentile(99))
+                .append(",\"max\":").append(h.max()).append('}');
+    }
+
+    private ConcurrentMap<Long, TransferStats> running(TransferStats.Direction direction) {
+        return direction == TransferStats.Direction.SEND ? sending : receiving;
+    }
+
+    static String csvHeader() {
+        StringBuilder csv = new StringBuilder("time,endpoint");
+        for (String counter : COUNTERS) {
+            csv.append(',').append(counter);
+        }
+        for (String histogram : HISTOGRAMS) {
+            csv.append(',').append(histogram).append("_count,")
+                    .append(histogram).append("_p50,")
+                    .append(histogram).append("_p90,")
+                    .append(histogram).append("_max");
+        }
+        return csv.append('\n').toString();
+    }
+
+    /**
+     * One line per endpoint, matching {@link #csvHeader()}.
+     */
+    String toCsv() {
+        long time = System.currentTimeMillis();
+        StringBuilder csv = new StringBuilder();
+        for (EndpointMetrics endpoint : endpoints()) {
+            csv.append(time).append(',').append(endpoint.endpointId.replace(',', '_'));
+            for (long counter : counters(endpoint)) {
+                csv.append(',').append(counter);
+            }
+            for (Histogram h : histograms(endpoint)) {
+                csv.append(',').append(h.count())
+                        .append(',').append(h.percentile(50))
+                        .append(',').append(h.percentile(90))
+                        .append(',').append(h.max());
+            }
+            csv.append('\n');
+        }
+        return csv.toString();
+    }
+
+    private static long[] counters(EndpointMetrics e) {
+        return new long[]{
+                e.bytesSent.get(), e.bytesReceived.get(), e.radioBytes.get(), e.chunksResent.get(),
+                e.chunksRejected.get(), e.connectAttempts.get(), e.connectRetries.get(),
+                e.connectFailures.get(), e.transfersCompleted.get(), e.transfersFailed.get()
+        };
+    }
+
+    private static Histogram[] histograms(EndpointMetrics e) {
+        return new Histogram[]{
+                e.connectMillis, e.firstByteMillis, e.bytesPerSecond, e.stallMillis, e.queueWaitMicros,
+                e.payloadMillis, e.diskReadMicros, e.diskWriteMicros, e.verifyMicros, e.rttMillis
+        };
+    }
+
+    private static void quote(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+}
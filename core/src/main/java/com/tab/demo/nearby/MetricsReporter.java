@@ -0,0 +1,63 @@
+package com.tab.demo.nearby;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Dumps {@link Metrics} into a directory each time it runs, meant to be scheduled at a fixed
+ * rate. {@code metrics.json} always holds the latest state; {@code metrics.csv} gets one line
+ * per endpoint and run, and is rotated to {@code metrics.csv.1} once it grows past
+ * {@link #MAX_CSV_SIZE}.
+ */
+class MetricsReporter implements Runnable {
+    private static final long MAX_CSV_SIZE = 1024 * 1024;
+
+    private final Metrics metrics;
+    private final File dir;
+
+    MetricsReporter(Metrics metrics, File dir) {
+        this.metrics = metrics;
+        this.dir = dir;
+    }
+
+    @Override
+    public void run() {
+        try {
+            write();
+        } catch (IOException ignored) {
+            // Metrics are best effort; try again next time.
+        }
+    }
+
+    void write() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        File json = new File(dir, "metrics.json");
+        File tmp = new File(dir, "metrics.json.tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            out.write(metrics.toJson().getBytes(UTF_8));
+        }
+        if (!tmp.renameTo(json)) {
+            tmp.delete();
+            throw new IOException("Cannot write " + json);
+        }
+        File csv = new File(dir, "metrics.csv");
+        if (csv.length() > MAX_CSV_SIZE) {
+            File old = new File(dir, "metrics.csv.1");
+            old.delete();
+            csv.renameTo(old);
+        }
+        boolean header = !csv.exists();
+        try (OutputStream out = new FileOutputStream(csv, true)) {
+            if (header) {
+                out.write(Metrics.csvHeader().getBytes(UTF_8));
+            }
+            out.write(metrics.toCsv().getBytes(UTF_8));
+        }
+    }
+}
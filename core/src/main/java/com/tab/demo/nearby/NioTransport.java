@@ -0,0 +1,778 @@
+package com.tab.demo.nearby;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Carries transfer frames over TCP, so two JVMs, or two devices on the same LAN, can act as real
+ * peers without Nearby. All sockets are non-blocking and served by one selector thread, which also
+ * delivers frames and listener callbacks.
+ *
+ * <p>Frames are length prefixed. Each connection starts with a hello that carries the peer's
+ * instance id, name and listening port, and the endpoint id of a peer is {@code host:port} of its
+ * listening socket. When two peers dial each other at once, both keep the connection dialed by
+ * the peer with the lower instance id. Each side then writes a moved marker on the other
+ * connection and shuts it down once the peer's marker has arrived too, so no frame already sent
+ * on it is lost and neither side sees it end before it has switched.
+ * Peers are found through UDP beacons sent to the addresses given to {@link #addBeaconTarget},
+ * and a peer whose beacons stop is lost after {@link #BEACON_TIMEOUT_MS}. {@link #connect} also
+ * takes a {@code host:port} that was never discovered.
+ *
+ * <p>{@link #send} copies the frame into a pooled direct buffer and blocks while
+ * {@link #MAX_QUEUED_FRAMES} frames to the endpoint are waiting for the socket, the same back
+ * pressure {@link NearbyTransport} applies.
+ */
+class NioTransport implements PeerTransport, Closeable {
+    static final int DEFAULT_MAX_FRAME_SIZE = 64 * 1024;
+    static final int DEFAULT_DISCOVERY_PORT = 47474;
+    static final long BEACON_INTERVAL_MS = 1000;
+    static final long BEACON_TIMEOUT_MS = 3500;
+    private static final int MAX_QUEUED_FRAMES = 32;
+    private static final int MAX_POOLED_BUFFERS = 64;
+    private static final int HELLO_MAGIC = 0x4e424830;
+    // Sent in place of a frame length on a connection given up for another one to the same peer.
+    private static final int MOVED = -1;
+    private static final int BEACON_MAGIC = 0x4e424230;
+    private static final int MAX_NAME_BYTES = 255;
+
+    private final String localName;
+    private final int maxFrameSize;
+    private final long instanceId = new Random().nextLong();
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final DatagramChannel beacons;
+    private final Thread thread;
+    private final List<InetSocketAddress> beaconTargets = new CopyOnWriteArrayList<>();
+    // Established connections by endpoint id; read by senders, written on the selector thread.
+    private final ConcurrentMap<String, Connection> connections = new ConcurrentHashMap<>();
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Queue<ByteBuffer> bufferPool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooledBuffers = new AtomicInteger();
+    private volatile Receiver receiver;
+    private volatile Listener listener;
+    private volatile boolean closed;
+
+    // Only touched on the selector thread.
+    private final Map<String, Peer> discovered = new HashMap<>();
+    private final ByteBuffer beaconBuffer = ByteBuffer.allocateDirect(512);
+    private boolean advertising;
+    private boolean discovering;
+
+    private static final class Peer {
+        final String name;
+        long lastSeen;
+
+        Peer(String name) {
+            this.name = name;
+        }
+    }
+
+    private final class Connection {
+        final SocketChannel channel;
+        final boolean incoming;
+        final ByteBuffer in;
+        final BlockingQueue<ByteBuffer> out = new ArrayBlockingQueue<>(MAX_QUEUED_FRAMES);
+        final AtomicBoolean flushScheduled = new AtomicBoolean();
+        SelectionKey key;
+        String endpointId;
+        ByteBuffer writing;
+        // Set once the hello of the peer has arrived.
+        boolean established;
+        // Instance id of the peer that dialed, known once established.
+        long dialer;
+        // Given up for another connection to the same peer; shut down without telling anyone.
+        boolean superseded;
+        boolean movedSent;
+        boolean peerMoved;
+        volatile boolean closed;
+
+        Connection(SocketChannel channel, boolean incoming, String endpointId) {
+            this.channel = channel;
+            this.incoming = incoming;
+            this.endpointId = endpointId;
+            this.in = ByteBuffer.allocateDirect(maxFrameSize + 4);
+        }
+    }
+
+    private NioTransport(String localName, int port, int discoveryPort, int maxFrameSize)
+            throws IOException {
+        this.localName = localName;
+        this.maxFrameSize = maxFrameSize;
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        beacons = DatagramChannel.open();
+        try {
+            server.bind(new InetSocketAddress(port));
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+            beacons.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            beacons.setOption(StandardSocketOptions.SO_BROADCAST, true);
+            beacons.bind(new InetSocketAddress(discoveryPort));
+            beacons.configureBlocking(false);
+            beacons.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            server.close();
+            beacons.close();
+            selector.close();
+            throw e;
+        }
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "NioTransport-" + localName);
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Listens for connections on {@code port} and for beacons on {@code discoveryPort}; either may
+     * be 0 for any free port. No beacons are sent until a target is added.
+     */
+    static NioTransport open(String localName, int port, int discoveryPort, int maxFrameSize)
+            throws IOException {
+        NioTransport transport = new NioTransport(localName, port, discoveryPort, maxFrameSize);
+        transport.thread.start();
+        return transport;
+    }
+
+    /**
+     * Listens on any free port and broadcasts beacons to {@link #DEFAULT_DISCOVERY_PORT}.
+     */
+    static NioTransport open(String localName) throws IOException {
+        NioTransport transport = open(localName, 0, DEFAULT_DISCOVERY_PORT, DEFAULT_MAX_FRAME_SIZE);
+        transport.addBeaconTarget(new InetSocketAddress("255.255.255.255", DEFAULT_DISCOVERY_PORT));
+        return transport;
+    }
+
+    int getLocalPort() {
+        return server.socket().getLocalPort();
+    }
+
+    int getDiscoveryPort() {
+        return beacons.socket().getLocalPort();
+    }
+
+    /**
+     * Sends beacons to {@code address} while advertising.
+     */
+    void addBeaconTarget(InetSocketAddress address) {
+        beaconTargets.add(address);
+    }
+
+    @Override
+    public int maxFrameSize() {
+        return maxFrameSize;
+    }
+
+    @Override
+    public void setReceiver(Receiver receiver) {
+        this.receiver = receiver;
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void send(String endpointId, ByteBuffer frame) {
+        if (frame.remaining() > maxFrameSize) {
+            throw new IllegalArgumentException("Frame too large: " + frame.remaining());
+        }
+        Connection c = connections.get(endpointId);
+        if (c == null) {
+            return;
+        }
+        ByteBuffer buf = acquireBuffer();
+        buf.putInt(frame.remaining()).put(frame).flip();
+        if (!enqueue(c, buf)) {
+            releaseBuffer(buf);
+        }
+    }
+
+    /**
+     * Queues {@code buf} on {@code c}, blocking while its queue is full. Returns false if the
+     * connection closed first.
+     */
+    private boolean enqueue(final Connection c, ByteBuffer buf) {
+        try {
+            while (!c.out.offer(buf, 100, TimeUnit.MILLISECONDS)) {
+                if (c.closed) {
+                    return false;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        if (c.flushScheduled.compareAndSet(false, true)) {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    c.flushScheduled.set(false);
+                    flush(c);
+                }
+            });
+        }
+        return true;
+    }
+
+    @Override
+    public void startAdvertising() {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                advertising = true;
+            }
+        });
+    }
+
+    @Override
+    public void stopAdvertising() {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                advertising = false;
+            }
+        });
+    }
+
+    @Override
+    public void startDiscovery() {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                discovering = true;
+            }
+        });
+    }
+
+    @Override
+    public void stopDiscovery() {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                discovering = false;
+                discovered.clear();
+            }
+        });
+    }
+
+    @Override
+    public void connect(final String endpointId) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                dial(endpointId);
+            }
+        });
+    }
+
+    @Override
+    public void disconnect(final String endpointId) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                Connection c = connections.get(endpointId);
+                if (c != null) {
+                    close(c);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void stopAll() {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                advertising = false;
+                discovering = false;
+                discovered.clear();
+                closeAll();
+            }
+        });
+    }
+
+    /**
+     * Drops every connection and stops the selector thread.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+        if (Thread.currentThread() != thread) {
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void post(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    private void loop() {
+        long nextBeacon = 0;
+        try {
+            while (!closed) {
+                long now = System.currentTimeMillis();
+                if (now >= nextBeacon) {
+                    sendBeacons();
+                    expirePeers(now);
+                    nextBeacon = now + BEACON_INTERVAL_MS;
+                }
+                selector.select(Math.max(1, nextBeacon - now));
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid()) {
+                        handle(key);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            closed = true;
+        } finally {
+            closeAll();
+            closeQuietly(server);
+            closeQuietly(beacons);
+            closeQuietly(selector);
+        }
+    }
+
+    private void handle(SelectionKey key) {
+        if (key.channel() == server) {
+            accept();
+            return;
+        }
+        if (key.channel() == beacons) {
+            receiveBeacons();
+            return;
+        }
+        Connection c = (Connection) key.attachment();
+        try {
+            if (key.isConnectable()) {
+                c.channel.finishConnect();
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+            if (key.isValid() && key.isReadable()) {
+                read(c);
+            }
+            if (key.isValid() && key.isWritable()) {
+                flush(c);
+            }
+        } catch (IOException e) {
+            close(c);
+        }
+    }
+
+    private void accept() {
+        SocketChannel channel;
+        try {
+            channel = server.accept();
+        } catch (IOException e) {
+            return;
+        }
+        if (channel == null) {
+            return;
+        }
+        if (!advertising) {
+            closeQuietly(channel);
+            return;
+        }
+        try {
+            Connection c = open(channel, true, null);
+            c.key = channel.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE, c);
+        } catch (IOException e) {
+            closeQuietly(channel);
+        }
+    }
+
+    private void dial(String endpointId) {
+        if (connections.containsKey(endpointId)) {
+            return;
+        }
+        Peer peer = discovered.get(endpointId);
+        String name = peer != null ? peer.name : endpointId;
+        Listener l = listener;
+        if (l != null) {
+            l.onConnectionInitiated(endpointId, name, false);
+        }
+        SocketChannel channel = null;
+        try {
+            InetSocketAddress address = parseEndpointId(endpointId);
+            channel = SocketChannel.open();
+            Connection c = open(channel, false, endpointId);
+            int ops = channel.connect(address)
+                    ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT;
+            c.key = channel.register(selector, ops, c);
+        } catch (IOException | IllegalArgumentException e) {
+            closeQuietly(channel);
+            if (l != null) {
+                l.onConnectionFailed(endpointId);
+            }
+        }
+    }
+
+    private Connection open(SocketChannel channel, boolean incoming, String endpointId)
+            throws IOException {
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        Connection c = new Connection(channel, incoming, endpointId);
+        byte[] name = nameBytes();
+        ByteBuffer hello = acquireBuffer();
+        hello.putInt(18 + name.length).putInt(HELLO_MAGIC).putLong(instanceId).putInt(getLocalPort())
+                .putShort((short) name.length).put(name).flip();
+        // Goes out first, and stays with this connection if it is superseded.
+        c.writing = hello;
+        return c;
+    }
+
+    private void read(Connection c) throws IOException {
+        if (c.channel.read(c.in) < 0) {
+            close(c);
+            return;
+        }
+        c.in.flip();
+        try {
+            while (c.in.remaining() >= 4) {
+                int length = c.in.getInt(c.in.position());
+                if (length == MOVED && c.established) {
+                    c.in.position(c.in.position() + 4);
+                    c.peerMoved = true;
+                    flush(c);
+                    if (c.closed) {
+                        return;
+                    }
+                    continue;
+                }
+                if (length < 0 || length > maxFrameSize) {
+                    close(c);
+                    return;
+                }
+                if (c.in.remaining() < 4 + length) {
+                    break;
+                }
+                c.in.position(c.in.position() + 4);
+                ByteBuffer frame = ByteBuffer.allocate(length);
+                int limit = c.in.limit();
+                c.in.limit(c.in.position() + length);
+                frame.put(c.in).flip();
+                c.in.limit(limit);
+                if (c.established) {
+                    Receiver r = receiver;
+                    if (r != null) {
+                        r.onFrameReceived(c.endpointId, frame);
+                    }
+                } else if (!onHello(c, frame)) {
+                    close(c);
+                    return;
+                }
+            }
+        } finally {
+            c.in.compact();
+        }
+    }
+
+    private boolean onHello(Connection c, ByteBuffer hello) {
+        if (hello.remaining() < 18 || hello.getInt() != HELLO_MAGIC) {
+            return false;
+        }
+        long peerId = hello.getLong();
+        int port = hello.getInt();
+        int nameLength = hello.getShort() & 0xffff;
+        if (hello.remaining() != nameLength) {
+            return false;
+        }
+        byte[] name = new byte[nameLength];
+        hello.get(name);
+        if (c.incoming) {
+            InetSocketAddress remote = (InetSocketAddress) c.channel.socket().getRemoteSocketAddress();
+            c.endpointId = remote.getAddress().getHostAddress() + ":" + port;
+        }
+        c.dialer = c.incoming ? peerId : instanceId;
+        c.established = true;
+        Connection existing = connections.putIfAbsent(c.endpointId, c);
+        if (existing != null) {
+            // Both sides dialed at once. Each side sees both connections with the same dialers,
+            // so both keep the same one. Frames still arriving on the other are delivered until
+            // it is shut down.
+            Connection loser = existing.dialer <= c.dialer ? c : existing;
+            if (loser == existing) {
+                connections.replace(c.endpointId, existing, c);
+            }
+            loser.superseded = true;
+            flush(loser);
+            // Either way the endpoint stays connected, as the listener was told already.
+            return true;
+        }
+        Listener l = listener;
+        if (l != null) {
+            if (c.incoming) {
+                l.onConnectionInitiated(c.endpointId, new String(name, UTF_8), true);
+            }
+            l.onConnected(c.endpointId);
+        }
+        return true;
+    }
+
+    private void flush(Connection c) {
+        if (c.superseded) {
+            handOver(c);
+        }
+        if (c.closed) {
+            return;
+        }
+        try {
+            while (true) {
+                if (c.writing == null && c.superseded) {
+                    if (!c.movedSent) {
+                        c.movedSent = true;
+                        c.writing = acquireBuffer();
+                        c.writing.putInt(MOVED).flip();
+                    } else {
+                        if (c.peerMoved) {
+                            c.channel.shutdownOutput();
+                        }
+                        c.key.interestOps(SelectionKey.OP_READ);
+                        return;
+                    }
+                } else if (c.writing == null) {
+                    c.writing = c.out.poll();
+                    if (c.writing == null) {
+                        if ((c.key.interestOps() & SelectionKey.OP_CONNECT) == 0) {
+                            c.key.interestOps(SelectionKey.OP_READ);
+                        }
+                        return;
+                    }
+                }
+                c.channel.write(c.writing);
+                if (c.writing.hasRemaining()) {
+                    c.key.interestOps(c.key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                releaseBuffer(c.writing);
+                c.writing = null;
+            }
+        } catch (IOException e) {
+            close(c);
+        }
+    }
+
+    /**
+     * Moves the frames queued on a superseded connection, including any queued by senders that
+     * looked it up just before it was replaced, to the connection that replaced it.
+     */
+    private void handOver(Connection c) {
+        Connection current = connections.get(c.endpointId);
+        ByteBuffer buf;
+        while ((buf = c.out.poll()) != null) {
+            if (current == null || current == c || !current.out.offer(buf)) {
+                releaseBuffer(buf);
+            }
+        }
+        if (current != null && current != c) {
+            flush(current);
+        }
+    }
+
+    private void close(Connection c) {
+        if (c.closed) {
+            return;
+        }
+        c.closed = true;
+        if (c.key != null) {
+            c.key.cancel();
+        }
+        closeQuietly(c.channel);
+        if (c.writing != null) {
+            releaseBuffer(c.writing);
+            c.writing = null;
+        }
+        if (c.superseded) {
+            handOver(c);
+        }
+        ByteBuffer buf;
+        while ((buf = c.out.poll()) != null) {
+            releaseBuffer(buf);
+        }
+        Listener l = listener;
+        if (c.superseded) {
+            // Replaced in connections already, and the endpoint is still connected.
+            return;
+        }
+        if (c.established) {
+            connections.remove(c.endpointId, c);
+            if (l != null) {
+                l.onDisconnected(c.endpointId);
+            }
+        } else if (!c.incoming && l != null) {
+            l.onConnectionFailed(c.endpointId);
+        }
+    }
+
+    private void closeAll() {
+        for (Connection c : new ArrayList<>(connections.values())) {
+            close(c);
+        }
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection) {
+                close((Connection) key.attachment());
+            }
+        }
+    }
+
+    private void sendBeacons() {
+        if (!advertising || beaconTargets.isEmpty()) {
+            return;
+        }
+        byte[] name = nameBytes();
+        beaconBuffer.clear();
+        beaconBuffer.putInt(BEACON_MAGIC).putLong(instanceId).putInt(getLocalPort())
+                .putShort((short) name.length).put(name).flip();
+        for (InetSocketAddress target : beaconTargets) {
+            try {
+                beacons.send(beaconBuffer.duplicate(), target);
+            } catch (IOException e) {
+                // Unreachable targets are retried with the next beacon.
+            }
+        }
+    }
+
+    private void receiveBeacons() {
+        long now = System.currentTimeMillis();
+        while (true) {
+            beaconBuffer.clear();
+            InetSocketAddress source;
+            try {
+                source = (InetSocketAddress) beacons.receive(beaconBuffer);
+            } catch (IOException e) {
+                return;
+            }
+            if (source == null) {
+                return;
+            }
+            beaconBuffer.flip();
+            if (!discovering || beaconBuffer.remaining() < 18 || beaconBuffer.getInt() != BEACON_MAGIC
+                    || beaconBuffer.getLong() == instanceId) {
+                continue;
+            }
+            int port = beaconBuffer.getInt();
+            int nameLength = beaconBuffer.getShort() & 0xffff;
+            if (beaconBuffer.remaining() != nameLength) {
+                continue;
+            }
+            byte[] name = new byte[nameLength];
+            beaconBuffer.get(name);
+            String endpointId = source.getAddress().getHostAddress() + ":" + port;
+            Peer peer = discovered.get(endpointId);
+            if (peer == null) {
+                peer = new Peer(new String(name, UTF_8));
+                discovered.put(endpointId, peer);
+                Listener l = listener;
+                if (l != null) {
+                    l.onEndpointFound(endpointId, peer.name);
+                }
+            }
+            peer.lastSeen = now;
+        }
+    }
+
+    private void expirePeers(long now) {
+        Iterator<Map.Entry<String, Peer>> it = discovered.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Peer> entry = it.next();
+            if (now - entry.getValue().lastSeen > BEACON_TIMEOUT_MS) {
+                it.remove();
+                Listener l = listener;
+                if (l != null) {
+                    l.onEndpointLost(entry.getKey());
+                }
+            }
+        }
+    }
+
+    private byte[] nameBytes() {
+        byte[] name = localName.getBytes(UTF_8);
+        if (name.length > MAX_NAME_BYTES) {
+            byte[] truncated = new byte[MAX_NAME_BYTES];
+            System.arraycopy(name, 0, truncated, 0, truncated.length);
+            return truncated;
+        }
+        return name;
+    }
+
+    private ByteBuffer acquireBuffer() {
+        ByteBuffer buf = bufferPool.poll();
+        if (buf == null) {
+            return ByteBuffer.allocateDirect(maxFrameSize + 4);
+        }
+        pooledBuffers.decrementAndGet();
+        buf.clear();
+        return buf;
+    }
+
+    private void releaseBuffer(ByteBuffer buf) {
+        if (pooledBuffers.incrementAndGet() <= MAX_POOLED_BUFFERS) {
+            bufferPool.add(buf);
+        } else {
+            pooledBuffers.decrementAndGet();
+        }
+    }
+
+    private static InetSocketAddress parseEndpointId(String endpointId) {
+        int colon = endpointId.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("Not a host:port endpoint: " + endpointId);
+        }
+        return new InetSocketAddress(endpointId.substring(0, colon),
+                Integer.parseInt(endpointId.substring(colon + 1)));
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing left to do with it.
+        }
+    }
+}
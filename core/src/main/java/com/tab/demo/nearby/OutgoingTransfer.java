@@ -0,0 +1,421 @@
+package com.tab.demo.nearby;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Sender side state of one file transfer. The sender thread blocks in {@link #nextChunk} and the
+ * {@code await*} methods while the receive thread feeds acknowledgements in. A suspended transfer
+ * keeps its source open and is continued on a new connection with
+ * {@link #OutgoingTransfer(OutgoingTransfer, String)}.
+ *
+ * <p>A stream starts with no chunks. {@link #nextChunk} asks for more with {@link #NEED_DATA},
+ * and the sender reads them and calls {@link #extend}, so at most a window of chunks is
+ * buffered. Streams cannot be resumed.
+ *
+ * <p>Every chunk sent is timed until it is acknowledged, for the {@link CongestionController}
+ * that sizes the window. A chunk counts as lost once a chunk sent well after it is acknowledged
+ * first, or once it has gone unacknowledged for a whole retransmission timeout, and is sent
+ * again. Over a reliable transport that only happens when acknowledgements are very late.
+ *
+ * <p>A receiver that paces the sender to a slow reader holds acknowledgements back, and says so
+ * with a hold for each chunk it has. A held chunk is no longer in flight, so it is neither timed
+ * out nor counted as lost, but it keeps its slot in the window until the acknowledgement.
+ */
+class OutgoingTransfer {
+    // Returned by nextChunk when a stream has to be read further.
+    static final int NEED_DATA = -2;
+
+    final long id;
+    final String endpointId;
+    final ChunkSource source;
+    // Non-null for a stream; the same object as source.
+    final StreamChunkSource stream;
+    // Frame.UNKNOWN_SIZE for a stream.
+    final long size;
+    final String name;
+    final TransferProgress progress;
+    // Set by the engine when the transfer starts.
+    TransferStats stats;
+    CongestionController congestion = new CongestionController(null);
+    // Non-null when the file is sent as a content manifest, see ContentManifest.Shared.
+    final ContentManifest.Shared sharedManifest;
+    byte[] fingerprint;
+    // Non-null when the source is the concatenation of these files, see BatchChunkSource.
+    List<BatchFile> batch;
+    // The flow of a relayed file and the hops it may still travel, see MeshRelay; 0 otherwise.
+    long flowId;
+    int ttl;
+
+    private volatile ChunkLayout layout;
+    private volatile ContentManifest manifest;
+    // Only used by the sender thread.
+    private byte[][] hashes;
+    private BitSet acked;
+    private BitSet resend = new BitSet();
+    // Chunks sent and neither acknowledged nor given up on, when each was last sent, and which
+    // were sent more than once.
+    private final BitSet flying = new BitSet();
+    private long[] sentAt;
+    private final BitSet resent = new BitSet();
+    // Chunks the receiver has, but holds back the acknowledgement of.
+    private final BitSet held = new BitSet();
+    private int heldCount;
+    private int next;
+    private int ackedCount;
+    private long bytesAcked;
+    private int inFlight;
+    private boolean ended;
+    private boolean accepted;
+    private boolean verified;
+    private boolean cancelled;
+    private boolean suspended;
+    private long lastProgress = System.currentTimeMillis();
+
+    OutgoingTransfer(long id, String endpointId, ChunkSource source, long size, int chunkSize,
+                     String name, ContentManifest.Shared sharedManifest) {
+        this(id, endpointId, source, size, chunkSize, name, sharedManifest,
+                new TransferProgress(endpointId, id, size));
+    }
+
+    private OutgoingTransfer(long id, String endpointId, ChunkSource source, long size, int chunkSize,
+                             String name, ContentManifest.Shared sharedManifest,
+                             TransferProgress progress) {
+        this.id = id;
+        this.endpointId = endpointId;
+        this.source = source;
+        this.stream = source instanceof StreamChunkSource ? (StreamChunkSource) source : null;
+        this.size = size;
+        this.name = name;
+        this.sharedManifest = sharedManifest;
+        this.progress = progress;
+        this.ended = stream == null;
+        this.layout = ChunkLayout.fixed(Math.max(0, size), chunkSize);
+        this.acked = new BitSet(layout.count());
+        this.hashes = new byte[layout.count()][];
+        this.sentAt = new long[layout.count()];
+    }
+
+    OutgoingTransfer(OutgoingTransfer previous, String endpointId) {
+        this(previous.id, endpointId, previous.source, previous.size, previous.layout.maxLength(),
+                previous.name, previous.sharedManifest, previous.progress);
+        this.fingerprint = previous.fingerprint;
+        this.batch = previous.batch;
+        this.flowId = previous.flowId;
+        this.ttl = previous.ttl;
+        if (previous.manifest != null) {
+            useManifest(previous.manifest);
+        } else {
+            this.hashes = previous.hashes;
+        }
+    }
+
+    /**
+     * Switches to the chunk boundaries of {@code manifest}. Only valid before the offer is sent.
+     */
+    synchronized void useManifest(ContentManifest manifest) {
+        this.manifest = manifest;
+        this.layout = manifest.layout;
+        this.acked = new BitSet(layout.count());
+        this.hashes = manifest.hashes;
+        this.sentAt = new long[layout.count()];
+        this.ackedCount = 0;
+        this.bytesAcked = 0;
+    }
+
+    /**
+     * The hash of chunk {@code index}, or null if the chunk has not been read yet.
+     */
+    byte[] chunkHash(int index) {
+        return hashes[index];
+    }
+
+    void setChunkHash(int index, byte[] hash) {
+        hashes[index] = hash;
+    }
+
+    /**
+     * The root hash; every chunk hash has to be known by now.
+     */
+    byte[] rootHash() {
+        int count = layout.count();
+        return ChunkHashes.root(hashes.length == count ? hashes : Arrays.copyOf(hashes, count));
+    }
+
+    /**
+     * Makes the chunks a stream has been read up to available for sending. Sender thread only.
+     *
+     * @param ended whether the stream is read completely, which makes {@code size} final
+     */
+    synchronized void extend(long size, boolean ended) {
+        layout = ChunkLayout.fixed(size, layout.maxLength());
+        if (hashes.length < layout.count()) {
+            hashes = Arrays.copyOf(hashes, Math.max(layout.count(), hashes.length * 2));
+            sentAt = Arrays.copyOf(sentAt, hashes.length);
+        }
+        this.ended = ended;
+    }
+
+    ContentManifest manifest() {
+        return manifest;
+    }
+
+    ChunkLayout layout() {
+        return layout;
+    }
+
+    synchronized long bytesAcked() {
+        return bytesAcked;
+    }
+
+    /**
+     * Marks the chunks the receiver already has as acknowledged, so they are not sent again.
+     */
+    synchronized void onAccepted(BitSet committed) {
+        int chunkCount = layout.count();
+        for (int i = committed.nextSetBit(0); i >= 0 && i < chunkCount; i = committed.nextSetBit(i + 1)) {
+            if (!acked.get(i)) {
+                acked.set(i);
+                ackedCount++;
+                bytesAcked += layout.length(i);
+            }
+        }
+        accepted = true;
+        lastProgress = System.currentTimeMillis();
+        notifyAll();
+    }
+
+    /**
+     * Returns false if the chunk had already been acknowledged.
+     */
+    synchronized boolean onAck(int index) {
+        if (index < 0 || index >= layout.count() || acked.get(index)) {
+            return false;
+        }
+        acked.set(index);
+        ackedCount++;
+        bytesAcked += layout.length(index);
+        if (held.get(index)) {
+            // Arrived a while ago; only its slot in the window is freed now.
+            held.clear(index);
+            heldCount--;
+        } else {
+            onArrived(index);
+        }
+        if (stream != null) {
+            stream.release(index);
+        }
+        lastProgress = System.currentTimeMillis();
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * The receiver has the chunk, but holds back its acknowledgement until its reader catches up.
+     *
+     * @return false if the chunk had already been acknowledged or held
+     */
+    synchronized boolean onHold(int index) {
+        if (index < 0 || index >= layout.count() || acked.get(index) || held.get(index)) {
+            return false;
+        }
+        held.set(index);
+        heldCount++;
+        onArrived(index);
+        lastProgress = System.currentTimeMillis();
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Takes a chunk out of flight once the receiver has it, and times its round trip.
+     */
+    private void onArrived(int index) {
+        if (flying.get(index)) {
+            flying.clear(index);
+            inFlight--;
+        }
+        // Late for a chunk given up on, which needs no second copy then.
+        resend.clear(index);
+        long now = System.nanoTime();
+        congestion.onAck(resent.get(index) ? -1 : now - sentAt[index], layout.length(index), now);
+        if (!resent.get(index)) {
+            detectLosses(sentAt[index] - congestion.reorderNanos(), now);
+        }
+    }
+
+    /**
+     * Gives up on the chunks in flight that were sent before {@code sentBefore}.
+     *
+     * @return the number of chunks given up on
+     */
+    private int detectLosses(long sentBefore, long now) {
+        int lost = 0;
+        for (int i = flying.nextSetBit(0); i >= 0; i = flying.nextSetBit(i + 1)) {
+            if (sentAt[i] < sentBefore) {
+                flying.clear(i);
+                inFlight--;
+                resend.set(i);
+                lost++;
+            }
+        }
+        if (lost > 0) {
+            congestion.onLoss(now);
+            if (stats != null) {
+                stats.onRetry(lost);
+            }
+        }
+        return lost;
+    }
+
+    /**
+     * Takes back the acknowledgement of chunks the receiver could not verify and queues them to
+     * be sent again.
+     */
+    synchronized void onNack(BitSet chunks) {
+        int chunkCount = layout.count();
+        for (int i = chunks.nextSetBit(0); i >= 0 && i < chunkCount; i = chunks.nextSetBit(i + 1)) {
+            if (acked.get(i)) {
+                acked.clear(i);
+                ackedCount--;
+                bytesAcked -= layout.length(i);
+            } else if (flying.get(i)) {
+                flying.clear(i);
+                inFlight--;
+            } else if (held.get(i)) {
+                held.clear(i);
+                heldCount--;
+            }
+            resend.set(i);
+        }
+        congestion.onLoss(System.nanoTime());
+        lastProgress = System.currentTimeMillis();
+        notifyAll();
+    }
+
+    synchronized void onVerified() {
+        verified = true;
+        lastProgress = System.currentTimeMillis();
+        notifyAll();
+    }
+
+    synchronized void cancel() {
+        cancelled = true;
+        notifyAll();
+    }
+
+    synchronized void suspend() {
+        suspended = true;
+        notifyAll();
+    }
+
+    /**
+     * The first chunk from {@code from} on that is not acknowledged yet, or -1 if there is none.
+     */
+    synchronized int nextUnacked(int from) {
+        int index = acked.nextClearBit(from);
+        return index < layout.count() ? index : -1;
+    }
+
+    synchronized boolean isSuspended() {
+        return suspended && !cancelled;
+    }
+
+    synchronized void awaitAccepted(long timeoutMs) throws IOException, InterruptedException {
+        while (!accepted) {
+            waitForProgress(timeoutMs);
+        }
+    }
+
+    /**
+     * Blocks until fewer than {@code window} chunks are in flight or held and claims a slot for the
+     * next chunk to send: one that was lost or rejected, else the next one not yet acknowledged.
+     *
+     * @param window the number of chunks allowed in flight, or 0 to let the
+     * {@link CongestionController} decide
+     * @return the chunk index, -1 once every chunk is acknowledged, or {@link #NEED_DATA} when a
+     * stream has room in the window but no chunk left that was read
+     */
+    synchronized int nextChunk(int window, long timeoutMs) throws IOException, InterruptedException {
+        checkRunning();
+        while (true) {
+            long now = System.nanoTime();
+            long rto = congestion.rtoNanos();
+            if (detectLosses(now - rto, now) > 0 && inFlight == 0) {
+                congestion.onTimeout(now);
+            }
+            int limit = window > 0 ? window : congestion.window();
+            int index = resend.nextSetBit(0);
+            boolean retry = index >= 0;
+            if (!retry) {
+                while (next < layout.count() && acked.get(next)) {
+                    next++;
+                }
+                index = next < layout.count() ? next : -1;
+            }
+            // Held chunks keep their slots, so a receiver holding back acks stops the sender.
+            int used = inFlight + heldCount;
+            if (index >= 0 && used < limit) {
+                if (retry) {
+                    resend.clear(index);
+                } else {
+                    next++;
+                }
+                if (sentAt[index] != 0) {
+                    resent.set(index);
+                }
+                sentAt[index] = now;
+                flying.set(index);
+                inFlight++;
+                return index;
+            }
+            if (index < 0 && !ended && used < limit) {
+                return NEED_DATA;
+            }
+            if (index < 0 && ended && ackedCount == layout.count()) {
+                return -1;
+            }
+            waitForProgress(timeoutMs, rto / 1000000 + 1);
+        }
+    }
+
+    /**
+     * Waits for the receiver's verdict on the root hash.
+     *
+     * @return true if the file verified, false if chunks were rejected and have to be sent again
+     */
+    synchronized boolean awaitVerified(long timeoutMs) throws IOException, InterruptedException {
+        while (!verified && ackedCount == layout.count()) {
+            waitForProgress(timeoutMs);
+        }
+        return verified;
+    }
+
+    private void waitForProgress(long timeoutMs) throws IOException, InterruptedException {
+        waitForProgress(timeoutMs, Long.MAX_VALUE);
+    }
+
+    /**
+     * Waits for news from the receiver, at most {@code maxWaitMs}.
+     */
+    private void waitForProgress(long timeoutMs, long maxWaitMs) throws IOException, InterruptedException {
+        checkRunning();
+        long remaining = lastProgress + timeoutMs - System.currentTimeMillis();
+        if (remaining <= 0) {
+            throw new IOException("Transfer " + id + " stalled for " + timeoutMs + " ms");
+        }
+        wait(Math.min(remaining, maxWaitMs));
+        checkRunning();
+    }
+
+    private void checkRunning() throws IOException {
+        if (cancelled) {
+            throw new IOException("Transfer " + id + " cancelled");
+        }
+        if (suspended) {
+            throw new IOException("Transfer " + id + " suspended");
+        }
+    }
+}
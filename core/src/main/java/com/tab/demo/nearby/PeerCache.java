@@ -0,0 +1,195 @@
+package com.tab.demo.nearby;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * What is known about peers connected to before, by the id each announces when connecting, since
+ * endpoint ids change with every discovery and names are only a device model: the name it was last
+ * found under, when it was last seen, the capabilities it announced and how good the link to it
+ * was. Every peer in the cache is trusted, which lets {@link TransferNode} reconnect to it without
+ * being asked, until it is {@link #forget forgotten}.
+ *
+ * <p>Kept in one small file that is replaced atomically on {@link #save}, so it survives restarts.
+ * At most {@link #MAX_PEERS} are kept; the ones seen longest ago are dropped first.
+ */
+class PeerCache {
+    static final int MAX_PEERS = 256;
+    private static final int MAGIC = 0x4E504332;
+
+    /**
+     * A snapshot of one peer.
+     */
+    static class Peer {
+        // Announced by the peer itself, see TransferNode#setLocalId.
+        final String id;
+        final String name;
+        final long lastSeenMillis;
+        // Announced by the peer itself, see TransferNode#setCapabilities.
+        final int capabilities;
+        // Of the last connection, 0 if not measured.
+        final long bytesPerSecond;
+        final long rttMillis;
+
+        Peer(String id, String name, long lastSeenMillis, int capabilities, long bytesPerSecond,
+             long rttMillis) {
+            this.id = id;
+            this.name = name;
+            this.lastSeenMillis = lastSeenMillis;
+            this.capabilities = capabilities;
+            this.bytesPerSecond = bytesPerSecond;
+            this.rttMillis = rttMillis;
+        }
+    }
+
+    private final File file;
+    // In order of last sighting, oldest first; guarded by this.
+    private final LinkedHashMap<String, Peer> peers = new LinkedHashMap<String, Peer>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Peer> eldest) {
+            return size() > MAX_PEERS;
+        }
+    };
+    private boolean dirty;
+
+    private PeerCache(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads the cache from {@code file}, starting empty if there is none, it is unreadable or it
+     * was written by a version that kept peers by name.
+     */
+    static PeerCache load(File file) {
+        PeerCache cache = new PeerCache(file);
+        if (!file.isFile()) {
+            return cache;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if (in.readInt() != MAGIC) {
+                return cache;
+            }
+            for (int count = in.readInt(); count > 0; count--) {
+                Peer peer = new Peer(in.readUTF(), in.readUTF(), in.readLong(), in.readInt(),
+                        in.readLong(), in.readLong());
+                cache.peers.put(peer.id, peer);
+            }
+        } catch (IOException e) {
+            cache.peers.clear();
+        }
+        return cache;
+    }
+
+    synchronized Peer get(String id) {
+        return peers.get(id);
+    }
+
+    /**
+     * All peers, the most recently seen first.
+     */
+    synchronized List<Peer> peers() {
+        List<Peer> list = new ArrayList<>(peers.values());
+        Collections.reverse(list);
+        return list;
+    }
+
+    synchronized Set<String> trustedIds() {
+        return new HashSet<>(peers.keySet());
+    }
+
+    synchronized boolean isTrusted(String id) {
+        return peers.containsKey(id);
+    }
+
+    /**
+     * Whether a trusted peer was last found under {@code name}. Names are not unique, so this only
+     * tells which endpoints are worth connecting to; the id they announce then tells who they are.
+     */
+    synchronized boolean hasTrustedName(String name) {
+        for (Peer peer : peers.values()) {
+            if (peer.name.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Records a connection to the peer {@code id}, found under {@code name}, trusting it from now on.
+     */
+    synchronized void onConnected(String id, String name, int capabilities, long nowMillis) {
+        Peer peer = peers.remove(id);
+        put(peer == null ? new Peer(id, name, nowMillis, capabilities, 0, 0)
+                : new Peer(id, name, nowMillis, capabilities, peer.bytesPerSecond, peer.rttMillis));
+    }
+
+    /**
+     * Records the link quality of a connection that ended; zeros keep what was known.
+     */
+    synchronized void onLinkMeasured(String id, long bytesPerSecond, long rttMillis) {
+        Peer peer = peers.get(id);
+        if (peer != null && (bytesPerSecond > 0 || rttMillis > 0)) {
+            put(new Peer(id, peer.name, peer.lastSeenMillis, peer.capabilities,
+                    bytesPerSecond > 0 ? bytesPerSecond : peer.bytesPerSecond,
+                    rttMillis > 0 ? rttMillis : peer.rttMillis));
+        }
+    }
+
+    /**
+     * Drops everything known about {@code id}, including the trust.
+     */
+    synchronized void forget(String id) {
+        if (peers.remove(id) != null) {
+            dirty = true;
+        }
+    }
+
+    private void put(Peer peer) {
+        peers.put(peer.id, peer);
+        dirty = true;
+    }
+
+    /**
+     * Writes the cache if it changed since it was loaded or last saved.
+     */
+    synchronized void save() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        File tmp = new File(dir, file.getName() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            DataOutputStream out = new DataOutputStream(fos);
+            out.writeInt(MAGIC);
+            out.writeInt(peers.size());
+            for (Peer peer : peers.values()) {
+                out.writeUTF(peer.id);
+                out.writeUTF(peer.name);
+                out.writeLong(peer.lastSeenMillis);
+                out.writeInt(peer.capabilities);
+                out.writeLong(peer.bytesPerSecond);
+                out.writeLong(peer.rttMillis);
+            }
+            out.flush();
+            fos.getFD().sync();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Cannot replace " + file);
+        }
+        dirty = false;
+    }
+}
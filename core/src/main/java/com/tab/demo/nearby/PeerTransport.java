@@ -0,0 +1,56 @@
+package com.tab.demo.nearby;
+
+/**
+ * A {@link Transport} that also finds peers and manages the connections to them, so everything
+ * above it runs unchanged over Nearby Connections, in memory or over TCP.
+ *
+ * <p>Incoming connections are accepted automatically. Listener callbacks may come on any thread,
+ * but never concurrently for the same endpoint.
+ */
+interface PeerTransport extends Transport {
+
+    interface Listener {
+        void onEndpointFound(String endpointId, String name);
+
+        void onEndpointLost(String endpointId);
+
+        /**
+         * A connection is being set up, asked for by us or, if {@code incoming}, by the peer.
+         */
+        void onConnectionInitiated(String endpointId, String name, boolean incoming);
+
+        void onConnected(String endpointId);
+
+        void onConnectionFailed(String endpointId);
+
+        /**
+         * The connection is gone, including after our own {@link #disconnect}.
+         */
+        void onDisconnected(String endpointId);
+    }
+
+    void setListener(Listener listener);
+
+    /**
+     * Makes this endpoint visible to discovering peers and lets them connect.
+     */
+    void startAdvertising();
+
+    void stopAdvertising();
+
+    void startDiscovery();
+
+    void stopDiscovery();
+
+    /**
+     * Asks for a connection; the outcome is reported to the {@link Listener}.
+     */
+    void connect(String endpointId);
+
+    void disconnect(String endpointId);
+
+    /**
+     * Stops advertising and discovery and drops every connection.
+     */
+    void stopAll();
+}
@@ -0,0 +1,198 @@
+package com.tab.demo.nearby;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Reads the chunks of an outgoing transfer ahead of its sender, on an I/O executor into direct
+ * buffers from a {@link BufferPool}. While the sender waits for the window or the transport, the
+ * next chunks come off the disk, so slow storage overlaps with sending instead of adding to it.
+ *
+ * <p>Chunks are read one at a time in order, after the last one the sender asked for, skipping
+ * those already acknowledged. Any other chunk, like one sent again after a NACK, is read directly.
+ * Sources need not be thread-safe, so every read of the source of the transfer has to go through
+ * here while a read-ahead is open.
+ */
+class ReadAhead {
+    private final OutgoingTransfer transfer;
+    private final BufferPool pool;
+    private final Executor executor;
+    private final Slot[] slots;
+    private final Object sourceLock = new Object();
+    private final Runnable task = new Runnable() {
+        @Override
+        public void run() {
+            readAhead();
+        }
+    };
+    // Guarded by this. The task is reading while it is queued or running, and running once a
+    // thread picked it up; a task an executor dropped on shutdown stays reading but never runs.
+    private int next;
+    private boolean reading;
+    private boolean running;
+    private boolean stopped;
+
+    private static class Slot {
+        // -1 while free.
+        int index = -1;
+        ByteBuffer buffer;
+        boolean ready;
+    }
+
+    /**
+     * @param depth how many chunks to keep read ahead; 0 reads every chunk directly
+     */
+    ReadAhead(OutgoingTransfer transfer, BufferPool pool, Executor executor, int depth) {
+        this.transfer = transfer;
+        this.pool = pool;
+        this.executor = executor;
+        this.slots = new Slot[depth];
+        for (int i = 0; i < depth; i++) {
+            slots[i] = new Slot();
+        }
+        fill();
+    }
+
+    /**
+     * Fills {@code dst} with chunk {@code index}, from memory if it was read ahead.
+     */
+    void read(int index, ByteBuffer dst) throws IOException, InterruptedException {
+        ByteBuffer ready = null;
+        synchronized (this) {
+            Slot slot;
+            while ((slot = slot(index)) != null && !slot.ready) {
+                wait();
+            }
+            if (slot != null) {
+                ready = slot.buffer;
+                free(slot);
+            }
+            if (index >= next) {
+                next = index + 1;
+            }
+            // Chunks read ahead that the sender went past are not going to be asked for.
+            for (Slot behind : slots) {
+                if (behind.ready && behind.index < index) {
+                    pool.release(behind.buffer);
+                    free(behind);
+                }
+            }
+        }
+        if (ready != null) {
+            dst.put(ready);
+            pool.release(ready);
+        } else {
+            read(dst, transfer.layout().offset(index));
+        }
+        fill();
+    }
+
+    /**
+     * Reads from the source directly.
+     */
+    void read(ByteBuffer dst, long position) throws IOException {
+        synchronized (sourceLock) {
+            transfer.source.read(dst, position);
+        }
+    }
+
+    /**
+     * Stops reading ahead and returns all buffers to the pool. Waits for a read in progress, so
+     * the source can be closed afterwards, unless interrupted; closing the source under the read
+     * only fails that read. A task still queued reads nothing once stopped, so it is not waited
+     * for, nor is one the executor dropped.
+     */
+    synchronized void close() {
+        stopped = true;
+        for (Slot slot : slots) {
+            if (slot.ready) {
+                pool.release(slot.buffer);
+                free(slot);
+            }
+        }
+        try {
+            while (running) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized void fill() {
+        if (reading || stopped || freeSlot() == null || transfer.nextUnacked(next) < 0) {
+            return;
+        }
+        reading = true;
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            reading = false;
+            stopped = true;
+        }
+    }
+
+    private void readAhead() {
+        while (true) {
+            Slot slot;
+            int index;
+            ByteBuffer buffer;
+            synchronized (this) {
+                running = true;
+                slot = freeSlot();
+                index = transfer.nextUnacked(next);
+                buffer = stopped || slot == null || index < 0 ? null : pool.acquire();
+                if (buffer == null) {
+                    reading = false;
+                    running = false;
+                    notifyAll();
+                    return;
+                }
+                slot.index = index;
+                slot.buffer = buffer;
+                next = index + 1;
+            }
+            boolean read = false;
+            try {
+                buffer.limit(transfer.layout().length(index));
+                read(buffer, transfer.layout().offset(index));
+                buffer.flip();
+                read = true;
+            } catch (IOException | RuntimeException ignored) {
+                // The sender reads the chunk itself and gets the error then. Either way the slot
+                // is given up below, so nobody waits for it.
+            }
+            synchronized (this) {
+                if (read && !stopped) {
+                    slot.ready = true;
+                } else {
+                    pool.release(buffer);
+                    free(slot);
+                    stopped = true;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    private Slot slot(int index) {
+        for (Slot slot : slots) {
+            if (slot.index == index) {
+                return slot;
+            }
+        }
+        return null;
+    }
+
+    private Slot freeSlot() {
+        return slot(-1);
+    }
+
+    private static void free(Slot slot) {
+        slot.index = -1;
+        slot.buffer = null;
+        slot.ready = false;
+    }
+}
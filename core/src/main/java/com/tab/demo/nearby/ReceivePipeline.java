@@ -0,0 +1,176 @@
+package com.tab.demo.nearby;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What happens to a file once it is received, such as finding its type, making a thumbnail and
+ * moving it where it belongs. Every file goes through the {@link #addStage stages} in order, and
+ * independent files go through them in parallel on a fixed pool of workers, so a burst of files
+ * neither holds up the thread that received them nor runs everything at once.
+ *
+ * <p>At most {@code maxQueued} files wait for a worker. Beyond that {@link #submit} waits for
+ * room, while {@link #offer} gives up. Callbacks of the transfer engine and of Nearby have to use
+ * offer: the engine receives every transfer on one thread, so waiting there would stall all
+ * transfers at once, not just the sender of the file, until they time out.
+ *
+ * <p>The time each file spends waiting and in each stage is recorded per stage in
+ * {@link Metrics}.
+ */
+class ReceivePipeline {
+    static final int DEFAULT_THREADS = 2;
+    static final int DEFAULT_MAX_QUEUED = 32;
+    // Recorded like a stage, for the time files wait for a worker.
+    static final String WAIT = "wait";
+
+    /**
+     * A received file on its way through the stages, seen by one stage at a time.
+     */
+    static class Item {
+        final String endpointId;
+        final long transferId;
+        // Stages that move the file update this.
+        File file;
+        // Set by the stage that sniffs the content, see ContentSniffer.
+        String mimeType;
+        File thumbnail;
+        private final long submittedNanos = System.nanoTime();
+
+        Item(String endpointId, long transferId, File file) {
+            this.endpointId = endpointId;
+            this.transferId = transferId;
+            this.file = file;
+        }
+    }
+
+    interface Stage {
+        /**
+         * Does the work of this stage on {@code item}. A file that fails a stage skips the rest.
+         */
+        void process(Item item) throws Exception;
+    }
+
+    interface Listener {
+        /**
+         * Called on a worker once {@code item} passed every stage.
+         */
+        void onProcessed(Item item);
+
+        void onFailed(Item item, String stage, Exception e);
+    }
+
+    private static class NamedStage {
+        final String name;
+        final Stage stage;
+
+        NamedStage(String name, Stage stage) {
+            this.name = name;
+            this.stage = stage;
+        }
+    }
+
+    private final ExecutorService workers;
+    // Free places for files, running or waiting.
+    private final Semaphore room;
+    private final Listener listener;
+    private volatile List<NamedStage> stages = new ArrayList<>();
+    private volatile Metrics metrics = new Metrics();
+
+    ReceivePipeline(Listener listener) {
+        this(DEFAULT_THREADS, DEFAULT_MAX_QUEUED, listener);
+    }
+
+    ReceivePipeline(int threads, int maxQueued, Listener listener) {
+        if (threads < 1 || maxQueued < 0) {
+            throw new IllegalArgumentException("Bad pipeline size " + threads + "/" + maxQueued);
+        }
+        this.workers = Executors.newFixedThreadPool(threads);
+        this.room = new Semaphore(threads + maxQueued);
+        this.listener = listener;
+    }
+
+    void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Appends a stage; files submitted afterwards go through it after the ones added before.
+     */
+    synchronized void addStage(String name, Stage stage) {
+        List<NamedStage> updated = new ArrayList<>(stages);
+        updated.add(new NamedStage(name, stage));
+        stages = updated;
+    }
+
+    /**
+     * Queues {@code file}, waiting while the pipeline is full.
+     */
+    void submit(String endpointId, long transferId, File file) throws InterruptedException {
+        room.acquire();
+        start(new Item(endpointId, transferId, file));
+    }
+
+    /**
+     * Queues {@code file} unless the pipeline is full, and returns whether it did.
+     */
+    boolean offer(String endpointId, long transferId, File file) {
+        if (!room.tryAcquire()) {
+            return false;
+        }
+        start(new Item(endpointId, transferId, file));
+        return true;
+    }
+
+    /**
+     * Stops taking files and lets the ones queued finish within {@code timeout}.
+     */
+    void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        workers.shutdown();
+        if (!workers.awaitTermination(timeout, unit)) {
+            workers.shutdownNow();
+        }
+    }
+
+    private void start(final Item item) {
+        try {
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        process(item);
+                    } finally {
+                        room.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            room.release();
+            listener.onFailed(item, WAIT, e);
+        }
+    }
+
+    private void process(Item item) {
+        Metrics metrics = this.metrics;
+        long start = System.nanoTime();
+        metrics.stage(WAIT).record((start - item.submittedNanos) / 1000);
+        for (NamedStage stage : stages) {
+            try {
+                stage.stage.process(item);
+            } catch (Exception e) {
+                listener.onFailed(item, stage.name, e);
+                return;
+            } finally {
+                long end = System.nanoTime();
+                metrics.stage(stage.name).record((end - start) / 1000);
+                start = end;
+            }
+        }
+        listener.onProcessed(item);
+    }
+}
@@ -0,0 +1,75 @@
+package com.tab.demo.nearby;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Lets several transfers of the same file share one read. Recently read blocks are kept in a
+ * small cache, so peers moving at about the same speed hit the disk once between them. A peer
+ * that falls further behind than the cache reaches reads for itself instead of holding the
+ * others back. The underlying source is closed when the last reader is closed.
+ */
+class SharedChunkSource {
+    private final ChunkSource source;
+    private final Map<Long, byte[]> cache;
+    private int readers;
+
+    SharedChunkSource(ChunkSource source, final int cachedBlocks) {
+        this.source = source;
+        this.cache = new LinkedHashMap<Long, byte[]>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+                return size() > cachedBlocks;
+            }
+        };
+    }
+
+    synchronized ChunkSource newReader() {
+        readers++;
+        return new ChunkSource() {
+            private boolean closed;
+
+            @Override
+            public void read(ByteBuffer dst, long position) throws IOException {
+                SharedChunkSource.this.read(dst, position);
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (!closed) {
+                    closed = true;
+                    release();
+                }
+            }
+        };
+    }
+
+    private void read(ByteBuffer dst, long position) throws IOException {
+        int length = dst.remaining();
+        byte[] block;
+        synchronized (this) {
+            block = cache.get(position);
+        }
+        if (block == null || block.length != length) {
+            // Read outside the lock; two peers racing for the same block just read it twice.
+            block = new byte[length];
+            source.read(ByteBuffer.wrap(block), position);
+            synchronized (this) {
+                cache.put(position, block);
+            }
+        }
+        dst.put(block);
+    }
+
+    private void release() throws IOException {
+        synchronized (this) {
+            if (--readers > 0) {
+                return;
+            }
+            cache.clear();
+        }
+        source.close();
+    }
+}
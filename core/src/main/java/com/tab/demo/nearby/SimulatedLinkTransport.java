@@ -0,0 +1,147 @@
+package com.tab.demo.nearby;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An in-process link with limited bandwidth, latency and random loss, for running transfers over
+ * something worse than localhost. Frames leave one after the other at the bandwidth of the link
+ * and arrive {@code latencyMillis} after leaving. {@link #send} blocks while more than
+ * {@code queueBytes} wait to leave, the same way real transports push back.
+ *
+ * <p>Chunks and acknowledgements are dropped at random with {@code lossRate}, as they would be
+ * on a lossy radio hop. All other frames arrive, since the protocol only recovers lost data.
+ */
+class SimulatedLinkTransport implements Transport, Closeable {
+    private final String localEndpointId;
+    private final int maxFrameSize;
+    private final long bytesPerSecond;
+    private final long latencyNanos;
+    private final double lossRate;
+    private final long queueBytes;
+    private final Random random;
+    // Frames on their way to this end, in order of arrival.
+    private final LinkedBlockingQueue<Delivery> inbox = new LinkedBlockingQueue<>();
+    private final Thread deliverer;
+    private volatile SimulatedLinkTransport peer;
+    private volatile Receiver receiver;
+    // When the link is done with everything sent so far, guarded by this.
+    private long busyUntil;
+
+    /**
+     * @param bytesPerSecond bandwidth of the link from this end to the other
+     * @param seed seeds the losses, so runs are repeatable
+     */
+    SimulatedLinkTransport(String localEndpointId, int maxFrameSize, long bytesPerSecond, long latencyMillis,
+                           double lossRate, long queueBytes, long seed) {
+        this.localEndpointId = localEndpointId;
+        this.maxFrameSize = maxFrameSize;
+        this.bytesPerSecond = bytesPerSecond;
+        this.latencyNanos = TimeUnit.MILLISECONDS.toNanos(latencyMillis);
+        this.lossRate = lossRate;
+        this.queueBytes = queueBytes;
+        this.random = new Random(seed);
+        this.deliverer = new Thread("link-" + localEndpointId) {
+            @Override
+            public void run() {
+                deliver();
+            }
+        };
+        deliverer.setDaemon(true);
+        deliverer.start();
+    }
+
+    private static class Delivery {
+        final long arrivalNanos;
+        final String from;
+        final ByteBuffer frame;
+
+        Delivery(long arrivalNanos, String from, ByteBuffer frame) {
+            this.arrivalNanos = arrivalNanos;
+            this.from = from;
+            this.frame = frame;
+        }
+    }
+
+    /**
+     * Connects two ends; each direction has the bandwidth, latency and loss of the end sending.
+     */
+    static void link(SimulatedLinkTransport a, SimulatedLinkTransport b) {
+        a.peer = b;
+        b.peer = a;
+    }
+
+    String getLocalEndpointId() {
+        return localEndpointId;
+    }
+
+    @Override
+    public int maxFrameSize() {
+        return maxFrameSize;
+    }
+
+    @Override
+    public void send(String endpointId, ByteBuffer frame) {
+        SimulatedLinkTransport to = peer;
+        if (to == null || !to.localEndpointId.equals(endpointId)) {
+            return;
+        }
+        if (frame.remaining() > maxFrameSize) {
+            throw new IllegalArgumentException("Frame too large: " + frame.remaining());
+        }
+        ByteBuffer copy = ByteBuffer.allocate(frame.remaining());
+        copy.put(frame.duplicate()).flip();
+        synchronized (this) {
+            long now = System.nanoTime();
+            long queued;
+            while ((queued = (busyUntil - now) * bytesPerSecond / 1000000000L) > queueBytes) {
+                long waitNanos = (queued - queueBytes) * 1000000000L / bytesPerSecond;
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, Math.max(waitNanos, 100000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                now = System.nanoTime();
+            }
+            busyUntil = Math.max(busyUntil, now) + copy.remaining() * 1000000000L / bytesPerSecond;
+            byte type = copy.get(1);
+            if ((type == Frame.TYPE_CHUNK || type == Frame.TYPE_ACK) && random.nextDouble() < lossRate) {
+                return;
+            }
+            // Under the lock, so frames arrive in the order they were sent.
+            to.inbox.add(new Delivery(busyUntil + latencyNanos, localEndpointId, copy));
+        }
+    }
+
+    private void deliver() {
+        try {
+            while (true) {
+                Delivery delivery = inbox.take();
+                long wait = delivery.arrivalNanos - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                Receiver r = receiver;
+                if (r != null) {
+                    r.onFrameReceived(delivery.from, delivery.frame);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Closed.
+        }
+    }
+
+    @Override
+    public void setReceiver(Receiver receiver) {
+        this.receiver = receiver;
+    }
+
+    @Override
+    public void close() {
+        deliverer.interrupt();
+    }
+}
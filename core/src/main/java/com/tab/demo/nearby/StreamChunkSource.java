@@ -0,0 +1,110 @@
+package com.tab.demo.nearby;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads a stream of unknown length, one chunk at a time, for a streaming transfer. A chunk stays
+ * buffered from when it is read until it is acknowledged, so chunks in flight can be sent again.
+ * Anything older is gone, and asking for it fails the transfer.
+ */
+class StreamChunkSource implements ChunkSource {
+    private final InputStream in;
+    private final int chunkSize;
+    // Chunk index -> data, for chunks read but not yet acknowledged.
+    private final Map<Integer, byte[]> chunks = new HashMap<>();
+    private final ArrayDeque<byte[]> free = new ArrayDeque<>();
+    // Only touched by the sender thread.
+    private int count;
+    private long size;
+    private boolean ended;
+
+    StreamChunkSource(InputStream in, int chunkSize) {
+        this.in = in;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Reads the next chunk from the stream, blocking until it is full or the stream ends.
+     *
+     * @return the length of the chunk, less than the chunk size only at the end of the stream
+     */
+    int readNext() throws IOException {
+        byte[] buf;
+        synchronized (this) {
+            buf = free.poll();
+        }
+        if (buf == null) {
+            buf = new byte[chunkSize];
+        }
+        int n = 0;
+        while (n < chunkSize) {
+            int read = in.read(buf, n, chunkSize - n);
+            if (read < 0) {
+                ended = true;
+                break;
+            }
+            n += read;
+        }
+        if (n > 0) {
+            synchronized (this) {
+                chunks.put(count, n == chunkSize ? buf : Arrays.copyOf(buf, n));
+            }
+            count++;
+            size += n;
+        }
+        return n;
+    }
+
+    /**
+     * Bytes read so far.
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * True once the end of the stream was reached; {@link #size} is final then.
+     */
+    boolean isEnded() {
+        return ended;
+    }
+
+    /**
+     * Drops an acknowledged chunk. May be called from any thread.
+     */
+    synchronized void release(int index) {
+        byte[] chunk = chunks.remove(index);
+        if (chunk != null && chunk.length == chunkSize) {
+            free.add(chunk);
+        }
+    }
+
+    @Override
+    public void read(ByteBuffer dst, long position) throws IOException {
+        int index = (int) (position / chunkSize);
+        int offset = (int) (position % chunkSize);
+        byte[] chunk;
+        synchronized (this) {
+            chunk = chunks.get(index);
+        }
+        if (chunk == null || offset + dst.remaining() > chunk.length) {
+            throw new IOException("Chunk " + index + " of the stream is no longer buffered");
+        }
+        dst.put(chunk, offset, dst.remaining());
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            chunks.clear();
+            free.clear();
+        }
+        in.close();
+    }
+}
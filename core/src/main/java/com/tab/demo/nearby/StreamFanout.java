@@ -0,0 +1,188 @@
+package com.tab.demo.nearby;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Copies one stream into several, for passing an incoming file on to more than one peer while it
+ * arrives. Whatever is read is handed to every branch as is, without a copy per branch. Each
+ * branch buffers at most {@code maxQueuedBytes}; {@link #run} waits for the slowest one, so a
+ * slow branch holds back the source instead of piling data up in memory. A branch that is closed
+ * drops out, and once all are closed the source is closed as well.
+ */
+class StreamFanout implements Runnable {
+    private final InputStream in;
+    private final int bufferSize;
+    private final long maxQueuedBytes;
+    // Guarded by this, like the state of every branch.
+    private final List<Branch> branches = new ArrayList<>();
+    private boolean started;
+
+    StreamFanout(InputStream in, int bufferSize, long maxQueuedBytes) {
+        this.in = in;
+        this.bufferSize = bufferSize;
+        this.maxQueuedBytes = maxQueuedBytes;
+    }
+
+    /**
+     * Adds a branch, which yields everything read from the source from now on. Branches have to
+     * be added before {@link #run} to see all of it.
+     */
+    synchronized InputStream newBranch() {
+        if (started) {
+            throw new IllegalStateException("Fanout already running");
+        }
+        Branch branch = new Branch();
+        branches.add(branch);
+        return branch;
+    }
+
+    /**
+     * Copies the source into the branches until it ends, fails or nobody reads any more, then
+     * closes it. A failure of the source fails every branch.
+     */
+    @Override
+    public void run() {
+        synchronized (this) {
+            started = true;
+        }
+        IOException failure = null;
+        try {
+            byte[] buf = new byte[bufferSize];
+            for (int n; (n = in.read(buf)) >= 0; ) {
+                if (n > 0 && !offer(Arrays.copyOf(buf, n))) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException ignored) {
+            }
+            end(failure);
+        }
+    }
+
+    /**
+     * Queues {@code data} on every open branch once none of them is full.
+     *
+     * @return false if every branch is closed
+     */
+    private synchronized boolean offer(byte[] data) throws InterruptedIOException {
+        while (true) {
+            boolean open = false;
+            boolean full = false;
+            for (Branch branch : branches) {
+                if (!branch.closed) {
+                    open = true;
+                    full |= branch.queuedBytes >= maxQueuedBytes;
+                }
+            }
+            if (!open) {
+                return false;
+            }
+            if (!full) {
+                break;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for branches");
+            }
+        }
+        for (Branch branch : branches) {
+            if (!branch.closed) {
+                branch.queue.add(data);
+                branch.queuedBytes += data.length;
+            }
+        }
+        notifyAll();
+        return true;
+    }
+
+    private synchronized void end(IOException failure) {
+        for (Branch branch : branches) {
+            branch.ended = true;
+            branch.failure = failure;
+        }
+        notifyAll();
+    }
+
+    private class Branch extends InputStream {
+        final ArrayDeque<byte[]> queue = new ArrayDeque<>();
+        // Read from the head of the queue so far.
+        int offset;
+        long queuedBytes;
+        boolean ended;
+        boolean closed;
+        IOException failure;
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            synchronized (StreamFanout.this) {
+                try {
+                    while (!closed && queue.isEmpty() && !ended) {
+                        StreamFanout.this.wait();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for data");
+                }
+                if (closed) {
+                    throw new IOException("Stream closed");
+                }
+                if (queue.isEmpty()) {
+                    if (failure != null) {
+                        throw new IOException("Source failed", failure);
+                    }
+                    return -1;
+                }
+                byte[] head = queue.peek();
+                int n = Math.min(len, head.length - offset);
+                System.arraycopy(head, offset, b, off, n);
+                offset += n;
+                if (offset == head.length) {
+                    queue.poll();
+                    offset = 0;
+                }
+                queuedBytes -= n;
+                StreamFanout.this.notifyAll();
+                return n;
+            }
+        }
+
+        @Override
+        public int available() {
+            synchronized (StreamFanout.this) {
+                return (int) Math.min(Integer.MAX_VALUE, queuedBytes);
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (StreamFanout.this) {
+                closed = true;
+                queue.clear();
+                queuedBytes = 0;
+                StreamFanout.this.notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,1606 @@
+package com.tab.demo.nearby;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.DataFormatException;
+
+/**
+ * Splits files into fixed-size chunks and keeps a window of chunks in flight per transfer. The
+ * receiver reassembles chunks by offset and acknowledges each one, which is what opens the window
+ * on the sending side. Unless fixed with {@link #setWindow}, the window follows the link through
+ * a {@link CongestionController} per transfer, and the chunk size of a new transfer follows what
+ * the last one to the same endpoint measured.
+ *
+ * <p>Every chunk carries its SHA-256. The receiver checks it on a pool of verifier threads before
+ * the chunk is written and acknowledged, and asks for the chunk again if it does not match. A
+ * file is only handed out once the root hash over all chunks matches the sender's as well.
+ *
+ * <p>When a peer disconnects, transfers to and from it are suspended rather than failed. The
+ * receiver keeps a {@link TransferJournal} of committed chunks, so after {@link #resume} the
+ * re-sent offer is answered with what is already on disk and only the missing chunks go out.
+ *
+ * <p>With deduplication enabled, files are cut by content instead (see {@link ContentChunker})
+ * and a {@link ContentManifest} of chunk hashes is offered first. The receiver fills in every
+ * chunk it finds in its {@link ChunkStore} and only asks for the rest, so sending a file that
+ * differs little from one sent before costs little more than the changed chunks.
+ *
+ * <p>{@link #sendBatch} sends many files at once. Small files are concatenated into a single
+ * transfer whose chunks span file boundaries, so a folder of thousands of photos costs about as
+ * many frames as one file of the same total size. The receiver writes each chunk straight into
+ * the files it covers.
+ *
+ * <p>Each sender keeps a few chunks read ahead of what it sends (see {@link ReadAhead}), so on
+ * slow storage the disk and the transport work at the same time.
+ *
+ * <p>{@link #sendStream} sends data of unknown length, read chunk by chunk as the window allows.
+ * With a {@link StreamListener} set, the receiver can read a file or stream while it arrives,
+ * from the first verified chunk on, and the receiver holds back acknowledgements while its reader
+ * is behind, which throttles the sender to the pace of the reader. Held chunks are announced
+ * with {@link Frame#TYPE_HOLD}, so the sender does not take them for lost.
+ */
+class TransferEngine implements Transport.Receiver {
+    // Endpoints whose congestion state is kept for the next transfer to them.
+    private static final int MAX_LINKS = 64;
+    private static final long STALL_TIMEOUT_MS = 30000;
+    // Waits for the window longer than this are recorded as stalls.
+    private static final long STALL_THRESHOLD_MS = 200;
+    private static final int MIN_COMPRESSED_MESSAGE_SIZE = 256;
+    private static final int BROADCAST_CACHE_CHUNKS = 64;
+    static final int DEFAULT_MAX_ACTIVE_TRANSFERS = 4;
+    // Files of a batch at least this large are sent as transfers of their own.
+    static final long BATCH_FILE_LIMIT = 1024 * 1024;
+    private static final int MAX_BATCH_FILES = 1 << 20;
+    // How far ahead of the reader of an incoming stream chunks are still acknowledged.
+    static final long STREAM_READ_AHEAD = 4 * 1024 * 1024;
+    static final int DEFAULT_READ_AHEAD_CHUNKS = 4;
+    // Direct buffers shared by the read-ahead of all outgoing transfers.
+    private static final int READ_AHEAD_BUFFERS = 32;
+    private static final int IO_THREADS = 2;
+    // Suspended transfers whose peer does not come back are dropped after this long, incoming
+    // ones with their partial files. Journals left by an earlier process expire the same way.
+    static final long SUSPENDED_TIMEOUT_MS = 60 * 60 * 1000;
+    static final int MAX_SUSPENDED_TRANSFERS = 64;
+
+    interface Listener {
+        void onTransferProgress(String endpointId, long transferId, long bytesTransferred, long totalBytes);
+
+        void onFileReceived(String endpointId, long transferId, File file);
+
+        void onBatchReceived(String endpointId, long transferId, List<File> files);
+
+        void onFileSent(String endpointId, long transferId);
+
+        void onTransferFailed(String endpointId, long transferId, Exception e);
+
+        void onMessageReceived(String endpointId, byte[] message);
+    }
+
+    interface StreamListener {
+        /**
+         * A file or stream started to arrive and can be read from {@code stream} while it does.
+         * Called on the receive thread, so reading has to happen elsewhere. {@code size} is
+         * {@link Frame#UNKNOWN_SIZE} for streams. The file is still reported to the
+         * {@link Listener} once complete; the stream has to be closed either way.
+         */
+        void onStreamOpened(String endpointId, long transferId, String name, long size, IncomingStream stream);
+    }
+
+    interface Router {
+        /**
+         * A file or stream of flow {@code flowId} is offered by {@code endpointId} and may be
+         * passed on {@code ttl} more times. Called on the receive thread, before the
+         * {@link StreamListener} sees it, and again when a suspended transfer is resumed.
+         *
+         * @return false to refuse it, for example as a copy of a flow that already arrived
+         */
+        boolean onFlowOffered(String endpointId, long transferId, long flowId, int ttl);
+
+        /**
+         * A transfer accepted for flow {@code flowId} failed or was suspended; another copy of the
+         * flow may be taken instead. Called on the receive thread.
+         */
+        void onFlowFailed(long transferId, long flowId);
+    }
+
+    private final Transport transport;
+    private final File receiveDir;
+    private final File journalDir;
+    private final Listener listener;
+    private final ExecutorService senders = Executors.newCachedThreadPool();
+    // Also ticks the tables of suspended transfers, so the incoming one is only touched from this
+    // thread.
+    private final ScheduledExecutorService receiver = Executors.newSingleThreadScheduledExecutor();
+    // Reads chunks ahead of the senders.
+    private final ExecutorService io = Executors.newFixedThreadPool(IO_THREADS);
+    private final BufferPool readBuffers;
+    private final ExecutorService verifiers =
+            Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+    private final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            return ChunkHashes.newDigest();
+        }
+    };
+    private final Map<Long, OutgoingTransfer> outgoing = new ConcurrentHashMap<>();
+    // Suspended outgoing transfers, each holding its source open until resumed or dropped.
+    private final TransferTable<OutgoingTransfer> suspended;
+    // Only touched from the receiver thread.
+    private final Map<Long, IncomingTransfer> incoming = new HashMap<>();
+    private final Random random = new SecureRandom();
+    // 0 lets the congestion controller of each transfer decide.
+    private volatile int window;
+    private volatile int readAheadChunks = DEFAULT_READ_AHEAD_CHUNKS;
+    private volatile FileAllocator allocator = FileAllocator.SET_LENGTH;
+    private volatile boolean compressionEnabled;
+    private int maxActiveTransfers = DEFAULT_MAX_ACTIVE_TRANSFERS;
+    private int activeTransfers;
+    private final Compressor messageCompressor = new Compressor();
+    // Only touched from the receiver thread.
+    private final Compressor receiveCompressor = new Compressor();
+    private byte[] inflated = new byte[0];
+    private volatile boolean deduplicationEnabled;
+    private volatile ChunkStore chunkStore;
+    private volatile Metrics metrics = new Metrics();
+    private volatile StreamListener streamListener;
+    private volatile Router router;
+    private volatile MessageChannel messageChannel;
+    // Manifests still being received, only touched from the receiver thread.
+    private final Map<Long, ManifestAssembly> manifests = new HashMap<>();
+    // Batches being received or suspended, only touched from the receiver thread.
+    private final Map<Long, BatchAssembly> batches = new HashMap<>();
+    // Suspended incoming transfers that can be resumed: journaled files, and batches, which
+    // only live in memory.
+    private final TransferTable<IncomingTransfer> suspendedIncoming;
+    // Congestion state of the last transfer to each endpoint, the next one starts from it.
+    private final Map<String, CongestionController> links = Collections.synchronizedMap(
+            new LinkedHashMap<String, CongestionController>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CongestionController> eldest) {
+                    return size() > MAX_LINKS;
+                }
+            });
+
+    TransferEngine(Transport transport, File receiveDir, Listener listener) {
+        this.transport = transport;
+        this.receiveDir = receiveDir;
+        this.journalDir = new File(receiveDir, ".journal");
+        this.listener = listener;
+        this.readBuffers = new BufferPool(chunkCapacity(), READ_AHEAD_BUFFERS);
+        this.suspendedIncoming = new TransferTable<>(MAX_SUSPENDED_TRANSFERS, SUSPENDED_TIMEOUT_MS,
+                TimeUnit.MILLISECONDS, receiver, reclaimer);
+        this.suspended = new TransferTable<>(MAX_SUSPENDED_TRANSFERS, SUSPENDED_TIMEOUT_MS,
+                TimeUnit.MILLISECONDS, receiver, outgoingReclaimer);
+        transport.setReceiver(this);
+        postToReceiver(new Runnable() {
+            @Override
+            public void run() {
+                TransferJournal.deleteStale(journalDir, SUSPENDED_TIMEOUT_MS);
+            }
+        });
+    }
+
+    int getWindow() {
+        return window;
+    }
+
+    /**
+     * Fixes the number of unacknowledged chunks allowed per transfer, or with 0, the default, lets
+     * a {@link CongestionController} per transfer find it from the link. Takes effect
+     * immediately, including for transfers already running. Chunk sizes only adapt to the link
+     * with the window.
+     */
+    void setWindow(int window) {
+        if (window < 0) {
+            throw new IllegalArgumentException("window must not be negative: " + window);
+        }
+        this.window = window;
+    }
+
+    /**
+     * Sets how many chunks each outgoing transfer reads ahead of what it sends, so reading from
+     * slow storage overlaps with sending. 0 reads every chunk when it is sent. Applies to
+     * transfers started afterwards.
+     */
+    void setReadAhead(int chunks) {
+        if (chunks < 0) {
+            throw new IllegalArgumentException("chunks must not be negative: " + chunks);
+        }
+        this.readAheadChunks = chunks;
+    }
+
+    /**
+     * Limits how many outgoing transfers stream chunks at the same time. Transfers beyond the
+     * limit wait, in no particular order, before sending their offer.
+     */
+    synchronized void setMaxActiveTransfers(int maxActiveTransfers) {
+        if (maxActiveTransfers < 1) {
+            throw new IllegalArgumentException("maxActiveTransfers must be positive: " + maxActiveTransfers);
+        }
+        this.maxActiveTransfers = maxActiveTransfers;
+        notifyAll();
+    }
+
+    private synchronized void acquireTransferSlot() throws InterruptedException {
+        while (activeTransfers >= maxActiveTransfers) {
+            wait();
+        }
+        activeTransfers++;
+    }
+
+    private synchronized void releaseTransferSlot() {
+        activeTransfers--;
+        notifyAll();
+    }
+
+    /**
+     * Enables the compression stage. Each file is sampled first and only compressed if the
+     * sample shrinks noticeably, so already compressed media costs almost nothing extra.
+     */
+    void setCompressionEnabled(boolean enabled) {
+        this.compressionEnabled = enabled;
+    }
+
+    void setFileAllocator(FileAllocator allocator) {
+        this.allocator = allocator;
+    }
+
+    /**
+     * Sends files as content manifests, so chunks the receiver already has are skipped. This
+     * costs a full read and hash of the file before the first chunk goes out.
+     */
+    void setDeduplicationEnabled(boolean enabled) {
+        this.deduplicationEnabled = enabled;
+    }
+
+    /**
+     * Sets where chunks of deduplicated transfers are kept for later ones. Without a store,
+     * deduplicated transfers are received in full.
+     */
+    void setChunkStore(ChunkStore chunkStore) {
+        this.chunkStore = chunkStore;
+    }
+
+    void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+        suspendedIncoming.setMetrics(metrics);
+        suspended.setMetrics(metrics);
+    }
+
+    /**
+     * Lets incoming files and streams be read while they arrive. Batches are only reported once
+     * complete.
+     */
+    void setStreamListener(StreamListener streamListener) {
+        this.streamListener = streamListener;
+    }
+
+    /**
+     * Lets {@code router} refuse relayed files, see {@link MeshRelay}. Without one they are all
+     * received.
+     */
+    void setRouter(Router router) {
+        this.router = router;
+    }
+
+    /**
+     * Hands received message batches to {@code channel}; without one they are dropped.
+     */
+    void setMessageChannel(MessageChannel channel) {
+        this.messageChannel = channel;
+    }
+
+    /**
+     * Starts sending {@code size} bytes of {@code source} to {@code endpointId}. The channel is
+     * closed when the transfer ends.
+     *
+     * @return the transfer id reported to the {@link Listener}
+     */
+    long sendFile(String endpointId, FileChannel source, long size, String name) {
+        return sendFile(endpointId, new FileChunkSource(source), size, name, chunkSize(endpointId),
+                newSharedManifest()).transferId;
+    }
+
+    /**
+     * Starts sending {@code size} bytes of {@code source} to {@code endpointId}. The source is
+     * closed when the transfer ends.
+     */
+    TransferProgress sendFile(String endpointId, ChunkSource source, long size, String name) {
+        return sendFile(endpointId, source, size, name, chunkSize(endpointId), newSharedManifest());
+    }
+
+    /**
+     * Sends one file to several endpoints at once. The file is read once for all of them through
+     * a {@link SharedChunkSource}, while every endpoint gets its own transfer and window, so a
+     * slow receiver only slows down itself. The channel is closed when the last transfer ends.
+     *
+     * @return the progress of each transfer, in the order of {@code endpointIds}
+     */
+    List<TransferProgress> broadcastFile(List<String> endpointIds, FileChannel source, long size,
+                                         String name) {
+        return broadcastFile(endpointIds, source, size, name, 0, 0);
+    }
+
+    /**
+     * Sends one file to several endpoints as flow {@code flowId}, to be passed on {@code ttl}
+     * more times by relays. Relayed files are never deduplicated, since every hop would hash
+     * them again.
+     */
+    List<TransferProgress> broadcastFile(List<String> endpointIds, FileChannel source, long size,
+                                         String name, long flowId, int ttl) {
+        SharedChunkSource shared = new SharedChunkSource(new FileChunkSource(source), BROADCAST_CACHE_CHUNKS);
+        ContentManifest.Shared manifest = flowId != 0 ? null : newSharedManifest();
+        // Reads are only shared between transfers cut into the same chunks.
+        int chunkSize = endpointIds.size() == 1 ? chunkSize(endpointIds.get(0)) : chunkCapacity();
+        List<ChunkSource> readers = new ArrayList<>();
+        for (int i = 0; i < endpointIds.size(); i++) {
+            readers.add(shared.newReader());
+        }
+        List<TransferProgress> progress = new ArrayList<>();
+        for (int i = 0; i < endpointIds.size(); i++) {
+            OutgoingTransfer transfer = new OutgoingTransfer(random.nextLong(), endpointIds.get(i),
+                    readers.get(i), size, chunkSize, name, manifest);
+            transfer.flowId = flowId;
+            transfer.ttl = ttl;
+            start(transfer);
+            progress.add(transfer.progress);
+        }
+        return progress;
+    }
+
+    /**
+     * Sends a set of files, for example the contents of a directory. Files smaller than
+     * {@link #BATCH_FILE_LIMIT} travel together as one transfer, larger ones as transfers of their
+     * own. Each file is only opened while it is being read.
+     *
+     * @return the progress of the batch of small files, if any, followed by each large file
+     */
+    List<TransferProgress> sendBatch(String endpointId, List<BatchFile> files) {
+        List<BatchFile> small = new ArrayList<>();
+        List<BatchFile> large = new ArrayList<>();
+        long smallSize = 0;
+        for (BatchFile file : files) {
+            if (file.size < BATCH_FILE_LIMIT) {
+                small.add(file);
+                smallSize += file.size;
+            } else {
+                large.add(file);
+            }
+        }
+        List<TransferProgress> progress = new ArrayList<>();
+        if (!small.isEmpty()) {
+            OutgoingTransfer transfer = new OutgoingTransfer(random.nextLong(), endpointId,
+                    new BatchChunkSource(small), smallSize, chunkSize(endpointId), small.size() + " files", null);
+            transfer.batch = small;
+            start(transfer);
+            progress.add(transfer.progress);
+        }
+        for (BatchFile file : large) {
+            progress.add(sendFile(endpointId, new BatchChunkSource(Collections.singletonList(file)),
+                    file.size, file.path, chunkSize(endpointId), newSharedManifest()));
+        }
+        return progress;
+    }
+
+    private TransferProgress sendFile(String endpointId, ChunkSource source, long size, String name,
+                                      int chunkSize, ContentManifest.Shared manifest) {
+        OutgoingTransfer transfer = new OutgoingTransfer(random.nextLong(), endpointId, source, size,
+                chunkSize, name, manifest);
+        start(transfer);
+        return transfer.progress;
+    }
+
+    /**
+     * Starts sending everything {@code in} yields up to its end, for data whose length is not
+     * known up front. Only a window of chunks is read ahead of the receiver. The stream is
+     * closed when the transfer ends; unlike files, a stream fails instead of being suspended
+     * when the connection drops.
+     *
+     * @return the progress of the transfer; the {@link Listener} reports a total size of
+     * {@link Frame#UNKNOWN_SIZE} for it
+     */
+    TransferProgress sendStream(String endpointId, InputStream in, String name) {
+        return sendStream(endpointId, in, name, 0, 0);
+    }
+
+    /**
+     * Starts sending a stream as flow {@code flowId}, to be passed on {@code ttl} more times by
+     * relays.
+     */
+    TransferProgress sendStream(String endpointId, InputStream in, String name, long flowId, int ttl) {
+        int chunkSize = chunkSize(endpointId);
+        OutgoingTransfer transfer = new OutgoingTransfer(random.nextLong(), endpointId,
+                new StreamChunkSource(in, chunkSize), Frame.UNKNOWN_SIZE, chunkSize, name, null);
+        transfer.flowId = flowId;
+        transfer.ttl = ttl;
+        start(transfer);
+        return transfer.progress;
+    }
+
+    private ContentManifest.Shared newSharedManifest() {
+        return deduplicationEnabled ? new ContentManifest.Shared(chunkCapacity()) : null;
+    }
+
+    /**
+     * The chunk size for a new transfer to {@code endpointId}, from what the link delivered to
+     * the last one.
+     */
+    private int chunkSize(String endpointId) {
+        CongestionController link = links.get(endpointId);
+        return window > 0 || link == null ? chunkCapacity() : link.chunkSize(chunkCapacity());
+    }
+
+    private int chunkCapacity() {
+        return transport.maxFrameSize() - Frame.CHUNK_HEADER_SIZE;
+    }
+
+    private void start(final OutgoingTransfer transfer) {
+        transfer.stats = metrics.startTransfer(transfer.id, transfer.endpointId,
+                TransferStats.Direction.SEND, transfer.size);
+        Histogram rttMillis = metrics.endpoint(transfer.endpointId).rttMillis;
+        CongestionController link = links.get(transfer.endpointId);
+        transfer.congestion = link == null ? new CongestionController(rttMillis)
+                : new CongestionController(link, rttMillis);
+        outgoing.put(transfer.id, transfer);
+        senders.execute(new Runnable() {
+            @Override
+            public void run() {
+                runSender(transfer);
+            }
+        });
+    }
+
+    /**
+     * Sends a small message, compressed when that makes it meaningfully smaller.
+     */
+    void sendMessage(String endpointId, byte[] message) {
+        int capacity = transport.maxFrameSize() - Frame.MESSAGE_HEADER_SIZE;
+        if (message.length > capacity) {
+            throw new IllegalArgumentException("Message too large: " + message.length);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(transport.maxFrameSize());
+        int compressed = -1;
+        if (compressionEnabled && message.length >= MIN_COMPRESSED_MESSAGE_SIZE) {
+            synchronized (messageCompressor) {
+                compressed = messageCompressor.compress(message, 0, message.length,
+                        buf.array(), Frame.MESSAGE_HEADER_SIZE, message.length - message.length / 10);
+            }
+        }
+        if (compressed >= 0) {
+            Frame.putMessageHeader(buf, Frame.FLAG_DEFLATE);
+            buf.position(Frame.MESSAGE_HEADER_SIZE + compressed);
+        } else {
+            Frame.putMessageHeader(buf, (byte) 0);
+            buf.put(message);
+        }
+        buf.flip();
+        transport.send(endpointId, buf);
+    }
+
+    void cancel(long transferId) {
+        OutgoingTransfer transfer = outgoing.get(transferId);
+        if (transfer != null) {
+            transport.send(transfer.endpointId, Frame.cancel(transferId));
+            transfer.cancel();
+        }
+        suspended.fail(transferId, TransferTable.Reason.CANCELED);
+    }
+
+    /**
+     * Suspends all transfers with {@code endpointId}. Incoming transfers are checkpointed to their
+     * journal; outgoing ones keep their source open until {@link #resume} or {@link #cancel}, or
+     * until they are dropped like incoming ones, see {@link #SUSPENDED_TIMEOUT_MS} and
+     * {@link #MAX_SUSPENDED_TRANSFERS}.
+     */
+    void onDisconnected(final String endpointId) {
+        for (OutgoingTransfer transfer : outgoing.values()) {
+            if (transfer.endpointId.equals(endpointId)) {
+                transfer.suspend();
+            }
+        }
+        // Transports may still report the disconnects caused by shutting down.
+        postToReceiver(new Runnable() {
+            @Override
+            public void run() {
+                Iterator<ManifestAssembly> pending = manifests.values().iterator();
+                while (pending.hasNext()) {
+                    if (pending.next().endpointId.equals(endpointId)) {
+                        pending.remove();
+                    }
+                }
+                Iterator<BatchAssembly> pendingBatches = batches.values().iterator();
+                while (pendingBatches.hasNext()) {
+                    if (pendingBatches.next().endpointId.equals(endpointId)) {
+                        pendingBatches.remove();
+                    }
+                }
+                Iterator<IncomingTransfer> it = incoming.values().iterator();
+                while (it.hasNext()) {
+                    IncomingTransfer transfer = it.next();
+                    if (transfer.endpointId.equals(endpointId)) {
+                        it.remove();
+                        suspend(transfer);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Continues the transfers suspended when {@code previousEndpointId} went away on the
+     * connection to {@code endpointId}, which may be the same endpoint or the same peer under a
+     * new id.
+     */
+    void resume(String previousEndpointId, String endpointId) {
+        for (OutgoingTransfer transfer : suspended.completeEndpoint(previousEndpointId)) {
+            transfer.progress.setState(TransferProgress.State.RUNNING);
+            start(new OutgoingTransfer(transfer, endpointId));
+        }
+    }
+
+    void shutdown() {
+        for (OutgoingTransfer transfer : outgoing.values()) {
+            transfer.cancel();
+        }
+        suspended.clear();
+        senders.shutdownNow();
+        io.shutdownNow();
+        verifiers.shutdownNow();
+        receiver.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (IncomingTransfer transfer : incoming.values()) {
+                    suspend(transfer);
+                }
+                incoming.clear();
+                // Journaled transfers can still be resumed by the next process.
+                suspendedIncoming.clear();
+            }
+        });
+        receiver.shutdown();
+    }
+
+    private void runSender(OutgoingTransfer transfer) {
+        boolean parked = false;
+        boolean slot = false;
+        Compressor compressor = null;
+        ReadAhead reader = null;
+        try {
+            acquireTransferSlot();
+            slot = true;
+            ContentManifest manifest = transfer.manifest();
+            if (manifest == null && transfer.sharedManifest != null) {
+                manifest = transfer.sharedManifest.get(transfer.source, transfer.size);
+                transfer.useManifest(manifest);
+            }
+            if (transfer.batch != null) {
+                int first = 0;
+                do {
+                    int end = Frame.batchPageEnd(transfer.batch, first, transport.maxFrameSize());
+                    transport.send(transfer.endpointId, Frame.batch(transfer.id, transfer.size,
+                            transfer.layout().maxLength(), transfer.batch, first, end));
+                    first = end;
+                } while (first < transfer.batch.size());
+            } else if (manifest != null) {
+                int pageEntries = Frame.manifestPageEntries(transfer.name, transport.maxFrameSize());
+                int first = 0;
+                do {
+                    transport.send(transfer.endpointId, Frame.manifest(transfer.id, manifest, first,
+                            transfer.name, transport.maxFrameSize()));
+                    first += pageEntries;
+                } while (first < manifest.layout.count());
+            } else if (transfer.stream != null) {
+                // Nothing to fingerprint yet, and nothing to resume either.
+                transport.send(transfer.endpointId, Frame.offer(transfer.id, transfer.size,
+                        transfer.layout().maxLength(), new byte[FileFingerprint.SIZE], transfer.name,
+                        transfer.flowId, transfer.ttl));
+            } else {
+                if (transfer.fingerprint == null) {
+                    transfer.fingerprint = FileFingerprint.compute(transfer.source, transfer.size);
+                }
+                transport.send(transfer.endpointId, Frame.offer(transfer.id, transfer.size,
+                        transfer.layout().maxLength(), transfer.fingerprint, transfer.name,
+                        transfer.flowId, transfer.ttl));
+            }
+            transfer.awaitAccepted(STALL_TIMEOUT_MS);
+            ChunkLayout layout = transfer.layout();
+            ByteBuffer buf = ByteBuffer.allocate(Frame.CHUNK_HEADER_SIZE + layout.maxLength());
+            byte[] raw = null;
+            if (compressionEnabled) {
+                raw = new byte[Math.max(layout.maxLength(), Compressor.SAMPLE_SIZE)];
+                compressor = new Compressor();
+                // A stream cannot be sampled ahead; chunks that do not shrink go out raw anyway.
+                if (transfer.stream == null) {
+                    int sampled = (int) Math.min(Compressor.SAMPLE_SIZE, transfer.size);
+                    transfer.source.read(ByteBuffer.wrap(raw, 0, sampled), 0);
+                    if (!compressor.isWorthCompressing(raw, 0, sampled)) {
+                        compressor.end();
+                        compressor = null;
+                    }
+                }
+            }
+            // A stream is read as the window allows anyway.
+            boolean readAhead = transfer.stream == null && layout.maxLength() <= readBuffers.bufferSize();
+            reader = new ReadAhead(transfer, readBuffers, io, readAhead ? readAheadChunks : 0);
+            MessageDigest digest = ChunkHashes.newDigest();
+            Metrics.EndpointMetrics endpoint = metrics.endpoint(transfer.endpointId);
+            while (true) {
+                while (true) {
+                    long waitStart = System.nanoTime();
+                    int i = transfer.nextChunk(window, STALL_TIMEOUT_MS);
+                    long waited = System.nanoTime() - waitStart;
+                    if (waited >= STALL_THRESHOLD_MS * 1000000) {
+                        transfer.stats.onStall(waited);
+                        endpoint.stallMillis.record(waited / 1000000);
+                    }
+                    if (i == OutgoingTransfer.NEED_DATA) {
+                        transfer.stream.readNext();
+                        transfer.extend(transfer.stream.size(), transfer.stream.isEnded());
+                        continue;
+                    }
+                    if (i < 0) {
+                        break;
+                    }
+                    sendChunk(transfer, reader, i, buf, raw, compressor, digest, endpoint);
+                }
+                hashUnreadChunks(transfer, reader, buf, digest);
+                transport.send(transfer.endpointId, Frame.root(transfer.id, transfer.layout().size, transfer.rootHash()));
+                if (transfer.awaitVerified(STALL_TIMEOUT_MS)) {
+                    break;
+                }
+            }
+            transfer.progress.setState(TransferProgress.State.COMPLETED);
+            metrics.finishTransfer(transfer.stats, TransferStats.Outcome.COMPLETED);
+            listener.onFileSent(transfer.endpointId, transfer.id);
+        } catch (IOException | InterruptedException e) {
+            if (transfer.isSuspended() && transfer.stream == null) {
+                transfer.progress.setState(TransferProgress.State.SUSPENDED);
+                metrics.finishTransfer(transfer.stats, TransferStats.Outcome.SUSPENDED);
+                suspended.put(transfer.id, transfer.endpointId, transfer, 0);
+                parked = true;
+            } else {
+                if (transfer.stream != null) {
+                    // The source of a stream failed, or the receiver gave up; either way it should
+                    // not wait for the rest.
+                    transport.send(transfer.endpointId, Frame.cancel(transfer.id));
+                }
+                transfer.progress.setState(TransferProgress.State.FAILED);
+                metrics.finishTransfer(transfer.stats, TransferStats.Outcome.FAILED);
+                listener.onTransferFailed(transfer.endpointId, transfer.id, e);
+            }
+        } finally {
+            if (slot) {
+                releaseTransferSlot();
+            }
+            if (reader != null) {
+                reader.close();
+            }
+            links.put(transfer.endpointId, transfer.congestion);
+            outgoing.remove(transfer.id);
+            if (!parked) {
+                closeQuietly(transfer);
+            }
+            if (compressor != null) {
+                compressor.end();
+            }
+        }
+    }
+
+    /**
+     * Reads, hashes and sends one chunk. With a compressor the chunk is read into {@code raw}
+     * first, otherwise straight into the frame behind the space left for its header; either way
+     * it is copied from the read-ahead if that has it.
+     */
+    private void sendChunk(OutgoingTransfer transfer, ReadAhead reader, int index, ByteBuffer buf,
+                           byte[] raw, Compressor compressor, MessageDigest digest,
+                           Metrics.EndpointMetrics endpoint) throws IOException, InterruptedException {
+        int length = transfer.layout().length(index);
+        byte[] hash = transfer.chunkHash(index);
+        buf.clear();
+        long readStart = System.nanoTime();
+        if (compressor != null) {
+            reader.read(index, ByteBuffer.wrap(raw, 0, length));
+            endpoint.diskReadMicros.record((System.nanoTime() - readStart) / 1000);
+            if (hash == null) {
+                hash = ChunkHashes.hash(digest, raw, 0, length);
+                transfer.setChunkHash(index, hash);
+            }
+            int compressed = compressor.compress(raw, 0, length,
+                    buf.array(), Frame.CHUNK_HEADER_SIZE, length - 1);
+            if (compressed >= 0) {
+                Frame.putChunkHeader(buf, transfer.id, index, Frame.FLAG_DEFLATE, hash);
+                buf.position(Frame.CHUNK_HEADER_SIZE + compressed);
+            } else {
+                Frame.putChunkHeader(buf, transfer.id, index, (byte) 0, hash);
+                buf.put(raw, 0, length);
+            }
+        } else {
+            buf.position(Frame.CHUNK_HEADER_SIZE);
+            buf.limit(Frame.CHUNK_HEADER_SIZE + length);
+            reader.read(index, buf);
+            endpoint.diskReadMicros.record((System.nanoTime() - readStart) / 1000);
+            if (hash == null) {
+                buf.position(Frame.CHUNK_HEADER_SIZE);
+                hash = ChunkHashes.hash(digest, buf);
+                transfer.setChunkHash(index, hash);
+            }
+            buf.position(0);
+            Frame.putChunkHeader(buf, transfer.id, index, (byte) 0, hash);
+            buf.position(Frame.CHUNK_HEADER_SIZE + length);
+        }
+        buf.flip();
+        transport.send(transfer.endpointId, buf);
+    }
+
+    /**
+     * Hashes the chunks the receiver had before this sender read them, which the root hash
+     * needs as well.
+     */
+    private static void hashUnreadChunks(OutgoingTransfer transfer, ReadAhead reader, ByteBuffer buf,
+                                         MessageDigest digest) throws IOException {
+        ChunkLayout layout = transfer.layout();
+        for (int i = 0; i < layout.count(); i++) {
+            if (transfer.chunkHash(i) == null) {
+                buf.clear();
+                buf.limit(layout.length(i));
+                reader.read(buf, layout.offset(i));
+                buf.flip();
+                transfer.setChunkHash(i, ChunkHashes.hash(digest, buf));
+            }
+        }
+    }
+
+    @Override
+    public void onFrameReceived(final String endpointId, final ByteBuffer frame) {
+        postToReceiver(new Runnable() {
+            @Override
+            public void run() {
+                handleFrame(endpointId, frame);
+            }
+        });
+    }
+
+    private void handleFrame(String endpointId, ByteBuffer buf) {
+        metrics.endpoint(endpointId).bytesReceived.addAndGet(buf.remaining());
+        Frame frame;
+        try {
+            frame = Frame.decode(buf);
+        } catch (IOException e) {
+            listener.onTransferFailed(endpointId, 0, e);
+            return;
+        }
+        OutgoingTransfer out;
+        switch (frame.type) {
+            case Frame.TYPE_OFFER:
+                handleOffer(endpointId, frame);
+                break;
+            case Frame.TYPE_MANIFEST:
+                handleManifest(endpointId, frame);
+                break;
+            case Frame.TYPE_BATCH:
+                handleBatch(endpointId, frame);
+                break;
+            case Frame.TYPE_CHUNK:
+                handleChunk(endpointId, frame);
+                break;
+            case Frame.TYPE_MESSAGE:
+                handleMessage(endpointId, frame);
+                break;
+            case Frame.TYPE_MESSAGES:
+                MessageChannel channel = messageChannel;
+                if (channel != null) {
+                    try {
+                        channel.onFrame(endpointId, frame.data);
+                    } catch (IOException e) {
+                        listener.onTransferFailed(endpointId, 0, e);
+                    }
+                }
+                break;
+            case Frame.TYPE_ACCEPT:
+                out = outgoing.get(frame.transferId);
+                if (out != null && out.endpointId.equals(endpointId)) {
+                    out.onAccepted(frame.chunks);
+                    out.progress.update(out.bytesAcked());
+                }
+                break;
+            case Frame.TYPE_NACK:
+                out = outgoing.get(frame.transferId);
+                if (out != null && out.endpointId.equals(endpointId)) {
+                    out.onNack(frame.chunks);
+                    out.progress.update(out.bytesAcked());
+                    out.stats.setBytes(out.bytesAcked());
+                    out.stats.onRetry(frame.chunks.cardinality());
+                    metrics.endpoint(endpointId).chunksResent.addAndGet(frame.chunks.cardinality());
+                }
+                break;
+            case Frame.TYPE_VERIFIED:
+                out = outgoing.get(frame.transferId);
+                if (out != null && out.endpointId.equals(endpointId)) {
+                    out.onVerified();
+                }
+                break;
+            case Frame.TYPE_ROOT:
+                IncomingTransfer verified = incoming.get(frame.transferId);
+                if (verified != null && verified.endpointId.equals(endpointId)) {
+                    try {
+                        verified.close(frame.size);
+                    } catch (IOException e) {
+                        fail(verified, e);
+                        break;
+                    }
+                    verified.expectedRoot = frame.hash;
+                    verifyIfComplete(verified);
+                }
+                break;
+            case Frame.TYPE_ACK:
+                out = outgoing.get(frame.transferId);
+                if (out != null && out.endpointId.equals(endpointId) && out.onAck(frame.index)) {
+                    long bytesAcked = out.bytesAcked();
+                    out.progress.update(bytesAcked);
+                    out.stats.setBytes(bytesAcked);
+                    listener.onTransferProgress(endpointId, out.id, bytesAcked, out.size);
+                }
+                break;
+            case Frame.TYPE_HOLD:
+                out = outgoing.get(frame.transferId);
+                if (out != null && out.endpointId.equals(endpointId)) {
+                    out.onHold(frame.index);
+                }
+                break;
+            case Frame.TYPE_CANCEL:
+                out = outgoing.get(frame.transferId);
+                if (out != null && out.endpointId.equals(endpointId)) {
+                    out.cancel();
+                }
+                ManifestAssembly pending = manifests.get(frame.transferId);
+                if (pending != null && pending.endpointId.equals(endpointId)) {
+                    manifests.remove(frame.transferId);
+                }
+                BatchAssembly pendingBatch = batches.get(frame.transferId);
+                if (pendingBatch != null && pendingBatch.endpointId.equals(endpointId)) {
+                    batches.remove(frame.transferId);
+                }
+                suspendedIncoming.fail(frame.transferId, TransferTable.Reason.CANCELED);
+                IncomingTransfer in = incoming.get(frame.transferId);
+                if (in != null && in.endpointId.equals(endpointId)) {
+                    incoming.remove(in.id);
+                    in.discard();
+                    IOException cancelled = new IOException("Transfer " + in.id + " cancelled by sender");
+                    failStream(in, cancelled);
+                    metrics.finishTransfer(in.stats, TransferStats.Outcome.FAILED);
+                    listener.onTransferFailed(endpointId, in.id, cancelled);
+                }
+                break;
+        }
+    }
+
+    private void handleOffer(String endpointId, Frame frame) {
+        IncomingTransfer transfer = incoming.get(frame.transferId);
+        if (transfer != null && !transfer.endpointId.equals(endpointId)) {
+            // The sender reconnected before we saw the disconnect of its old endpoint.
+            incoming.remove(transfer.id);
+            suspend(transfer);
+            transfer = null;
+        }
+        if (transfer == null) {
+            Router router = this.router;
+            if (frame.flowId != 0 && router != null
+                    && !router.onFlowOffered(endpointId, frame.transferId, frame.flowId, frame.ttl)) {
+                transport.send(endpointId, Frame.cancel(frame.transferId));
+                return;
+            }
+            TransferJournal journal = null;
+            try {
+                if (frame.size == Frame.UNKNOWN_SIZE) {
+                    transfer = openStream(endpointId, frame);
+                } else {
+                    journal = openJournal(frame);
+                    transfer = new IncomingTransfer(endpointId, journal, allocator);
+                }
+            } catch (IOException e) {
+                if (journal != null) {
+                    journal.target.delete();
+                    journal.delete();
+                }
+                if (frame.flowId != 0 && router != null) {
+                    // Accepted above, so another copy of the flow has to be let in.
+                    router.onFlowFailed(frame.transferId, frame.flowId);
+                }
+                transport.send(endpointId, Frame.cancel(frame.transferId));
+                listener.onTransferFailed(endpointId, frame.transferId, e);
+                return;
+            }
+            transfer.flowId = frame.flowId;
+            track(transfer);
+            announce(transfer, frame.name);
+        }
+        transport.send(endpointId,
+                Frame.accept(transfer.id, transfer.committedChunks(), transport.maxFrameSize()));
+        verifyIfComplete(transfer);
+    }
+
+    private IncomingTransfer openStream(String endpointId, Frame offer) throws IOException {
+        if (offer.chunkSize <= 0 || offer.chunkSize > transport.maxFrameSize()) {
+            throw new ProtocolException("Bad chunk size " + offer.chunkSize);
+        }
+        File file = newReceiveFile(offer.name);
+        try {
+            return new IncomingTransfer(endpointId, offer.transferId, offer.chunkSize, file, allocator);
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+    }
+
+    private TransferJournal openJournal(Frame offer) throws IOException {
+        suspendedIncoming.complete(offer.transferId);
+        TransferJournal journal = TransferJournal.load(journalDir, offer.transferId);
+        if (journal != null) {
+            if (journal.matches(offer.size, offer.chunkSize, offer.fingerprint)) {
+                return journal;
+            }
+            journal.target.delete();
+            journal.delete();
+        }
+        if (receiveDir.getUsableSpace() < offer.size) {
+            throw new IOException("Not enough space for " + offer.size + " bytes in " + receiveDir);
+        }
+        journal = new TransferJournal(journalDir, offer.transferId, offer.size, offer.chunkSize,
+                offer.fingerprint, newReceiveFile(offer.name));
+        journal.write();
+        return journal;
+    }
+
+    private void handleManifest(String endpointId, Frame frame) {
+        ManifestAssembly assembly = manifests.get(frame.transferId);
+        if (assembly == null || !assembly.endpointId.equals(endpointId) || frame.index == 0) {
+            if (frame.index != 0) {
+                // The start was lost; the sender times out waiting for the accept.
+                return;
+            }
+            assembly = new ManifestAssembly(endpointId, frame);
+            manifests.put(frame.transferId, assembly);
+        }
+        ContentManifest manifest;
+        try {
+            manifest = assembly.add(frame);
+        } catch (ProtocolException e) {
+            manifests.remove(frame.transferId);
+            transport.send(endpointId, Frame.cancel(frame.transferId));
+            listener.onTransferFailed(endpointId, frame.transferId, e);
+            return;
+        }
+        if (manifest == null) {
+            return;
+        }
+        manifests.remove(frame.transferId);
+        IncomingTransfer transfer = incoming.get(frame.transferId);
+        if (transfer != null && !transfer.endpointId.equals(endpointId)) {
+            incoming.remove(transfer.id);
+            suspend(transfer);
+            transfer = null;
+        }
+        if (transfer == null) {
+            try {
+                transfer = openDeduplicated(endpointId, frame.transferId, manifest, assembly.name);
+            } catch (IOException e) {
+                transport.send(endpointId, Frame.cancel(frame.transferId));
+                listener.onTransferFailed(endpointId, frame.transferId, e);
+                return;
+            }
+            track(transfer);
+            announce(transfer, assembly.name);
+        }
+        transport.send(endpointId,
+                Frame.accept(transfer.id, transfer.committedChunks(), transport.maxFrameSize()));
+        verifyIfComplete(transfer);
+    }
+
+    private void handleBatch(String endpointId, Frame frame) {
+        BatchAssembly assembly = batches.get(frame.transferId);
+        if (assembly == null || !assembly.endpointId.equals(endpointId) || frame.index == 0) {
+            if (frame.index != 0) {
+                return;
+            }
+            assembly = new BatchAssembly(endpointId, frame);
+            batches.put(frame.transferId, assembly);
+        }
+        try {
+            if (!assembly.add(frame)) {
+                return;
+            }
+        } catch (ProtocolException e) {
+            batches.remove(frame.transferId);
+            transport.send(endpointId, Frame.cancel(frame.transferId));
+            listener.onTransferFailed(endpointId, frame.transferId, e);
+            return;
+        }
+        batches.remove(frame.transferId);
+        IncomingTransfer transfer = incoming.get(frame.transferId);
+        if (transfer != null && !transfer.endpointId.equals(endpointId)) {
+            incoming.remove(transfer.id);
+            suspend(transfer);
+            transfer = null;
+        }
+        if (transfer == null) {
+            IncomingTransfer previous = suspendedIncoming.complete(frame.transferId);
+            if (previous != null && previous.size == assembly.size
+                    && previous.layout.maxLength() == assembly.chunkSize
+                    && previous.batch.files().size() == assembly.paths.length) {
+                transfer = new IncomingTransfer(previous, endpointId);
+            } else {
+                try {
+                    transfer = openBatch(endpointId, frame.transferId, assembly);
+                } catch (IOException e) {
+                    transport.send(endpointId, Frame.cancel(frame.transferId));
+                    listener.onTransferFailed(endpointId, frame.transferId, e);
+                    return;
+                }
+            }
+            track(transfer);
+        }
+        transport.send(endpointId,
+                Frame.accept(transfer.id, transfer.committedChunks(), transport.maxFrameSize()));
+        verifyIfComplete(transfer);
+    }
+
+    /**
+     * Creates every file of a batch up front, empty, so names are settled before data arrives.
+     */
+    private IncomingTransfer openBatch(String endpointId, long transferId, BatchAssembly assembly)
+            throws IOException {
+        if (receiveDir.getUsableSpace() < assembly.size) {
+            throw new IOException("Not enough space for " + assembly.size + " bytes in " + receiveDir);
+        }
+        List<File> files = new ArrayList<>();
+        try {
+            for (String path : assembly.paths) {
+                files.add(newReceiveFile(path));
+            }
+        } catch (IOException e) {
+            for (File file : files) {
+                file.delete();
+            }
+            throw e;
+        }
+        return new IncomingTransfer(endpointId, transferId, assembly.size, assembly.chunkSize,
+                new BatchChunkSink(files, assembly.sizes), receiveDir);
+    }
+
+    /**
+     * Creates the target of a deduplicated transfer and copies in every chunk found in the store.
+     */
+    private IncomingTransfer openDeduplicated(String endpointId, long transferId,
+                                              ContentManifest manifest, String name) throws IOException {
+        if (receiveDir.getUsableSpace() < manifest.layout.size) {
+            throw new IOException("Not enough space for " + manifest.layout.size + " bytes in " + receiveDir);
+        }
+        File file = newReceiveFile(name);
+        IncomingTransfer transfer;
+        try {
+            transfer = new IncomingTransfer(endpointId, transferId, manifest, file, allocator);
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+        ChunkStore store = chunkStore;
+        if (store == null) {
+            return transfer;
+        }
+        try {
+            ByteBuffer buf = ByteBuffer.allocate(manifest.layout.maxLength());
+            for (int i = 0; i < manifest.layout.count(); i++) {
+                buf.clear();
+                int length = manifest.layout.length(i);
+                if (store.read(manifest.hashes[i], length, buf)) {
+                    buf.flip();
+                    transfer.begin(i, length);
+                    transfer.write(i, buf);
+                    transfer.commit(i, manifest.hashes[i]);
+                }
+            }
+        } catch (IOException e) {
+            transfer.discard();
+            throw e;
+        }
+        return transfer;
+    }
+
+    /**
+     * Claims the chunk and hands it to a verifier, which writes it if its hash matches. The
+     * result comes back to the receive thread in {@link #onChunkChecked}.
+     */
+    private void handleChunk(final String endpointId, final Frame frame) {
+        final IncomingTransfer transfer = incoming.get(frame.transferId);
+        if (transfer == null || !transfer.endpointId.equals(endpointId)) {
+            return;
+        }
+        final ByteBuffer data;
+        try {
+            if ((frame.flags & Frame.FLAG_DEFLATE) != 0) {
+                // Not the shared buffer: the data is still needed after this frame.
+                data = inflate(frame.data, new byte[transfer.layout.maxLength() + 1]);
+            } else {
+                data = frame.data;
+            }
+            if (!transfer.begin(frame.index, data.remaining())) {
+                if (transfer.isAckDeferred(frame.index)) {
+                    transport.send(endpointId, Frame.hold(transfer.id, frame.index));
+                } else if (transfer.isReceived(frame.index)) {
+                    transport.send(endpointId, Frame.ack(transfer.id, frame.index));
+                }
+                return;
+            }
+        } catch (IOException e) {
+            fail(transfer, e);
+            return;
+        }
+        verifiers.execute(new Runnable() {
+            @Override
+            public void run() {
+                Metrics.EndpointMetrics endpoint = metrics.endpoint(endpointId);
+                long start = System.nanoTime();
+                byte[] hash = ChunkHashes.hash(digests.get(), data);
+                endpoint.verifyMicros.record((System.nanoTime() - start) / 1000);
+                boolean matches = Arrays.equals(hash, frame.hash) && (transfer.manifest == null
+                        || Arrays.equals(hash, transfer.manifest.hashes[frame.index]));
+                IOException error = null;
+                if (matches) {
+                    try {
+                        ChunkStore store = chunkStore;
+                        if (transfer.manifest != null && store != null) {
+                            store.put(hash, data);
+                        }
+                        start = System.nanoTime();
+                        transfer.write(frame.index, data);
+                        endpoint.diskWriteMicros.record((System.nanoTime() - start) / 1000);
+                    } catch (IOException e) {
+                        error = e;
+                    }
+                }
+                final byte[] checked = matches ? hash : null;
+                final IOException failure = error;
+                postToReceiver(new Runnable() {
+                    @Override
+                    public void run() {
+                        onChunkChecked(transfer, frame.index, checked, failure);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @param hash the verified hash of the written chunk, or null if it did not match
+     */
+    private void onChunkChecked(IncomingTransfer transfer, int index, byte[] hash, IOException error) {
+        if (incoming.get(transfer.id) != transfer) {
+            // Cancelled or suspended while the chunk was verified.
+            return;
+        }
+        if (hash == null) {
+            metrics.endpoint(transfer.endpointId).chunksRejected.incrementAndGet();
+            transfer.abort(index);
+            BitSet rejected = new BitSet();
+            rejected.set(index);
+            sendNack(transfer, rejected);
+            return;
+        }
+        try {
+            if (error != null) {
+                throw error;
+            }
+            transfer.commit(index, hash);
+        } catch (IOException e) {
+            fail(transfer, e);
+            return;
+        }
+        transfer.stats.setBytes(transfer.bytesReceived());
+        listener.onTransferProgress(transfer.endpointId, transfer.id, transfer.bytesReceived(), transfer.size);
+        if (transfer.stream != null) {
+            transfer.stream.onReadable(transfer.readableBytes());
+        }
+        if (transfer.deferAck(index, STREAM_READ_AHEAD)) {
+            // Tells the sender the chunk is here, so it does not count it as lost.
+            transport.send(transfer.endpointId, Frame.hold(transfer.id, index));
+        } else {
+            transport.send(transfer.endpointId, Frame.ack(transfer.id, index));
+        }
+        verifyIfComplete(transfer);
+    }
+
+    /**
+     * Hands a new incoming transfer to the {@link StreamListener}, if there is one.
+     */
+    private void announce(final IncomingTransfer transfer, String name) {
+        StreamListener streamListener = this.streamListener;
+        if (streamListener == null) {
+            return;
+        }
+        final AtomicBoolean releasing = new AtomicBoolean();
+        transfer.stream = new IncomingStream(transfer.file, new Runnable() {
+            @Override
+            public void run() {
+                // Called by the reader for every read; only worth a task when acks are waiting.
+                if (transfer.hasDeferredAcks() && releasing.compareAndSet(false, true)) {
+                    postToReceiver(new Runnable() {
+                        @Override
+                        public void run() {
+                            releasing.set(false);
+                            releaseAcks(transfer);
+                        }
+                    });
+                }
+            }
+        });
+        transfer.stream.onReadable(transfer.readableBytes());
+        streamListener.onStreamOpened(transfer.endpointId, transfer.id, name, transfer.size, transfer.stream);
+    }
+
+    /**
+     * Sends the acknowledgements the reader of a stream has caught up with.
+     */
+    private void releaseAcks(IncomingTransfer transfer) {
+        if (incoming.get(transfer.id) != transfer) {
+            return;
+        }
+        BitSet released = transfer.takeReleasedAcks(STREAM_READ_AHEAD);
+        for (int i = released.nextSetBit(0); i >= 0; i = released.nextSetBit(i + 1)) {
+            transport.send(transfer.endpointId, Frame.ack(transfer.id, i));
+        }
+    }
+
+    /**
+     * Checks the root hash on a verifier once all chunks and the root are in.
+     */
+    private void verifyIfComplete(final IncomingTransfer transfer) {
+        if (!transfer.isComplete() || transfer.expectedRoot == null || transfer.verifying) {
+            return;
+        }
+        transfer.verifying = true;
+        verifiers.execute(new Runnable() {
+            @Override
+            public void run() {
+                BitSet rejected = null;
+                IOException error = null;
+                try {
+                    rejected = transfer.verifyRoot();
+                } catch (IOException e) {
+                    error = e;
+                }
+                final BitSet result = rejected;
+                final IOException failure = error;
+                postToReceiver(new Runnable() {
+                    @Override
+                    public void run() {
+                        onRootChecked(transfer, result, failure);
+                    }
+                });
+            }
+        });
+    }
+
+    private void onRootChecked(IncomingTransfer transfer, BitSet rejected, IOException error) {
+        transfer.verifying = false;
+        if (incoming.get(transfer.id) != transfer) {
+            return;
+        }
+        try {
+            if (error != null) {
+                throw error;
+            }
+            if (!rejected.isEmpty()) {
+                transfer.reject(rejected);
+                sendNack(transfer, rejected);
+                return;
+            }
+        } catch (IOException e) {
+            fail(transfer, e);
+            return;
+        }
+        incoming.remove(transfer.id);
+        try {
+            transfer.finish();
+        } catch (IOException e) {
+            failStream(transfer, e);
+            metrics.finishTransfer(transfer.stats, TransferStats.Outcome.FAILED);
+            listener.onTransferFailed(transfer.endpointId, transfer.id, e);
+            return;
+        }
+        if (transfer.stream != null) {
+            transfer.stream.onFinished(transfer.layout.size);
+        }
+        metrics.finishTransfer(transfer.stats, TransferStats.Outcome.COMPLETED);
+        transport.send(transfer.endpointId, Frame.verified(transfer.id));
+        if (transfer.batch != null) {
+            listener.onBatchReceived(transfer.endpointId, transfer.id, transfer.batch.files());
+        } else {
+            listener.onFileReceived(transfer.endpointId, transfer.id, transfer.file);
+        }
+    }
+
+    private void sendNack(IncomingTransfer transfer, BitSet chunks) {
+        for (ByteBuffer nack : Frame.nack(transfer.id, chunks, transport.maxFrameSize())) {
+            transport.send(transfer.endpointId, nack);
+        }
+    }
+
+    private void fail(IncomingTransfer transfer, IOException e) {
+        incoming.remove(transfer.id);
+        transfer.discard();
+        failStream(transfer, e);
+        metrics.finishTransfer(transfer.stats, TransferStats.Outcome.FAILED);
+        transport.send(transfer.endpointId, Frame.cancel(transfer.id));
+        listener.onTransferFailed(transfer.endpointId, transfer.id, e);
+    }
+
+    /**
+     * Fails the reader of {@code transfer}, if any, and tells the router its flow did not arrive
+     * this way.
+     */
+    private void failStream(IncomingTransfer transfer, IOException e) {
+        if (transfer.stream != null) {
+            transfer.stream.onFailed(e);
+        }
+        Router router = this.router;
+        if (transfer.flowId != 0 && router != null) {
+            router.onFlowFailed(transfer.id, transfer.flowId);
+        }
+    }
+
+    private void postToReceiver(Runnable task) {
+        try {
+            receiver.execute(task);
+        } catch (RejectedExecutionException ignored) {
+            // Shut down meanwhile.
+        }
+    }
+
+    private void handleMessage(String endpointId, Frame frame) {
+        ByteBuffer data = frame.data;
+        try {
+            if ((frame.flags & Frame.FLAG_DEFLATE) != 0) {
+                if (inflated.length < transport.maxFrameSize() + 1) {
+                    inflated = new byte[transport.maxFrameSize() + 1];
+                }
+                data = inflate(data, inflated);
+            }
+        } catch (IOException e) {
+            listener.onTransferFailed(endpointId, 0, e);
+            return;
+        }
+        byte[] message = new byte[data.remaining()];
+        data.get(message);
+        listener.onMessageReceived(endpointId, message);
+    }
+
+    /**
+     * Inflates into {@code into}, which should have one byte more than the largest valid result
+     * so oversized input is detected instead of silently truncated.
+     */
+    private ByteBuffer inflate(ByteBuffer data, byte[] into) throws IOException {
+        try {
+            return ByteBuffer.wrap(into, 0, receiveCompressor.decompress(data, into));
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed frame", e);
+        }
+    }
+
+    /**
+     * Collects the pages of a manifest, which arrive in order on the same endpoint.
+     */
+    private static class ManifestAssembly {
+        final String endpointId;
+        final long size;
+        final String name;
+        final int[] lengths;
+        final byte[][] hashes;
+        int next;
+
+        ManifestAssembly(String endpointId, Frame first) {
+            this.endpointId = endpointId;
+            this.size = first.size;
+            this.name = first.name;
+            // Chunks are never smaller than 64 bytes but the last; bounds what a bad frame allocates.
+            int count = (int) Math.min(first.chunkCount, first.size / 64 + 1);
+            this.lengths = new int[count];
+            this.hashes = new byte[count][];
+        }
+
+        /**
+         * Returns the manifest once the last page is in, null before.
+         */
+        ContentManifest add(Frame page) throws ProtocolException {
+            if (page.index != next || page.chunkCount != lengths.length || page.size != size) {
+                throw new ProtocolException("Unexpected manifest page " + page.index);
+            }
+            for (int i = 0; i < page.lengths.length; i++) {
+                lengths[next] = page.lengths[i];
+                hashes[next] = page.hashes[i];
+                next++;
+            }
+            if (next < lengths.length) {
+                return null;
+            }
+            long total = 0;
+            for (int length : lengths) {
+                if (length <= 0) {
+                    throw new ProtocolException("Bad chunk length " + length);
+                }
+                total += length;
+            }
+            if (total != size) {
+                throw new ProtocolException("Manifest covers " + total + " of " + size + " bytes");
+            }
+            return new ContentManifest(ChunkLayout.variable(lengths), hashes);
+        }
+    }
+
+    /**
+     * Collects the file table of a batch, which arrives in order on the same endpoint.
+     */
+    private static class BatchAssembly {
+        final String endpointId;
+        final long size;
+        final int chunkSize;
+        final String[] paths;
+        final long[] sizes;
+        int next;
+
+        BatchAssembly(String endpointId, Frame first) {
+            this.endpointId = endpointId;
+            this.size = first.size;
+            this.chunkSize = first.chunkSize;
+            int count = Math.min(first.fileCount, MAX_BATCH_FILES);
+            this.paths = new String[count];
+            this.sizes = new long[count];
+        }
+
+        /**
+         * Returns true once the last page is in.
+         */
+        boolean add(Frame page) throws ProtocolException {
+            if (page.index != next || page.fileCount != paths.length || page.size != size
+                    || page.chunkSize != chunkSize) {
+                throw new ProtocolException("Unexpected batch page " + page.index);
+            }
+            for (int i = 0; i < page.paths.length; i++) {
+                paths[next] = page.paths[i];
+                sizes[next] = page.sizes[i];
+                next++;
+            }
+            if (next < paths.length) {
+                return false;
+            }
+            long total = 0;
+            for (long fileSize : sizes) {
+                if (fileSize < 0) {
+                    throw new ProtocolException("Bad file size " + fileSize);
+                }
+                total += fileSize;
+            }
+            if (total != size) {
+                throw new ProtocolException("Batch covers " + total + " of " + size + " bytes");
+            }
+            return true;
+        }
+    }
+
+    private void track(IncomingTransfer transfer) {
+        transfer.stats = metrics.startTransfer(transfer.id, transfer.endpointId,
+                TransferStats.Direction.RECEIVE, transfer.size);
+        incoming.put(transfer.id, transfer);
+    }
+
+    /**
+     * Suspends an incoming transfer. Batches are kept in memory until their sender resumes them.
+     * Either way a resumable transfer is dropped after {@link #SUSPENDED_TIMEOUT_MS}, or earlier
+     * once more than {@link #MAX_SUSPENDED_TRANSFERS} are waiting. A reader of the transfer fails,
+     * as the file it reads may be gone or be resumed much later.
+     */
+    private void suspend(IncomingTransfer transfer) {
+        failStream(transfer, new IOException("Transfer " + transfer.id + " suspended"));
+        metrics.finishTransfer(transfer.stats, TransferStats.Outcome.SUSPENDED);
+        try {
+            transfer.suspend();
+            if (transfer.batch != null || (transfer.manifest == null && transfer.size != Frame.UNKNOWN_SIZE)) {
+                suspendedIncoming.put(transfer.id, transfer.endpointId, transfer, transfer.size);
+            }
+        } catch (IOException e) {
+            listener.onTransferFailed(transfer.endpointId, transfer.id, e);
+        }
+    }
+
+    /**
+     * Creates a new file for {@code path}, relative to the receive directory. Path components
+     * that could lead outside of it are dropped, and a clashing name gets a numeric suffix.
+     */
+    private File newReceiveFile(String path) throws IOException {
+        File dir = receiveDir;
+        String fileName = "";
+        for (String component : path.split("[/\\\\]")) {
+            if (component.isEmpty() || component.equals(".") || component.equals("..")) {
+                continue;
+            }
+            if (!fileName.isEmpty()) {
+                dir = new File(dir, fileName);
+            }
+            fileName = component;
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        if (fileName.isEmpty()) {
+            fileName = "nearby_shared-" + System.currentTimeMillis();
+        }
+        int dot = fileName.lastIndexOf('.');
+        String base = dot > 0 ? fileName.substring(0, dot) : fileName;
+        String extension = dot > 0 ? fileName.substring(dot) : "";
+        File file = new File(dir, fileName);
+        for (int i = 1; !file.createNewFile(); i++) {
+            file = new File(dir, base + "-" + i + extension);
+        }
+        return file;
+    }
+
+    private final TransferTable.Reclaimer<IncomingTransfer> reclaimer =
+            new TransferTable.Reclaimer<IncomingTransfer>() {
+                @Override
+                public void reclaim(long id, String endpointId, IncomingTransfer transfer,
+                                    TransferTable.Reason reason) {
+                    if (reason == TransferTable.Reason.CLOSED && transfer.batch == null) {
+                        return;
+                    }
+                    transfer.discard();
+                    metrics.finishTransfer(transfer.stats, TransferStats.Outcome.FAILED);
+                    listener.onTransferFailed(endpointId, id,
+                            new IOException("Suspended transfer " + id + " dropped: " + reason));
+                }
+            };
+
+    private final TransferTable.Reclaimer<OutgoingTransfer> outgoingReclaimer =
+            new TransferTable.Reclaimer<OutgoingTransfer>() {
+                @Override
+                public void reclaim(long id, String endpointId, OutgoingTransfer transfer,
+                                    TransferTable.Reason reason) {
+                    closeQuietly(transfer);
+                    if (reason == TransferTable.Reason.CLOSED) {
+                        return;
+                    }
+                    transfer.progress.setState(TransferProgress.State.FAILED);
+                    metrics.finishTransfer(transfer.stats, TransferStats.Outcome.FAILED);
+                    listener.onTransferFailed(endpointId, id, new IOException(
+                            reason == TransferTable.Reason.CANCELED ? "Transfer " + id + " cancelled"
+                                    : "Suspended transfer " + id + " dropped: " + reason));
+                }
+            };
+
+    private static void closeQuietly(OutgoingTransfer transfer) {
+        try {
+            transfer.source.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
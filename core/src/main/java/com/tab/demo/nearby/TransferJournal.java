@@ -0,0 +1,138 @@
+package com.tab.demo.nearby;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Persistent record of which chunks of an incoming file are safely on disk. One small file per
+ * transfer, replaced atomically on every write, so a transfer can pick up where it stopped after
+ * a disconnect or a process restart.
+ */
+class TransferJournal {
+    private static final int MAGIC = 0x4E544A31;
+
+    final File journalFile;
+    final long transferId;
+    final long size;
+    final int chunkSize;
+    final byte[] fingerprint;
+    final File target;
+    final BitSet committed;
+
+    TransferJournal(File journalDir, long transferId, long size, int chunkSize, byte[] fingerprint,
+                    File target) {
+        this(journalDir, transferId, size, chunkSize, fingerprint, target, new BitSet());
+    }
+
+    private TransferJournal(File journalDir, long transferId, long size, int chunkSize,
+                            byte[] fingerprint, File target, BitSet committed) {
+        this.journalFile = fileFor(journalDir, transferId);
+        this.transferId = transferId;
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.fingerprint = fingerprint;
+        this.target = target;
+        this.committed = committed;
+    }
+
+    /**
+     * Returns the journal of {@code transferId}, or null if there is none or it is unreadable.
+     */
+    static TransferJournal load(File journalDir, long transferId) {
+        TransferJournal journal = read(journalDir, fileFor(journalDir, transferId));
+        return journal != null && journal.transferId == transferId ? journal : null;
+    }
+
+    private static TransferJournal read(File journalDir, File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if (in.readInt() != MAGIC) {
+                return null;
+            }
+            long transferId = in.readLong();
+            long size = in.readLong();
+            int chunkSize = in.readInt();
+            byte[] fingerprint = new byte[in.readUnsignedByte()];
+            in.readFully(fingerprint);
+            File target = new File(in.readUTF());
+            byte[] bitmap = new byte[in.readInt()];
+            in.readFully(bitmap);
+            return new TransferJournal(journalDir, transferId, size, chunkSize, fingerprint, target,
+                    BitSet.valueOf(bitmap));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Deletes the journals not written for {@code maxAgeMillis}, with the partial files they
+     * describe, which are left by transfers whose sender never came back. Returns how many.
+     */
+    static int deleteStale(File journalDir, long maxAgeMillis) {
+        File[] files = journalDir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        long cutoff = System.currentTimeMillis() - maxAgeMillis;
+        int deleted = 0;
+        for (File file : files) {
+            if (!file.getName().endsWith(".journal") || file.lastModified() >= cutoff) {
+                continue;
+            }
+            TransferJournal journal = read(journalDir, file);
+            if (journal != null) {
+                journal.target.delete();
+            }
+            file.delete();
+            deleted++;
+        }
+        return deleted;
+    }
+
+    boolean matches(long size, int chunkSize, byte[] fingerprint) {
+        return this.size == size && this.chunkSize == chunkSize
+                && Arrays.equals(this.fingerprint, fingerprint) && target.length() == size;
+    }
+
+    void write() throws IOException {
+        File dir = journalFile.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        File tmp = new File(dir, journalFile.getName() + ".tmp");
+        byte[] bitmap = committed.toByteArray();
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            DataOutputStream out = new DataOutputStream(fos);
+            out.writeInt(MAGIC);
+            out.writeLong(transferId);
+            out.writeLong(size);
+            out.writeInt(chunkSize);
+            out.writeByte(fingerprint.length);
+            out.write(fingerprint);
+            out.writeUTF(target.getAbsolutePath());
+            out.writeInt(bitmap.length);
+            out.write(bitmap);
+            out.flush();
+            fos.getFD().sync();
+        }
+        if (!tmp.renameTo(journalFile)) {
+            throw new IOException("Cannot replace " + journalFile);
+        }
+    }
+
+    void delete() {
+        journalFile.delete();
+    }
+
+    private static File fileFor(File journalDir, long transferId) {
+        return new File(journalDir, Long.toHexString(transferId) + ".journal");
+    }
+}
@@ -0,0 +1,481 @@
+package com.tab.demo.nearby;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * One peer of the transfer network: a {@link PeerTransport} with the scheduler, transfer engine,
+ * connection pool and endpoint registry on top of it. It keeps all of them in step as endpoints
+ * come and go, and resumes transfers when a peer that dropped connects again.
+ *
+ * <p>On every connection both sides announce their {@link #setLocalId id} and
+ * {@link #setCapabilities capabilities}. Peers are told apart by that id, not by their name, which
+ * two devices of the same model share. With a {@link PeerCache}, peers connected to before are
+ * remembered across restarts. They are what {@link DiscoveryCycle discovery} looks for, and with
+ * {@link #setAutoConnect} endpoints found under their names are connected to right away, and
+ * dropped again if they turn out to be someone else. The cache also keeps the quality of the link
+ * when it drops.
+ *
+ * <p>This is everything the app does besides Android plumbing, so the benchmarks and simulations
+ * run the same wiring as a device.
+ */
+class TransferNode {
+    // Message channel type of the id and capabilities announced on connecting; the others are free.
+    static final int MESSAGE_HELLO = MessageChannel.MAX_TYPE;
+    // Changes to the peer cache within this long are written together.
+    private static final long PEER_SAVE_DELAY_MS = 1000;
+
+    interface Listener extends TransferEngine.Listener {
+        /**
+         * The endpoint registry changed; may be called on any thread.
+         */
+        void onEndpointsChanged();
+    }
+
+    private final PeerTransport transport;
+    private final TransferScheduler scheduler;
+    private final TransferEngine engine;
+    private final MessageChannel messages;
+    private final DiscoveryCycle discovery;
+    private final ScheduledExecutorService timers;
+    private final ConnectionManager connectionManager;
+    private final Listener listener;
+    private final EndpointRegistry endpoints = new EndpointRegistry();
+    // Id of each outgoing transfer that holds a connection in the pool -> the endpoint it holds.
+    private final ConcurrentMap<Long, String> retainedTransfers = new ConcurrentHashMap<>();
+    // Endpoint id -> id of the peer on it, once its hello arrived.
+    private final ConcurrentMap<String, String> peerIds = new ConcurrentHashMap<>();
+    // Peer id -> id of the last connection to that peer that dropped.
+    private final ConcurrentMap<String, String> disconnectedEndpoints = new ConcurrentHashMap<>();
+    // Endpoints connected to only because their name is that of a trusted peer, until their hello.
+    private final Set<String> autoConnected = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final AtomicBoolean peerSavePending = new AtomicBoolean();
+    private volatile PeerCache peers;
+    private volatile boolean autoConnect;
+    private volatile String localId = UUID.randomUUID().toString();
+    private volatile int capabilities;
+    private volatile Metrics metrics = new Metrics();
+
+    /**
+     * @param timers runs the retry and timeout timers of the connection pool, the flush timers of
+     * the message channel and the discovery cycle
+     */
+    TransferNode(PeerTransport transport, File receiveDir, ScheduledExecutorService timers,
+                 Listener listener) {
+        this.transport = transport;
+        this.listener = listener;
+        this.timers = timers;
+        scheduler = new TransferScheduler(transport, TransferScheduler.DEFAULT_DISPATCHERS);
+        engine = new TransferEngine(scheduler, receiveDir, transferListener);
+        messages = new MessageChannel(scheduler, timers);
+        engine.setMessageChannel(messages);
+        messages.subscribe(MESSAGE_HELLO, MessageChannel.BYTES, helloSubscriber);
+        discovery = new DiscoveryCycle(transport, timers);
+        connectionManager = new ConnectionManager(connector, timers, ConnectionManager.DEFAULT_MAX_CONNECTIONS);
+        transport.setListener(transportListener);
+    }
+
+    PeerTransport getTransport() {
+        return transport;
+    }
+
+    TransferScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * The engine, for its settings; sending should go through this node so connections are held
+     * while transfers run.
+     */
+    TransferEngine getEngine() {
+        return engine;
+    }
+
+    void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+        scheduler.setMetrics(metrics);
+        engine.setMetrics(metrics);
+        connectionManager.setMetrics(metrics);
+        discovery.setMetrics(metrics);
+    }
+
+    /**
+     * Remembers peers in {@code peers} and makes the trusted ones what discovery looks for.
+     */
+    void setPeerCache(PeerCache peers) {
+        this.peers = peers;
+        discovery.setWanted(peers.trustedIds());
+    }
+
+    PeerCache getPeerCache() {
+        return peers;
+    }
+
+    /**
+     * Drops peer {@code peerId} from the peer cache, so it is no longer trusted, looked for or
+     * connected to on its own, and drops the connection to it if there is one.
+     */
+    void forgetPeer(String peerId) {
+        PeerCache peers = this.peers;
+        if (peers != null) {
+            peers.forget(peerId);
+            discovery.setWanted(peers.trustedIds());
+            schedulePeerSave();
+        }
+        for (Map.Entry<String, String> entry : peerIds.entrySet()) {
+            if (entry.getValue().equals(peerId)) {
+                disconnect(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Whether to connect to trusted peers as soon as they are found.
+     */
+    void setAutoConnect(boolean autoConnect) {
+        this.autoConnect = autoConnect;
+    }
+
+    /**
+     * Sets the id this node announces to every peer it connects to, which they remember it by. It
+     * should stay the same across restarts; a random one is used until it is set.
+     */
+    void setLocalId(String localId) {
+        this.localId = localId;
+    }
+
+    /**
+     * Sets what this node announces to every peer it connects to. The bits mean whatever the app
+     * makes of them.
+     */
+    void setCapabilities(int capabilities) {
+        this.capabilities = capabilities;
+    }
+
+    DiscoveryCycle getDiscovery() {
+        return discovery;
+    }
+
+    /**
+     * Starts discovering in bursts, until every trusted peer is connected, see
+     * {@link DiscoveryCycle}.
+     */
+    void startDiscovery() {
+        discovery.start();
+    }
+
+    /**
+     * Scans for a whole burst right away, for a user looking for new peers.
+     */
+    void scanNow() {
+        discovery.scanNow();
+    }
+
+    void stopDiscovery() {
+        discovery.stop();
+    }
+
+    /**
+     * Small typed messages, batched into few frames.
+     */
+    MessageChannel getMessages() {
+        return messages;
+    }
+
+    EndpointRegistry.Snapshot getEndpoints() {
+        return endpoints.snapshot();
+    }
+
+    EndpointRegistry getEndpointRegistry() {
+        return endpoints;
+    }
+
+    List<String> getConnectedEndpoints() {
+        return connectionManager.getConnectedEndpoints();
+    }
+
+    /**
+     * Connects through the pool, reusing a live connection. {@code callback} may be null.
+     */
+    void connect(String endpointId, ConnectionManager.Callback callback) {
+        connectionManager.connect(endpointId, callback);
+    }
+
+    void disconnect(String endpointId) {
+        transport.disconnect(endpointId);
+    }
+
+    List<TransferProgress> sendFile(List<String> endpointIds, FileChannel source, long size, String name) {
+        return retain(engine.broadcastFile(endpointIds, source, size, name));
+    }
+
+    /**
+     * Sends a file as flow {@code flowId} of a {@link MeshRelay}.
+     */
+    List<TransferProgress> sendFile(List<String> endpointIds, FileChannel source, long size, String name,
+                                    long flowId, int ttl) {
+        return retain(engine.broadcastFile(endpointIds, source, size, name, flowId, ttl));
+    }
+
+    List<TransferProgress> sendBatch(String endpointId, List<BatchFile> files) {
+        return retain(engine.sendBatch(endpointId, files));
+    }
+
+    TransferProgress sendStream(String endpointId, InputStream in, String name) {
+        return retain(Collections.singletonList(engine.sendStream(endpointId, in, name))).get(0);
+    }
+
+    TransferProgress sendStream(String endpointId, InputStream in, String name, long flowId, int ttl) {
+        return retain(Collections.singletonList(engine.sendStream(endpointId, in, name, flowId, ttl))).get(0);
+    }
+
+    void sendMessage(String endpointId, byte[] message) {
+        engine.sendMessage(endpointId, message);
+    }
+
+    private List<TransferProgress> retain(List<TransferProgress> transfers) {
+        for (TransferProgress transfer : transfers) {
+            retainedTransfers.put(transfer.transferId, transfer.endpointId);
+            connectionManager.retain(transfer.endpointId);
+        }
+        return transfers;
+    }
+
+    /**
+     * Moves the connections held by transfers to {@code previousEndpointId}, which dropped, over
+     * to {@code endpointId}, where they are about to resume.
+     */
+    private void retainResumed(String previousEndpointId, String endpointId) {
+        for (Map.Entry<Long, String> entry : retainedTransfers.entrySet()) {
+            if (entry.getValue().equals(previousEndpointId)
+                    && retainedTransfers.replace(entry.getKey(), previousEndpointId, endpointId)) {
+                connectionManager.retain(endpointId);
+            }
+        }
+    }
+
+    private void release(long transferId) {
+        String endpointId = retainedTransfers.remove(transferId);
+        if (endpointId != null) {
+            connectionManager.release(endpointId);
+        }
+    }
+
+    /**
+     * Drops all connections and stops the engine and scheduler threads. The transport itself and
+     * the timers belong to the caller.
+     */
+    void shutdown() {
+        discovery.stop();
+        transport.stopAll();
+        engine.shutdown();
+        scheduler.shutdown();
+        savePeers();
+    }
+
+    /**
+     * Writes the peer cache a little later, so a burst of changes costs one write.
+     */
+    private void schedulePeerSave() {
+        if (peers == null || !peerSavePending.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            timers.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    peerSavePending.set(false);
+                    savePeers();
+                }
+            }, PEER_SAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            peerSavePending.set(false);
+        }
+    }
+
+    private void savePeers() {
+        PeerCache peers = this.peers;
+        if (peers == null) {
+            return;
+        }
+        try {
+            peers.save();
+        } catch (IOException e) {
+            // Only costs the next start its head start.
+        }
+    }
+
+    private final PeerTransport.Listener transportListener = new PeerTransport.Listener() {
+        @Override
+        public void onEndpointFound(String endpointId, String name) {
+            if (endpoints.update(endpointId, name, EndpointState.FOUND) != null) {
+                listener.onEndpointsChanged();
+            }
+            discovery.onEndpointFound();
+            PeerCache peers = TransferNode.this.peers;
+            if (autoConnect && peers != null && peers.hasTrustedName(name)) {
+                autoConnected.add(endpointId);
+                connectionManager.connect(endpointId, null);
+            }
+        }
+
+        @Override
+        public void onEndpointLost(String endpointId) {
+            if (endpoints.remove(endpointId) != null) {
+                listener.onEndpointsChanged();
+            }
+        }
+
+        @Override
+        public void onConnectionInitiated(String endpointId, String name, boolean incoming) {
+            endpoints.update(endpointId, name, EndpointState.CONNECTING);
+            listener.onEndpointsChanged();
+        }
+
+        @Override
+        public void onConnected(String endpointId) {
+            EndpointStatus status = endpoints.moveTo(endpointId, EndpointState.CONNECTED);
+            if (!connectionManager.onConnected(endpointId)) {
+                // Turned away by a full pool; the disconnect is on its way.
+                listener.onEndpointsChanged();
+                return;
+            }
+            byte[] id = localId.getBytes(UTF_8);
+            ByteBuffer hello = ByteBuffer.allocate(4 + id.length);
+            hello.putInt(capabilities).put(id).flip();
+            messages.send(endpointId, MESSAGE_HELLO, MessageChannel.BYTES, hello);
+            messages.flush(endpointId);
+            listener.onEndpointsChanged();
+        }
+
+        @Override
+        public void onConnectionFailed(String endpointId) {
+            autoConnected.remove(endpointId);
+            endpoints.moveTo(endpointId, EndpointState.FAILED);
+            connectionManager.onConnectionFailed(endpointId);
+            listener.onEndpointsChanged();
+        }
+
+        @Override
+        public void onDisconnected(String endpointId) {
+            endpoints.moveTo(endpointId, EndpointState.DISCONNECTED);
+            autoConnected.remove(endpointId);
+            // Transfers resumed on a connection the pool turned away are suspended again here, so
+            // this is where to resume them next.
+            String peerId = peerIds.remove(endpointId);
+            if (peerId != null) {
+                disconnectedEndpoints.put(peerId, endpointId);
+                PeerCache peers = TransferNode.this.peers;
+                if (peers != null) {
+                    Metrics.EndpointMetrics link = metrics.endpoint(endpointId);
+                    peers.onLinkMeasured(peerId, link.bytesPerSecond.mean(), link.rttMillis.mean());
+                    schedulePeerSave();
+                }
+                discovery.onDisconnected(peerId);
+            }
+            scheduler.clear(endpointId);
+            messages.clear(endpointId);
+            engine.onDisconnected(endpointId);
+            connectionManager.onDisconnected(endpointId);
+            listener.onEndpointsChanged();
+        }
+    };
+
+    private final MessageChannel.Subscriber<ByteBuffer> helloSubscriber = new MessageChannel.Subscriber<ByteBuffer>() {
+        @Override
+        public void onMessage(String endpointId, ByteBuffer message) {
+            EndpointStatus status = endpoints.get(endpointId);
+            // A peer without an id cannot be told apart from others of its model.
+            if (status == null || message.remaining() <= 4) {
+                return;
+            }
+            int capabilities = message.getInt();
+            byte[] id = new byte[message.remaining()];
+            message.get(id);
+            onIdentified(endpointId, status.name, new String(id, UTF_8), capabilities);
+        }
+    };
+
+    private void onIdentified(String endpointId, String name, String peerId, int capabilities) {
+        PeerCache peers = this.peers;
+        if (autoConnected.remove(endpointId) && (peers == null || !peers.isTrusted(peerId))) {
+            // Only has the name of a trusted peer.
+            disconnect(endpointId);
+            return;
+        }
+        peerIds.put(endpointId, peerId);
+        String previousEndpointId = disconnectedEndpoints.remove(peerId);
+        if (previousEndpointId != null) {
+            retainResumed(previousEndpointId, endpointId);
+            engine.resume(previousEndpointId, endpointId);
+        }
+        if (peers != null) {
+            peers.onConnected(peerId, name, capabilities, System.currentTimeMillis());
+            discovery.setWanted(peers.trustedIds());
+            schedulePeerSave();
+        }
+        discovery.onConnected(peerId);
+    }
+
+    private final ConnectionManager.Connector connector = new ConnectionManager.Connector() {
+        @Override
+        public void requestConnection(String endpointId) {
+            transport.connect(endpointId);
+        }
+
+        @Override
+        public void disconnect(String endpointId) {
+            transport.disconnect(endpointId);
+        }
+    };
+
+    private final TransferEngine.Listener transferListener = new TransferEngine.Listener() {
+        @Override
+        public void onTransferProgress(String endpointId, long transferId, long bytesTransferred, long totalBytes) {
+            listener.onTransferProgress(endpointId, transferId, bytesTransferred, totalBytes);
+        }
+
+        @Override
+        public void onFileReceived(String endpointId, long transferId, File file) {
+            listener.onFileReceived(endpointId, transferId, file);
+        }
+
+        @Override
+        public void onBatchReceived(String endpointId, long transferId, List<File> files) {
+            listener.onBatchReceived(endpointId, transferId, files);
+        }
+
+        @Override
+        public void onFileSent(String endpointId, long transferId) {
+            release(transferId);
+            listener.onFileSent(endpointId, transferId);
+        }
+
+        @Override
+        public void onTransferFailed(String endpointId, long transferId, Exception e) {
+            release(transferId);
+            listener.onTransferFailed(endpointId, transferId, e);
+        }
+
+        @Override
+        public void onMessageReceived(String endpointId, byte[] message) {
+            listener.onMessageReceived(endpointId, message);
+        }
+    };
+}
@@ -0,0 +1,42 @@
+package com.tab.demo.nearby;
+
+/**
+ * Progress of one outgoing transfer as seen by callers. Survives suspend and resume.
+ */
+class TransferProgress {
+    enum State {
+        RUNNING, SUSPENDED, COMPLETED, FAILED
+    }
+
+    final String endpointId;
+    final long transferId;
+    final long totalBytes;
+    private volatile long bytesAcked;
+    private volatile State state = State.RUNNING;
+
+    TransferProgress(String endpointId, long transferId, long totalBytes) {
+        this.endpointId = endpointId;
+        this.transferId = transferId;
+        this.totalBytes = totalBytes;
+    }
+
+    long getBytesAcked() {
+        return bytesAcked;
+    }
+
+    State getState() {
+        return state;
+    }
+
+    boolean isDone() {
+        return state == State.COMPLETED || state == State.FAILED;
+    }
+
+    void update(long bytesAcked) {
+        this.bytesAcked = bytesAcked;
+    }
+
+    void setState(State state) {
+        this.state = state;
+    }
+}
@@ -0,0 +1,375 @@
+package com.tab.demo.nearby;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Queues outgoing frames in front of a {@link Transport} and decides what goes next.
+ *
+ * <ul>
+ * <li>Control frames (offers, acks, cancels) always go first, then messages, then file chunks.
+ * Since files move one chunk at a time, bulk work is preempted at the next chunk boundary.</li>
+ * <li>Within a class, bulk bytes are shared between endpoints in proportion to their weight.</li>
+ * <li>At most {@code dispatchers} sends run at once, and each endpoint has at most one, which
+ * keeps frames to the same endpoint in order.</li>
+ * </ul>
+ *
+ * The wrapped transport is expected to block in {@code send} while its own queue towards an
+ * endpoint is full, otherwise everything would pile up below the scheduler instead of in it. A
+ * {@link Transport.Windowed} transport is not even asked while its window to an endpoint is full,
+ * so a slow endpoint does not hold up a dispatcher that could serve another one.
+ *
+ * <p>Frames are copied into pooled buffers, which go back to the pool once the transport is done
+ * with them.
+ */
+class TransferScheduler implements Transport {
+    // One per connection the pool keeps, so blocking transports cannot starve an endpoint either.
+    static final int DEFAULT_DISPATCHERS = ConnectionManager.DEFAULT_MAX_CONNECTIONS;
+    private static final int MAX_POOLED_FRAMES = 64;
+
+    enum Priority {
+        CONTROL, INTERACTIVE, BULK
+    }
+
+    private static class Item {
+        final ByteBuffer frame;
+        // Whether the frame came from the pool and goes back to it.
+        final boolean pooled;
+        final long enqueuedNanos = System.nanoTime();
+        final long sequence;
+
+        Item(ByteBuffer frame, boolean pooled, long sequence) {
+            this.frame = frame;
+            this.pooled = pooled;
+            this.sequence = sequence;
+        }
+    }
+
+    private static class EndpointQueue {
+        final String endpointId;
+        final ArrayDeque<Item>[] queues = newQueues(Priority.values().length);
+        int weight = 1;
+        // Bulk bytes sent divided by weight; the endpoint with the least is served next.
+        double virtualTime;
+        boolean busy;
+
+        EndpointQueue(String endpointId) {
+            this.endpointId = endpointId;
+            for (int i = 0; i < queues.length; i++) {
+                queues[i] = new ArrayDeque<>();
+            }
+        }
+
+        boolean isEmpty() {
+            for (ArrayDeque<Item> queue : queues) {
+                if (!queue.isEmpty()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> ArrayDeque<T>[] newQueues(int count) {
+        return (ArrayDeque<T>[]) new ArrayDeque<?>[count];
+    }
+
+    private final Transport transport;
+    // The transport if it has a window to check, else null.
+    private final Transport.Windowed window;
+    private final BufferPool frames;
+    private final Map<String, EndpointQueue> endpoints = new LinkedHashMap<>();
+    private final Map<String, Integer> weights = new HashMap<>();
+    private final List<Thread> dispatchers = new ArrayList<>();
+    private final int[] depth = new int[Priority.values().length];
+    private final AtomicLongArray waitCount = new AtomicLongArray(Priority.values().length);
+    private final AtomicLongArray waitTotalNanos = new AtomicLongArray(Priority.values().length);
+    private final AtomicLongArray waitMaxNanos = new AtomicLongArray(Priority.values().length);
+    private final AtomicLong bytesSent = new AtomicLong();
+    private volatile Metrics metrics = new Metrics();
+    private long sequence;
+    private boolean shutdown;
+    // Class of the endpoint last returned by next(); only valid while holding the lock.
+    private Priority nextPriority;
+
+    TransferScheduler(Transport transport, int dispatchers) {
+        this.transport = transport;
+        this.frames = new BufferPool(transport.maxFrameSize(), MAX_POOLED_FRAMES);
+        if (transport instanceof Transport.Windowed) {
+            window = (Transport.Windowed) transport;
+            window.setWindowListener(new WindowListener() {
+                @Override
+                public void onWindowOpen(String endpointId) {
+                    synchronized (TransferScheduler.this) {
+                        TransferScheduler.this.notifyAll();
+                    }
+                }
+            });
+        } else {
+            window = null;
+        }
+        for (int i = 0; i < dispatchers; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    dispatch();
+                }
+            }, "TransferScheduler-" + i);
+            thread.setDaemon(true);
+            this.dispatchers.add(thread);
+            thread.start();
+        }
+    }
+
+    static Priority classify(ByteBuffer frame) {
+        int position = frame.position();
+        if (frame.remaining() < 2 || frame.get(position) != Frame.MAGIC) {
+            return Priority.INTERACTIVE;
+        }
+        switch (frame.get(position + 1)) {
+            case Frame.TYPE_CHUNK:
+                return Priority.BULK;
+            case Frame.TYPE_MESSAGE:
+            case Frame.TYPE_MESSAGES:
+                return Priority.INTERACTIVE;
+            default:
+                return Priority.CONTROL;
+        }
+    }
+
+    @Override
+    public int maxFrameSize() {
+        return transport.maxFrameSize();
+    }
+
+    /**
+     * Queues a copy of the frame and returns immediately.
+     */
+    @Override
+    public void send(String endpointId, ByteBuffer frame) {
+        Priority priority = classify(frame);
+        ByteBuffer copy = frame.remaining() <= frames.bufferSize() ? frames.acquire() : null;
+        boolean pooled = copy != null;
+        if (!pooled) {
+            // Pool exhausted, or a frame too large the transport will refuse anyway.
+            copy = ByteBuffer.allocate(frame.remaining());
+        }
+        copy.put(frame).flip();
+        synchronized (this) {
+            if (shutdown) {
+                release(copy, pooled);
+                return;
+            }
+            queueFor(endpointId).queues[priority.ordinal()].addLast(new Item(copy, pooled, sequence++));
+            depth[priority.ordinal()]++;
+            notifyAll();
+        }
+    }
+
+    @Override
+    public void setReceiver(Receiver receiver) {
+        transport.setReceiver(receiver);
+    }
+
+    void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Gives {@code endpointId} {@code weight} times the bulk bandwidth of an endpoint with weight 1.
+     */
+    synchronized void setWeight(String endpointId, int weight) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("weight must be positive: " + weight);
+        }
+        weights.put(endpointId, weight);
+        queueFor(endpointId).weight = weight;
+    }
+
+    /**
+     * Drops everything still queued for {@code endpointId}.
+     */
+    synchronized void clear(String endpointId) {
+        EndpointQueue queue = endpoints.get(endpointId);
+        if (queue == null) {
+            return;
+        }
+        for (int i = 0; i < queue.queues.length; i++) {
+            depth[i] -= queue.queues[i].size();
+            releaseAll(queue.queues[i]);
+        }
+        if (!queue.busy) {
+            endpoints.remove(endpointId);
+        }
+    }
+
+    synchronized int getQueueDepth(Priority priority) {
+        return depth[priority.ordinal()];
+    }
+
+    long getAverageWaitMicros(Priority priority) {
+        long count = waitCount.get(priority.ordinal());
+        return count == 0 ? 0 : waitTotalNanos.get(priority.ordinal()) / count / 1000;
+    }
+
+    long getMaxWaitMicros(Priority priority) {
+        return waitMaxNanos.get(priority.ordinal()) / 1000;
+    }
+
+    long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    void shutdown() {
+        synchronized (this) {
+            shutdown = true;
+            for (EndpointQueue queue : endpoints.values()) {
+                for (ArrayDeque<Item> items : queue.queues) {
+                    releaseAll(items);
+                }
+            }
+            endpoints.clear();
+            notifyAll();
+        }
+        for (Thread thread : dispatchers) {
+            thread.interrupt();
+        }
+    }
+
+    private void releaseAll(ArrayDeque<Item> items) {
+        Item item;
+        while ((item = items.pollFirst()) != null) {
+            release(item.frame, item.pooled);
+        }
+    }
+
+    private void release(ByteBuffer frame, boolean pooled) {
+        if (pooled) {
+            frames.release(frame);
+        }
+    }
+
+    private EndpointQueue queueFor(String endpointId) {
+        EndpointQueue queue = endpoints.get(endpointId);
+        if (queue == null) {
+            queue = new EndpointQueue(endpointId);
+            Integer weight = weights.get(endpointId);
+            if (weight != null) {
+                queue.weight = weight;
+            }
+            // A newly active endpoint starts level with the others rather than with a credit.
+            queue.virtualTime = minVirtualTime();
+            endpoints.put(endpointId, queue);
+        }
+        return queue;
+    }
+
+    private double minVirtualTime() {
+        double min = 0;
+        boolean first = true;
+        for (EndpointQueue queue : endpoints.values()) {
+            if (first || queue.virtualTime < min) {
+                min = queue.virtualTime;
+                first = false;
+            }
+        }
+        return min;
+    }
+
+    private void dispatch() {
+        while (true) {
+            EndpointQueue queue;
+            Item item;
+            Priority priority;
+            synchronized (this) {
+                while ((queue = next()) == null) {
+                    if (shutdown) {
+                        return;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                priority = nextPriority;
+                item = queue.queues[priority.ordinal()].pollFirst();
+                depth[priority.ordinal()]--;
+                queue.busy = true;
+                if (priority == Priority.BULK) {
+                    queue.virtualTime += (double) item.frame.remaining() / queue.weight;
+                }
+            }
+            long waited = System.nanoTime() - item.enqueuedNanos;
+            recordWait(priority, waited);
+            Metrics.EndpointMetrics endpoint = metrics.endpoint(queue.endpointId);
+            endpoint.queueWaitMicros.record(waited / 1000);
+            int length = item.frame.remaining();
+            try {
+                transport.send(queue.endpointId, item.frame);
+                bytesSent.addAndGet(length);
+                endpoint.bytesSent.addAndGet(length);
+            } catch (RuntimeException e) {
+                // The frame is lost; the transfer it belonged to notices the missing ack.
+            } finally {
+                release(item.frame, item.pooled);
+                synchronized (this) {
+                    queue.busy = false;
+                    if (queue.isEmpty() && endpoints.get(queue.endpointId) == queue) {
+                        endpoints.remove(queue.endpointId);
+                    }
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Picks the endpoint and class to serve next: the oldest control frame, else the oldest
+     * message, else the bulk frame of the endpoint furthest behind its fair share. Endpoints whose
+     * transport window is full wait for it to open.
+     */
+    private EndpointQueue next() {
+        for (Priority priority : Priority.values()) {
+            EndpointQueue best = null;
+            for (EndpointQueue queue : endpoints.values()) {
+                Item head = queue.queues[priority.ordinal()].peekFirst();
+                if (queue.busy || head == null || (window != null && !window.canSend(queue.endpointId))) {
+                    continue;
+                }
+                if (best == null) {
+                    best = queue;
+                } else if (priority == Priority.BULK) {
+                    if (queue.virtualTime < best.virtualTime) {
+                        best = queue;
+                    }
+                } else if (head.sequence < best.queues[priority.ordinal()].peekFirst().sequence) {
+                    best = queue;
+                }
+            }
+            if (best != null) {
+                nextPriority = priority;
+                return best;
+            }
+        }
+        return null;
+    }
+
+    private void recordWait(Priority priority, long nanos) {
+        int i = priority.ordinal();
+        waitCount.incrementAndGet(i);
+        waitTotalNanos.addAndGet(i, nanos);
+        long max;
+        while (nanos > (max = waitMaxNanos.get(i)) && !waitMaxNanos.compareAndSet(i, max, nanos)) {
+            // retry
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.tab.demo.nearby;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timing of one transfer in one direction. Survives suspend and resume, so the numbers cover
+ * the whole transfer rather than the last connection.
+ */
+class TransferStats {
+    enum Direction {
+        SEND, RECEIVE
+    }
+
+    enum Outcome {
+        RUNNING, SUSPENDED, COMPLETED, FAILED
+    }
+
+    final long transferId;
+    final String endpointId;
+    final Direction direction;
+    final long size;
+    final long startMillis = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+    // 0 until the first byte is acknowledged or received.
+    private volatile long firstByteNanos;
+    private volatile long endNanos;
+    private volatile long bytes;
+    private volatile Outcome outcome = Outcome.RUNNING;
+    private final AtomicLong stalls = new AtomicLong();
+    private final AtomicLong stallNanos = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+
+    TransferStats(long transferId, String endpointId, Direction direction, long size) {
+        this.transferId = transferId;
+        this.endpointId = endpointId;
+        this.direction = direction;
+        this.size = size;
+    }
+
+    /**
+     * Records the bytes acknowledged or received so far.
+     */
+    void setBytes(long bytes) {
+        if (firstByteNanos == 0 && bytes > 0) {
+            firstByteNanos = System.nanoTime();
+        }
+        this.bytes = bytes;
+    }
+
+    void onStall(long nanos) {
+        stalls.incrementAndGet();
+        stallNanos.addAndGet(nanos);
+    }
+
+    void onRetry(int chunks) {
+        retries.addAndGet(chunks);
+    }
+
+    void setOutcome(Outcome outcome) {
+        if (outcome != Outcome.RUNNING && outcome != Outcome.SUSPENDED) {
+            endNanos = System.nanoTime();
+        }
+        this.outcome = outcome;
+    }
+
+    long getBytes() {
+        return bytes;
+    }
+
+    Outcome getOutcome() {
+        return outcome;
+    }
+
+    long getElapsedMillis() {
+        long end = endNanos;
+        return ((end != 0 ? end : System.nanoTime()) - startNanos) / 1000000;
+    }
+
+    /**
+     * Milliseconds until the first byte arrived, or -1 if none has yet.
+     */
+    long getTimeToFirstByteMillis() {
+        long first = firstByteNanos;
+        return first == 0 ? -1 : (first - startNanos) / 1000000;
+    }
+
+    long getBytesPerSecond() {
+        long millis = getElapsedMillis();
+        return millis == 0 ? 0 : bytes * 1000 / millis;
+    }
+
+    long getStalls() {
+        return stalls.get();
+    }
+
+    long getStallMillis() {
+        return stallNanos.get() / 1000000;
+    }
+
+    long getRetries() {
+        return retries.get();
+    }
+}
@@ -0,0 +1,362 @@
+package com.tab.demo.nearby;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bookkeeping of transfers that hold memory or partial files, with a bound on both. Every entry
+ * has an idle deadline that {@link #touch} pushes back; an entry that reaches it, that does not
+ * fit under the capacity, fails or belongs to an endpoint that went away is handed to the
+ * {@link Reclaimer}, which deletes whatever the transfer left on disk. Only {@link #complete}
+ * takes an entry out without reclaiming it.
+ *
+ * <p>Deadlines are kept in a hashed timer wheel of {@link #WHEEL_SLOTS} slots, ticking
+ * {@link #TICKS_PER_TIMEOUT} times per timeout, so adding, touching and removing an entry is
+ * constant time however many there are. The tick only runs while the table is not empty. Without
+ * timers the owner calls {@link #tick} itself.
+ *
+ * <p>What the table holds is added to the pending counters of {@link Metrics}, what it reclaims
+ * to the reclaimed ones.
+ */
+class TransferTable<V> {
+    static final int TICKS_PER_TIMEOUT = 16;
+    static final int WHEEL_SLOTS = 32;
+
+    enum Reason {
+        FAILED, CANCELED, DISCONNECTED, EXPIRED, EVICTED, CLOSED
+    }
+
+    interface Reclaimer<V> {
+        /**
+         * Releases what the transfer holds, deleting its partial files. Called on the thread that
+         * caused it, without the lock of the table.
+         */
+        void reclaim(long id, String endpointId, V value, Reason reason);
+    }
+
+    private static class Entry<V> {
+        final long id;
+        final String endpointId;
+        final V value;
+        long bytes;
+        long deadlineTick;
+        // Links within the slot of the wheel the entry is in.
+        Entry<V> prev;
+        Entry<V> next;
+        int slot = -1;
+
+        Entry(long id, String endpointId, V value) {
+            this.id = id;
+            this.endpointId = endpointId;
+            this.value = value;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> Entry<V>[] newWheel(int slots) {
+        return (Entry<V>[]) new Entry<?>[slots];
+    }
+
+    private final int capacity;
+    private final long tickMillis;
+    private final long timeoutTicks;
+    private final ScheduledExecutorService timers;
+    private final Reclaimer<V> reclaimer;
+    private final Runnable ticker = new Runnable() {
+        @Override
+        public void run() {
+            tick();
+        }
+    };
+    // Oldest first; guarded by this, as is the wheel.
+    private final LinkedHashMap<Long, Entry<V>> entries = new LinkedHashMap<>();
+    private final Entry<V>[] wheel = newWheel(WHEEL_SLOTS);
+    private long currentTick;
+    private long bytes;
+    private ScheduledFuture<?> tickFuture;
+    private volatile Metrics metrics = new Metrics();
+
+    /**
+     * @param timers runs the tick, or null if the owner calls {@link #tick} every
+     *               {@code timeout / TICKS_PER_TIMEOUT}
+     */
+    TransferTable(int capacity, long timeout, TimeUnit unit, ScheduledExecutorService timers,
+                  Reclaimer<V> reclaimer) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.tickMillis = Math.max(1, unit.toMillis(timeout) / TICKS_PER_TIMEOUT);
+        this.timeoutTicks = Math.max(1, unit.toMillis(timeout) / tickMillis);
+        this.timers = timers;
+        this.reclaimer = reclaimer;
+    }
+
+    void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Adds a transfer holding {@code bytes} on disk, replacing one with the same id, which is
+     * reclaimed. If the table is full, the oldest entry is reclaimed to make room.
+     */
+    void put(long id, String endpointId, V value, long bytes) {
+        List<Entry<V>> evicted = new ArrayList<>();
+        Entry<V> replaced;
+        synchronized (this) {
+            replaced = remove(id);
+            while (entries.size() >= capacity) {
+                evicted.add(remove(entries.keySet().iterator().next()));
+            }
+            Entry<V> entry = new Entry<>(id, endpointId, value);
+            entries.put(id, entry);
+            metrics.pendingTransfers.incrementAndGet();
+            setBytes(entry, bytes);
+            schedule(entry);
+            if (tickFuture == null && timers != null) {
+                try {
+                    tickFuture = timers.scheduleAtFixedRate(ticker, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    // Shutting down, nothing expires any more.
+                }
+            }
+        }
+        if (replaced != null) {
+            reclaim(replaced, Reason.CANCELED);
+        }
+        for (Entry<V> entry : evicted) {
+            reclaim(entry, Reason.EVICTED);
+        }
+    }
+
+    synchronized V get(long id) {
+        Entry<V> entry = entries.get(id);
+        return entry == null ? null : entry.value;
+    }
+
+    /**
+     * Pushes the deadline of a transfer that made progress back by the timeout and records how
+     * many bytes it holds on disk now.
+     */
+    synchronized void touch(long id, long bytes) {
+        Entry<V> entry = entries.get(id);
+        if (entry == null) {
+            return;
+        }
+        // The entry stays in its slot; the tick moves it on when it finds the later deadline.
+        entry.deadlineTick = currentTick + timeoutTicks;
+        setBytes(entry, bytes);
+    }
+
+    /**
+     * Takes a transfer that finished out of the table, leaving its files alone. Returns null if
+     * it is not there, for example because it was reclaimed meanwhile.
+     */
+    V complete(long id) {
+        Entry<V> entry;
+        synchronized (this) {
+            entry = remove(id);
+        }
+        return entry == null ? null : entry.value;
+    }
+
+    /**
+     * Reclaims a transfer that failed or was canceled. Returns false if it is not there.
+     */
+    boolean fail(long id, Reason reason) {
+        Entry<V> entry;
+        synchronized (this) {
+            entry = remove(id);
+        }
+        if (entry == null) {
+            return false;
+        }
+        reclaim(entry, reason);
+        return true;
+    }
+
+    /**
+     * Reclaims every transfer with an endpoint that disconnected and returns how many there were.
+     */
+    int removeEndpoint(String endpointId) {
+        List<Entry<V>> removed = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Entry<V>> it = entries.values().iterator();
+            while (it.hasNext()) {
+                Entry<V> entry = it.next();
+                if (entry.endpointId.equals(endpointId)) {
+                    it.remove();
+                    forget(entry);
+                    removed.add(entry);
+                }
+            }
+            stopTickIfEmpty();
+        }
+        for (Entry<V> entry : removed) {
+            reclaim(entry, Reason.DISCONNECTED);
+        }
+        return removed.size();
+    }
+
+    /**
+     * Takes every transfer with {@code endpointId} out of the table, leaving them alone, in the
+     * order they were added.
+     */
+    List<V> completeEndpoint(String endpointId) {
+        List<V> removed = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Entry<V>> it = entries.values().iterator();
+            while (it.hasNext()) {
+                Entry<V> entry = it.next();
+                if (entry.endpointId.equals(endpointId)) {
+                    it.remove();
+                    forget(entry);
+                    removed.add(entry.value);
+                }
+            }
+            stopTickIfEmpty();
+        }
+        return removed;
+    }
+
+    /**
+     * Reclaims everything, on shutdown.
+     */
+    void clear() {
+        List<Entry<V>> removed;
+        synchronized (this) {
+            removed = new ArrayList<>(entries.values());
+            for (Entry<V> entry : removed) {
+                forget(entry);
+            }
+            entries.clear();
+            stopTickIfEmpty();
+        }
+        for (Entry<V> entry : removed) {
+            reclaim(entry, Reason.CLOSED);
+        }
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Bytes the transfers in the table hold on disk, as reported to {@link #touch}.
+     */
+    synchronized long bytes() {
+        return bytes;
+    }
+
+    /**
+     * Advances the wheel by one tick and reclaims the transfers whose deadline passed.
+     */
+    void tick() {
+        List<Entry<V>> expired = new ArrayList<>();
+        synchronized (this) {
+            currentTick++;
+            int slot = (int) (currentTick & (WHEEL_SLOTS - 1));
+            Entry<V> entry = wheel[slot];
+            while (entry != null) {
+                Entry<V> next = entry.next;
+                if (entry.deadlineTick <= currentTick) {
+                    entries.remove(entry.id);
+                    forget(entry);
+                    expired.add(entry);
+                } else if (slotOf(entry.deadlineTick) != slot) {
+                    unlink(entry);
+                    link(entry);
+                }
+                entry = next;
+            }
+            stopTickIfEmpty();
+        }
+        for (Entry<V> entry : expired) {
+            reclaim(entry, Reason.EXPIRED);
+        }
+    }
+
+    private void schedule(Entry<V> entry) {
+        entry.deadlineTick = currentTick + timeoutTicks;
+        link(entry);
+    }
+
+    private static int slotOf(long tick) {
+        return (int) (tick & (WHEEL_SLOTS - 1));
+    }
+
+    /**
+     * Puts the entry in the slot of its deadline, or of the last tick before it for a deadline
+     * more than a turn of the wheel away.
+     */
+    private void link(Entry<V> entry) {
+        long ticks = Math.min(entry.deadlineTick - currentTick, WHEEL_SLOTS);
+        int slot = slotOf(currentTick + Math.max(1, ticks));
+        entry.slot = slot;
+        entry.prev = null;
+        entry.next = wheel[slot];
+        if (entry.next != null) {
+            entry.next.prev = entry;
+        }
+        wheel[slot] = entry;
+    }
+
+    private void unlink(Entry<V> entry) {
+        if (entry.prev != null) {
+            entry.prev.next = entry.next;
+        } else {
+            wheel[entry.slot] = entry.next;
+        }
+        if (entry.next != null) {
+            entry.next.prev = entry.prev;
+        }
+        entry.prev = null;
+        entry.next = null;
+        entry.slot = -1;
+    }
+
+    private Entry<V> remove(long id) {
+        Entry<V> entry = entries.remove(id);
+        if (entry != null) {
+            forget(entry);
+            stopTickIfEmpty();
+        }
+        return entry;
+    }
+
+    /**
+     * Takes an entry that left the map out of the wheel and the counts.
+     */
+    private void forget(Entry<V> entry) {
+        unlink(entry);
+        bytes -= entry.bytes;
+        metrics.pendingBytes.addAndGet(-entry.bytes);
+        metrics.pendingTransfers.decrementAndGet();
+    }
+
+    private void setBytes(Entry<V> entry, long bytes) {
+        long delta = bytes - entry.bytes;
+        entry.bytes = bytes;
+        this.bytes += delta;
+        metrics.pendingBytes.addAndGet(delta);
+    }
+
+    private void stopTickIfEmpty() {
+        if (entries.isEmpty() && tickFuture != null) {
+            tickFuture.cancel(false);
+            tickFuture = null;
+        }
+    }
+
+    private void reclaim(Entry<V> entry, Reason reason) {
+        metrics.reclaimedTransfers.incrementAndGet();
+        metrics.reclaimedBytes.addAndGet(entry.bytes);
+        reclaimer.reclaim(entry.id, entry.endpointId, entry.value, reason);
+    }
+}
@@ -0,0 +1,53 @@
+package com.tab.demo.nearby;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Moves opaque frames between endpoints. The transfer engine only talks to this interface so the
+ * same code runs over Nearby Connections on a device and over {@link LoopbackTransport} or
+ * {@link NioTransport} on a JVM. Finding and connecting peers is up to {@link PeerTransport}.
+ */
+interface Transport {
+
+    /**
+     * Largest frame, in bytes, that {@link #send} accepts.
+     */
+    int maxFrameSize();
+
+    /**
+     * Sends the remaining bytes of {@code frame}. The buffer may be reused by the caller as soon as
+     * this method returns.
+     */
+    void send(String endpointId, ByteBuffer frame);
+
+    void setReceiver(Receiver receiver);
+
+    /**
+     * Implemented by transports that limit the frames in flight to each endpoint, so a caller with
+     * frames for several endpoints can serve the others while one is full instead of blocking.
+     */
+    interface Windowed {
+        /**
+         * Whether {@link #send} to {@code endpointId} would return without waiting. Must not
+         * block or call back into the caller.
+         */
+        boolean canSend(String endpointId);
+
+        /**
+         * {@code listener} is told whenever the window to an endpoint opens, never with a lock of
+         * the transport held.
+         */
+        void setWindowListener(WindowListener listener);
+    }
+
+    interface WindowListener {
+        void onWindowOpen(String endpointId);
+    }
+
+    interface Receiver {
+        /**
+         * Called for every frame that arrives. The buffer is owned by the receiver.
+         */
+        void onFrameReceived(String endpointId, ByteBuffer frame);
+    }
+}
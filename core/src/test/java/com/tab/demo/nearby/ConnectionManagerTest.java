@@ -0,0 +1,90 @@
+package com.tab.demo.nearby;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The pool against a connector that only records what it is asked to do, with the outcome of
+ * every dial reported by the test.
+ */
+public class ConnectionManagerTest {
+    private final ScheduledExecutorService timers = Executors.newSingleThreadScheduledExecutor();
+    private final RecordingConnector connector = new RecordingConnector();
+
+    @After
+    public void tearDown() {
+        timers.shutdownNow();
+    }
+
+    @Test
+    public void queuedEndpointThatConnectsInboundIsNotDialled() {
+        ConnectionManager manager = new ConnectionManager(connector, timers, 8);
+        manager.connect("a", null);
+        manager.connect("b", null);
+        // Waits for one of the two dial slots.
+        manager.connect("c", null);
+        assertEquals(Arrays.asList("a", "b"), connector.dials);
+
+        assertTrue(manager.onConnected("c"));
+        // Frees a dial slot; the queue must no longer hold c.
+        manager.onConnected("a");
+
+        assertEquals(Arrays.asList("a", "b"), connector.dials);
+        assertTrue(manager.isConnected("c"));
+        List<String> connected = manager.getConnectedEndpoints();
+        Collections.sort(connected);
+        assertEquals(Arrays.asList("a", "c"), connected);
+    }
+
+    @Test
+    public void inboundConnectionEvictsAnIdleOne() {
+        ConnectionManager manager = new ConnectionManager(connector, timers, 2);
+        assertTrue(manager.onConnected("a"));
+        assertTrue(manager.onConnected("b"));
+        manager.retain("b");
+
+        assertTrue(manager.onConnected("c"));
+
+        assertEquals(Collections.singletonList("a"), connector.disconnects);
+        assertFalse(manager.isConnected("a"));
+        assertTrue(manager.isConnected("c"));
+    }
+
+    @Test
+    public void inboundConnectionIsTurnedAwayWhenAllAreInUse() {
+        ConnectionManager manager = new ConnectionManager(connector, timers, 1);
+        assertTrue(manager.onConnected("a"));
+        manager.retain("a");
+
+        assertFalse(manager.onConnected("b"));
+
+        assertEquals(Collections.singletonList("b"), connector.disconnects);
+        assertEquals(Collections.singletonList("a"), manager.getConnectedEndpoints());
+    }
+
+    private static class RecordingConnector implements ConnectionManager.Connector {
+        final List<String> dials = new ArrayList<>();
+        final List<String> disconnects = new ArrayList<>();
+
+        @Override
+        public synchronized void requestConnection(String endpointId) {
+            dials.add(endpointId);
+        }
+
+        @Override
+        public synchronized void disconnect(String endpointId) {
+            disconnects.add(endpointId);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.tab.demo.nearby;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link EndpointDiff} has to turn a list showing one snapshot into one showing the next with
+ * row level notifications only, so a list rebinds just the rows that changed.
+ */
+public class EndpointDiffTest {
+    private final EndpointRegistry registry = new EndpointRegistry();
+
+    @Test
+    public void reportsInsertsChangesAndRemovesByRow() {
+        registry.update("a", "A", EndpointState.FOUND);
+        registry.update("b", "B", EndpointState.FOUND);
+        registry.update("c", "C", EndpointState.FOUND);
+        registry.update("d", "D", EndpointState.FOUND);
+        EndpointRegistry.Snapshot before = registry.snapshot();
+        registry.remove("b");
+        registry.update("c", null, EndpointState.CONNECTING);
+        registry.update("e", "E", EndpointState.FOUND);
+        registry.update("f", "F", EndpointState.FOUND);
+
+        Recorder recorder = dispatch(before);
+
+        assertEquals(Arrays.asList("removed 1", "changed 1", "inserted 3+2"), recorder.events);
+        assertEquals(registry.snapshot().asList(), recorder.rows);
+    }
+
+    @Test
+    public void removalsLeaveTheOtherPositionsValid() {
+        for (String id : new String[]{"a", "b", "c", "d", "e"}) {
+            registry.update(id, id, EndpointState.FOUND);
+        }
+        EndpointRegistry.Snapshot before = registry.snapshot();
+        registry.remove("b");
+        registry.remove("d");
+        registry.remove("e");
+
+        Recorder recorder = dispatch(before);
+
+        assertEquals(Arrays.asList("removed 4", "removed 3", "removed 1"), recorder.events);
+        assertEquals(registry.snapshot().asList(), recorder.rows);
+    }
+
+    @Test
+    public void unchangedSnapshotsMakeAnEmptyDiff() {
+        registry.update("a", "A", EndpointState.FOUND);
+        EndpointRegistry.Snapshot snapshot = registry.snapshot();
+        assertTrue(EndpointDiff.between(snapshot, snapshot).isEmpty());
+        // A transition the registry refuses leaves the snapshot as it was.
+        registry.moveTo("a", EndpointState.CONNECTED);
+        assertTrue(EndpointDiff.between(snapshot, registry.snapshot()).isEmpty());
+    }
+
+    @Test
+    public void onlyChangedRowsAreRebound() {
+        for (int i = 0; i < 100; i++) {
+            registry.update("endpoint-" + i, "peer-" + i, EndpointState.FOUND);
+        }
+        assertEquals(100, dispatch(EndpointRegistry.EMPTY).binds);
+
+        EndpointRegistry.Snapshot before = registry.snapshot();
+        registry.update("endpoint-42", null, EndpointState.CONNECTING);
+        registry.moveTo("endpoint-42", EndpointState.CONNECTED);
+        registry.update("endpoint-7", null, EndpointState.CONNECTING);
+        Recorder recorder = dispatch(before);
+
+        // Two rows changed, however many changes each went through.
+        assertEquals(2, recorder.binds);
+        assertEquals(registry.snapshot().asList(), recorder.rows);
+    }
+
+    /**
+     * Applies the diff from {@code before} to the registry as it is now to a list showing
+     * {@code before}.
+     */
+    private Recorder dispatch(EndpointRegistry.Snapshot before) {
+        EndpointDiff diff = EndpointDiff.between(before, registry.snapshot());
+        Recorder recorder = new Recorder(diff);
+        diff.dispatch(recorder);
+        return recorder;
+    }
+
+    /**
+     * Applies a diff to a list of rows the way a list adapter would, counting the rows it binds.
+     */
+    private static class Recorder implements EndpointDiff.Callback {
+        final List<String> events = new ArrayList<>();
+        final List<EndpointStatus> rows;
+        private final EndpointRegistry.Snapshot after;
+        int binds;
+
+        Recorder(EndpointDiff diff) {
+            rows = new ArrayList<>(diff.before.asList());
+            after = diff.after;
+        }
+
+        @Override
+        public void onRemoved(int position) {
+            events.add("removed " + position);
+            rows.remove(position);
+        }
+
+        @Override
+        public void onChanged(int position) {
+            events.add("changed " + position);
+            rows.set(position, after.get(position));
+            binds++;
+        }
+
+        @Override
+        public void onInserted(int position, int count) {
+            events.add("inserted " + position + "+" + count);
+            for (int i = 0; i < count; i++) {
+                rows.add(position + i, after.get(position + i));
+            }
+            binds += count;
+        }
+
+        @Override
+        public void onReset() {
+            events.add("reset");
+            rows.clear();
+            rows.addAll(after.asList());
+            binds += after.size();
+        }
+    }
+}
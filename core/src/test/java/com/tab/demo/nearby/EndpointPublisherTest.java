@@ -0,0 +1,104 @@
+package com.tab.demo.nearby;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Bursts of registry changes have to reach observers as one diff per interval, and every change
+ * has to reach them eventually.
+ */
+public class EndpointPublisherTest {
+    private static final long INTERVAL_MS = 16;
+
+    private final EndpointRegistry registry = new EndpointRegistry();
+    // Tasks posted and not run yet, standing in for a Handler.
+    private final List<Runnable> posted = new ArrayList<>();
+    private final List<EndpointDiff> delivered = new ArrayList<>();
+    private EndpointPublisher publisher;
+
+    @Before
+    public void setUp() {
+        publisher = new EndpointPublisher(registry, new EndpointPublisher.Poster() {
+            @Override
+            public void postDelayed(Runnable task, long delayMillis) {
+                assertEquals(INTERVAL_MS, delayMillis);
+                posted.add(task);
+            }
+        }, INTERVAL_MS);
+        publisher.addObserver(new EndpointPublisher.Observer() {
+            @Override
+            public void onEndpointsChanged(EndpointDiff diff) {
+                delivered.add(diff);
+            }
+        });
+        // Brought up to date with the empty registry.
+        delivered.clear();
+    }
+
+    @Test
+    public void burstWithinIntervalIsOneUpdate() {
+        for (int i = 0; i < 100; i++) {
+            registry.update("endpoint-" + i, "peer-" + i, EndpointState.FOUND);
+            publisher.onChanged();
+        }
+        assertEquals(1, posted.size());
+        runPosted();
+
+        assertEquals(1, delivered.size());
+        assertSame(registry.snapshot(), delivered.get(0).after);
+        assertSame(EndpointRegistry.EMPTY, delivered.get(0).before);
+    }
+
+    @Test
+    public void changesAfterAnUpdateStartTheNextInterval() {
+        registry.update("a", "A", EndpointState.FOUND);
+        publisher.onChanged();
+        runPosted();
+        EndpointRegistry.Snapshot first = registry.snapshot();
+
+        registry.update("a", null, EndpointState.CONNECTING);
+        publisher.onChanged();
+        registry.moveTo("a", EndpointState.CONNECTED);
+        publisher.onChanged();
+        assertEquals(1, posted.size());
+        runPosted();
+
+        assertEquals(2, delivered.size());
+        assertSame(first, delivered.get(1).before);
+        assertSame(registry.snapshot(), delivered.get(1).after);
+    }
+
+    @Test
+    public void nothingNewIsNotDelivered() {
+        publisher.onChanged();
+        runPosted();
+        assertTrue(delivered.isEmpty());
+    }
+
+    @Test
+    public void stoppedPublisherDeliversNothing() {
+        registry.update("a", "A", EndpointState.FOUND);
+        publisher.onChanged();
+        publisher.stop();
+        runPosted();
+        publisher.onChanged();
+
+        assertTrue(posted.isEmpty());
+        assertTrue(delivered.isEmpty());
+    }
+
+    private void runPosted() {
+        List<Runnable> tasks = new ArrayList<>(posted);
+        posted.clear();
+        for (Runnable task : tasks) {
+            task.run();
+        }
+    }
+}
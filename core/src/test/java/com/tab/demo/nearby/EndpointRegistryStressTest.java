@@ -0,0 +1,235 @@
+package com.tab.demo.nearby;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Many threads discovering, losing and connecting endpoints at once, the way Nearby callbacks and
+ * the UI hit the registry. Every change has to land exactly once, and readers must only ever see
+ * consistent snapshots.
+ */
+public class EndpointRegistryStressTest {
+    private static final int THREADS = 8;
+    private static final int ENDPOINTS_PER_THREAD = 16;
+    private static final int OPERATIONS = 20000;
+    private static final int CONTESTED_ROUNDS = 500;
+    private static final long TIMEOUT_S = 60;
+
+    private final EndpointRegistry registry = new EndpointRegistry();
+
+    @Test
+    public void concurrentChangesAreNeitherLostNorTorn() throws Exception {
+        ExecutorService threads = Executors.newFixedThreadPool(THREADS + 1);
+        AtomicBoolean done = new AtomicBoolean();
+        try {
+            Future<Integer> reader = threads.submit(new SnapshotChecker(done));
+            List<Future<Map<String, EndpointState>>> workers = new ArrayList<>();
+            final AtomicInteger changes = new AtomicInteger();
+            for (int i = 0; i < THREADS; i++) {
+                workers.add(threads.submit(new Worker(i, changes)));
+            }
+            Map<String, EndpointState> expected = new HashMap<>();
+            for (Future<Map<String, EndpointState>> worker : workers) {
+                expected.putAll(worker.get(TIMEOUT_S, TimeUnit.SECONDS));
+            }
+            done.set(true);
+            assertTrue(reader.get(TIMEOUT_S, TimeUnit.SECONDS) > 0);
+
+            EndpointRegistry.Snapshot snapshot = registry.snapshot();
+            assertEquals(changes.get(), snapshot.version);
+            assertEquals(expected.size(), snapshot.size());
+            for (Map.Entry<String, EndpointState> entry : expected.entrySet()) {
+                assertSame(entry.getValue(), snapshot.get(entry.getKey()).state);
+            }
+        } finally {
+            done.set(true);
+            threads.shutdownNow();
+        }
+    }
+
+    @Test
+    public void contestedTransitionHappensOnce() throws Exception {
+        ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+        final CyclicBarrier start = new CyclicBarrier(THREADS);
+        try {
+            for (int round = 0; round < CONTESTED_ROUNDS; round++) {
+                assertNotNull(registry.update("contested", "peer", EndpointState.FOUND));
+                assertEquals(1, race(threads, start, new Callable<EndpointStatus>() {
+                    @Override
+                    public EndpointStatus call() {
+                        return registry.update("contested", null, EndpointState.CONNECTING);
+                    }
+                }));
+                assertEquals(1, race(threads, start, new Callable<EndpointStatus>() {
+                    @Override
+                    public EndpointStatus call() {
+                        return registry.moveTo("contested", EndpointState.CONNECTED);
+                    }
+                }));
+                assertEquals(0, race(threads, start, new Callable<EndpointStatus>() {
+                    @Override
+                    public EndpointStatus call() {
+                        return registry.remove("contested");
+                    }
+                }));
+                assertEquals(1, race(threads, start, new Callable<EndpointStatus>() {
+                    @Override
+                    public EndpointStatus call() {
+                        return registry.moveTo("contested", EndpointState.DISCONNECTED);
+                    }
+                }));
+                assertEquals(1, race(threads, start, new Callable<EndpointStatus>() {
+                    @Override
+                    public EndpointStatus call() {
+                        return registry.remove("contested");
+                    }
+                }));
+                assertNull(registry.get("contested"));
+            }
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+
+    /**
+     * Runs {@code change} on every thread at once and returns how many of them succeeded.
+     */
+    private static int race(ExecutorService threads, final CyclicBarrier start,
+                            final Callable<EndpointStatus> change) throws Exception {
+        List<Future<EndpointStatus>> results = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            results.add(threads.submit(new Callable<EndpointStatus>() {
+                @Override
+                public EndpointStatus call() throws Exception {
+                    start.await();
+                    return change.call();
+                }
+            }));
+        }
+        int succeeded = 0;
+        for (Future<EndpointStatus> result : results) {
+            if (result.get(TIMEOUT_S, TimeUnit.SECONDS) != null) {
+                succeeded++;
+            }
+        }
+        return succeeded;
+    }
+
+    /**
+     * Changes endpoints of its own at random, so it knows what each change has to return, while
+     * the other workers contend for the same registry.
+     *
+     * @return the state each of its endpoints ended in, absent if removed
+     */
+    private class Worker implements Callable<Map<String, EndpointState>> {
+        private final int index;
+        private final AtomicInteger changes;
+        private final Random random;
+
+        Worker(int index, AtomicInteger changes) {
+            this.index = index;
+            this.changes = changes;
+            this.random = new Random(index);
+        }
+
+        @Override
+        public Map<String, EndpointState> call() {
+            Map<String, EndpointState> states = new HashMap<>();
+            for (int i = 0; i < OPERATIONS; i++) {
+                String endpointId = "endpoint-" + index + "-" + random.nextInt(ENDPOINTS_PER_THREAD);
+                EndpointState state = states.get(endpointId);
+                switch (random.nextInt(5)) {
+                    case 0:
+                        // Discovered.
+                        expect(registry.update(endpointId, endpointId, EndpointState.FOUND),
+                                state == null || state.canMoveTo(EndpointState.FOUND), states, endpointId);
+                        break;
+                    case 1:
+                        // Lost.
+                        boolean removable = state != null && !state.isConnected();
+                        assertEquals(removable, registry.remove(endpointId) != null);
+                        if (removable) {
+                            states.remove(endpointId);
+                            changes.incrementAndGet();
+                        }
+                        break;
+                    case 2:
+                        // Connection initiated, by either side.
+                        expect(registry.update(endpointId, null, EndpointState.CONNECTING),
+                                state == null || state.canMoveTo(EndpointState.CONNECTING), states, endpointId);
+                        break;
+                    default:
+                        // Connected, failed or dropped.
+                        EndpointState next = EndpointState.values()[2 + random.nextInt(3)];
+                        expect(registry.moveTo(endpointId, next),
+                                state != null && state.canMoveTo(next), states, endpointId);
+                        break;
+                }
+            }
+            return states;
+        }
+
+        private void expect(EndpointStatus status, boolean allowed, Map<String, EndpointState> states,
+                            String endpointId) {
+            assertEquals(allowed, status != null);
+            if (allowed) {
+                states.put(endpointId, status.state);
+                changes.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Reads snapshots until {@code done}, checking each is consistent in itself and none is older
+     * than the one before.
+     *
+     * @return the number of snapshots checked
+     */
+    private class SnapshotChecker implements Callable<Integer> {
+        private final AtomicBoolean done;
+
+        SnapshotChecker(AtomicBoolean done) {
+            this.done = done;
+        }
+
+        @Override
+        public Integer call() {
+            long version = -1;
+            int checked = 0;
+            do {
+                EndpointRegistry.Snapshot snapshot = registry.snapshot();
+                assertTrue(snapshot.version >= version);
+                version = snapshot.version;
+                Set<Long> keys = new HashSet<>();
+                for (int i = 0; i < snapshot.size(); i++) {
+                    EndpointStatus status = snapshot.get(i);
+                    assertSame(status, snapshot.get(status.id));
+                    assertTrue("Duplicate key " + status.key, keys.add(status.key));
+                }
+                checked++;
+            } while (!done.get());
+            return checked;
+        }
+    }
+}
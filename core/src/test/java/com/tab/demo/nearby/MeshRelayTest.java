@@ -0,0 +1,238 @@
+package com.tab.demo.nearby;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Flows relayed over nodes linked in memory: a file has to reach every node within its hop
+ * limit once, however many ways the mesh offers it, and no node beyond.
+ */
+public class MeshRelayTest {
+    private static final long TIMEOUT_MS = 10000;
+    // Time given to copies and hops that must not arrive.
+    private static final long QUIET_MS = 500;
+    private static final int FILE_SIZE = 1024 * 1024 + 123;
+
+    private final ScheduledExecutorService timers = Executors.newSingleThreadScheduledExecutor();
+    private final LoopbackTransport.Hub hub = new LoopbackTransport.Hub();
+    private final List<TransferNode> nodes = new ArrayList<>();
+    private final List<MeshRelay> relays = new ArrayList<>();
+    // Names of the nodes that received a file, once per file received.
+    private final List<String> received = new ArrayList<>();
+    private File dir;
+    private byte[] data;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("relay", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        data = new byte[FILE_SIZE];
+        new Random(FILE_SIZE).nextBytes(data);
+        file = new File(dir, "flow");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for (MeshRelay relay : relays) {
+            relay.shutdown();
+        }
+        for (TransferNode node : nodes) {
+            node.shutdown();
+        }
+        timers.shutdownNow();
+        deleteRecursively(dir);
+    }
+
+    @Test
+    public void flowTravelsDownAChain() throws Exception {
+        startNodes(5, 4);
+        link(0, 1);
+        link(1, 2);
+        link(2, 3);
+        link(3, 4);
+        awaitLinks(1, 2, 2, 2, 1);
+
+        send();
+
+        awaitReceived("node-1", "node-2", "node-3", "node-4");
+    }
+
+    @Test
+    public void loopDeliversOneCopy() throws Exception {
+        startNodes(4, 4);
+        link(0, 1);
+        link(1, 2);
+        link(2, 3);
+        link(3, 0);
+        awaitLinks(2, 2, 2, 2);
+
+        send();
+
+        // Node 2 is offered the flow by both 1 and 3 and has to refuse the second copy.
+        awaitReceived("node-1", "node-2", "node-3");
+        Thread.sleep(QUIET_MS);
+        assertReceived("node-1", "node-2", "node-3");
+    }
+
+    @Test
+    public void flowStopsAtTheHopLimit() throws Exception {
+        startNodes(4, 2);
+        link(0, 1);
+        link(1, 2);
+        link(2, 3);
+        awaitLinks(1, 2, 2, 1);
+
+        send();
+
+        awaitReceived("node-1", "node-2");
+        Thread.sleep(QUIET_MS);
+        assertReceived("node-1", "node-2");
+    }
+
+    private void startNodes(int count, int maxHops) {
+        for (int i = 0; i < count; i++) {
+            final String name = "node-" + i;
+            File receiveDir = new File(dir, name);
+            assertTrue(receiveDir.mkdir());
+            LoopbackTransport transport = new LoopbackTransport(hub, name, LoopbackTransport.DEFAULT_MAX_FRAME_SIZE);
+            TransferNode node = new TransferNode(transport, receiveDir, timers, new Listener() {
+                @Override
+                public void onFileReceived(String endpointId, long transferId, File file) {
+                    try {
+                        assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+                    } catch (IOException e) {
+                        throw new AssertionError(e);
+                    }
+                    synchronized (received) {
+                        received.add(name);
+                    }
+                }
+            });
+            transport.startAdvertising();
+            nodes.add(node);
+            relays.add(new MeshRelay(node, maxHops));
+        }
+    }
+
+    private void link(int from, int to) {
+        nodes.get(from).connect("node-" + to, null);
+    }
+
+    /**
+     * Waits until every node has as many connected endpoints as given, in order.
+     */
+    private void awaitLinks(int... counts) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        for (int i = 0; i < counts.length; i++) {
+            while (connected(nodes.get(i)) != counts[i]) {
+                assertTrue("Not linked: node-" + i, System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    private static int connected(TransferNode node) {
+        int count = 0;
+        for (EndpointStatus status : node.getEndpoints().asList()) {
+            if (status.state == EndpointState.CONNECTED) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void send() throws IOException {
+        List<TransferProgress> sent = relays.get(0).send(
+                new FileInputStream(file).getChannel(), file.length(), "flow");
+        assertFalse(sent.isEmpty());
+    }
+
+    private void awaitReceived(String... names) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (true) {
+            synchronized (received) {
+                if (received.size() >= names.length) {
+                    break;
+                }
+            }
+            assertTrue("Received only by " + receivedSorted(), System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        assertReceived(names);
+    }
+
+    private void assertReceived(String... names) {
+        assertEquals(Arrays.asList(names), receivedSorted());
+    }
+
+    private List<String> receivedSorted() {
+        synchronized (received) {
+            List<String> sorted = new ArrayList<>(received);
+            Collections.sort(sorted);
+            return sorted;
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static class Listener implements TransferNode.Listener {
+        @Override
+        public void onEndpointsChanged() {
+        }
+
+        @Override
+        public void onTransferProgress(String endpointId, long transferId, long bytesTransferred, long totalBytes) {
+        }
+
+        @Override
+        public void onFileReceived(String endpointId, long transferId, File file) {
+        }
+
+        @Override
+        public void onBatchReceived(String endpointId, long transferId, List<File> files) {
+        }
+
+        @Override
+        public void onFileSent(String endpointId, long transferId) {
+        }
+
+        @Override
+        public void onTransferFailed(String endpointId, long transferId, Exception e) {
+        }
+
+        @Override
+        public void onMessageReceived(String endpointId, byte[] message) {
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.tab.demo.nearby;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Two transports on the loopback interface dialing each other at the same moment have to settle
+ * on one working connection, with neither side told of a disconnect.
+ */
+public class NioTransportTest {
+    private static final int ROUNDS = 20;
+    private static final int FRAMES = 16;
+    private static final long QUIET_MS = 100;
+    private static final long TIMEOUT_S = 5;
+
+    @Test
+    public void simultaneousDialsLeaveOneConnection() throws Exception {
+        for (int round = 0; round < ROUNDS; round++) {
+            NioTransport a = NioTransport.open("alpha", 0, 0, NioTransport.DEFAULT_MAX_FRAME_SIZE);
+            NioTransport b = NioTransport.open("beta", 0, 0, NioTransport.DEFAULT_MAX_FRAME_SIZE);
+            try {
+                Events eventsA = new Events(a);
+                Events eventsB = new Events(b);
+                a.startAdvertising();
+                b.startAdvertising();
+                String idOfB = "127.0.0.1:" + b.getLocalPort();
+                String idOfA = "127.0.0.1:" + a.getLocalPort();
+
+                a.connect(idOfB);
+                b.connect(idOfA);
+                assertEquals("connected " + idOfB, eventsA.next());
+                assertEquals("connected " + idOfA, eventsB.next());
+
+                // Frames sent while the two sides settle may take either connection, so they can
+                // arrive out of order, but none may be lost.
+                Set<String> expectedA = new HashSet<>();
+                Set<String> expectedB = new HashSet<>();
+                for (int i = 0; i < FRAMES; i++) {
+                    a.send(idOfB, ByteBuffer.wrap(new byte[]{(byte) i}));
+                    b.send(idOfA, ByteBuffer.wrap(new byte[]{(byte) -i}));
+                    expectedA.add("frame " + idOfB + " " + (byte) -i);
+                    expectedB.add("frame " + idOfA + " " + (byte) i);
+                }
+                assertEquals(expectedA, eventsA.next(FRAMES));
+                assertEquals(expectedB, eventsB.next(FRAMES));
+                // Nothing else to hear once settled, in particular no disconnect.
+                assertNull(eventsA.events.poll(QUIET_MS, TimeUnit.MILLISECONDS));
+                assertNull(eventsB.events.poll(QUIET_MS, TimeUnit.MILLISECONDS));
+            } finally {
+                a.close();
+                b.close();
+            }
+        }
+    }
+
+    /**
+     * Records what a transport reports, leaving out the connection attempts themselves.
+     */
+    private static class Events implements PeerTransport.Listener, Transport.Receiver {
+        final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+
+        Events(NioTransport transport) {
+            transport.setListener(this);
+            transport.setReceiver(this);
+        }
+
+        String next() throws InterruptedException {
+            return events.poll(TIMEOUT_S, TimeUnit.SECONDS);
+        }
+
+        Set<String> next(int count) throws InterruptedException {
+            Set<String> next = new HashSet<>();
+            for (int i = 0; i < count; i++) {
+                next.add(next());
+            }
+            return next;
+        }
+
+        @Override
+        public void onEndpointFound(String endpointId, String name) {
+        }
+
+        @Override
+        public void onEndpointLost(String endpointId) {
+        }
+
+        @Override
+        public void onConnectionInitiated(String endpointId, String name, boolean incoming) {
+        }
+
+        @Override
+        public void onConnected(String endpointId) {
+            events.add("connected " + endpointId);
+        }
+
+        @Override
+        public void onConnectionFailed(String endpointId) {
+            events.add("failed " + endpointId);
+        }
+
+        @Override
+        public void onDisconnected(String endpointId) {
+            events.add("disconnected " + endpointId);
+        }
+
+        @Override
+        public void onFrameReceived(String endpointId, ByteBuffer frame) {
+            events.add("frame " + endpointId + " " + frame.get());
+        }
+    }
+}
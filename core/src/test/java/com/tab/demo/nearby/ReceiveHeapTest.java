@@ -0,0 +1,181 @@
+package com.tab.demo.nearby;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Receiving a file writes it straight from the frames into the preallocated file, so the heap a
+ * transfer needs does not depend on the size of the file. Sends a 1 MB and a 128 MB file between
+ * two engines over a {@link LoopbackTransport} and compares the live heap sampled during each.
+ *
+ * <p>The same check with a 4 GB file writes all of it to disk, so it only runs with the system
+ * property {@value #LARGE_PROPERTY} set, {@code -PlargeReceive} with Gradle.
+ */
+public class ReceiveHeapTest {
+    static final String LARGE_PROPERTY = "nearby.largeReceive";
+    private static final long SMALL = 1024 * 1024;
+    private static final long MEDIUM = 128 * 1024 * 1024;
+    private static final long LARGE = 4L * 1024 * 1024 * 1024;
+    // What a larger transfer may hold beyond the small one: frames in flight and the like,
+    // nowhere near the size of the file.
+    private static final long SLACK = 32 * 1024 * 1024;
+    private static final long SAMPLE_INTERVAL_MS = 100;
+    private static final long TIMEOUT_S = 600;
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("heap").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        deleteRecursively(dir);
+    }
+
+    @Test
+    public void peakHeapDoesNotGrowWithFileSize() throws Exception {
+        assertPeakHeapDoesNotGrow(MEDIUM);
+    }
+
+    @Test
+    public void peakHeapDoesNotGrowWithAFileOfFourGigabytes() throws Exception {
+        Assume.assumeTrue("Needs -D" + LARGE_PROPERTY, Boolean.getBoolean(LARGE_PROPERTY));
+        assertPeakHeapDoesNotGrow(LARGE);
+    }
+
+    private void assertPeakHeapDoesNotGrow(long size) throws Exception {
+        long small = receive(SMALL);
+        long large = receive(size);
+        assertTrue("Peak heap " + large / 1024 + " KiB for " + size / 1024 + " KiB, "
+                + small / 1024 + " KiB for 1 MB", large < small + SLACK);
+    }
+
+    /**
+     * Sends a sparse file of {@code size} bytes and returns the peak live heap meanwhile.
+     */
+    private long receive(long size) throws Exception {
+        File source = new File(dir, "source-" + size);
+        try (RandomAccessFile file = new RandomAccessFile(source, "rw")) {
+            file.setLength(size);
+        }
+        File receiveDir = new File(dir, "received-" + size);
+        assertTrue(receiveDir.mkdir());
+        LoopbackTransport senderTransport = new LoopbackTransport("sender");
+        LoopbackTransport receiverTransport = new LoopbackTransport("receiver");
+        LoopbackTransport.link(senderTransport, receiverTransport);
+        Listener listener = new Listener();
+        TransferEngine sender = new TransferEngine(senderTransport, dir, listener);
+        TransferEngine receiver = new TransferEngine(receiverTransport, receiveDir, listener);
+        HeapSampler sampler = new HeapSampler();
+        sampler.start();
+        try {
+            sender.sendFile("receiver", new FileInputStream(source).getChannel(), size, source.getName());
+            assertTrue("Not received in " + TIMEOUT_S + " s", listener.received.await(TIMEOUT_S, TimeUnit.SECONDS));
+        } finally {
+            sampler.interrupt();
+            sampler.join();
+            sender.shutdown();
+            receiver.shutdown();
+        }
+        if (listener.failure.get() != null) {
+            throw listener.failure.get();
+        }
+        assertEquals(size, listener.file.get().length());
+        listener.file.get().delete();
+        source.delete();
+        return sampler.peak;
+    }
+
+    private static class Listener implements TransferEngine.Listener {
+        final CountDownLatch received = new CountDownLatch(1);
+        final AtomicReference<File> file = new AtomicReference<>();
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+
+        @Override
+        public void onTransferProgress(String endpointId, long transferId, long bytesTransferred, long totalBytes) {
+        }
+
+        @Override
+        public void onFileReceived(String endpointId, long transferId, File file) {
+            this.file.set(file);
+            received.countDown();
+        }
+
+        @Override
+        public void onBatchReceived(String endpointId, long transferId, List<File> files) {
+        }
+
+        @Override
+        public void onFileSent(String endpointId, long transferId) {
+        }
+
+        @Override
+        public void onTransferFailed(String endpointId, long transferId, Exception e) {
+            failure.compareAndSet(null, e);
+            received.countDown();
+        }
+
+        @Override
+        public void onMessageReceived(String endpointId, byte[] message) {
+        }
+    }
+
+    /**
+     * Collects garbage and records the heap left in use, until interrupted. Collecting first
+     * leaves what the transfer holds on to rather than whatever the collector has not got to.
+     */
+    private static class HeapSampler extends Thread {
+        private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        volatile long peak;
+
+        HeapSampler() {
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            do {
+                memory.gc();
+                peak = Math.max(peak, memory.getHeapMemoryUsage().getUsed());
+            } while (sleep());
+        }
+
+        private static boolean sleep() {
+            try {
+                Thread.sleep(SAMPLE_INTERVAL_MS);
+                return true;
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,274 @@
+package com.tab.demo.nearby;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Files sent between two engines over a {@link LoopbackTransport}, through links that count
+ * what each engine puts on them.
+ */
+public class TransferEngineTest {
+    private static final String SENDER = "sender";
+    private static final String RECEIVER = "receiver";
+    private static final int SIZE = 8 * 1024 * 1024 + 4321;
+    private static final long TIMEOUT_S = 60;
+
+    private File dir;
+    private Link senderLink;
+    private Link receiverLink;
+    private TransferEngine sender;
+    private TransferEngine receiver;
+    private final Listener listener = new Listener();
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("engine").toFile();
+        File receiveDir = new File(dir, "received");
+        assertTrue(receiveDir.mkdir());
+        LoopbackTransport senderTransport = new LoopbackTransport(SENDER);
+        LoopbackTransport receiverTransport = new LoopbackTransport(RECEIVER);
+        LoopbackTransport.link(senderTransport, receiverTransport);
+        senderLink = new Link(senderTransport);
+        receiverLink = new Link(receiverTransport);
+        sender = new TransferEngine(senderLink, dir, listener);
+        receiver = new TransferEngine(receiverLink, receiveDir, listener);
+    }
+
+    @After
+    public void tearDown() {
+        sender.shutdown();
+        receiver.shutdown();
+        deleteRecursively(dir);
+    }
+
+    @Test
+    public void fileArrivesIntact() throws Exception {
+        byte[] data = random(SIZE);
+
+        send(data);
+
+        assertArrayEquals(data, awaitReceived());
+        // Over a link that loses nothing, next to nothing is sent twice.
+        assertTrue(senderLink.chunkBytes.get() < data.length + data.length / 10);
+    }
+
+    @Test
+    public void transferResumesAfterADisconnect() throws Exception {
+        byte[] data = random(SIZE);
+        senderLink.cutAfter = data.length * 3L / 4;
+
+        TransferProgress progress = send(data);
+        senderLink.awaitCut();
+        sender.onDisconnected(RECEIVER);
+        receiver.onDisconnected(SENDER);
+        // The sender puts the transfer aside once it notices.
+        long deadline = System.currentTimeMillis() + TIMEOUT_S * 1000;
+        while (progress.getState() != TransferProgress.State.SUSPENDED) {
+            assertTrue("Not suspended", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        senderLink.reconnect();
+        sender.resume(RECEIVER, RECEIVER);
+
+        assertArrayEquals(data, awaitReceived());
+        // Picks up where it was cut off rather than starting over.
+        assertTrue(senderLink.chunkBytes.get() < data.length * 3L / 2);
+    }
+
+    @Test
+    public void corruptedChunkIsRejectedAndSentAgain() throws Exception {
+        byte[] data = random(SIZE);
+        senderLink.corruptChunk = 3;
+
+        send(data);
+
+        assertArrayEquals(data, awaitReceived());
+        assertEquals(1, receiverLink.nacks.get());
+    }
+
+    @Test
+    public void compressedFileArrivesIntact() throws Exception {
+        byte[] data = text(SIZE);
+        sender.setCompressionEnabled(true);
+
+        send(data);
+
+        assertArrayEquals(data, awaitReceived());
+        assertTrue(senderLink.chunkBytes.get() < data.length / 2);
+    }
+
+    private TransferProgress send(byte[] data) throws IOException {
+        File source = new File(dir, "source");
+        try (FileOutputStream out = new FileOutputStream(source)) {
+            out.write(data);
+        }
+        return sender.sendFile(RECEIVER, new FileChunkSource(new FileInputStream(source).getChannel()),
+                data.length, "file");
+    }
+
+    /**
+     * Waits until the file is received and the sender knows it verified, and returns its content.
+     */
+    private byte[] awaitReceived() throws Exception {
+        assertTrue("Not received in " + TIMEOUT_S + " s", listener.done.await(TIMEOUT_S, TimeUnit.SECONDS));
+        if (listener.failure.get() != null) {
+            throw listener.failure.get();
+        }
+        return Files.readAllBytes(listener.file.get().toPath());
+    }
+
+    private static byte[] random(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Log-like lines, which compress well without being all alike.
+     */
+    private static byte[] text(int size) {
+        Random random = new Random(size);
+        StringBuilder text = new StringBuilder(size + 100);
+        for (int line = 0; text.length() < size; line++) {
+            text.append(line).append(" INFO peer ").append(random.nextInt(16))
+                    .append(" sent chunk ").append(random.nextInt(100000)).append('\n');
+        }
+        text.setLength(size);
+        return text.toString().getBytes(UTF_8);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Passes frames on, counting the chunk bytes delivered and the nacks. Flips a bit in the
+     * chunk numbered {@link #corruptChunk}, and drops all frames once {@link #cutAfter} bytes of
+     * chunks went through, until reconnected.
+     */
+    private static class Link implements Transport {
+        private final Transport transport;
+        final AtomicLong chunkBytes = new AtomicLong();
+        final AtomicInteger nacks = new AtomicInteger();
+        private final AtomicInteger chunks = new AtomicInteger();
+        // Counted from 1; 0 corrupts none.
+        volatile int corruptChunk;
+        volatile long cutAfter = Long.MAX_VALUE;
+        private volatile boolean down;
+        private final CountDownLatch cut = new CountDownLatch(1);
+
+        Link(Transport transport) {
+            this.transport = transport;
+        }
+
+        @Override
+        public int maxFrameSize() {
+            return transport.maxFrameSize();
+        }
+
+        @Override
+        public void send(String endpointId, ByteBuffer frame) {
+            if (down) {
+                return;
+            }
+            byte type = frame.get(frame.position() + 1);
+            if (type == Frame.TYPE_NACK) {
+                nacks.incrementAndGet();
+            } else if (type == Frame.TYPE_CHUNK) {
+                if (chunks.incrementAndGet() == corruptChunk) {
+                    frame = flipLastBit(frame);
+                }
+                if (chunkBytes.addAndGet(frame.remaining()) >= cutAfter) {
+                    down = true;
+                    cut.countDown();
+                }
+            }
+            transport.send(endpointId, frame);
+        }
+
+        private static ByteBuffer flipLastBit(ByteBuffer frame) {
+            ByteBuffer copy = ByteBuffer.allocate(frame.remaining());
+            copy.put(frame.duplicate()).flip();
+            int last = copy.limit() - 1;
+            copy.put(last, (byte) (copy.get(last) ^ 1));
+            return copy;
+        }
+
+        void awaitCut() throws InterruptedException {
+            assertTrue("Never cut", cut.await(TIMEOUT_S, TimeUnit.SECONDS));
+        }
+
+        void reconnect() {
+            cutAfter = Long.MAX_VALUE;
+            down = false;
+        }
+
+        @Override
+        public void setReceiver(Receiver receiver) {
+            transport.setReceiver(receiver);
+        }
+    }
+
+    private static class Listener implements TransferEngine.Listener {
+        // The file received and the sender told it verified.
+        final CountDownLatch done = new CountDownLatch(2);
+        final AtomicReference<File> file = new AtomicReference<>();
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+
+        @Override
+        public void onTransferProgress(String endpointId, long transferId, long bytesTransferred, long totalBytes) {
+        }
+
+        @Override
+        public void onFileReceived(String endpointId, long transferId, File file) {
+            this.file.set(file);
+            done.countDown();
+        }
+
+        @Override
+        public void onBatchReceived(String endpointId, long transferId, List<File> files) {
+        }
+
+        @Override
+        public void onFileSent(String endpointId, long transferId) {
+            done.countDown();
+        }
+
+        @Override
+        public void onTransferFailed(String endpointId, long transferId, Exception e) {
+            failure.compareAndSet(null, e);
+            done.countDown();
+            done.countDown();
+        }
+
+        @Override
+        public void onMessageReceived(String endpointId, byte[] message) {
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.tab.demo.nearby;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Peers are recognized by the id they announce, not by their name, which devices of the same
+ * model share.
+ */
+public class TransferNodeTest {
+    private static final long TIMEOUT_MS = 5000;
+    // Time given to a connection that must not happen.
+    private static final long QUIET_MS = 300;
+
+    private final ScheduledExecutorService timers = Executors.newSingleThreadScheduledExecutor();
+    private final LoopbackTransport.Hub hub = new LoopbackTransport.Hub();
+    private File dir;
+    private PeerCache cache;
+    private TransferNode alpha;
+    private TransferNode beta;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("node", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        cache = PeerCache.load(new File(dir, "peers"));
+        cache.onConnected("beta-install", "beta", 0, 0);
+        alpha = new TransferNode(new LoopbackTransport(hub, "alpha", LoopbackTransport.DEFAULT_MAX_FRAME_SIZE),
+                new File(dir, "alpha"), timers, new Listener());
+        alpha.setLocalId("alpha-install");
+        alpha.setPeerCache(cache);
+        alpha.setAutoConnect(true);
+        beta = new TransferNode(new LoopbackTransport(hub, "beta", LoopbackTransport.DEFAULT_MAX_FRAME_SIZE),
+                new File(dir, "beta"), timers, new Listener());
+    }
+
+    @After
+    public void tearDown() {
+        alpha.shutdown();
+        beta.shutdown();
+        timers.shutdownNow();
+        deleteRecursively(dir);
+    }
+
+    @Test
+    public void trustedPeerIsConnectedToWhenFound() throws Exception {
+        beta.setLocalId("beta-install");
+        beta.setCapabilities(7);
+        beta.getTransport().startAdvertising();
+        alpha.scanNow();
+
+        awaitPeer("beta-install", 7);
+        assertEquals(Collections.singletonList("beta"), alpha.getConnectedEndpoints());
+    }
+
+    @Test
+    public void strangerWithTheNameOfATrustedPeerIsDropped() throws Exception {
+        beta.setLocalId("someone-else");
+        beta.getTransport().startAdvertising();
+        alpha.scanNow();
+
+        awaitDisconnected("beta");
+        assertTrue(alpha.getConnectedEndpoints().isEmpty());
+        assertFalse(cache.isTrusted("someone-else"));
+        assertEquals(Collections.singleton("beta-install"), cache.trustedIds());
+    }
+
+    @Test
+    public void anyPeerConnectedToIsTrustedByItsId() throws Exception {
+        beta.setLocalId("gamma-install");
+        beta.setCapabilities(3);
+        beta.getTransport().startAdvertising();
+        alpha.setAutoConnect(false);
+        alpha.connect("beta", null);
+
+        awaitPeer("gamma-install", 3);
+        assertEquals("beta", cache.get("gamma-install").name);
+        // The peer trusted before under the same name is still a different one.
+        assertEquals(0, cache.get("beta-install").capabilities);
+    }
+
+    @Test
+    public void forgottenPeerIsDroppedAndNotConnectedToAgain() throws Exception {
+        beta.setLocalId("beta-install");
+        beta.getTransport().startAdvertising();
+        alpha.scanNow();
+        awaitPeer("beta-install", 0);
+
+        alpha.forgetPeer("beta-install");
+
+        assertFalse(cache.isTrusted("beta-install"));
+        awaitDisconnected("beta");
+        alpha.scanNow();
+        Thread.sleep(QUIET_MS);
+        assertTrue(alpha.getConnectedEndpoints().isEmpty());
+    }
+
+    private void awaitDisconnected(String endpointId) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (alpha.getEndpoints().get(endpointId) == null
+                || alpha.getEndpoints().get(endpointId).state != EndpointState.DISCONNECTED) {
+            assertTrue("Not dropped", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private void awaitPeer(String id, int capabilities) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (cache.get(id) == null || cache.get(id).capabilities != capabilities) {
+            assertTrue("Not identified: " + id, System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static class Listener implements TransferNode.Listener {
+        @Override
+        public void onEndpointsChanged() {
+        }
+
+        @Override
+        public void onTransferProgress(String endpointId, long transferId, long bytesTransferred, long totalBytes) {
+        }
+
+        @Override
+        public void onFileReceived(String endpointId, long transferId, File file) {
+        }
+
+        @Override
+        public void onBatchReceived(String endpointId, long transferId, List<File> files) {
+        }
+
+        @Override
+        public void onFileSent(String endpointId, long transferId) {
+        }
+
+        @Override
+        public void onTransferFailed(String endpointId, long transferId, Exception e) {
+        }
+
+        @Override
+        public void onMessageReceived(String endpointId, byte[] message) {
+        }
+    }
+}